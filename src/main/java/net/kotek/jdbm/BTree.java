@@ -19,7 +19,11 @@ package net.kotek.jdbm;
 import java.io.*;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -49,6 +53,10 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * keys as small as possible to reduce disk I/O. If serialized value exceeds 32 bytes,
  * it is stored in separate record and tree contains only recid reference to it.
  * BTree uses delta compression for its keys.
+ * <p/>
+ * Concurrent access is handled by latches on nodes. Readers hold latch on parent only until
+ * child node is latched. Writers release latches on parent nodes as soon as child node is safe,
+ * so split or merge can not propagate above it. Operations in different parts of tree run in parallel.
  *
  *
  * @author Alex Boisvert
@@ -63,7 +71,23 @@ class BTree<K, V> {
     /**
      * Default node size (number of entries per node)
      */
-    public static final int DEFAULT_SIZE = 32; //TODO test optimal size, it has serious impact on sequencial write and read
+    public static final int DEFAULT_SIZE = 32;
+
+    /**
+     * Minimal node size
+     */
+    static final int MIN_SIZE = 8;
+
+    /**
+     * Maximal node size, index of first used item in node is stored as unsigned byte
+     */
+    static final int MAX_SIZE = 256;
+
+    /**
+     * Flags stored in tree header
+     */
+    private static final int HEADER_HAS_VALUES = 1;
+    private static final int HEADER_NODE_SIZE = 2;
 
 
     /**
@@ -104,14 +128,15 @@ class BTree<K, V> {
     boolean hasValues = true;
 
     /**
-     * The number of structural modifications to the tree for fail fast iterators. This value is just for runtime, it is not persisted
+     * Number of entries per node. It has serious impact on sequential write and read,
+     * small keys benefit from larger nodes.
      */
-    transient int modCount = 0;
+    int nodeSize = DEFAULT_SIZE;
 
     /**
-     * cached instance of an insert result, so we do not have to allocate new object on each insert
+     * The number of structural modifications to the tree for fail fast iterators. This value is just for runtime, it is not persisted
      */
-    protected BTreeNode.InsertResult<K, V> insertResultReuse; //TODO investigate performance impact of removing this
+    transient volatile int modCount = 0;
 
 
     public Serializer<K> getKeySerializer() {
@@ -130,13 +155,13 @@ class BTree<K, V> {
      * Height of the B+Tree.  This is the number of BTreeNodes you have to traverse
      * to get to a leaf BTreeNode, starting from the root.
      */
-    private int _height;
+    private volatile int _height;
 
 
     /**
      * Recid of the root BTreeNode
      */
-    private transient long _root;
+    private transient volatile long _root;
 
 
     /**
@@ -159,8 +184,31 @@ class BTree<K, V> {
      */
     protected RecordListener[] recordListeners = new RecordListener[0];
 
+    /**
+     * Operations on single entry hold read lock and use node latches.
+     * Write lock excludes all other operations on this tree.
+     */
     final protected ReadWriteLock lock = new ReentrantReadWriteLock();
 
+    /**
+     * Lock returned by getLock(). Writers hold only read lock on tree, so both
+     * locks of this pair are mapped to exclusive write lock, to keep browsing consistent.
+     */
+    private final ReadWriteLock browseLock = new ReadWriteLock() {
+        public Lock readLock() {
+            return lock.writeLock();
+        }
+
+        public Lock writeLock() {
+            return lock.writeLock();
+        }
+    };
+
+    /**
+     * Latches of nodes currently used by some operation, indexed by node recid
+     */
+    private final LongHashMap<Latch> latches = new LongHashMap<Latch>();
+
     /**
      * No-argument constructor used by serialization.
      */
@@ -190,11 +238,30 @@ class BTree<K, V> {
                                                     Serializer<V> valueSerializer,
                                                     boolean hasValues)
             throws IOException {
+        return createInstance(db, comparator, keySerializer, valueSerializer, hasValues, DEFAULT_SIZE);
+    }
+
+
+    /**
+     * Create a new persistent BTree with given node size
+     *
+     * @param nodeSize number of entries per node, must be even number between 8 and 256
+     */
+    public static <K, V> BTree<K, V> createInstance(DBAbstract db,
+                                                    Comparator<K> comparator,
+                                                    Serializer<K> keySerializer,
+                                                    Serializer<V> valueSerializer,
+                                                    boolean hasValues,
+                                                    int nodeSize)
+            throws IOException {
         BTree<K, V> btree;
 
         if (db == null) {
             throw new IllegalArgumentException("Argument 'db' is null");
         }
+        if (nodeSize < MIN_SIZE || nodeSize > MAX_SIZE || nodeSize % 2 != 0) {
+            throw new IllegalArgumentException("Node size must be even number between " + MIN_SIZE + " and " + MAX_SIZE + ": " + nodeSize);
+        }
 
         btree = new BTree<K, V>();
         btree._db = db;
@@ -202,6 +269,7 @@ class BTree<K, V> {
         btree.keySerializer = keySerializer;
         btree.valueSerializer = valueSerializer;
         btree.hasValues = hasValues;
+        btree.nodeSize = nodeSize;
         btree._recid = db.insert(btree, btree.getRecordManager().defaultSerializer(),false);
 
         return btree;
@@ -229,11 +297,16 @@ class BTree<K, V> {
      * Get the {@link ReadWriteLock} associated with this BTree.
      * This should be used with browsing operations to ensure
      * consistency.
+     * <p/>
+     * Lock is not shared: inserts and removes run concurrently under node latches, so
+     * {@code readLock()} returns the same exclusive lock as {@code writeLock()}.
+     * Holder of either lock excludes all other operations on this tree, including
+     * other browsers holding {@code readLock()}.
      *
-     * @return
+     * @return lock whose read and write locks are both exclusive
      */
     public ReadWriteLock getLock() {
-        return lock;
+        return browseLock;
     }
 
     /**
@@ -257,63 +330,111 @@ class BTree<K, V> {
         if (value == null) {
             throw new IllegalArgumentException("Argument 'value' is null");
         }
+        Latches held = new Latches(true);
         try {
-            lock.writeLock().lock();
-            BTreeNode<K, V> rootNode = getRoot();
-
-            if (rootNode == null) {
-                // BTree is currently empty, create a new root BTreeNode
-                if (DEBUG) {
-                    System.out.println("BTree.insert() new root BTreeNode");
+            lock.readLock().lock();
+            BTreeNode<K, V> rootNode;
+            while ((rootNode = latchRoot(held)) == null) {
+                synchronized (this) {
+                    if (_root == 0) {
+                        // BTree is currently empty, create a new root BTreeNode
+                        if (DEBUG) {
+                            System.out.println("BTree.insert() new root BTreeNode");
+                        }
+                        rootNode = new BTreeNode<K, V>(this, key, value);
+                        _root = rootNode._recid;
+                        _height = 1;
+                        _entries = 1;
+                        _db.update(_recid, this);
+                        modCount++;
+                    } else {
+                        // other thread created root meanwhile
+                        continue;
+                    }
                 }
-                rootNode = new BTreeNode<K, V>(this, key, value);
-                _root = rootNode._recid;
-                _height = 1;
-                _entries = 1;
-                _db.update(_recid, this);
-                modCount++;
                 //notifi listeners
                 for (RecordListener<K, V> l : recordListeners) {
                     l.recordInserted(key, value);
                 }
                 return null;
-            } else {
-                BTreeNode.InsertResult<K, V> insert = rootNode.insert(_height, key, value, replace);
-                boolean dirty = false;
-                if (insert._overflow != null) {
-                    // current root node overflowed, we replace with a new root node
-                    if (DEBUG) {
-                        System.out.println("BTreeNode.insert() replace root BTreeNode due to overflow");
+            }
+
+            BTreeNode.InsertResult<K, V> insert = rootNode.insert(held.height, key, value, replace, held);
+            if (insert._overflow != null || insert._existing == null) {
+                synchronized (this) {
+                    if (insert._overflow != null) {
+                        // current root node overflowed, we replace with a new root node
+                        // root is still latched, because it was full
+                        if (DEBUG) {
+                            System.out.println("BTreeNode.insert() replace root BTreeNode due to overflow");
+                        }
+                        rootNode = new BTreeNode<K, V>(this, rootNode, insert._overflow);
+                        _root = rootNode._recid;
+                        _height += 1;
+                    }
+                    if (insert._existing == null) {
+                        _entries++;
+                        modCount++;
                     }
-                    rootNode = new BTreeNode<K, V>(this, rootNode, insert._overflow);
-                    _root = rootNode._recid;
-                    _height += 1;
-                    dirty = true;
-                }
-                if (insert._existing == null) {
-                    _entries++;
-                    modCount++;
-                    dirty = true;
-                }
-                if (dirty) {
                     _db.update(_recid, this);
                 }
-                //notify listeners
-                for (RecordListener<K, V> l : recordListeners) {
-                    if (insert._existing == null)
-                        l.recordInserted(key, value);
-                    else
-                        l.recordUpdated(key, insert._existing, value);
-                }
+            }
+            //notify listeners
+            for (RecordListener<K, V> l : recordListeners) {
+                if (insert._existing == null)
+                    l.recordInserted(key, value);
+                else
+                    l.recordUpdated(key, insert._existing, value);
+            }
+
+            // insert might have returned an existing value
+            return insert._existing;
+        } finally {
+            held.unlatchAll();
+            lock.readLock().unlock();
+        }
+    }
 
-                // insert might have returned an existing value
-                V ret = insert._existing;
-                //zero out tuple and put it for reuse
-                insert._existing = null;
-                insert._overflow = null;
-                this.insertResultReuse = insert;
-                return ret;
+
+    /**
+     * Fill empty BTree with entries from iterator.
+     * <p/>
+     * Entries must be sorted in ascending key order without duplicates.
+     * Tree is built bottom-up with packed nodes, each node is written only once.
+     * This is much faster than inserting entries one by one and the tree is about half the size.
+     * Record listeners are not notified. If loading fails, nodes created so far are deleted and tree stays empty.
+     *
+     * @param entries sorted entries
+     * @throws IllegalStateException    if tree is not empty
+     * @throws IllegalArgumentException if keys are not sorted
+     */
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries)
+            throws IOException {
+        try {
+            lock.writeLock().lock();
+            if (_root != 0) {
+                throw new IllegalStateException("BTree is not empty");
             }
+            BTreeBulkLoader<K, V> loader = new BTreeBulkLoader<K, V>(this);
+            boolean loaded = false;
+            try {
+                while (entries.hasNext()) {
+                    Map.Entry<K, V> e = entries.next();
+                    loader.add(e.getKey(), e.getValue());
+                }
+                loader.finish();
+                loaded = true;
+            } finally {
+                //do not leave orphaned nodes in store
+                if (!loaded)
+                    loader.abort();
+            }
+
+            _root = loader._root;
+            _height = loader._height;
+            _entries = loader.getEntries();
+            modCount++;
+            _db.update(_recid, this);
         } finally {
             lock.writeLock().unlock();
         }
@@ -332,39 +453,42 @@ class BTree<K, V> {
         if (key == null) {
             throw new IllegalArgumentException("Argument 'key' is null");
         }
+        Latches held = new Latches(true);
         try {
-            lock.writeLock().lock();
-            BTreeNode<K, V> rootNode = getRoot();
+            lock.readLock().lock();
+            BTreeNode<K, V> rootNode = latchRoot(held);
             if (rootNode == null) {
                 return null;
             }
-            boolean dirty = false;
-            BTreeNode.RemoveResult<K, V> remove = rootNode.remove(_height, key);
-            if (remove._underflow && rootNode.isEmpty()) {
-                _height -= 1;
-                dirty = true;
-
-                _db.delete(_root);
-                if (_height == 0) {
-                    _root = 0;
-                } else {
-                    _root = rootNode.loadLastChildNode()._recid;
+            BTreeNode.RemoveResult<K, V> remove = rootNode.remove(held.height, key, held);
+            // root is latched if it underflowed
+            boolean collapse = remove._underflow && rootNode.isEmpty();
+            if (collapse || remove._value != null) {
+                synchronized (this) {
+                    if (collapse) {
+                        _height -= 1;
+
+                        _db.delete(_root);
+                        if (_height == 0) {
+                            _root = 0;
+                        } else {
+                            _root = rootNode._children[nodeSize - 1];
+                        }
+                    }
+                    if (remove._value != null) {
+                        _entries--;
+                        modCount++;
+                    }
+                    _db.update(_recid, this);
                 }
             }
-            if (remove._value != null) {
-                _entries--;
-                modCount++;
-                dirty = true;
-            }
-            if (dirty) {
-                _db.update(_recid, this);
-            }
             if (remove._value != null)
                 for (RecordListener<K, V> l : recordListeners)
                     l.recordRemoved(key, remove._value);
             return remove._value;
         } finally {
-            lock.writeLock().unlock();
+            held.unlatchAll();
+            lock.readLock().unlock();
         }
     }
 
@@ -380,15 +504,17 @@ class BTree<K, V> {
         if (key == null) {
             throw new IllegalArgumentException("Argument 'key' is null");
         }
+        Latches held = new Latches(false);
         try {
             lock.readLock().lock();
-            BTreeNode<K, V> rootNode = getRoot();
+            BTreeNode<K, V> rootNode = latchRoot(held);
             if (rootNode == null) {
                 return null;
             }
 
-            return rootNode.findValue(_height, key);
+            return rootNode.findValue(held.height, key, held);
         } finally {
+            held.unlatchAll();
             lock.readLock().unlock();
         }
     }
@@ -435,14 +561,16 @@ class BTree<K, V> {
     @SuppressWarnings("unchecked")
     public BTreeTupleBrowser<K, V> browse()
             throws IOException {
+        Latches held = new Latches(false);
         try {
             lock.readLock().lock();
-            BTreeNode<K, V> rootNode = getRoot();
+            BTreeNode<K, V> rootNode = latchRoot(held);
             if (rootNode == null) {
                 return EMPTY_BROWSER;
             }
-            return rootNode.findFirst();
+            return rootNode.findFirst(held);
         } finally {
+            held.unlatchAll();
             lock.readLock().unlock();
         }
     }
@@ -463,15 +591,17 @@ class BTree<K, V> {
     @SuppressWarnings("unchecked")
     public BTreeTupleBrowser<K, V> browse(final K key, final boolean inclusive)
             throws IOException {
+        Latches held = new Latches(false);
         try {
             lock.readLock().lock();
-            BTreeNode<K, V> rootNode = getRoot();
+            BTreeNode<K, V> rootNode = latchRoot(held);
             if (rootNode == null) {
                 return EMPTY_BROWSER;
             }
-            BTreeTupleBrowser<K, V> browser = rootNode.find(_height, key, inclusive);
+            BTreeTupleBrowser<K, V> browser = rootNode.find(held.height, key, inclusive, held);
             return browser;
         } finally {
+            held.unlatchAll();
             lock.readLock().unlock();
         }
     }
@@ -502,6 +632,37 @@ class BTree<K, V> {
     }
 
 
+    /**
+     * Latch root BTreeNode and return it, or null if tree is empty.
+     * Root may change before latch is acquired, so it is verified and operation retries.
+     */
+    private BTreeNode<K, V> latchRoot(Latches held)
+            throws IOException {
+        while (true) {
+            long root;
+            int height;
+            synchronized (this) {
+                root = _root;
+                height = _height;
+            }
+            if (root == 0) {
+                return null;
+            }
+            held.latch(root);
+            boolean valid;
+            synchronized (this) {
+                valid = root == _root && height == _height;
+            }
+            if (valid) {
+                // root can not change now, it is only replaced by writer who holds its latch
+                held.height = height;
+                return getRoot();
+            }
+            held.unlatchAll();
+        }
+    }
+
+
     static BTree readExternal(DataInput in, Serialization ser)
             throws IOException, ClassNotFoundException {
         BTree tree = new BTree();
@@ -510,7 +671,10 @@ class BTree<K, V> {
         tree._recid = in.readLong();
         tree._root = in.readLong();
         tree._entries = in.readLong();
-        tree.hasValues = in.readBoolean();
+        int flags = in.readUnsignedByte();
+        tree.hasValues = (flags & HEADER_HAS_VALUES) != 0;
+        // trees created before node size was configurable do not have it in header
+        tree.nodeSize = (flags & HEADER_NODE_SIZE) != 0 ? LongPacker.unpackInt(in) : DEFAULT_SIZE;
         tree._comparator = (Comparator) ser.deserialize(in);
         tree.keySerializer = (Serializer) ser.deserialize(in);
         tree.valueSerializer = (Serializer) ser.deserialize(in);
@@ -524,36 +688,51 @@ class BTree<K, V> {
         out.writeLong(_recid);
         out.writeLong(_root);
         out.writeLong(_entries);
-        out.writeBoolean(hasValues);
+        out.writeByte((hasValues ? HEADER_HAS_VALUES : 0) | HEADER_NODE_SIZE);
+        LongPacker.packInt(out, nodeSize);
         _db.defaultSerializer().serialize(out, _comparator);
         _db.defaultSerializer().serialize(out, keySerializer);
         _db.defaultSerializer().serialize(out, valueSerializer);
     }
 
     /**
-     * Copyes tree from one db to other, defragmenting it allong the way
+     * Copyes tree from one db to other, defragmenting it allong the way.
+     * Tree header and root node are copied by calling thread. Subtrees under root node are independent,
+     * so they are returned as tasks, which may run in parallel.
+     *
      * @param recid
      * @param r1
-     * @param r2
+     * @param r2 new store, header is inserted directly, tasks pass records to their sinks
+     * @param serializer default serializer of r1
+     * @return tasks which copy subtrees
      * @throws IOException
      */
-    public static void defrag(long recid, DBStore r1, DBStore r2) throws IOException {
+    static List<DefragSink.Task> defrag(long recid, final DBStore r1, final DBStore r2, Serializer serializer) throws IOException {
         try {
             byte[] data = r1.fetchRaw(recid);
             r2.forceInsert(recid, data);
             DataInput in = new DataInputOutput(data);
-            BTree t = (BTree) r1.defaultSerializer().deserialize(in);
+            BTree t = (BTree) serializer.deserialize(in);
             t.loadValues = false;
             t._db = r1;
             t._nodeSerializer = new BTreeNode(t, false);
 
-
-            BTreeNode p = t.getRoot();
+            final List<DefragSink.Task> tasks = new ArrayList<DefragSink.Task>();
+            final BTreeNode p = t.getRoot();
             if (p != null) {
                 r2.forceInsert(t._root, r1.fetchRaw(t._root));
-                p.defrag(r1, r2);
+                if (p._children != null) {
+                    for (final long child : p._children) {
+                        if (child == 0) continue;
+                        tasks.add(new DefragSink.Task() {
+                            public void copy(DefragSink out) throws Exception {
+                                p.defragChild(child, r1, out);
+                            }
+                        });
+                    }
+                }
             }
-
+            return tasks;
         } catch (ClassNotFoundException e) {
             throw new IOError(e);
         }
@@ -642,6 +821,24 @@ class BTree<K, V> {
         }
     }
 
+    /**
+     * Used for debugging and testing only. Verifies that tree is balanced and that every
+     * node except root is at least half full.
+     *
+     * @throws IllegalStateException if structure is broken
+     */
+    void checkStructure() throws IOException {
+        try {
+            lock.writeLock().lock();
+            BTreeNode<K, V> root = getRoot();
+            if (root != null) {
+                root.checkStructure(_height, true);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     public boolean hasValues() {
         return hasValues;
     }
@@ -701,6 +898,186 @@ class BTree<K, V> {
     }
 
 
+    /**
+     * Read-write latch of single BTreeNode.
+     */
+    static final class Latch extends ReentrantReadWriteLock {
 
-}
+        /**
+         * Number of operations which hold or wait for this latch, latch is removed from table when it drops to zero
+         */
+        int users;
+    }
+
+    /**
+     * Node latches held by single operation, in order they were acquired.
+     * All latches are either read or write latches.
+     */
+    final class Latches {
+
+        final boolean write;
+
+        private long[] recids = new long[8];
+
+        private Latch[] held = new Latch[8];
+
+        private int size = 0;
+
+        /**
+         * Height of root node at time it was latched
+         */
+        int height;
+
+        Latches(boolean write) {
+            this.write = write;
+        }
+
+        /**
+         * Acquire latch on node with given recid.
+         */
+        void latch(long recid) {
+            Latch l = use(recid);
+            if (write)
+                l.writeLock().lock();
+            else
+                l.readLock().lock();
+            add(recid, l);
+        }
+
+        /**
+         * Acquire latch on node with given recid only if it is not held by other operation.
+         *
+         * @return true if latch was acquired
+         */
+        boolean tryLatch(long recid) {
+            Latch l = use(recid);
+            boolean locked = write ? l.writeLock().tryLock() : l.readLock().tryLock();
+            if (!locked) {
+                release(recid, l);
+                return false;
+            }
+            add(recid, l);
+            return true;
+        }
+
+        /**
+         * Acquire latch on left neighbour of latched leaf nodes.
+         * <p/>
+         * Latches on the same level are acquired from left to right, otherwise
+         * operations relinking neighbour leafs could deadlock. If left neighbour is used by other operation,
+         * latches of given nodes are released and acquired again after left neighbour.
+         * Parent of given nodes must be latched, so only links between leafs may change meanwhile.
+         *
+         * @param left  recid of left neighbour
+         * @param nodes recids of latched nodes, ordered from left to right
+         * @return false if given nodes were released meanwhile and caller must reload them
+         */
+        boolean latchLeft(long left, long... nodes) {
+            if (tryLatch(left))
+                return true;
+            for (int i = nodes.length - 1; i >= 0; i--)
+                unlatch(nodes[i]);
+            latch(left);
+            for (long recid : nodes)
+                latch(recid);
+            return false;
+        }
+
+        /**
+         * Return true if latch on node with given recid is held.
+         */
+        boolean isLatched(long recid) {
+            for (int i = 0; i < size; i++) {
+                if (recids[i] == recid)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Release all latches except the last acquired one.
+         * Called when last latched node is safe, so no change propagates to its parents.
+         */
+        void unlatchParents() {
+            if (size <= 1)
+                return;
+            for (int i = 0; i < size - 1; i++) {
+                unlatch(recids[i], held[i]);
+            }
+            recids[0] = recids[size - 1];
+            held[0] = held[size - 1];
+            Arrays.fill(held, 1, size, null);
+            size = 1;
+        }
+
+        /**
+         * Release all latches.
+         */
+        void unlatchAll() {
+            for (int i = size - 1; i >= 0; i--) {
+                unlatch(recids[i], held[i]);
+                held[i] = null;
+            }
+            size = 0;
+        }
 
+        /**
+         * Release latch on node with given recid, latches acquired after it are kept.
+         */
+        void unlatch(long recid) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (recids[i] == recid) {
+                    unlatch(recid, held[i]);
+                    System.arraycopy(recids, i + 1, recids, i, size - i - 1);
+                    System.arraycopy(held, i + 1, held, i, size - i - 1);
+                    size--;
+                    held[size] = null;
+                    return;
+                }
+            }
+            throw new IllegalStateException("Node is not latched: " + recid);
+        }
+
+        private void unlatch(long recid, Latch l) {
+            if (write)
+                l.writeLock().unlock();
+            else
+                l.readLock().unlock();
+            release(recid, l);
+        }
+
+        /**
+         * Get latch for given recid and register this operation as its user.
+         */
+        private Latch use(long recid) {
+            synchronized (latches) {
+                Latch l = latches.get(recid);
+                if (l == null) {
+                    l = new Latch();
+                    latches.put(recid, l);
+                }
+                l.users++;
+                return l;
+            }
+        }
+
+        private void release(long recid, Latch l) {
+            synchronized (latches) {
+                if (--l.users == 0)
+                    latches.remove(recid);
+            }
+        }
+
+        private void add(long recid, Latch l) {
+            if (size == held.length) {
+                recids = Arrays.copyOf(recids, size * 2);
+                held = Arrays.copyOf(held, size * 2);
+            }
+            recids[size] = recid;
+            held[size] = l;
+            size++;
+        }
+    }
+
+
+}
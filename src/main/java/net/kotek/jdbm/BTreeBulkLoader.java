@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds BTree bottom-up from entries sorted in ascending order.
+ * <p/>
+ * Leaf nodes are filled completely and linked as they are created. Each finished
+ * leaf pushes its largest key into parent level, which is filled the same way.
+ * Every node gets its recid reserved when it is created and its content is written exactly once.
+ * Reserved recids are remembered, so nodes can be deleted if loading fails.
+ * <p/>
+ * Last two nodes on each level are redistributed when loading finishes,
+ * so all nodes except root are at least half full, as <code>BTreeNode.remove()</code> expects.
+ */
+final class BTreeBulkLoader<K, V> {
+
+    private final BTree<K, V> _btree;
+
+    /**
+     * Levels of tree being built, first is leaf level
+     */
+    private final List<Level> _levels = new ArrayList<Level>();
+
+    private K _lastKey;
+
+    private long _entries;
+
+    /**
+     * Recids of all nodes created so far
+     */
+    private long[] _recids = new long[16];
+
+    private int _recidCount;
+
+    /**
+     * Recid of root node, set by finish()
+     */
+    long _root;
+
+    /**
+     * Height of tree, set by finish()
+     */
+    int _height;
+
+
+    /**
+     * Nodes under construction on single tree level.
+     */
+    private final class Level {
+
+        final boolean leaf;
+
+        /**
+         * Full node waiting to be written, it may give some entries to current node in finish()
+         */
+        BTreeNode<K, V> pending;
+
+        /**
+         * Node being filled, entries are stored from index zero
+         */
+        BTreeNode<K, V> current;
+
+        /**
+         * Number of entries in current node
+         */
+        int count;
+
+        Level(boolean leaf) throws IOException {
+            this.leaf = leaf;
+            current = newNode(leaf);
+        }
+    }
+
+
+    BTreeBulkLoader(BTree<K, V> btree) {
+        _btree = btree;
+    }
+
+
+    /**
+     * Append entry, key must be greater than previously added key.
+     */
+    void add(K key, V value) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("Argument 'key' is null");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Argument 'value' is null");
+        }
+        if (_entries != 0 && compare(_lastKey, key) >= 0) {
+            throw new IllegalArgumentException("Keys are not sorted in ascending order: " + _lastKey + ", " + key);
+        }
+        _lastKey = key;
+        _entries++;
+        add(0, key, value, 0);
+    }
+
+
+    long getEntries() {
+        return _entries;
+    }
+
+
+    /**
+     * Writes remaining nodes and creates root. Sets _root and _height.
+     */
+    void finish() throws IOException {
+        if (_entries == 0) {
+            _root = 0;
+            _height = 0;
+            return;
+        }
+
+        for (int i = 0; ; i++) {
+            Level l = _levels.get(i);
+            if (l.leaf) {
+                // rightmost leaf ends with null key, which is considered infinite
+                add(i, null, null, 0);
+            }
+            // on upper levels rightmost child was added with null key already
+
+            if (l.pending == null) {
+                // only one node on this level, it becomes root
+                alignEnd(l.current, l.count);
+                write(i, l.current, false);
+                _root = l.current._recid;
+                _height = i + 1;
+                return;
+            }
+
+            redistribute(l);
+            write(i, l.pending, true);
+            alignEnd(l.current, l.count);
+            write(i, l.current, true);
+        }
+    }
+
+
+    /**
+     * Deletes all nodes created so far, it is called if loading fails.
+     */
+    void abort() throws IOException {
+        for (int i = 0; i < _recidCount; i++)
+            _btree._db.delete(_recids[i]);
+        _recidCount = 0;
+        _levels.clear();
+    }
+
+
+    private void add(int level, K key, V value, long child) throws IOException {
+        if (_levels.size() == level) {
+            _levels.add(new Level(level == 0));
+        }
+        Level l = _levels.get(level);
+
+        if (l.count == _btree.nodeSize) {
+            // current node is full, previous full node can be written now
+            if (l.pending != null) {
+                write(level, l.pending, true);
+            }
+            l.pending = l.current;
+            l.pending._first = 0;
+            l.current = newNode(l.leaf);
+            l.count = 0;
+            if (l.leaf) {
+                l.pending._next = l.current._recid;
+                l.current._previous = l.pending._recid;
+            }
+        }
+
+        l.current._keys[l.count] = key;
+        if (l.leaf) {
+            l.current._values[l.count] = value;
+        } else {
+            l.current._children[l.count] = child;
+        }
+        l.count++;
+    }
+
+
+    /**
+     * Moves entries from end of pending node to current node, so current node is at least half full.
+     */
+    private void redistribute(Level l) {
+        final int half = _btree.nodeSize / 2;
+        if (l.count >= half)
+            return;
+
+        final int move = half - l.count;
+        final BTreeNode<K, V> from = l.pending;
+        final BTreeNode<K, V> to = l.current;
+        final int fromIndex = _btree.nodeSize - move;
+
+        System.arraycopy(to._keys, 0, to._keys, move, l.count);
+        System.arraycopy(from._keys, fromIndex, to._keys, 0, move);
+        if (l.leaf) {
+            System.arraycopy(to._values, 0, to._values, move, l.count);
+            System.arraycopy(from._values, fromIndex, to._values, 0, move);
+        } else {
+            System.arraycopy(to._children, 0, to._children, move, l.count);
+            System.arraycopy(from._children, fromIndex, to._children, 0, move);
+        }
+        l.count += move;
+
+        // pending node keeps lower part, align it to the end of arrays
+        alignEnd(from, fromIndex);
+    }
+
+
+    /**
+     * Writes finished node and optionally adds it into parent level.
+     */
+    private void write(int level, BTreeNode<K, V> node, boolean addToParent) throws IOException {
+        _btree._db.update(node._recid, node, node);
+        if (addToParent) {
+            add(level + 1, node.getLargestKey(), null, node._recid);
+        }
+    }
+
+
+    private BTreeNode<K, V> newNode(boolean leaf) throws IOException {
+        long recid = _btree._db.insert(null, Utils.NULL_SERIALIZER, false);
+        if (_recidCount == _recids.length)
+            _recids = Arrays.copyOf(_recids, _recids.length * 2);
+        _recids[_recidCount++] = recid;
+        return new BTreeNode<K, V>(_btree, leaf, recid);
+    }
+
+
+    /**
+     * Shifts first <code>count</code> entries to the end of node arrays and sets _first.
+     */
+    private static <K, V> void alignEnd(BTreeNode<K, V> node, int count) {
+        final int first = node._btree.nodeSize - count;
+        System.arraycopy(node._keys, 0, node._keys, first, count);
+        for (int i = 0; i < first; i++)
+            node._keys[i] = null;
+        if (node._isLeaf) {
+            System.arraycopy(node._values, 0, node._values, first, count);
+            for (int i = 0; i < first; i++)
+                node._values[i] = null;
+        } else {
+            System.arraycopy(node._children, 0, node._children, first, count);
+            for (int i = 0; i < first; i++)
+                node._children[i] = 0;
+        }
+        node._first = first;
+    }
+
+
+    private int compare(K key1, K key2) {
+        if (_btree._comparator == null) {
+            return ((Comparable) key1).compareTo(key2);
+        } else {
+            return _btree._comparator.compare(key1, key2);
+        }
+    }
+
+}
@@ -43,17 +43,35 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
     private final boolean toInclusive;
     private final boolean fromInclusive;
 
+    /**
+     * if true, keys are iterated from greatest to smallest.
+     * fromKey and toKey are still bounds in ascending order of tree
+     */
+    protected final boolean descending;
+
+    /**
+     * ascending view with same bounds, descending navigation methods delegate to it
+     */
+    private final BTreeMap<K, V> ascendingMap;
+
     public BTreeMap(BTree<K, V> tree, boolean readonly) {
         this(tree, readonly, null, false, null, false);
     }
 
     protected BTreeMap(BTree<K, V> tree, boolean readonly, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        this(tree, readonly, fromKey, fromInclusive, toKey, toInclusive, false);
+    }
+
+    protected BTreeMap(BTree<K, V> tree, boolean readonly, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, boolean descending) {
         this.tree = tree;
         this.fromKey = fromKey;
         this.fromInclusive = fromInclusive;
         this.toKey = toKey;
         this.toInclusive = toInclusive;
         this.readonly = readonly;
+        this.descending = descending;
+        this.ascendingMap = descending ?
+                new BTreeMap<K, V>(tree, readonly, fromKey, fromInclusive, toKey, toInclusive, false) : this;
     }
 
     @Override
@@ -111,6 +129,8 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
 
 
         public Iterator<java.util.Map.Entry<K, V>> iterator() {
+            if (descending)
+                return descendingIterator();
             try {
                 final BTree.BTreeTupleBrowser<K, V> br = fromKey == null ?
                         tree.browse() : tree.browse(fromKey, fromInclusive);
@@ -172,6 +192,75 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
 
         }
 
+        /**
+         * Walks leaf nodes from right to left using <code>getPrevious</code>, entries are not buffered
+         */
+        private Iterator<java.util.Map.Entry<K, V>> descendingIterator() {
+            return new Iterator<Entry<K, V>>() {
+
+                //browser is positioned after greatest key in bounds
+                private BTree.BTreeTupleBrowser<K, V> br = browse(toKey, toInclusive);
+                private Entry<K, V> next;
+                private K lastKey;
+
+                private BTree.BTreeTupleBrowser<K, V> browse(K key, boolean inclusive) {
+                    try {
+                        return key == null ? tree.browse(null, true) : tree.browse(key, !inclusive);
+                    } catch (IOException e1) {
+                        throw new IOError(e1);
+                    }
+                }
+
+                void ensureNext() {
+                    try {
+                        BTree.BTreeTuple<K, V> t = new BTree.BTreeTuple<K, V>();
+                        if (br.getPrevious(t) && inBounds(t.key))
+                            next = newEntry(t.key, t.value);
+                        else
+                            next = null;
+                    } catch (IOException e1) {
+                        throw new IOError(e1);
+                    }
+                }
+
+                {
+                    ensureNext();
+                }
+
+
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                public java.util.Map.Entry<K, V> next() {
+                    if (next == null)
+                        throw new NoSuchElementException();
+                    Entry<K, V> ret = next;
+                    lastKey = ret.getKey();
+                    //move to next position
+                    ensureNext();
+                    return ret;
+                }
+
+                public void remove() {
+                    if (readonly)
+                        throw new UnsupportedOperationException("readonly");
+
+                    if (lastKey == null)
+                        throw new IllegalStateException();
+                    try {
+                        tree.remove(lastKey);
+                        lastKey = null;
+                    } catch (IOException e1) {
+                        throw new IOError(e1);
+                    }
+                    //remove may trigger tree rebalance, so find position before next entry again
+                    if (next != null)
+                        br = browse(next.getKey(), false);
+                }
+            };
+        }
+
         @SuppressWarnings("unchecked")
         public boolean remove(Object o) {
             if (readonly)
@@ -221,7 +310,7 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
         if(fromKey == null && toKey == null)
             return true;
 
-        Comparator comp = comparator();
+        Comparator comp = tree._comparator;
         if (comp == null) comp = Utils.COMPARABLE_COMPARATOR;
         
         if(fromKey!=null){
@@ -310,10 +399,14 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
     }
 
     public Comparator<? super K> comparator() {
+        if (descending)
+            return Collections.reverseOrder(tree._comparator);
         return tree._comparator;
     }
 
     public K firstKey() {
+        if (descending)
+            return ascendingMap.lastKey();
         if (isEmpty())
             return null;
         try {
@@ -328,6 +421,8 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
     }
 
     public K lastKey() {
+        if (descending)
+            return ascendingMap.firstKey();
         if (isEmpty())
             return null;
         try {
@@ -348,6 +443,8 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
     }
 
     public ConcurrentNavigableMap<K, V> headMap(K toKey2, boolean inclusive) {
+        if (descending)
+            return ascendingMap.tailMap(toKey2, inclusive).descendingMap();
         K toKey3 = Utils.min(this.toKey,toKey2,comparator());
         boolean inclusive2 = toKey3 == toKey? toInclusive : inclusive;
         return new BTreeMap<K, V>(tree, readonly, this.fromKey, this.fromInclusive, toKey3, inclusive2);
@@ -365,6 +462,8 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
     }
 
     public K lowerKey(K key) {
+        if (descending)
+            return ascendingMap.higherKey(key);
         if (isEmpty())
             return null;
         K key2 = Utils.min(key,toKey,comparator());
@@ -388,6 +487,8 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
     }
 
     public K floorKey(K key) {
+        if (descending)
+            return ascendingMap.ceilingKey(key);
         if (isEmpty())
             return null;
 
@@ -416,6 +517,8 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
     }
 
     public K ceilingKey(K key) {
+        if (descending)
+            return ascendingMap.floorKey(key);
         if (isEmpty())
             return null;
         K key2 = Utils.min(key,toKey,comparator());
@@ -437,6 +540,8 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
     }
 
     public K higherKey(K key) {
+        if (descending)
+            return ascendingMap.lowerKey(key);
         if (isEmpty())
             return null;
 
@@ -478,8 +583,7 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
     }
 
     public ConcurrentNavigableMap<K, V> descendingMap() {
-        throw new  UnsupportedOperationException("not implemented yet");
-        //TODO implement descending (reverse order) map
+        return new BTreeMap<K, V>(tree, readonly, fromKey, fromInclusive, toKey, toInclusive, !descending);
     }
 
 
@@ -505,13 +609,17 @@ class BTreeMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap
 
 
     public ConcurrentNavigableMap<K, V> tailMap(K fromKey2, boolean inclusive) {
+        if (descending)
+            return ascendingMap.headMap(fromKey2, inclusive).descendingMap();
         K fromKey3 = Utils.max(this.fromKey,fromKey2,comparator());
-        boolean inclusive2 = fromKey3 == toKey? toInclusive : inclusive;
+        boolean inclusive2 = fromKey3 == this.fromKey? fromInclusive : inclusive;
 
         return new BTreeMap<K, V>(tree, readonly, fromKey3, inclusive2, toKey, toInclusive);
     }
 
     public ConcurrentNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        if (descending)
+            return ascendingMap.subMap(toKey, toInclusive, fromKey, fromInclusive).descendingMap();
         Comparator comp = comparator();
         if (comp == null) comp = Utils.COMPARABLE_COMPARATOR;
         if (comp.compare(fromKey, toKey) > 0)
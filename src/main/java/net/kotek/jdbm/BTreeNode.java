@@ -85,7 +85,7 @@ final class BTreeNode<K, V>
     /**
      * Index of first used item at the node
      */
-    protected byte _first;
+    protected int _first;
 
 
     /**
@@ -124,15 +124,15 @@ final class BTreeNode<K, V>
 
         _isLeaf = false;
 
-        _first = BTree.DEFAULT_SIZE - 2;
+        _first = _btree.nodeSize - 2;
 
-        _keys = (K[]) new Object[BTree.DEFAULT_SIZE];
-        _keys[BTree.DEFAULT_SIZE - 2] = overflow.getLargestKey();
-        _keys[BTree.DEFAULT_SIZE - 1] = root.getLargestKey();
+        _keys = (K[]) new Object[_btree.nodeSize];
+        _keys[_btree.nodeSize - 2] = overflow.getLargestKey();
+        _keys[_btree.nodeSize - 1] = root.getLargestKey();
 
-        _children = new long[BTree.DEFAULT_SIZE];
-        _children[BTree.DEFAULT_SIZE - 2] = overflow._recid;
-        _children[BTree.DEFAULT_SIZE - 1] = root._recid;
+        _children = new long[_btree.nodeSize];
+        _children[_btree.nodeSize - 2] = overflow._recid;
+        _children[_btree.nodeSize - 1] = root._recid;
 
         _recid = _btree._db.insert(this, this,false);
     }
@@ -148,15 +148,15 @@ final class BTreeNode<K, V>
 
         _isLeaf = true;
 
-        _first = BTree.DEFAULT_SIZE - 2;
+        _first = _btree.nodeSize - 2;
 
-        _keys = (K[]) new Object[BTree.DEFAULT_SIZE];
-        _keys[BTree.DEFAULT_SIZE - 2] = key;
-        _keys[BTree.DEFAULT_SIZE - 1] = null;  // I am the root BTreeNode for now
+        _keys = (K[]) new Object[_btree.nodeSize];
+        _keys[_btree.nodeSize - 2] = key;
+        _keys[_btree.nodeSize - 1] = null;  // I am the root BTreeNode for now
 
-        _values = new Object[BTree.DEFAULT_SIZE];
-        _values[BTree.DEFAULT_SIZE - 2] = value;
-        _values[BTree.DEFAULT_SIZE - 1] = null;  // I am the root BTreeNode for now
+        _values = new Object[_btree.nodeSize];
+        _values[_btree.nodeSize - 2] = value;
+        _values[_btree.nodeSize - 1] = null;  // I am the root BTreeNode for now
 
         _recid = _btree._db.insert(this, this,false);
     }
@@ -172,13 +172,13 @@ final class BTreeNode<K, V>
         _isLeaf = isLeaf;
 
         // node will initially be half-full
-        _first = BTree.DEFAULT_SIZE / 2;
+        _first = _btree.nodeSize / 2;
 
-        _keys = (K[]) new Object[BTree.DEFAULT_SIZE];
+        _keys = (K[]) new Object[_btree.nodeSize];
         if (isLeaf) {
-            _values = new Object[BTree.DEFAULT_SIZE];
+            _values = new Object[_btree.nodeSize];
         } else {
-            _children = new long[BTree.DEFAULT_SIZE];
+            _children = new long[_btree.nodeSize];
         }
 
         try{
@@ -189,12 +189,33 @@ final class BTreeNode<K, V>
     }
 
 
+    /**
+     * Bulk load node constructor. Creates an empty BTreeNode with already reserved recid,
+     * node is not stored until caller updates it.
+     */
+    @SuppressWarnings("unchecked")
+    BTreeNode(BTree<K, V> btree, boolean isLeaf, long recid) {
+        _btree = btree;
+
+        _isLeaf = isLeaf;
+
+        _keys = (K[]) new Object[_btree.nodeSize];
+        if (isLeaf) {
+            _values = new Object[_btree.nodeSize];
+        } else {
+            _children = new long[_btree.nodeSize];
+        }
+
+        _recid = recid;
+    }
+
+
     /**
      * Get largest key under this BTreeNode.  Null is considered to be the
      * greatest possible key.
      */
     K getLargestKey() {
-        return _keys[BTree.DEFAULT_SIZE - 1];
+        return _keys[_btree.nodeSize - 1];
     }
 
 
@@ -223,12 +244,13 @@ final class BTreeNode<K, V>
      *
      * @param height Height of the current BTreeNode (zero is leaf node)
      * @param key    The key
+     * @param held   read latches held by caller, this node is latched
      * @return TupleBrowser positionned just before the given key, or before
      *         next greater key if key isn't found.
      */
-    BTree.BTreeTupleBrowser<K, V> find(int height, final K key, final boolean inclusive)
+    BTree.BTreeTupleBrowser<K, V> find(int height, final K key, final boolean inclusive, BTree<K, V>.Latches held)
             throws IOException {
-        byte index = findChildren(key,inclusive);
+        int index = findChildren(key,inclusive);
 
         height -= 1;
 
@@ -237,8 +259,9 @@ final class BTreeNode<K, V>
             return new Browser<K, V>(this, index);
         } else {
             // non-leaf node
-            BTreeNode<K, V> child = loadNode(_children[index]);
-            return child.find(height, key,inclusive);
+            BTreeNode<K, V> child = loadNode(_children[index], held);
+            held.unlatchParents();
+            return child.find(height, key, inclusive, held);
         }
     }
 
@@ -248,12 +271,13 @@ final class BTreeNode<K, V>
      *
      * @param height Height of the current BTreeNode (zero is leaf node)
      * @param key    The key
+     * @param held   read latches held by caller, this node is latched
      * @return TupleBrowser positionned just before the given key, or before
      *         next greater key if key isn't found.
      */
-    V findValue(int height, K key)
+    V findValue(int height, K key, BTree<K, V>.Latches held)
             throws IOException {
-        byte index = findChildren(key,true);
+        int index = findChildren(key,true);
 
         height -= 1;
 
@@ -274,23 +298,26 @@ final class BTreeNode<K, V>
 
         } else {
             // non-leaf node
-            BTreeNode<K, V> child = loadNode(_children[index]);
-            return child.findValue(height, key);
+            BTreeNode<K, V> child = loadNode(_children[index], held);
+            held.unlatchParents();
+            return child.findValue(height, key, held);
         }
     }
 
     /**
      * Find first entry and return a browser positioned before it.
      *
+     * @param held read latches held by caller, this node is latched
      * @return TupleBrowser positionned just before the first entry.
      */
-    BTree.BTreeTupleBrowser<K, V> findFirst()
+    BTree.BTreeTupleBrowser<K, V> findFirst(BTree<K, V>.Latches held)
             throws IOException {
         if (_isLeaf) {
             return new Browser<K, V>(this, _first);
         } else {
-            BTreeNode<K, V> child = loadNode(_children[_first]);
-            return child.findFirst();
+            BTreeNode<K, V> child = loadNode(_children[_first], held);
+            held.unlatchParents();
+            return child.findFirst(held);
         }
     }
 
@@ -320,7 +347,7 @@ final class BTreeNode<K, V>
             }
         } else {
             int left = _first;
-            int right = BTree.DEFAULT_SIZE - 1;
+            int right = _btree.nodeSize - 1;
 
             for (int i = left; i <= right; i++) {
                 BTreeNode<K, V> childNode = loadNode(_children[i]);
@@ -341,24 +368,21 @@ final class BTreeNode<K, V>
      * @param key     Insert key
      * @param value   Insert value
      * @param replace Set to true to replace the existing value, if one exists.
+     * @param held    write latches held by caller, this node is latched
      * @return Insertion result containing existing value OR a BTreeNode if the key
      *         was inserted and provoked a BTreeNode overflow.
      */
-    InsertResult<K, V> insert(int height, K key, final V value, final boolean replace)
+    InsertResult<K, V> insert(int height, K key, final V value, final boolean replace, BTree<K, V>.Latches held)
             throws IOException {
         InsertResult<K, V> result;
         long overflow;
 
-        final byte index = findChildren(key,true);
+        final int index = findChildren(key,true);
 
         height -= 1;
         if (height == 0) {
 
-            //reuse InsertResult instance to avoid GC trashing on massive inserts
-            result = _btree.insertResultReuse;
-            _btree.insertResultReuse = null;
-            if (result == null)
-                result = new InsertResult<K, V>();
+            result = new InsertResult<K, V>();
 
             // inserting on a leaf BTreeNode
             overflow = -1;
@@ -388,8 +412,12 @@ final class BTreeNode<K, V>
             }
         } else {
             // non-leaf BTreeNode
-            BTreeNode<K, V> child = loadNode(_children[index]);
-            result = child.insert(height, key, value, replace);
+            BTreeNode<K, V> child = loadNode(_children[index], held);
+            if (!child.isFull()) {
+                // child will not overflow, so this node and its parents will not change
+                held.unlatchParents();
+            }
+            result = child.insert(height, key, value, replace, held);
 
             if (result._existing != null) {
                 // return existing key, if any.
@@ -427,7 +455,11 @@ final class BTreeNode<K, V>
         }
 
         // node is full, we must divide the node
-        final byte half = BTree.DEFAULT_SIZE >> 1;
+        if (_isLeaf && _previous != 0 && !held.latchLeft(_previous, _recid)) {
+            // this node was released meanwhile, its right neighbour may have changed
+            _next = loadNode(_recid)._next;
+        }
+        final int half = _btree.nodeSize >> 1;
         BTreeNode<K, V> newNode = new BTreeNode<K, V>(_btree, _isLeaf);
         if (index < half) {
             // move lower-half of entries to overflow node, including new entry
@@ -475,6 +507,7 @@ final class BTreeNode<K, V>
             newNode._previous = _previous;
             newNode._next = _recid;
             if (_previous != 0) {
+                // already latched
                 BTreeNode<K, V> previous = loadNode(_previous);
                 previous._next = newNode._recid;
                 _btree._db.update(_previous, previous, this);
@@ -496,22 +529,25 @@ final class BTreeNode<K, V>
      *
      * @param height Height of the current BTreeNode (zero is leaf node)
      * @param key    Removal key
+     * @param held   write latches held by caller, this node is latched
      * @return Remove result object
      */
-    RemoveResult<K, V> remove(int height, K key)
+    RemoveResult<K, V> remove(int height, K key, BTree<K, V>.Latches held)
             throws IOException {
         RemoveResult<K, V> result;
 
-        int half = BTree.DEFAULT_SIZE / 2;
-        byte index = findChildren(key,true);
+        int half = _btree.nodeSize / 2;
+        int index = findChildren(key,true);
 
         height -= 1;
         if (height == 0) {
             // remove leaf entry
+            result = new RemoveResult<K, V>();
             if (compare(_keys[index], key) != 0) {
-                throw new IllegalArgumentException("Key not found: " + key);
+                // key not found, it may have been removed by other thread
+                result._underflow = _first > half;
+                return result;
             }
-            result = new RemoveResult<K, V>();
 
             if (_values[index] instanceof BTreeLazyRecord) {
                 BTreeLazyRecord<V> r = (BTreeLazyRecord<V>) _values[index];
@@ -527,8 +563,15 @@ final class BTreeNode<K, V>
 
         } else {
             // recurse into Btree to remove entry on a children node
-            BTreeNode<K, V> child = loadNode(_children[index]);
-            result = child.remove(height, key);
+            BTreeNode<K, V> child = loadNode(_children[index], held);
+            if (child._first < half && compare(key, child.getLargestKey()) != 0) {
+                // child will not underflow and its largest key stays, so this node and its parents do not change
+                held.unlatchParents();
+            }
+            result = child.remove(height, key, held);
+            if (!held.isLatched(_recid)) {
+                return result;
+            }
 
             // update children
             _keys[index] = child.getLargestKey();
@@ -541,7 +584,7 @@ final class BTreeNode<K, V>
                 }
                 if (index < _children.length - 1) {
                     // exists greater brother node
-                    BTreeNode<K, V> brother = loadNode(_children[index + 1]);
+                    BTreeNode<K, V> brother = loadNode(_children[index + 1], held);
                     int bfirst = brother._first;
                     if (bfirst < half) {
                         // steal entries from "brother" node
@@ -579,6 +622,10 @@ final class BTreeNode<K, V>
                         if (brother._first != half) {
                             throw new IllegalStateException("Error during underflow [2]");
                         }
+                        if (child._previous != 0 && !held.latchLeft(child._previous, child._recid, brother._recid)) {
+                            child = loadNode(child._recid);
+                            brother = loadNode(brother._recid);
+                        }
 
                         brother._first = 1;
                         if (child._isLeaf) {
@@ -600,7 +647,7 @@ final class BTreeNode<K, V>
                         _first += 1;
                         _btree._db.update(_recid, this, this);
 
-                        // re-link previous and next nodes
+                        // re-link previous and next nodes, both are already latched
                         if (child._previous != 0) {
                             BTreeNode<K, V> prev = loadNode(child._previous);
                             prev._next = child._next;
@@ -617,7 +664,10 @@ final class BTreeNode<K, V>
                         _btree._db.delete(child._recid);
                     }
                 } else {
-                    // node "brother" is before "child"
+                    // node "brother" is before "child", latches are acquired from left to right
+                    if (!held.latchLeft(_children[index - 1], child._recid)) {
+                        child = loadNode(child._recid);
+                    }
                     BTreeNode<K, V> brother = loadNode(_children[index - 1]);
                     int bfirst = brother._first;
                     if (bfirst < half) {
@@ -660,6 +710,10 @@ final class BTreeNode<K, V>
                         if (brother._first != half) {
                             throw new IllegalStateException("Error during underflow [3]");
                         }
+                        if (brother._previous != 0 && !held.latchLeft(brother._previous, brother._recid, child._recid)) {
+                            brother = loadNode(brother._recid);
+                            child = loadNode(child._recid);
+                        }
 
                         child._first = 1;
                         if (child._isLeaf) {
@@ -680,7 +734,7 @@ final class BTreeNode<K, V>
                         _first += 1;
                         _btree._db.update(_recid, this, this);
 
-                        // re-link previous and next nodes
+                        // re-link previous and next nodes, both are already latched
                         if (brother._previous != 0) {
                             BTreeNode<K, V> prev = loadNode(brother._previous);
                             prev._next = brother._next;
@@ -712,9 +766,9 @@ final class BTreeNode<K, V>
      *
      * @return index of first children with equal or greater key.
      */
-    private byte findChildren(final K key, final boolean inclusive) {
+    private int findChildren(final K key, final boolean inclusive) {
         int left = _first;
-        int right = BTree.DEFAULT_SIZE - 1;
+        int right = _btree.nodeSize - 1;
         int middle;
         final int D = inclusive?0:1;
 
@@ -727,7 +781,7 @@ final class BTreeNode<K, V>
                 right = middle;
             }
             if (left >= right) {
-                return (byte) right;
+                return right;
             }
         }
     }
@@ -837,6 +891,16 @@ final class BTreeNode<K, V>
     }
 
 
+    /**
+     * Latch and load the node at the given recid.
+     */
+    private BTreeNode<K, V> loadNode(long recid, BTree<K, V>.Latches held)
+            throws IOException {
+        held.latch(recid);
+        return loadNode(recid);
+    }
+
+
     private  final int compare(final K value1, final K value2) {
         if (value1 == null) {
             return 1;
@@ -864,7 +928,7 @@ final class BTreeNode<K, V>
         }
         System.out.println(prefix + "-------------------------------------- BTreeNode recid=" + _recid);
         System.out.println(prefix + "first=" + _first);
-        for (int i = 0; i < BTree.DEFAULT_SIZE; i++) {
+        for (int i = 0; i < _btree.nodeSize; i++) {
             if (_isLeaf) {
                 System.out.println(prefix + "BTreeNode [" + i + "] " + _keys[i] + " " + _values[i]);
             } else {
@@ -884,7 +948,7 @@ final class BTreeNode<K, V>
         height -= 1;
         level += 1;
         if (height > 0) {
-            for (byte i = _first; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = _first; i < _btree.nodeSize; i++) {
                 if (_keys[i] == null) break;
                 BTreeNode<K, V> child = loadNode(_children[i]);
                 child.dump(level);
@@ -921,11 +985,11 @@ final class BTreeNode<K, V>
         }
 
 
-        node._first = ois.readByte();
+        node._first = ois.readUnsignedByte();
 
         if (!node._isLeaf) {
-            node._children = new long[BTree.DEFAULT_SIZE];
-            for (int i = node._first; i < BTree.DEFAULT_SIZE; i++) {
+            node._children = new long[_btree.nodeSize];
+            for (int i = node._first; i < _btree.nodeSize; i++) {
                 node._children[i] = LongPacker.unpackLong(ois);
             }
         }
@@ -979,7 +1043,7 @@ final class BTreeNode<K, V>
         oos.write(node._first);
 
         if (!node._isLeaf) {
-            for (int i = node._first; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = node._first; i < _btree.nodeSize; i++) {
                 LongPacker.packLong(oos, node._children[i]);
             }
         }
@@ -993,10 +1057,10 @@ final class BTreeNode<K, V>
 
 
     private void readValues(DataInputOutput ois, BTreeNode<K, V> node) throws IOException, ClassNotFoundException {
-        node._values = new Object[BTree.DEFAULT_SIZE];
+        node._values = new Object[_btree.nodeSize];
         if(_btree.hasValues()){
             Serializer<V> serializer = _btree.valueSerializer != null ? _btree.valueSerializer : (Serializer<V>) _btree.getRecordManager().defaultSerializer();
-            for (int i = node._first; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = node._first; i < _btree.nodeSize; i++) {
                 int header = ois.readUnsignedByte();
                 if (header == BTreeLazyRecord.NULL) {
                     node._values[i] = null;
@@ -1009,7 +1073,7 @@ final class BTreeNode<K, V>
             }
         }else{
             //create fake values
-            for (int i = node._first; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = node._first; i < _btree.nodeSize; i++) {
                 if(node._keys[i]!=null)
                     node._values[i] = Utils.EMPTY_STRING;
             }
@@ -1022,7 +1086,7 @@ final class BTreeNode<K, V>
 
         DataInputOutput output = null;
         Serializer serializer = _btree.valueSerializer != null ? _btree.valueSerializer : _btree.getRecordManager().defaultSerializer();
-        for (int i = node._first; i < BTree.DEFAULT_SIZE; i++) {
+        for (int i = node._first; i < _btree.nodeSize; i++) {
             if (node._values[i] instanceof BTreeLazyRecord) {
                 oos.write(BTreeLazyRecord.LAZY_RECORD);
                 LongPacker.packLong(oos, ((BTreeLazyRecord) node._values[i]).recid);
@@ -1062,7 +1126,7 @@ final class BTreeNode<K, V>
 
 
     private K[] readKeys(DataInput ois, final int firstUse) throws IOException, ClassNotFoundException {
-        Object[] ret = new Object[BTree.DEFAULT_SIZE];
+        Object[] ret = new Object[_btree.nodeSize];
         final int type = ois.readUnsignedByte();
         if (type == ALL_NULL) {
             return (K[]) ret;
@@ -1071,7 +1135,7 @@ final class BTreeNode<K, V>
             if (type == ALL_INTEGERS_NEGATIVE)
                 first = -first;
             ret[firstUse] = Integer.valueOf((int) first);
-            for (int i = firstUse + 1; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse + 1; i < _btree.nodeSize; i++) {
 //				ret[i] = Serialization.readObject(ois);
                 long v = LongPacker.unpackLong(ois);
                 if (v == 0) continue; //null
@@ -1086,7 +1150,7 @@ final class BTreeNode<K, V>
                 first = -first;
 
             ret[firstUse] = Long.valueOf(first);
-            for (int i = firstUse + 1; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse + 1; i < _btree.nodeSize; i++) {
                 //ret[i] = Serialization.readObject(ois);
                 long v = LongPacker.unpackLong(ois);
                 if (v == 0) continue; //null
@@ -1097,7 +1161,7 @@ final class BTreeNode<K, V>
             return (K[]) ret;
         } else if (type == ALL_STRINGS) {
             byte[] previous = null;
-            for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse; i < _btree.nodeSize; i++) {
                 byte[] b = leadingValuePackRead(ois, previous, 0);
                 if (b == null) continue;
                 ret[i] = new String(b);
@@ -1109,7 +1173,7 @@ final class BTreeNode<K, V>
 
             //TODO why this block is here?
             if (_btree.keySerializer == null || _btree.keySerializer == _btree.getRecordManager().defaultSerializer()) {
-                for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+                for (int i = firstUse; i < _btree.nodeSize; i++) {
                     ret[i] = _btree.getRecordManager().defaultSerializer().deserialize(ois);
                 }
                 return (K[]) ret;
@@ -1119,7 +1183,7 @@ final class BTreeNode<K, V>
             Serializer ser = _btree.keySerializer != null ? _btree.keySerializer : _btree.getRecordManager().defaultSerializer();
             DataInputOutput in2 = null;
             byte[] previous = null;
-            for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse; i < _btree.nodeSize; i++) {
                 byte[] b = leadingValuePackRead(ois, previous, 0);
                 if (b == null) continue;
                 if (in2 == null) {
@@ -1140,12 +1204,12 @@ final class BTreeNode<K, V>
 
     @SuppressWarnings("unchecked")
     private void writeKeys(DataOutput oos, K[] keys, final int firstUse) throws IOException {
-        if (keys.length != BTree.DEFAULT_SIZE)
+        if (keys.length != _btree.nodeSize)
             throw new IllegalArgumentException("wrong keys size");
 
         //check if all items on key are null
         boolean allNull = true;
-        for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+        for (int i = firstUse; i < _btree.nodeSize; i++) {
             if (keys[i] != null) {
                 allNull = false;
                 break;
@@ -1162,14 +1226,14 @@ final class BTreeNode<K, V>
         if ((_btree._comparator == Utils.COMPARABLE_COMPARATOR || _btree._comparator == null) &&
                 (_btree.keySerializer == null || _btree.keySerializer == _btree.getRecordManager().defaultSerializer())) {
             boolean allInteger = true;
-            for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse; i < _btree.nodeSize; i++) {
                 if (keys[i] != null && keys[i].getClass() != Integer.class) {
                     allInteger = false;
                     break;
                 }
             }
             boolean allLong = true;
-            for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse; i < _btree.nodeSize; i++) {
                 if (keys[i] != null && (keys[i].getClass() != Long.class ||
                         //special case to exclude Long.MIN_VALUE from conversion, causes problems to LongPacker
                         ((Long) keys[i]).longValue() == Long.MIN_VALUE)
@@ -1183,7 +1247,7 @@ final class BTreeNode<K, V>
                 //check that diff between MIN and MAX fits into PACKED_LONG
                 long max = Long.MIN_VALUE;
                 long min = Long.MAX_VALUE;
-                for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+                for (int i = firstUse; i < _btree.nodeSize; i++) {
                     if (keys[i] == null) continue;
                     long v = (Long) keys[i];
                     if (v > max) max = v;
@@ -1217,7 +1281,7 @@ final class BTreeNode<K, V>
                 //write first
                 LongPacker.packLong(oos, Math.abs(first));
                 //write others
-                for (int i = firstUse + 1; i < BTree.DEFAULT_SIZE; i++) {
+                for (int i = firstUse + 1; i < _btree.nodeSize; i++) {
 //					Serialization.writeObject(oos, keys[i]);
                     if (keys[i] == null)
                         LongPacker.packLong(oos, 0);
@@ -1232,7 +1296,7 @@ final class BTreeNode<K, V>
             } else {
                 //another special case for Strings
                 boolean allString = true;
-                for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+                for (int i = firstUse; i < _btree.nodeSize; i++) {
                     if (keys[i] != null && (keys[i].getClass() != String.class)
                             ) {
                         allString = false;
@@ -1242,7 +1306,7 @@ final class BTreeNode<K, V>
                 if (allString) {
                     oos.write(ALL_STRINGS);
                     byte[] previous = null;
-                    for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+                    for (int i = firstUse; i < _btree.nodeSize; i++) {
                         if (keys[i] == null) {
                             leadingValuePackWrite(oos, null, previous, 0);
                         } else {
@@ -1261,7 +1325,7 @@ final class BTreeNode<K, V>
          */
         oos.write(ALL_OTHER);
         if (_btree.keySerializer == null || _btree.keySerializer == _btree.getRecordManager().defaultSerializer()) {
-            for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse; i < _btree.nodeSize; i++) {
                 _btree.getRecordManager().defaultSerializer().serialize(oos, keys[i]);
             }
             return;
@@ -1274,7 +1338,7 @@ final class BTreeNode<K, V>
 
 
         DataInputOutput out3 = new DataInputOutput();
-        for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+        for (int i = firstUse; i < _btree.nodeSize; i++) {
             if (keys[i] == null) {
                 leadingValuePackWrite(oos, null, previous, 0);
             } else {
@@ -1289,18 +1353,25 @@ final class BTreeNode<K, V>
 
     }
 
-    public void defrag(DBStore r1, DBStore r2) throws IOException {
+    public void defrag(DBStore r1, DefragSink r2) throws IOException {
         if (_children != null)
             for (long child : _children) {
                 if (child == 0) continue;
-                byte[] data = r1.fetchRaw(child);
-                r2.forceInsert(child, data);
-                BTreeNode t = deserialize(new DataInputOutput(data));
-                t._btree = _btree;
-                t.defrag(r1, r2);
+                defragChild(child, r1, r2);
             }
     }
 
+    /**
+     * Copies child node and its subtree. It does not modify this node, so children may be copied in parallel.
+     */
+    void defragChild(long child, DBStore r1, DefragSink r2) throws IOException {
+        byte[] data = r1.fetchRaw(child);
+        r2.forceInsert(child, data);
+        BTreeNode t = deserialize(new DataInputOutput(data));
+        t._btree = _btree;
+        t.defrag(r1, r2);
+    }
+
 
     /**
      * STATIC INNER CLASS
@@ -1354,7 +1425,7 @@ final class BTreeNode<K, V>
          * Current index in the node.  The index positionned on the next
          * tuple to return.
          */
-        private byte _index;
+        private int _index;
 
 
         private int expectedModCount;
@@ -1366,7 +1437,7 @@ final class BTreeNode<K, V>
          * @param node  Current node
          * @param index Position of the next tuple to return.
          */
-        Browser(BTreeNode<K, V> node, byte index) {
+        Browser(BTreeNode<K, V> node, int index) {
             _node = node;
             _index = index;
             expectedModCount = node._btree.modCount;
@@ -1381,23 +1452,32 @@ final class BTreeNode<K, V>
                 return false;
             }
 
-            if (_index < BTree.DEFAULT_SIZE) {
-                if (_node._keys[_index] == null) {
-                    // reached end of the tree.
-                    return false;
+            BTree<K, V>.Latches held = _node._btree.new Latches(false);
+            held.latch(_node._recid);
+            try {
+                if (_index < _node._btree.nodeSize) {
+                    if (_node._keys[_index] == null) {
+                        // reached end of the tree.
+                        return false;
+                    }
+                } else if (_node._next != 0) {
+                    // move to next node, latch on this node is released first,
+                    // writer may hold next node and wait for this one
+                    long next = _node._next;
+                    held.unlatchAll();
+                    _node = _node.loadNode(next, held);
+                    _index = _node._first;
                 }
-            } else if (_node._next != 0) {
-                // move to next node
-                _node = _node.loadNode(_node._next);
-                _index = _node._first;
+                tuple.key = _node._keys[_index];
+                if (_node._values[_index] instanceof BTreeLazyRecord)
+                    tuple.value = ((BTreeLazyRecord<V>) _node._values[_index]).get();
+                else
+                    tuple.value = (V) _node._values[_index];
+                _index++;
+                return true;
+            } finally {
+                held.unlatchAll();
             }
-            tuple.key = _node._keys[_index];
-            if (_node._values[_index] instanceof BTreeLazyRecord)
-                tuple.value = ((BTreeLazyRecord<V>) _node._values[_index]).get();
-            else
-                tuple.value = (V) _node._values[_index];
-            _index++;
-            return true;
         }
 
         public boolean getPrevious(BTree.BTreeTuple<K, V> tuple)
@@ -1410,25 +1490,32 @@ final class BTreeNode<K, V>
                 throw new InternalError();
             }
 
-            if (_index == _node._first) {
+            BTree<K, V>.Latches held = _node._btree.new Latches(false);
+            held.latch(_node._recid);
+            try {
+                if (_index == _node._first) {
 
-                if (_node._previous != 0) {
-                    _node = _node.loadNode(_node._previous);
-                    _index = BTree.DEFAULT_SIZE;
-                } else {
-                    // reached beginning of the tree
-                    return false;
+                    if (_node._previous != 0) {
+                        long previous = _node._previous;
+                        held.unlatchAll();
+                        _node = _node.loadNode(previous, held);
+                        _index = _node._btree.nodeSize;
+                    } else {
+                        // reached beginning of the tree
+                        return false;
+                    }
                 }
-            }
-            _index--;
-            tuple.key = _node._keys[_index];
-            if (_node._values[_index] instanceof BTreeLazyRecord)
-                tuple.value = ((BTreeLazyRecord<V>) _node._values[_index]).get();
-            else
-                tuple.value = (V) _node._values[_index];
-
-            return true;
+                _index--;
+                tuple.key = _node._keys[_index];
+                if (_node._values[_index] instanceof BTreeLazyRecord)
+                    tuple.value = ((BTreeLazyRecord<V>) _node._values[_index]).get();
+                else
+                    tuple.value = (V) _node._values[_index];
 
+                return true;
+            } finally {
+                held.unlatchAll();
+            }
         }
 
         public void remove(K key) throws IOException {
@@ -1468,7 +1555,7 @@ final class BTreeNode<K, V>
             throws IOException {
         height -= 1;
         if (height > 0) {
-            for (byte i = _first; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = _first; i < _btree.nodeSize; i++) {
                 if (_children[i] == 0) continue;
 
                 BTreeNode child = loadNode(_children[i]);
@@ -1479,6 +1566,42 @@ final class BTreeNode<K, V>
     }
 
 
+    /**
+     * Used for debugging and testing only. Recursively verifies that keys are sorted,
+     * all leafs are at the same depth, separator keys match largest key of child
+     * and every node except root is at least half full.
+     *
+     * @param height height of this node
+     * @param isRoot true if this is root node, it may contain less entries
+     * @throws IllegalStateException if structure is broken
+     */
+    void checkStructure(int height, boolean isRoot)
+            throws IOException {
+        if (_isLeaf != (height == 1)) {
+            throw new IllegalStateException("Leaf node at wrong height, recid=" + _recid);
+        }
+        if (!isRoot && _first > _btree.nodeSize / 2) {
+            throw new IllegalStateException("Node is less than half full, recid=" + _recid + ", first=" + _first);
+        }
+        for (int i = _first + 1; i < _btree.nodeSize; i++) {
+            if (compare(_keys[i - 1], _keys[i]) >= 0) {
+                throw new IllegalStateException("Keys are not sorted, recid=" + _recid);
+            }
+        }
+        if (_isLeaf)
+            return;
+        for (int i = _first; i < _btree.nodeSize; i++) {
+            BTreeNode<K, V> child = loadNode(_children[i]);
+            K largest = child.getLargestKey();
+            // null key is infinite, it is used only on right edge of tree
+            if (_keys[i] == null ? largest != null : largest == null || compare(_keys[i], largest) != 0) {
+                throw new IllegalStateException("Separator key does not match child, recid=" + _recid);
+            }
+            child.checkStructure(height - 1, false);
+        }
+    }
+
+
     /**
      * Read previously written data
      *
@@ -1542,9 +1665,4 @@ final class BTreeNode<K, V>
     }
 
 
-    BTreeNode<K, V> loadLastChildNode() throws IOException {
-        return loadNode(_children[BTree.DEFAULT_SIZE - 1]);
-    }
-
-
 }
@@ -3,6 +3,7 @@ package net.kotek.jdbm;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.Future;
 
 /**
  * Database is root class for creating and loading persistent collections. It also contains
@@ -47,12 +48,52 @@ public interface DB {
      */
     void defrag(boolean sortCollections);
 
+    /**
+     * Returns disk space occupied by free pages at end of store to file system.
+     * Unlike {@link #defrag(boolean)} store is not copied, so it runs online and takes little time,
+     * but only space after last used page is released. Use {@link #compact(int)} to move records
+     * from end of store first.
+     * <p/>
+     * This commits any uncommited data.
+     *
+     * @return number of released bytes
+     */
+    long shrink();
+
+    /**
+     * Moves records from end of store into free space before them and returns released space to file system.
+     * Unlike {@link #defrag(boolean)} store is not copied and single call moves only limited number of records,
+     * so store can be compacted online in small steps. Records keep their recids.
+     * <p/>
+     * Record can be moved only into space freed by deleted or updated records, which is large enough to hold it.
+     * <p/>
+     * This commits any uncommited data.
+     *
+     * @param maxRecords maximal number of records moved by this call
+     * @return number of moved records, zero if no more records could be moved
+     */
+    int compact(int maxRecords);
+
     /**
      * Commit (make persistent) all changes since beginning of transaction.
      * JDBM supports only single transaction.
+     * <p/>
+     * If group commit is enabled in <code>DBMaker</code>, concurrent commits are merged
+     * and this method returns after merged commit was made durable.
      */
     void commit();
 
+    /**
+     * Commit all changes since beginning of transaction, but write them to disk in background thread.
+     * Caller may continue with modifications in next transaction while previous one is being written.
+     * Next commit or rollback waits until previous asynchronous commit finishes.
+     * <p/>
+     * If transactions are disabled, this commits synchronously.
+     *
+     * @return future which completes when transaction is durable
+     */
+    Future<Void> commitAsync();
+
     /**
      * Rollback (cancel) all changes since beginning of transaction.
      * JDBM supports only single transaction.
@@ -60,6 +101,18 @@ public interface DB {
      */
     void rollback();
 
+    /**
+     * Creates read-only view of data as they were at last commit.
+     * Reads from snapshot do not lock database, so they are not blocked by writer or by running commit.
+     * Snapshot sees neither uncommitted changes, nor changes committed after it was created.
+     * <p/>
+     * Pages modified after snapshot was created are copied into memory, so snapshot should be closed
+     * when it is no longer needed. Snapshot is closed automatically when DB is closed.
+     *
+     * @return snapshot which supports all read operations, including collections
+     */
+    DB snapshot();
+
     /**
      * This calculates some database statistics such as collection sizes and record distributions.
      * Can be useful for performance optimalisations and trouble shuting.
@@ -73,9 +126,19 @@ public interface DB {
     /**
      * Copy database content into ZIP file
      * @param zipFile
+     * @deprecated use {@link #copyToArchive(String)}, zip file needs lookup and new inflater for each page read
      */
     void copyToZip(String zipFile);
 
+    /**
+     * Copy database content into read-only archive. Archive is compressed, but pages are grouped
+     * into blocks and indexed, so it can be read almost as fast as normal file.
+     * It is opened with {@link DBMaker#openArchive(String)}.
+     *
+     * @param archiveFile file to write archive into
+     */
+    void copyToArchive(String archiveFile);
+
 
 
     /**
@@ -144,6 +207,58 @@ public interface DB {
     <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name,
                                          Comparator<K> keyComparator, Serializer<K> keySerializer, Serializer<V> valueSerializer);
 
+    /**
+     * Creates TreeMap with given node size. Larger nodes mean fewer record fetches per lookup,
+     * but each insert rewrites larger record. Small keys usually benefit from 128 or 256 entries per node.
+     *
+     * @param <K>             Key type
+     * @param <V>             Value type
+     * @param name            record name
+     * @param keyComparator   Comparator used to sort keys, leave null to use Comparable keys
+     * @param keySerializer   Serializer used for keys. This may reduce disk space usage
+     * @param valueSerializer Serializer used for values. This may reduce disk space usage
+     * @param nodeSize        number of entries per tree node, even number between 8 and 256, default is 32
+     * @return
+     */
+    <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name,
+                                         Comparator<K> keyComparator, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                         int nodeSize);
+
+    /**
+     * Creates TreeMap and fills it with entries from iterator. Tree is built bottom-up with packed nodes,
+     * it is much faster than inserting entries one by one.
+     *
+     * @param <K>             Key type
+     * @param <V>             Value type
+     * @param name            record name
+     * @param keyComparator   Comparator used to sort keys, leave null to use Comparable keys
+     * @param keySerializer   Serializer used for keys. This may reduce disk space usage
+     * @param valueSerializer Serializer used for values. This may reduce disk space usage
+     * @param sortedEntries   entries sorted in ascending key order, without duplicate keys
+     * @return
+     */
+    <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name,
+                                         Comparator<K> keyComparator, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                         Iterator<? extends Map.Entry<K, V>> sortedEntries);
+
+    /**
+     * Creates TreeMap with given node size and fills it with entries from iterator.
+     * Bulk loaded nodes are packed, so larger nodes give smaller and shallower tree.
+     *
+     * @param <K>             Key type
+     * @param <V>             Value type
+     * @param name            record name
+     * @param keyComparator   Comparator used to sort keys, leave null to use Comparable keys
+     * @param keySerializer   Serializer used for keys. This may reduce disk space usage
+     * @param valueSerializer Serializer used for values. This may reduce disk space usage
+     * @param nodeSize        number of entries per tree node, even number between 8 and 256, default is 32
+     * @param sortedEntries   entries sorted in ascending key order, without duplicate keys
+     * @return
+     */
+    <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name,
+                                         Comparator<K> keyComparator, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                         int nodeSize, Iterator<? extends Map.Entry<K, V>> sortedEntries);
+
     <K> NavigableSet<K> getTreeSet(String name);
 
     <K> NavigableSet<K> createTreeSet(String name);
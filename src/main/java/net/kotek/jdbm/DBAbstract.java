@@ -68,6 +68,17 @@ abstract class DBAbstract implements DB {
       */
     abstract <A> long insert(A obj, Serializer<A> serializer,boolean disableCache) throws IOException;
 
+    /**
+     * Inserts several new records using a custom serializer. Records are placed next to each other
+     * at end of store, it is faster than inserting records one by one.
+     *
+     * @param objs       objects for the new records.
+     * @param serializer a custom serializer
+     * @return the rowids for the new records, in the same order as objects.
+     * @throws java.io.IOException when one of the underlying I/O operations fails.
+     */
+    abstract <A> long[] insertBatch(List<A> objs, Serializer<A> serializer) throws IOException;
+
     /**
      * Deletes a record.
      *
@@ -113,6 +124,22 @@ abstract class DBAbstract implements DB {
     abstract <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache)
             throws IOException;
 
+    /**
+     * Fetches several records using a custom serializer.
+     * Store reads records ordered by their physical location, it is faster than fetching records one by one.
+     *
+     * @param recids     the recids for the records that must be fetched.
+     * @param serializer a custom serializer
+     * @return objects in the same order as recids, null if given recid does not exist
+     * @throws java.io.IOException when one of the underlying I/O operations fails.
+     */
+    <A> List<A> fetchAll(long[] recids, Serializer<A> serializer) throws IOException {
+        final List<A> ret = new ArrayList<A>(recids.length);
+        for (long recid : recids)
+            ret.add(fetch(recid, serializer));
+        return ret;
+    }
+
 
     public long insert(Object obj) throws IOException {
         return insert(obj, defaultSerializer(),false);
@@ -124,7 +151,7 @@ abstract class DBAbstract implements DB {
     }
 
 
-    synchronized public <A> A fetch(long recid) throws IOException {
+    public <A> A fetch(long recid) throws IOException {
         return (A) fetch(recid, defaultSerializer());
     }
 
@@ -239,19 +266,70 @@ abstract class DBAbstract implements DB {
                                                              Comparator<K> keyComparator,
                                                              Serializer<K> keySerializer,
                                                              Serializer<V> valueSerializer) {
+        return createTreeMap(name, keyComparator, keySerializer, valueSerializer, BTree.DEFAULT_SIZE);
+    }
+
+
+    public synchronized <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name,
+                                                             Comparator<K> keyComparator,
+                                                             Serializer<K> keySerializer,
+                                                             Serializer<V> valueSerializer,
+                                                             int nodeSize) {
         try {
             assertNameNotExist(name);
-            BTree<K, V> tree = BTree.createInstance(this, keyComparator, keySerializer, valueSerializer,true);
-            setNamedObject(name, tree.getRecid());
-            ConcurrentNavigableMap<K,V> ret = new BTreeMap<K, V>(tree,false); //TODO put readonly flag here
-            collections.put(name,new WeakReference<Object>(ret));
-            return ret;
+            BTree<K, V> tree = BTree.createInstance(this, keyComparator, keySerializer, valueSerializer,true, nodeSize);
+            return namedTreeMap(name, tree);
         } catch (IOException e) {
             throw new IOError(e);
         }
     }
 
 
+    public synchronized <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name,
+                                                             Comparator<K> keyComparator,
+                                                             Serializer<K> keySerializer,
+                                                             Serializer<V> valueSerializer,
+                                                             Iterator<? extends Map.Entry<K, V>> sortedEntries) {
+        return createTreeMap(name, keyComparator, keySerializer, valueSerializer, BTree.DEFAULT_SIZE, sortedEntries);
+    }
+
+
+    public synchronized <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name,
+                                                             Comparator<K> keyComparator,
+                                                             Serializer<K> keySerializer,
+                                                             Serializer<V> valueSerializer,
+                                                             int nodeSize,
+                                                             Iterator<? extends Map.Entry<K, V>> sortedEntries) {
+        try {
+            assertNameNotExist(name);
+            BTree<K, V> tree = BTree.createInstance(this, keyComparator, keySerializer, valueSerializer,true, nodeSize);
+            boolean loaded = false;
+            try {
+                tree.bulkLoad(sortedEntries);
+                loaded = true;
+            } finally {
+                //tree is not named yet, so it would stay orphaned
+                if (!loaded)
+                    delete(tree.getRecid());
+            }
+            return namedTreeMap(name, tree);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
+
+
+    /**
+     * Names newly created tree and returns map backed by it.
+     */
+    private <K, V> ConcurrentNavigableMap<K, V> namedTreeMap(String name, BTree<K, V> tree) throws IOException {
+        setNamedObject(name, tree.getRecid());
+        ConcurrentNavigableMap<K,V> ret = new BTreeMap<K, V>(tree,false); //TODO put readonly flag here
+        collections.put(name,new WeakReference<Object>(ret));
+        return ret;
+    }
+
+
     public synchronized <K> NavigableSet<K> getTreeSet(String name) {
         Object o = getCollectionInstance(name);
         if(o!=null)
@@ -479,7 +557,7 @@ abstract class DBAbstract implements DB {
         }
     };
 
-    public synchronized Serializer defaultSerializer() {
+    public Serializer defaultSerializer() {
 
         try{
             long serialClassInfoRecid = getRoot(SERIAL_CLASS_INFO_RECID_ROOT);
@@ -1,10 +1,12 @@
 package net.kotek.jdbm;
 
-import javax.crypto.Cipher;
 import java.io.IOError;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Abstract class with common cache functionality
@@ -31,7 +33,7 @@ abstract class DBCache extends DBStore{
      */
     final protected LongHashMap<DirtyCacheEntry> _hashDirties = new LongHashMap<DirtyCacheEntry>();
 
-    private Serializer cachedDefaultSerializer = null;
+    private volatile Serializer cachedDefaultSerializer = null;
 
 
     /**
@@ -39,23 +41,60 @@ abstract class DBCache extends DBStore{
      * using a given cache policy.
      */
     public DBCache(String filename, boolean readonly, boolean transactionDisabled,
-                      Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile,
-                     boolean deleteFilesAfterClose,boolean lockingDisabled){
+                      PageCipher cipher, boolean useRandomAccessFile,
+                     boolean deleteFilesAfterClose,boolean lockingDisabled, int pageSizeShift, boolean compress){
 
         super(filename, readonly, transactionDisabled,
-                cipherIn, cipherOut, useRandomAccessFile,
-                deleteFilesAfterClose,lockingDisabled);
+                cipher, useRandomAccessFile,
+                deleteFilesAfterClose,lockingDisabled, pageSizeShift, compress);
 
     }
 
 
     @Override
-    public synchronized  Serializer defaultSerializer(){
+    public Serializer defaultSerializer(){
         if(cachedDefaultSerializer==null)
             cachedDefaultSerializer = super.defaultSerializer();
         return cachedDefaultSerializer;
     }
 
+    /**
+     * Modified records are taken from cache, other records are read from store.
+     * Records read from store are not added to cache.
+     */
+    @Override
+    public <A> List<A> fetchAll(long[] recids, Serializer<A> serializer) throws IOException {
+        try {
+            lock.readLock().lock();
+            checkNotClosed();
+            final Object[] dirty = new Object[recids.length];
+            int dirtyCount = 0;
+            synchronized (_hashDirties) {
+                for (int i = 0; i < recids.length; i++) {
+                    DirtyCacheEntry e = _hashDirties.get(recids[i]);
+                    if (e != null) {
+                        dirty[i] = e;
+                        dirtyCount++;
+                    }
+                }
+            }
+            if (dirtyCount == 0)
+                return super.fetchAll(recids, serializer);
+
+            final long[] clean = new long[recids.length - dirtyCount];
+            for (int i = 0, j = 0; i < recids.length; i++)
+                if (dirty[i] == null)
+                    clean[j++] = recids[i];
+            final List<A> fetched = super.fetchAll(clean, serializer);
+            final List<A> ret = new ArrayList<A>(recids.length);
+            for (int i = 0, j = 0; i < recids.length; i++)
+                ret.add(dirty[i] != null ? (A) ((DirtyCacheEntry) dirty[i])._obj : fetched.get(j++));
+            return ret;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     @Override
     boolean needsAutoCommit() {
         return super.needsAutoCommit()||
@@ -64,50 +103,86 @@ abstract class DBCache extends DBStore{
 
 
 
-    public synchronized <A> long insert(final A obj, final Serializer<A> serializer, final boolean disableCache)
+    public <A> long insert(final A obj, final Serializer<A> serializer, final boolean disableCache)
             throws IOException {
-        checkNotClosed();
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
 
-        if(super.needsAutoCommit())
-            commit();
+            if(super.needsAutoCommit())
+                commitTransaction();
 
-        if(disableCache)
-            return super.insert(obj, serializer, disableCache);
+            if(disableCache)
+                return super.insert(obj, serializer, disableCache);
 
 
-        //prealocate recid so we have something to return
-        final long recid = super.insert(PREALOCATE_OBJ, null, disableCache);
+            //prealocate recid so we have something to return
+            final long recid = super.insert(PREALOCATE_OBJ, null, disableCache);
 
 //        super.update(recid, obj,serializer);
 
 //        return super.insert(obj,serializer,disableCache);
 
-        //and create new dirty record for future update
-        final DirtyCacheEntry e = new DirtyCacheEntry();
-        e._recid = recid;
-        e._obj = obj;
-        e._serializer = serializer;
-        _hashDirties.put(recid,e);
+            //and create new dirty record for future update
+            final DirtyCacheEntry e = new DirtyCacheEntry();
+            e._recid = recid;
+            e._obj = obj;
+            e._serializer = serializer;
+            _hashDirties.put(recid,e);
 
-        return recid;
+            return recid;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
 
-    public synchronized void commit() {
-        try{
-            commitInProgress = true;
-            updateCacheEntries();
-            super.commit();
-        }finally {
-            commitInProgress = false;
+    void commitTransaction() {
+        try {
+            lock.writeLock().lock();
+            try{
+                commitInProgress = true;
+                updateCacheEntries();
+                super.commitTransaction();
+            }finally {
+                commitInProgress = false;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    boolean hasUncommittedChanges() {
+        return super.hasUncommittedChanges() || !_hashDirties.isEmpty();
+    }
+
+    public Future<Void> commitAsync() {
+        try {
+            lock.writeLock().lock();
+            try{
+                commitInProgress = true;
+                updateCacheEntries();
+                return super.commitAsync();
+            }finally {
+                commitInProgress = false;
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public synchronized  void rollback(){
-        cachedDefaultSerializer = null;
-        _hashDirties.clear();
-        super.rollback();
+    public void rollback(){
+        //waits for group commit, leader needs write lock to commit batch
+        lockForRollback();
+        try {
+            cachedDefaultSerializer = null;
+            _hashDirties.clear();
+            super.rollback();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     
@@ -16,7 +16,6 @@
 
 package net.kotek.jdbm;
 
-import javax.crypto.Cipher;
 import java.io.IOException;
 
 /**
@@ -68,11 +67,11 @@ class DBCacheMRU
      * using a given cache policy.
      */
     public DBCacheMRU(String filename, boolean readonly, boolean transactionDisabled,
-                      Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile,
-                     boolean deleteFilesAfterClose, int cacheMaxRecords, boolean lockingDisabled)  {
+                      PageCipher cipher, boolean useRandomAccessFile,
+                     boolean deleteFilesAfterClose, int cacheMaxRecords, boolean lockingDisabled, int pageSizeShift, boolean compress)  {
         super(filename, readonly, transactionDisabled,
-            cipherIn, cipherOut, useRandomAccessFile,
-            deleteFilesAfterClose,lockingDisabled);
+            cipher, useRandomAccessFile,
+            deleteFilesAfterClose,lockingDisabled, pageSizeShift, compress);
 
         _hash = new LongHashMap<CacheEntry>(cacheMaxRecords);
         _max = cacheMaxRecords;
@@ -81,123 +80,144 @@ class DBCacheMRU
 
 
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
-
-        if (disableCache)
-            return super.fetch(recid, serializer, disableCache);
-        else
-            return fetch(recid, serializer);
+    public <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
+        try {
+            lock.readLock().lock();
+            if (disableCache)
+                return super.fetch(recid, serializer, disableCache);
+            else
+                return fetch(recid, serializer);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
 
-    public synchronized void delete(long recid)
+    public void delete(long recid)
             throws IOException {
-        checkNotClosed();
-
-        super.delete(recid);
-        synchronized (_hash){
-            CacheEntry entry = _hash.get(recid);
-            if (entry != null) {
-                removeEntry(entry);
-                _hash.remove(entry._recid);
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
+
+            super.delete(recid);
+            synchronized (_hash){
+                CacheEntry entry = _hash.get(recid);
+                if (entry != null) {
+                    removeEntry(entry);
+                    _hash.remove(entry._recid);
+                }
+                _hashDirties.remove(recid);
             }
-            _hashDirties.remove(recid);
-        }
-
-        if(super.needsAutoCommit())
-            commit();
 
+            if(super.needsAutoCommit())
+                commitTransaction();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    public synchronized <A> void update(final long recid, final A obj, final Serializer<A> serializer) throws IOException {
-        checkNotClosed();
+    public <A> void update(final long recid, final A obj, final Serializer<A> serializer) throws IOException {
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
 
-        synchronized (_hash){
+            synchronized (_hash){
 
-            //remove entry if it already exists
-            CacheEntry entry = cacheGet(recid);
-            if (entry != null) {
-                _hash.remove(recid);
-                removeEntry(entry);
-            }
+                //remove entry if it already exists
+                CacheEntry entry = cacheGet(recid);
+                if (entry != null) {
+                    _hash.remove(recid);
+                    removeEntry(entry);
+                }
 
-            //check if entry is in dirties, in this case just update its object
-            DirtyCacheEntry e = _hashDirties.get(recid);
-            if(e!=null){
-                if(recid!=e._recid) throw new Error();
+                //check if entry is in dirties, in this case just update its object
+                DirtyCacheEntry e = _hashDirties.get(recid);
+                if(e!=null){
+                    if(recid!=e._recid) throw new Error();
+                    e._obj = obj;
+                    e._serializer = serializer;
+                    return;
+                }
+
+                //create new dirty entry
+                e = new DirtyCacheEntry();
+                e._recid = recid;
                 e._obj = obj;
                 e._serializer = serializer;
-                return;
+                _hashDirties.put(recid,e);
             }
-            
-            //create new dirty entry
-            e = new DirtyCacheEntry();
-            e._recid = recid;
-            e._obj = obj;
-            e._serializer = serializer;
-            _hashDirties.put(recid,e);
-        }
-
-        if(super.needsAutoCommit())
-            commit();
 
+            if(super.needsAutoCommit())
+                commitTransaction();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer)
+    public <A> A fetch(long recid, Serializer<A> serializer)
             throws IOException {
+        try {
+            lock.readLock().lock();
+            checkNotClosed();
 
-        checkNotClosed();
-
-        final CacheEntry entry = cacheGet(recid);
-        if (entry != null) {
-            return (A) entry._obj;
-        }
-
-        //check dirties
-        final DirtyCacheEntry entry2 = _hashDirties.get(recid);
-        if(entry2!=null){
-            return (A) entry2._obj;
-        }
-
+            final CacheEntry entry = cacheGet(recid);
+            if (entry != null) {
+                return (A) entry._obj;
+            }
 
+            //check dirties
+            final DirtyCacheEntry entry2 = _hashDirties.get(recid);
+            if(entry2!=null){
+                return (A) entry2._obj;
+            }
 
-        A value = super.fetch(recid, serializer);
 
-        if(super.needsAutoCommit())
-            commit();
 
+            A value = super.fetch(recid, serializer);
 
-        //put record into MRU cache
-        cachePut(recid, value);
+            //put record into MRU cache
+            cachePut(recid, value);
 
-        return value;
+            return value;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
 
-    public synchronized void close() {
-
-        if(isClosed())
-            return;
+    public void close() {
+        try {
+            lock.writeLock().lock();
+            if(isClosed())
+                return;
 
-        updateCacheEntries();
-        super.close();
-        _hash = null;
+            updateCacheEntries();
+            super.close();
+            _hash = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
 
-    public synchronized void rollback() {
+    public void rollback() {
+        //waits for group commit, leader needs write lock to commit batch
+        lockForRollback();
+        try {
+            // discard all cache entries since we don't know which entries
+            // where part of the transaction
+            synchronized (_hash){
+                _hash.clear();
+                _first = null;
+                _last = null;
+            }
 
-        // discard all cache entries since we don't know which entries
-        // where part of the transaction
-        synchronized (_hash){
-            _hash.clear();
-            _first = null;
-            _last = null;
+            super.rollback();
+        } finally {
+            lock.writeLock().unlock();
         }
-
-        super.rollback();
     }
 
 
@@ -16,7 +16,6 @@
 
 package net.kotek.jdbm;
 
-import javax.crypto.Cipher;
 import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
@@ -77,13 +76,13 @@ public class DBCacheRef
      * using a given cache policy.
      */
     public DBCacheRef(String filename, boolean readonly, boolean transactionDisabled,
-                      Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile,
+                      PageCipher cipher, boolean useRandomAccessFile,
                       boolean deleteFilesAfterClose,
-                      byte cacheType, boolean cacheAutoClearOnLowMem, boolean lockingDisabled) {
+                      byte cacheType, boolean cacheAutoClearOnLowMem, boolean lockingDisabled, int pageSizeShift, boolean compress) {
 
         super(filename, readonly, transactionDisabled,
-                cipherIn, cipherOut, useRandomAccessFile,
-                deleteFilesAfterClose, lockingDisabled);
+                cipher, useRandomAccessFile,
+                deleteFilesAfterClose, lockingDisabled, pageSizeShift, compress);
 
 
         this._cacheType = cacheType;
@@ -128,136 +127,161 @@ public class DBCacheRef
 
     }
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
-
-        if (disableCache)
-            return super.fetch(recid, serializer, disableCache);
-        else
-            return fetch(recid, serializer);
+    public <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
+        try {
+            lock.readLock().lock();
+            if (disableCache)
+                return super.fetch(recid, serializer, disableCache);
+            else
+                return fetch(recid, serializer);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
 
-    public synchronized void delete(long recid)
+    public void delete(long recid)
             throws IOException {
-        checkNotClosed();
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
 
-        super.delete(recid);
-        synchronized (_hashDirties){
-            _hashDirties.remove(recid);
-        }
-        synchronized (_softHash) {
-            Object e = _softHash.remove(recid);
-            if (e != null && e instanceof ReferenceCacheEntry) {
-                ((ReferenceCacheEntry)e).clear();
+            super.delete(recid);
+            synchronized (_hashDirties){
+                _hashDirties.remove(recid);
+            }
+            synchronized (_softHash) {
+                Object e = _softHash.remove(recid);
+                if (e != null && e instanceof ReferenceCacheEntry) {
+                    ((ReferenceCacheEntry)e).clear();
+                }
             }
-        }
-
-        if(needsAutoCommit())
-            commit();
 
+            if(needsAutoCommit())
+                commitTransaction();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    public synchronized <A> void update(final long recid, A obj, Serializer<A> serializer) throws IOException {
-        checkNotClosed();
+    public <A> void update(final long recid, A obj, Serializer<A> serializer) throws IOException {
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
 
 
-        synchronized (_softHash) {
-            //soft cache can not contain dirty objects
-            Object e = _softHash.remove(recid);
-            if (e != null && e instanceof ReferenceCacheEntry) {
-                ((ReferenceCacheEntry)e).clear();
+            synchronized (_softHash) {
+                //soft cache can not contain dirty objects
+                Object e = _softHash.remove(recid);
+                if (e != null && e instanceof ReferenceCacheEntry) {
+                    ((ReferenceCacheEntry)e).clear();
+                }
+            }
+            synchronized (_hashDirties){
+                //put into dirty cache
+                final DirtyCacheEntry e = new DirtyCacheEntry();
+                e._recid = recid;
+                e._obj = obj;
+                e._serializer = serializer;
+                _hashDirties.put(recid,e);
             }
-        }
-        synchronized (_hashDirties){
-            //put into dirty cache
-            final DirtyCacheEntry e = new DirtyCacheEntry();
-            e._recid = recid;
-            e._obj = obj;
-            e._serializer = serializer;
-            _hashDirties.put(recid,e);
-        }
-
-        if(needsAutoCommit())
-            commit();
 
+            if(needsAutoCommit())
+                commitTransaction();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer)
+    public <A> A fetch(long recid, Serializer<A> serializer)
             throws IOException {
-        checkNotClosed();
-
-        synchronized (_softHash) {
-            Object e = _softHash.get(recid);
-            if (e != null) {
+        try {
+            lock.readLock().lock();
+            checkNotClosed();
 
-                if(e instanceof ReferenceCacheEntry)
-                    e = ((ReferenceCacheEntry)e).get();
+            synchronized (_softHash) {
+                Object e = _softHash.get(recid);
                 if (e != null) {
-                    return (A) e;
+
+                    if(e instanceof ReferenceCacheEntry)
+                        e = ((ReferenceCacheEntry)e).get();
+                    if (e != null) {
+                        return (A) e;
+                    }
                 }
             }
-        }
 
 
-        synchronized (_hashDirties){
-            DirtyCacheEntry e2 = _hashDirties.get(recid);
-            if(e2!=null){
-                return (A) e2._obj;
+            synchronized (_hashDirties){
+                DirtyCacheEntry e2 = _hashDirties.get(recid);
+                if(e2!=null){
+                    return (A) e2._obj;
+                }
             }
-        }
 
 
 
 
-        A value = super.fetch(recid, serializer);
+            A value = super.fetch(recid, serializer);
 
-        if(needsAutoCommit())
-            commit();
+               synchronized (_softHash) {
 
-           synchronized (_softHash) {
+                        if (_cacheType == SOFT)
+                            _softHash.put(recid, new SoftCacheEntry(recid, value, _refQueue));
+                        else if (_cacheType == WEAK)
+                            _softHash.put(recid, new WeakCacheEntry(recid, value, _refQueue));
+                        else
+                            _softHash.put(recid,value);
+               }
 
-                    if (_cacheType == SOFT)
-                        _softHash.put(recid, new SoftCacheEntry(recid, value, _refQueue));
-                    else if (_cacheType == WEAK)
-                        _softHash.put(recid, new WeakCacheEntry(recid, value, _refQueue));
-                    else
-                        _softHash.put(recid,value);
-           }
 
-
-        return value;
+            return value;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
 
-    public synchronized void close() {
-        checkNotClosed();
+    public void close() {
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
 
-        updateCacheEntries();
-        super.close();
-        _softHash = null;
-        _softRefThread.interrupt();
+            updateCacheEntries();
+            super.close();
+            _softHash = null;
+            _softRefThread.interrupt();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
 
 
-    public synchronized void rollback() {
-        checkNotClosed();
+    public void rollback() {
+        //waits for group commit, leader needs write lock to commit batch
+        lockForRollback();
+        try {
+            checkNotClosed();
 
 
-        // discard all cache entries since we don't know which entries
-        // where part of the transaction
-        synchronized (_softHash) {
-            Iterator<ReferenceCacheEntry> iter = _softHash.valuesIterator();
-            while (iter.hasNext()) {
-                ReferenceCacheEntry e = iter.next();
-                e.clear();
+            // discard all cache entries since we don't know which entries
+            // where part of the transaction
+            synchronized (_softHash) {
+                Iterator<ReferenceCacheEntry> iter = _softHash.valuesIterator();
+                while (iter.hasNext()) {
+                    ReferenceCacheEntry e = iter.next();
+                    e.clear();
+                }
+                _softHash.clear();
             }
-            _softHash.clear();
-        }
 
-        super.rollback();
+            super.rollback();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
@@ -16,14 +16,8 @@
 
 package net.kotek.jdbm;
 
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.IOError;
-import java.security.spec.KeySpec;
+import java.io.IOException;
 
 /**
  * Class used to configure and create DB. It uses builder pattern.
@@ -44,6 +38,18 @@ public class DBMaker {
     private boolean autoClearRefCacheOnLowMem = true;
     private  boolean closeOnJVMExit = false;
     private  boolean deleteFilesAfterCloseFlag = false;
+    private long groupCommitWindow = 0;
+    private long checkpointThreshold = 0;
+    private int pageSizeShift = Storage.PAGE_SIZE_SHIFT;
+    private long preallocationChunkSize = 0;
+    private int readAhead = 0;
+    private long pageCacheSize = 0;
+    private long autoShrinkThreshold = 0;
+    private int compactionRecordsPerStep = 0;
+    private long compactionPause = 0;
+    private String[] stripeDirectories = new String[0];
+    private String translationDirectory = null;
+    private boolean compress = false;
 
 
     private DBMaker(){}
@@ -67,11 +73,33 @@ public class DBMaker {
         return new DBMaker();
     }
 
+    /**
+     * Creates new DBMaker which uses in memory store outside of Java heap.
+     * Pages are allocated in large direct buffers, so store can grow to many GB
+     * without increasing GC pauses. Data will be lost after DB is closed.
+     * <p/>
+     * Direct memory is limited by JVM option <code>-XX:MaxDirectMemorySize</code>.
+     *
+     * @return new DBMaker
+     */
+    public static DBMaker openMemoryDirect(){
+        DBMaker m = new DBMaker();
+        m.location = DIRECT_MEMORY_LOCATION;
+        return m;
+    }
+
+    static final String DIRECT_MEMORY_LOCATION = "$$DIRECT$$://";
+
+    static boolean isDirectMemoryLocation(String location){
+        return DIRECT_MEMORY_LOCATION.equals(location);
+    }
+
     /**
      * Open store in zip file
      *
      * @param zip file
      * @return new DBMaker
+     * @deprecated use {@link #openArchive(String)}, zip file is slow to read
      */
     public static DBMaker openZip(String zip) {
         DBMaker m = new DBMaker();
@@ -79,6 +107,28 @@ public class DBMaker {
         return m;
     }
 
+    static final String ARCHIVE_LOCATION = "$$ARCHIVE$$://";
+
+    /**
+     * Open store in archive file created by {@link DB#copyToArchive(String)}.
+     * Archive is always opened read-only.
+     *
+     * @param archive file
+     * @return new DBMaker
+     */
+    public static DBMaker openArchive(String archive) {
+        DBMaker m = new DBMaker();
+        m.location = ARCHIVE_LOCATION + archive;
+        m.readonly = true;
+        return m;
+    }
+
+    static String isArchiveLocation(String location) {
+        if (location.startsWith(ARCHIVE_LOCATION))
+            return location.substring(ARCHIVE_LOCATION.length());
+        return null;
+    }
+
      static String  isZipFileLocation(String location){
          String match = "$$ZIP$$://";
          if( location.startsWith(match)){
@@ -233,6 +283,201 @@ public class DBMaker {
         return this;
     }
     
+    /**
+     * Enables group commit. Many threads calling <code>commit()</code> at the same time would normally
+     * pay for one log append and one disk sync each. With group commit the first thread waits
+     * for given time window, other commits arriving in meantime are merged with it and all
+     * changes are made durable by single log append and sync. Each caller returns once its changes are durable.
+     * <p/>
+     * This increases latency of single commit, but greatly improves throughput with many small concurrent transactions.
+     *
+     * @param windowMillis how long commit waits for others to join, typically 1-10 ms
+     * @return this builder
+     */
+    public DBMaker enableGroupCommit(long windowMillis){
+        if (windowMillis <= 0) throw new IllegalArgumentException("Group commit window must be positive");
+        this.groupCommitWindow = windowMillis;
+        return this;
+    }
+
+    /**
+     * Enables background checkpointer. By default every second commit copies logged pages
+     * from transaction log into main data file on committing thread.
+     * With checkpointer commits only append into log. Once log grows over given size,
+     * it is sealed and background thread applies it to data file, while new commits go into fresh log.
+     * Committing thread waits only if log grows twice over threshold before checkpoint finishes.
+     * <p/>
+     * Pages from unapplied log are kept in memory, so threshold also limits memory usage.
+     *
+     * @param logSizeBytes log size which triggers checkpoint, typically several MB
+     * @return this builder
+     */
+    public DBMaker enableBackgroundCheckpoint(long logSizeBytes){
+        if (logSizeBytes <= 0) throw new IllegalArgumentException("Log size threshold must be positive");
+        this.checkpointThreshold = logSizeBytes;
+        return this;
+    }
+
+    /**
+     * Enables automatic shrink. Pages freed by deletes are reused by new records,
+     * but file never gets smaller. With auto shrink commit checks end of file and once free pages there
+     * take given size, they are cut off and disk space is returned to file system.
+     *
+     * @param freeBytes size of free space at end of file which triggers shrink
+     * @return this builder
+     * @see DB#shrink()
+     */
+    public DBMaker enableAutoShrink(long freeBytes){
+        if (freeBytes <= 0) throw new IllegalArgumentException("Auto shrink threshold must be positive");
+        this.autoShrinkThreshold = freeBytes;
+        return this;
+    }
+
+    /**
+     * Enables background compaction. Background thread moves records from end of file into space freed
+     * by deleted records and cuts released pages off the file. It moves only few records at once
+     * and waits between steps, so other threads are blocked only for short time.
+     * <p/>
+     * Background thread never commits changes made by other threads, step is skipped while
+     * transaction has uncommitted changes.
+     *
+     * @param recordsPerStep maximal number of records moved by single step
+     * @param pauseMillis pause between steps in milliseconds
+     * @return this builder
+     * @see DB#compact(int)
+     */
+    public DBMaker enableBackgroundCompaction(int recordsPerStep, long pauseMillis){
+        if (recordsPerStep <= 0) throw new IllegalArgumentException("Records per step must be positive");
+        if (pauseMillis <= 0) throw new IllegalArgumentException("Pause must be positive");
+        this.compactionRecordsPerStep = recordsPerStep;
+        this.compactionPause = pauseMillis;
+        return this;
+    }
+
+    /**
+     * Sets size of storage page. Larger pages reduce number of page reads for large records
+     * and BTree nodes, smaller pages waste less space and IO on small random updates.
+     * Default page size is 4KB.
+     * <p/>
+     * Page size is stored in file header when new database is created.
+     * Existing database is always opened with page size it was created with,
+     * this setting is then ignored.
+     *
+     * @param pageSize page size in bytes, power of two between 4KB and 64KB
+     * @return this builder
+     */
+    public DBMaker setPageSize(int pageSize){
+        if (pageSize < (1 << Storage.MIN_PAGE_SIZE_SHIFT) || pageSize > (1 << Storage.MAX_PAGE_SIZE_SHIFT)
+                || Integer.bitCount(pageSize) != 1)
+            throw new IllegalArgumentException("Page size must be power of two between 4KB and 64KB: " + pageSize);
+        this.pageSizeShift = Integer.numberOfTrailingZeros(pageSize);
+        return this;
+    }
+
+    /**
+     * Sets size of chunks in which data files are extended when mapped buffers are used.
+     * By default file grows by 10% of its size, but at most by 1024 pages, so file is
+     * extended and mapped frequently during bulk load. With larger chunk, file space is allocated
+     * and mapped less often. Files are mapped in 64MB regions, chunks of this size or larger map
+     * each region only once.
+     * <p/>
+     * Has no effect on memory store or if {@link #useRandomAccessFile()} is used.
+     *
+     * @param chunkSize chunk size in bytes, must be multiple of 64KB
+     * @return this builder
+     */
+    public DBMaker setPreallocationChunkSize(long chunkSize){
+        if (chunkSize <= 0 || chunkSize % (1 << Storage.MAX_PAGE_SIZE_SHIFT) != 0)
+            throw new IllegalArgumentException("Chunk size must be positive multiple of 64KB: " + chunkSize);
+        this.preallocationChunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Enables read-ahead when {@link #useRandomAccessFile()} is used.
+     * Once several pages are read sequentially (BTree scan, defrag), following pages
+     * are read in parallel by background threads, so disk gets more than one request at time.
+     * <p/>
+     * Mapped buffers rely on read-ahead provided by operating system, so there this setting has no effect.
+     *
+     * @param pages number of pages read ahead, typically 8 to 64
+     * @return this builder
+     */
+    public DBMaker enableReadAhead(int pages){
+        if (pages <= 0) throw new IllegalArgumentException("Number of pages must be positive");
+        this.readAhead = pages;
+        return this;
+    }
+
+    /**
+     * Spreads 1 GB segments of data file over several directories, segments are placed round-robin.
+     * If directories are on different drives, reads and flushes of different segments run in parallel
+     * and IO bandwidth of all drives is used. First segment always stays next to main file.
+     * <p/>
+     * Directories are stored with new store, existing store is always opened with directories
+     * it was created with, so this setting is ignored for existing store.
+     *
+     * @param directories existing directories
+     * @return this builder
+     */
+    public DBMaker stripeDirectories(String... directories){
+        if (directories.length == 0)
+            throw new IllegalArgumentException("No directory");
+        this.stripeDirectories = directories.clone();
+        return this;
+    }
+
+    /**
+     * Places segments of record translation file into separate directory, typically on separate drive.
+     * Translation pages are read on each record fetch, so they do not compete with data pages for IO.
+     * <p/>
+     * Directory is stored with new store, existing store is always opened with directories
+     * it was created with, so this setting is ignored for existing store.
+     *
+     * @param directory existing directory
+     * @return this builder
+     */
+    public DBMaker setTranslationDirectory(String directory){
+        if (directory == null)
+            throw new IllegalArgumentException("No directory");
+        this.translationDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Enables cache of clean pages read from disk. Records are already cached by instance cache,
+     * this cache keeps raw pages, so hot index and allocation pages do not cause syscall,
+     * decompression or decryption each time they are accessed.
+     * <p/>
+     * It is most useful with {@link #useRandomAccessFile()}, compressed storage and zip files.
+     * Mapped buffers and memory storage already keep pages in memory.
+     * Cache statistics are part of {@link DB#calculateStatistics()}.
+     *
+     * @param bytes cache size in bytes, must hold at least one page
+     * @return this builder
+     */
+    public DBMaker setPageCacheSize(long bytes){
+        if (bytes < (1 << Storage.MAX_PAGE_SIZE_SHIFT))
+            throw new IllegalArgumentException("Page cache must be at least 64KB: " + bytes);
+        this.pageCacheSize = bytes;
+        return this;
+    }
+
+    /**
+     * Enables page compression. Each page is compressed before it is written to disk and compressed
+     * pages are packed together, so half empty pages take less space. It reduces file size and IO,
+     * but uses more CPU and requires translation map of all pages in memory.
+     * <p/>
+     * Compression is chosen when new database is created. Existing database is always opened
+     * in format it was created with, this setting is then ignored.
+     *
+     * @return this builder
+     */
+    public DBMaker enableCompression(){
+        this.compress = true;
+        return this;
+    }
+
     /**
      * Disable file system based locking (for file systems that do not support it).
      * 
@@ -292,55 +537,57 @@ public class DBMaker {
      */
     public DB make() {
 
-        Cipher cipherIn = null;
-        Cipher cipherOut = null;
+        PageCipher cipher = null;
         if (password != null) try {
-            //initialize ciphers
-            //this code comes from stack owerflow
-            //http://stackoverflow.com/questions/992019/java-256bit-aes-encryption/992413#992413
-            byte[] salt = new byte[]{3, -34, 123, 53, 78, 121, -12, -1, 45, -12, -48, 89, 11, 100, 99, 8};
-
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 1024, useAES256Bit?256:128);
-            SecretKey tmp = factory.generateSecret(spec);
-            SecretKey secret = new SecretKeySpec(tmp.getEncoded(), "AES");
-
-            String transform = "AES/CBC/NoPadding";
-            IvParameterSpec params = new IvParameterSpec(salt);
-
-            cipherIn = Cipher.getInstance(transform);
-            cipherIn.init(Cipher.ENCRYPT_MODE, secret, params);
-
-            cipherOut = Cipher.getInstance(transform);
-            cipherOut.init(Cipher.DECRYPT_MODE, secret, params);
-
-            //sanity check, try with page size
-            byte[] data = new byte[Storage.PAGE_SIZE];
-            byte[] encData = cipherIn.doFinal(data);
-            if (encData.length != Storage.PAGE_SIZE)
-                throw new Error("Page size changed after encryption, make sure you use '/NoPadding'");
-            byte[] data2 = cipherOut.doFinal(encData);
-            for (int i = 0; i < data.length; i++) {
-                if (data[i] != data2[i]) throw new Error("Encryption provided by JRE does not work");
-            }
-
+            cipher = PageCipher.create(password, useAES256Bit);
         } catch (Exception e) {
             throw new IOError(e);
         }
 
-        DBAbstract db = null;
+        if (stripeDirectories.length > 0 || translationDirectory != null) {
+            if (location == null || isDirectMemoryLocation(location) || isArchiveLocation(location) != null
+                    || isZipFileLocation(location) != null)
+                throw new IllegalArgumentException("Segments can be placed into directories only for file store");
+            if (!readonly) try {
+                SegmentLayout.create(location, stripeDirectories, translationDirectory);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+
+        DBStore db = null;
 
 
         if (cacheType == DBCacheRef.MRU){
-          db = new DBCacheMRU(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile,deleteFilesAfterCloseFlag, mruCacheSize,lockingDisabled);
+          db = new DBCacheMRU(location, readonly, disableTransactions, cipher,useRandomAccessFile,deleteFilesAfterCloseFlag, mruCacheSize,lockingDisabled,pageSizeShift,compress);
         }else if( cacheType == DBCacheRef.SOFT || cacheType == DBCacheRef.HARD || cacheType == DBCacheRef.WEAK) {
-            db = new DBCacheRef(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile,deleteFilesAfterCloseFlag, cacheType,autoClearRefCacheOnLowMem,lockingDisabled);
+            db = new DBCacheRef(location, readonly, disableTransactions, cipher,useRandomAccessFile,deleteFilesAfterCloseFlag, cacheType,autoClearRefCacheOnLowMem,lockingDisabled,pageSizeShift,compress);
         } else if (cacheType == DBCacheRef.NONE) {
-            db = new DBStore(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile,deleteFilesAfterCloseFlag,lockingDisabled);
+            db = new DBStore(location, readonly, disableTransactions, cipher,useRandomAccessFile,deleteFilesAfterCloseFlag,lockingDisabled,pageSizeShift,compress);
         } else {
             throw new IllegalArgumentException("Unknown cache type: " + cacheType);
         }
         
+        if(groupCommitWindow>0)
+            db.setGroupCommitWindow(groupCommitWindow);
+        if(preallocationChunkSize>0)
+            db.setPreallocationChunkSize(preallocationChunkSize);
+        if(readAhead>0)
+            db.setReadAhead(readAhead);
+        if(pageCacheSize>0)
+            db.setPageCacheSize(pageCacheSize);
+        if(autoShrinkThreshold>0 && !readonly)
+            db.setAutoShrinkThreshold(autoShrinkThreshold);
+        if(compactionRecordsPerStep>0 && !readonly)
+            db.setBackgroundCompaction(compactionRecordsPerStep, compactionPause);
+        if(checkpointThreshold>0 && !disableTransactions && !readonly){
+            try {
+                db.setCheckpointThreshold(checkpointThreshold);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+
         if(closeOnJVMExit){
             final DB db2 = db;
             Thread t = new Thread("JDBM shutdown"){
@@ -0,0 +1,158 @@
+package net.kotek.jdbm;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Read-only view of database at the time of last commit before snapshot was created.
+ * <p/>
+ * Records are read from {@link PageSnapshot}, so reads do not lock the database
+ * and do not wait for writer, commit or log synchronization.
+ * All modifications throw <code>UnsupportedOperationException</code>.
+ */
+class DBSnapshot extends DBAbstract {
+
+    private PageSnapshot pages;
+
+    /** file header at snapshot time, contains roots and list heads */
+    private final PageIo header;
+
+    private final int pageSizeShift;
+
+    DBSnapshot(PageSnapshot pages, int pageSizeShift) throws IOException {
+        this.pages = pages;
+        this.header = pages.get(0);
+        this.pageSizeShift = pageSizeShift;
+    }
+
+    public void close() {
+        checkNotClosed();
+        pages.close();
+        pages = null;
+    }
+
+    public boolean isClosed() {
+        return pages == null || pages.isClosed();
+    }
+
+    public void clearCache() {
+        //there is no cache
+    }
+
+    <A> A fetch(long recid, Serializer<A> serializer) throws IOException {
+        checkNotClosed();
+        if (recid <= 0) {
+            throw new IllegalArgumentException("Argument 'recid' is invalid: " + recid);
+        }
+        recid = DBStore.decompressRecid(recid, pageSizeShift);
+        final long offsetMask = (1L << pageSizeShift) - 1;
+
+        //translate logical recid into physical location
+        final long xlatPageId = -(recid >>> pageSizeShift);
+        if (header.fileHeaderGetLastOf(Magic.TRANSLATION_PAGE) - 1 > xlatPageId)
+            return null;
+        final long physLocation = pages.get(xlatPageId).pageHeaderGetLocation((int) (recid & offsetMask));
+        if (physLocation == 0 || physLocation == DBStore.PREALOCATE_PHYS_RECID)
+            return null;
+
+        //read record, it may continue on following pages
+        DataInputOutput buf = new DataInputOutput();
+        long current = physLocation >>> pageSizeShift;
+        PageIo page = pages.get(current);
+        final int head = (int) (physLocation & offsetMask);
+        int leftToRead = RecordHeader.getCurrentSize(page, head);
+        int dataOffset = head + RecordHeader.SIZE;
+        while (leftToRead > 0) {
+            int toCopy = Math.min(leftToRead, (1 << pageSizeShift) - dataOffset);
+            buf.writeFromByteBuffer(page.getData(), dataOffset, toCopy);
+            leftToRead -= toCopy;
+            if (leftToRead > 0) {
+                current = page.pageHeaderGetNext();
+                page = pages.get(current);
+                dataOffset = Magic.DATA_PAGE_O_DATA;
+            }
+        }
+
+        buf.resetForReading();
+        try {
+            return serializer.deserialize(buf);
+        } catch (ClassNotFoundException e) {
+            throw new IOError(e);
+        }
+    }
+
+    <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
+        return fetch(recid, serializer);
+    }
+
+    protected long getRoot(byte root) {
+        checkNotClosed();
+        return header.fileHeaderGetRoot(root);
+    }
+
+    <A> long insert(A obj, Serializer<A> serializer, boolean disableCache) throws IOException {
+        throw readonly();
+    }
+
+    <A> long[] insertBatch(List<A> objs, Serializer<A> serializer) throws IOException {
+        throw readonly();
+    }
+
+    void delete(long recid) throws IOException {
+        throw readonly();
+    }
+
+    <A> void update(long recid, A obj, Serializer<A> serializer) throws IOException {
+        throw readonly();
+    }
+
+    protected void setRoot(byte root, long recid) {
+        throw readonly();
+    }
+
+    public void defrag(boolean sortCollections) {
+        throw readonly();
+    }
+
+    public long shrink() {
+        throw readonly();
+    }
+
+    public int compact(int maxRecords) {
+        throw readonly();
+    }
+
+    public void commit() {
+        throw readonly();
+    }
+
+    public Future<Void> commitAsync() {
+        throw readonly();
+    }
+
+    public void rollback() {
+        throw readonly();
+    }
+
+    public String calculateStatistics() {
+        throw new UnsupportedOperationException("Not supported on snapshot");
+    }
+
+    public void copyToZip(String zipFile) {
+        throw new UnsupportedOperationException("Not supported on snapshot");
+    }
+
+    public void copyToArchive(String archiveFile) {
+        throw new UnsupportedOperationException("Not supported on snapshot");
+    }
+
+    public DB snapshot() {
+        throw new UnsupportedOperationException("Snapshot is already read-only view");
+    }
+
+    private static UnsupportedOperationException readonly() {
+        return new UnsupportedOperationException("Could not write, snapshot is read-only");
+    }
+}
@@ -17,9 +17,14 @@
 package net.kotek.jdbm;
 
 
-import javax.crypto.Cipher;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -31,8 +36,9 @@ import java.util.zip.ZipOutputStream;
  * back to them. Data blocks can be as long as you wish, and may have
  * lengths different from the original when updating.
  * <p/>
- * Operations are synchronized, so that only one of them will happen
- * concurrently even if you hammer away from multiple threads. Operations
+ * Operations are guarded by read-write lock. Fetches may run concurrently,
+ * modifications and commits are exclusive, so only one of them will happen
+ * at a time even if you hammer away from multiple threads. Operations
  * are made atomic by keeping a transaction log which is recovered after
  * a crash, so the operations specified by this interface all have ACID
  * properties.
@@ -83,18 +89,87 @@ class DBStore
 
     boolean commitInProgress = false;
 
+    /**
+     * Group commit window in milliseconds, zero if group commit is disabled.
+     * Transaction is shared by all threads, so single commit makes durable changes from all of them.
+     */
+    private volatile long groupCommitWindow = 0;
+
+    /**
+     * Transaction log size in bytes after which log is applied to data file by background checkpointer.
+     * Zero means log is applied by committing thread.
+     */
+    private long checkpointThreshold = 0;
+
+    /**
+     * Size of chunks in which mapped files are extended, zero means chunk size is derived from file size.
+     */
+    private long preallocationChunkSize = 0;
+
+    /**
+     * Number of pages read ahead by disk storage on sequential reads, zero disables read-ahead.
+     */
+    private int readAhead = 0;
+
+    /**
+     * Size of clean page cache in bytes, zero disables cache.
+     */
+    private long pageCacheSize = 0;
+
+    /**
+     * Size of free pages at end of file in bytes, after which file is shrinked on commit. Zero disables auto shrink.
+     */
+    private long autoShrinkThreshold = 0;
 
     /**
-     * cipher used for decryption, may be null
+     * Runs compaction steps in background, null if background compaction is disabled.
      */
-    private Cipher cipherOut;
+    private ScheduledExecutorService compactor;
+
+    /** number of commits written to log, background compaction has nothing to do until something is committed */
+    long commitCount = 0;
+    /** value of commit counter when background compaction last found nothing to move */
+    private long compactorIdleCommitCount = -1;
+    /** translation page where next compaction step starts to look up logical recids of moved records */
+    private long compactorCursor = 0;
+    /** error thrown by background compaction step, rethrown and cleared by next commit or compaction */
+    final AtomicReference<Throwable> compactorFailure = new AtomicReference<Throwable>();
+
+    /**
+     * Default serializer resolved by defrag. Worker threads which copy collections
+     * can not take read lock held by defrag, so they get serializer from here.
+     */
+    private volatile Serializer defragSerializer = null;
+
+    /**
+     * Fetches hold shared lock and run concurrently, modifications and commit hold exclusive lock.
+     */
+    final protected ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Object groupCommitLock = new Object();
+    /** batch which collects commit requests, it is not committed yet */
+    private long groupCommitOpenBatch = 1;
+    /** highest batch which was already committed */
+    private long groupCommitDoneBatch = 0;
+    /** true if some thread already waits to commit open batch */
+    private boolean groupCommitLeaderActive = false;
+    private long groupCommitFailedBatch = -1;
+    private Throwable groupCommitFailure;
+
+
     /**
-     * cipher used for encryption, may be null
+     * cipher used for encryption and decryption, may be null
      */
-    private Cipher cipherIn;
+    private PageCipher cipher;
     private boolean useRandomAccessFile;
     private boolean lockingDisabled;
 
+    /** page size requested for new file, existing file keeps page size from its header */
+    private final int pageSizeShift;
+
+    /** compress pages of new file, existing file keeps format it was created with */
+    private final boolean compress;
+
     void checkCanWrite() {
         if (readonly)
             throw new UnsupportedOperationException("Could not write, store is opened as read-only");
@@ -124,13 +199,14 @@ class DBStore
 
 
     private final DataInputOutput buffer = new DataInputOutput();
-    private boolean bufferInUse = false;
+    /** reusable buffer may be requested by concurrent fetches, only one of them gets it */
+    private final AtomicBoolean bufferInUse = new AtomicBoolean(false);
 
 
     private final String _filename;
 
     public DBStore(String filename, boolean readonly, boolean transactionDisabled, boolean lockingDisabled) throws IOException {
-        this(filename, readonly, transactionDisabled, null, null, false,false,false);
+        this(filename, readonly, transactionDisabled, null, false,false,false, Storage.PAGE_SIZE_SHIFT, false);
     }
 
 
@@ -141,28 +217,38 @@ class DBStore
      *                     a valid file content-wise.
      */
     public DBStore(String filename, boolean readonly, boolean transactionDisabled,
-                   Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile,
-                   boolean deleteFilesAfterClose, boolean lockingDisabled){
+                   PageCipher cipher, boolean useRandomAccessFile,
+                   boolean deleteFilesAfterClose, boolean lockingDisabled, int pageSizeShift, boolean compress){
         _filename = filename;
         this.readonly = readonly;
         this.transactionsDisabled = transactionDisabled;
-        this.cipherIn = cipherIn;
-        this.cipherOut = cipherOut;
+        this.cipher = cipher;
         this.useRandomAccessFile = useRandomAccessFile;
         this.deleteFilesAfterClose = deleteFilesAfterClose;
         this.lockingDisabled = lockingDisabled;
+        this.pageSizeShift = pageSizeShift;
+        this.compress = compress;
         reopen();
     }
 
 
     private void reopen()  {
         try{
-        _file = new PageFile(_filename, readonly, transactionsDisabled, cipherIn, cipherOut,useRandomAccessFile,lockingDisabled);
+        _file = new PageFile(_filename, readonly, transactionsDisabled, cipher,useRandomAccessFile,lockingDisabled, pageSizeShift, compress);
         _pageman = new PageManager(_file);
         _physMgr = new PhysicalRowIdManager(_file, _pageman);
 
         _logicMgr = new LogicalRowIdManager(_file, _pageman);
 
+        if (checkpointThreshold > 0 && _file.txnMgr != null)
+            _file.txnMgr.setCheckpointThreshold(checkpointThreshold);
+        if (preallocationChunkSize > 0 && _file.storage instanceof StorageDiskMapped)
+            ((StorageDiskMapped) _file.storage).setPreallocationChunkSize(preallocationChunkSize);
+        if (readAhead > 0 && _file.storage instanceof StorageDisk)
+            ((StorageDisk) _file.storage).setReadAhead(readAhead);
+        if (pageCacheSize > 0)
+            _file.setPageCacheSize(pageCacheSize);
+
         long versionNumber = getRoot(STORE_VERSION_NUMBER_ROOT);
         if (versionNumber > STORE_FORMAT_VERSION)
             throw new IOException("Unsupported version of store. Please update JDBM. Minimal supported ver:" + STORE_FORMAT_VERSION + ", store ver:" + versionNumber);
@@ -179,21 +265,28 @@ class DBStore
      *
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void close() {
-        checkNotClosed();
+    public void close() {
         try {
-            _pageman.close();
-            _file.close();
-            if(deleteFilesAfterClose)
-                _file.storage.deleteAllFiles();
-            
-            _pageman = null;
+            lock.writeLock().lock();
+            checkNotClosed();
+            if (compactor != null)
+                compactor.shutdown();
+            try {
+                _pageman.close();
+                _file.close();
+                if(deleteFilesAfterClose)
+                    _file.storage.deleteAllFiles();
 
-            
-            _file = null;
+                _pageman = null;
 
-        } catch (IOException e) {
-            throw new IOError(e);
+
+                _file = null;
+
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -202,31 +295,69 @@ class DBStore
     }
 
 
-    public synchronized <A> long insert(final A obj, final Serializer<A> serializer, final boolean disableCache)
+    public <A> long insert(final A obj, final Serializer<A> serializer, final boolean disableCache)
             throws IOException {
-        checkNotClosed();
-        checkCanWrite();
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
+            checkCanWrite();
 
-        if (needsAutoCommit()) {
-            commit();
-        }
+            if (needsAutoCommit()) {
+                commitTransaction();
+            }
 
 
-        if (bufferInUse) {
-            //current reusable buffer is in use, have to fallback into creating new instances
-            DataInputOutput buffer2 = new DataInputOutput();
-            return insert2(obj, serializer, buffer2);
+            if (!bufferInUse.compareAndSet(false, true)) {
+                //current reusable buffer is in use, have to fallback into creating new instances
+                DataInputOutput buffer2 = new DataInputOutput();
+                return insert2(obj, serializer, buffer2);
+            }
+
+            try {
+                return insert2(obj, serializer, buffer);
+            } finally {
+                bufferInUse.set(false);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
+    public <A> long[] insertBatch(final List<A> objs, final Serializer<A> serializer) throws IOException {
         try {
+            lock.writeLock().lock();
+            checkNotClosed();
+            checkCanWrite();
+
+            //serialize all records into single buffer
+            final DataInputOutput buf = new DataInputOutput();
+            final int[] sizes = new int[objs.size()];
+            int i = 0;
+            for (A obj : objs) {
+                final int start = buf.getPos();
+                serializer.serialize(buf, obj);
+                sizes[i] = buf.getPos() - start;
+                if (sizes[i] > RecordHeader.MAX_RECORD_SIZE) {
+                    throw new IllegalArgumentException("Too big record. JDBM only supports record size up to: " + RecordHeader.MAX_RECORD_SIZE + " bytes. Record size was: " + sizes[i]);
+                }
+                i++;
+            }
 
-            bufferInUse = true;
-            return insert2(obj, serializer, buffer);
+            final long[] recids = new long[sizes.length];
+            int start = 0;
+            for (i = 0; i < sizes.length; i++) {
+                //large batch may dirty many pages, they are written as it goes if transactions are disabled
+                if (needsAutoCommit()) {
+                    commitTransaction();
+                }
+                final long physLoc = _physMgr.insertAtEnd(buf.getBuf(), start, sizes[i]);
+                recids[i] = compressRecid(_logicMgr.insert(physLoc), _file.pageSizeShift);
+                start += sizes[i];
+            }
+            return recids;
         } finally {
-            bufferInUse = false;
+            lock.writeLock().unlock();
         }
-
-
     }
 
     boolean needsAutoCommit() {
@@ -259,63 +390,71 @@ class DBStore
             System.out.println("BaseRecordManager.insert() recid " + recid + " length " + buf.getPos());
         }
 
-        return compressRecid(recid);
+        return compressRecid(recid, _file.pageSizeShift);
     }
 
 
-    public synchronized void delete(long logRowId)
+    public void delete(long logRowId)
             throws IOException {
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
+            checkCanWrite();
+            if (logRowId <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + logRowId);
+            }
 
-        checkNotClosed();
-        checkCanWrite();
-        if (logRowId <= 0) {
-            throw new IllegalArgumentException("Argument 'recid' is invalid: "
-                    + logRowId);
-        }
-
-        if (needsAutoCommit()) {
-            commit();
-        }
+            if (needsAutoCommit()) {
+                commitTransaction();
+            }
 
-        if (DEBUG) {
-            System.out.println("BaseRecordManager.delete() recid " + logRowId);
-        }
+            if (DEBUG) {
+                System.out.println("BaseRecordManager.delete() recid " + logRowId);
+            }
 
-        logRowId =  decompressRecid(logRowId);
+            logRowId =  decompressRecid(logRowId, _file.pageSizeShift);
 
-        long physRowId = _logicMgr.fetch(logRowId);
-        _logicMgr.delete(logRowId);
-        if(physRowId!=PREALOCATE_PHYS_RECID){
-            _physMgr.free(physRowId);
+            long physRowId = _logicMgr.fetch(logRowId);
+            _logicMgr.delete(logRowId);
+            if(physRowId!=PREALOCATE_PHYS_RECID){
+                _physMgr.free(physRowId);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
 
-    public synchronized <A> void update(long recid, A obj, Serializer<A> serializer)
+    public <A> void update(long recid, A obj, Serializer<A> serializer)
             throws IOException {
-        checkNotClosed();
-        checkCanWrite();
-        if (recid <= 0) {
-            throw new IllegalArgumentException("Argument 'recid' is invalid: "
-                    + recid);
-        }
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
+            checkCanWrite();
+            if (recid <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + recid);
+            }
 
-        if (needsAutoCommit()) {
-            commit();
-        }
+            if (needsAutoCommit()) {
+                commitTransaction();
+            }
 
-        if (bufferInUse) {
-            //current reusable buffer is in use, have to create new instances
-            DataInputOutput buffer2 = new DataInputOutput();
-            update2(recid, obj, serializer, buffer2);
-            return;
-        }
+            if (!bufferInUse.compareAndSet(false, true)) {
+                //current reusable buffer is in use, have to create new instances
+                DataInputOutput buffer2 = new DataInputOutput();
+                update2(recid, obj, serializer, buffer2);
+                return;
+            }
 
-        try {
-            bufferInUse = true;
-            update2(recid, obj, serializer, buffer);
+            try {
+                update2(recid, obj, serializer, buffer);
+            } finally {
+                bufferInUse.set(false);
+            }
         } finally {
-            bufferInUse = false;
+            lock.writeLock().unlock();
         }
     }
 
@@ -323,7 +462,7 @@ class DBStore
     private <A> void update2(long logRecid, final A obj, final Serializer<A> serializer, final DataInputOutput buf)
             throws IOException {
 
-        logRecid =  decompressRecid(logRecid);
+        logRecid =  decompressRecid(logRecid, _file.pageSizeShift);
 
         long physRecid = _logicMgr.fetch(logRecid);
         if (physRecid == 0)
@@ -347,37 +486,100 @@ class DBStore
     }
 
 
-    public synchronized <A> A fetch(final long recid, final Serializer<A> serializer)
+    public <A> A fetch(final long recid, final Serializer<A> serializer)
             throws IOException {
-
-        checkNotClosed();
-        if (recid <= 0) {
-            throw new IllegalArgumentException("Argument 'recid' is invalid: "  + recid);
-        }
-
-        if (bufferInUse) {
-            //current reusable buffer is in use, have to create new instances
-            DataInputOutput buffer2 = new DataInputOutput();
-            return fetch2(recid, serializer, buffer2);
-        }
         try {
-            bufferInUse = true;
-            return fetch2(recid, serializer, buffer);
+            lock.readLock().lock();
+            checkNotClosed();
+            if (recid <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "  + recid);
+            }
+
+            if (!bufferInUse.compareAndSet(false, true)) {
+                //current reusable buffer is in use, have to create new instances
+                DataInputOutput buffer2 = new DataInputOutput();
+                return fetch2(recid, serializer, buffer2);
+            }
+            try {
+                return fetch2(recid, serializer, buffer);
+            } finally {
+                bufferInUse.set(false);
+            }
         } finally {
-            bufferInUse = false;
+            lock.readLock().unlock();
         }
     }
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
+    public <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
         //we dont have any cache, so can ignore disableCache parameter
         return fetch(recid, serializer);
     }
 
 
+    public <A> List<A> fetchAll(final long[] recids, final Serializer<A> serializer) throws IOException {
+        try {
+            lock.readLock().lock();
+            checkNotClosed();
+            final long[] logical = new long[recids.length];
+            for (int i = 0; i < recids.length; i++) {
+                if (recids[i] <= 0) {
+                    throw new IllegalArgumentException("Argument 'recid' is invalid: " + recids[i]);
+                }
+                logical[i] = decompressRecid(recids[i], _file.pageSizeShift);
+            }
+
+            //resolve logical rowids ordered by translation page
+            final Integer[] logicalOrder = sortedOrder(logical);
+            final long[] sorted = new long[recids.length];
+            for (int i = 0; i < sorted.length; i++)
+                sorted[i] = logical[logicalOrder[i]];
+            final long[] sortedPhys = _logicMgr.fetchAll(sorted);
+            final long[] phys = new long[recids.length];
+            for (int i = 0; i < phys.length; i++)
+                phys[logicalOrder[i]] = sortedPhys[i];
+
+            //read records ordered by physical location, so each page is read only once
+            final List<A> ret = new ArrayList<A>(Collections.<A>nCopies(recids.length, null));
+            final DataInputOutput buf = new DataInputOutput();
+            PageIo page = null;
+            for (int i : sortedOrder(phys)) {
+                if (phys[i] == 0)
+                    continue;
+                if (phys[i] == PREALOCATE_PHYS_RECID)
+                    throw new InternalError("cache should prevent this!");
+                buf.reset();
+                page = _physMgr.fetch(buf, phys[i], page);
+                buf.resetForReading();
+                ret.set(i, serializer.deserialize(buf));
+            }
+            return ret;
+        } catch (ClassNotFoundException e) {
+            throw new IOError(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns indexes into given array, ordered by array values.
+     */
+    private static Integer[] sortedOrder(final long[] values) {
+        final Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                final long v1 = values[o1], v2 = values[o2];
+                return v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+            }
+        });
+        return order;
+    }
+
     private <A> A fetch2(long recid, final Serializer<A> serializer, final DataInputOutput buf)
             throws IOException {
 
-        recid =  decompressRecid(recid);
+        recid =  decompressRecid(recid, _file.pageSizeShift);
 
         buf.reset();
         long physLocation = _logicMgr.fetch(recid);
@@ -403,7 +605,7 @@ class DBStore
     }
 
     byte[] fetchRaw(long recid) throws IOException {
-        recid =  decompressRecid(recid);
+        recid =  decompressRecid(recid, _file.pageSizeShift);
         long physLocation = _logicMgr.fetch(recid);
         if (physLocation == 0) {
             //throw new IOException("Record not found, recid: "+recid);
@@ -415,57 +617,626 @@ class DBStore
     }
 
 
-    public synchronized long getRoot(final byte id){
-        checkNotClosed();
+    public Serializer defaultSerializer() {
+        final Serializer s = defragSerializer;
+        if (s != null)
+            return s;
+        if (getRoot(SERIAL_CLASS_INFO_RECID_ROOT) != 0)
+            return super.defaultSerializer();
+        //serializer record does not exist yet and will be created
+        try {
+            lock.writeLock().lock();
+            return super.defaultSerializer();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getRoot(final byte id){
+        try {
+            lock.readLock().lock();
+            checkNotClosed();
+
+            return _pageman.getFileHeader().fileHeaderGetRoot(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    public void setRoot(final byte id, final long rowid){
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
+            checkCanWrite();
+
+            _pageman.getFileHeader().fileHeaderSetRoot(id, rowid);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+
+
+    /**
+     * Commits current transaction. If group commit is enabled, caller may wait a short while
+     * so commits from other threads are coalesced into single log append and sync.
+     */
+    public void commit() {
+        checkCompactorFailure();
+        if (groupCommitWindow <= 0) {
+            commitTransaction();
+            return;
+        }
+
+        final long batch;
+        final boolean leader;
+        synchronized (groupCommitLock) {
+            batch = groupCommitOpenBatch;
+            leader = !groupCommitLeaderActive;
+            if (leader)
+                groupCommitLeaderActive = true;
+        }
+
+        if (leader) {
+            //give other threads chance to join this batch
+            try {
+                Thread.sleep(groupCommitWindow);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            //close batch, commits arriving from now on will wait for next batch
+            synchronized (groupCommitLock) {
+                groupCommitOpenBatch++;
+                groupCommitLeaderActive = false;
+            }
+
+            try {
+                commitTransaction();
+            } catch (RuntimeException e) {
+                groupCommitFinished(batch, e);
+                throw e;
+            } catch (Error e) {
+                groupCommitFinished(batch, e);
+                throw e;
+            }
+            groupCommitFinished(batch, null);
+        } else {
+            //wait until some leader commits batch we belong to
+            synchronized (groupCommitLock) {
+                while (groupCommitDoneBatch < batch) {
+                    try {
+                        groupCommitLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOError(e);
+                    }
+                }
+                if (groupCommitFailedBatch == batch)
+                    throw new IOError(groupCommitFailure);
+            }
+        }
+    }
+
+    /**
+     * Takes write lock for rollback once all commits which were already requested are finished.
+     * Rollback must not discard changes of threads waiting in group commit batch,
+     * their commit call would return as if changes were persisted.
+     * <p/>
+     * Leader of batch needs write lock to commit, so it must not be held while waiting.
+     * Subclasses must call this method instead of taking write lock in rollback.
+     */
+    void lockForRollback() {
+        if (((ReentrantReadWriteLock) lock).isWriteLockedByCurrentThread()) {
+            //caller already waited, batch opened since then waits for this rollback
+            lock.writeLock().lock();
+            return;
+        }
+        while (true) {
+            awaitGroupCommit();
+            lock.writeLock().lock();
+            if (!isGroupCommitPending())
+                return;
+            //new batch was opened before lock was taken
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void awaitGroupCommit() {
+        synchronized (groupCommitLock) {
+            while (isGroupCommitPending()) {
+                try {
+                    groupCommitLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOError(e);
+                }
+            }
+        }
+    }
+
+    private boolean isGroupCommitPending() {
+        synchronized (groupCommitLock) {
+            //open batch has members if leader is waiting, closed batches may not be committed yet
+            return groupCommitWindow > 0
+                    && (groupCommitLeaderActive || groupCommitDoneBatch < groupCommitOpenBatch - 1);
+        }
+    }
+
+    private void groupCommitFinished(long batch, Throwable failure) {
+        synchronized (groupCommitLock) {
+            //batches may finish out of order, later batch also contains all changes from earlier batch
+            groupCommitDoneBatch = Math.max(groupCommitDoneBatch, batch);
+            if (failure != null) {
+                groupCommitFailedBatch = batch;
+                groupCommitFailure = failure;
+            }
+            groupCommitLock.notifyAll();
+        }
+    }
+
+    /**
+     * Enables group commit. Commits arriving within given time window are merged into single commit.
+     *
+     * @param windowMillis how long leading commit waits for others to join, zero disables group commit
+     */
+    void setGroupCommitWindow(long windowMillis) {
+        if (windowMillis < 0) throw new IllegalArgumentException("negative window");
+        this.groupCommitWindow = windowMillis;
+    }
+
+    /**
+     * Enables background checkpointer, committed transactions are applied to data file by background thread
+     * once transaction log grows over threshold.
+     *
+     * @param threshold log size in bytes, zero disables checkpointer
+     */
+    void setCheckpointThreshold(long threshold) throws IOException {
+        try {
+            lock.writeLock().lock();
+            if (threshold < 0) throw new IllegalArgumentException("negative threshold");
+            this.checkpointThreshold = threshold;
+            if (_file.txnMgr != null)
+                _file.txnMgr.setCheckpointThreshold(threshold);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets size of chunks in which mapped files are extended. Has no effect on other storage types.
+     *
+     * @param chunkSize chunk size in bytes, zero means chunk size is derived from file size
+     */
+    void setPreallocationChunkSize(long chunkSize) {
+        try {
+            lock.writeLock().lock();
+            if (_file.storage instanceof StorageDiskMapped)
+                ((StorageDiskMapped) _file.storage).setPreallocationChunkSize(chunkSize);
+            this.preallocationChunkSize = chunkSize;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Enables read-ahead on sequential page reads. Has effect only on storage which uses RandomAccessFile.
+     *
+     * @param pages number of pages read ahead, zero disables read-ahead
+     */
+    void setReadAhead(int pages) {
+        try {
+            lock.writeLock().lock();
+            if (_file.storage instanceof StorageDisk)
+                ((StorageDisk) _file.storage).setReadAhead(pages);
+            this.readAhead = pages;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Enables cache of clean pages between page file and storage.
+     *
+     * @param bytes cache size in bytes, zero disables cache
+     */
+    void setPageCacheSize(long bytes) {
+        try {
+            lock.writeLock().lock();
+            if (bytes < 0) throw new IllegalArgumentException("negative cache size");
+            _file.setPageCacheSize(bytes);
+            this.pageCacheSize = bytes;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Enables automatic shrink, file is shrinked on commit once free pages at its end take given size.
+     *
+     * @param bytes size of free pages at end of file, zero disables auto shrink
+     */
+    void setAutoShrinkThreshold(long bytes) {
+        try {
+            lock.writeLock().lock();
+            if (bytes < 0) throw new IllegalArgumentException("negative threshold");
+            this.autoShrinkThreshold = bytes;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        return _pageman.getFileHeader().fileHeaderGetRoot(id);
+    /**
+     * Starts background compaction. Thread moves given number of records in each step and waits between steps,
+     * so it does not block other threads for long.
+     *
+     * @param recordsPerStep maximal number of records moved by single step
+     * @param pauseMillis pause between steps
+     */
+    void setBackgroundCompaction(final int recordsPerStep, long pauseMillis) {
+        try {
+            lock.writeLock().lock();
+            if (recordsPerStep <= 0) throw new IllegalArgumentException("records per step must be positive");
+            if (pauseMillis <= 0) throw new IllegalArgumentException("pause must be positive");
+            if (compactor != null)
+                compactor.shutdown();
+            compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "JDBM compactor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    compactInBackground(recordsPerStep);
+                }
+            }, pauseMillis, pauseMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
+    /**
+     * @return size of storage page in bytes, as stored in file header
+     */
+    int getPageSize() {
+        return _file.pageSize;
+    }
 
-    public synchronized void setRoot(final byte id, final long rowid){
-        checkNotClosed();
-        checkCanWrite();
+    /**
+     * Actually writes transaction into log and syncs it.
+     * It is called by thread holding DB lock, so it must not wait for group commit.
+     */
+    void commitTransaction() {
+        try {
+            lock.writeLock().lock();
+            try {
+                commitInProgress = true;
+                checkNotClosed();
+                checkCanWrite();
+                commitPages();
+                commitCount++;
+
+                if (autoShrinkThreshold > 0) {
+                    final long pages = Math.max(1, autoShrinkThreshold >>> _file.pageSizeShift);
+                    if (_physMgr.getTrailingFreePages(pages) >= pages)
+                        truncateFreePages();
+                }
 
-        _pageman.getFileHeader().fileHeaderSetRoot(id, rowid);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }finally {
+                commitInProgress= false;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
+    private void commitPages() throws IOException {
+        /** flush free phys rows into pages*/
+        _physMgr.commit();
+        _logicMgr.commit();
+
+        /**commit pages */
+        _pageman.commit();
+    }
 
+    /**
+     * Cuts free pages and data pages without live records at end of file off the storage.
+     * Pages of free lists are moved away from end of file.
+     * Caller holds write lock and transaction is committed.
+     *
+     * @return number of released bytes
+     */
+    private long truncateFreePages() throws IOException {
+        final long end = _pageman.getLast(Magic.FREE_PAGE);
+        if (_physMgr.getTrailingFreePages(1) == 0)
+            return 0;
+        //free lists are kept in memory until commit, which writes them into pages before new end of file
+        _logicMgr.detachFreeList();
+        _physMgr.releaseTrailingPages();
+        final long removed = _pageman.removeTrailingFreePages();
+        commitPages();
+        if (removed == 0)
+            return 0;
+        final long newEnd = _pageman.getLast(Magic.FREE_PAGE);
+        _file.truncate(newEnd);
+        return Math.max(0, end - newEnd) << _file.pageSizeShift;
+    }
 
-    public synchronized void commit() {
+    public long shrink() {
         try {
-            commitInProgress = true;
+            lock.writeLock().lock();
             checkNotClosed();
             checkCanWrite();
-            /** flush free phys rows into pages*/
-            _physMgr.commit();
-            _logicMgr.commit();
+            commitTransaction();
+            try {
+                return truncateFreePages();
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-            /**commit pages */
-            _pageman.commit();
+    public int compact(int maxRecords) {
+        if (maxRecords <= 0) throw new IllegalArgumentException("maxRecords must be positive");
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
+            checkCanWrite();
+            checkCompactorFailure();
+            commitTransaction();
+            try {
+                return compactRecords(maxRecords);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
+    /**
+     * Moves live records from end of file into free records before them and cuts off pages released this way.
+     * Records keep their logical recids, only translation is updated.
+     * Single step reads only limited number of free list and translation pages, see {@link #findLogicalIds(long[], long[], int)}.
+     * Caller holds write lock and transaction is committed.
+     *
+     * @return number of moved records
+     */
+    private int compactRecords(int maxRecords) throws IOException {
+        final long start = _physMgr.getCompactionStart(maxRecords);
+        final long[] physIds = _physMgr.getRecordsToMove(start);
+        int moved = 0;
+        if (physIds.length > 0 && _physMgr.takeFreeRecords(start, physIds, maxRecords) > 0) {
+            final long[] logicalIds = new long[physIds.length];
+            findLogicalIds(physIds, logicalIds, maxRecords);
+            final DataInputOutput buf = new DataInputOutput();
+            for (int i = 0; i < physIds.length; i++) {
+                if (logicalIds[i] == 0)
+                    continue;
+                final long physLoc = _physMgr.relocate(physIds[i], start, buf);
+                if (physLoc != 0) {
+                    _logicMgr.update(logicalIds[i], physLoc);
+                    moved++;
+                }
+            }
+        }
+        commitPages();
+        truncateFreePages();
+        return moved;
+    }
 
-        } catch (IOException e) {
-            throw new IOError(e);
-        }finally {
-            commitInProgress= false;
+    /**
+     * Finds logical recids of physical records. Physical record does not know its logical recid,
+     * so translation pages are scanned. Scan continues on page where previous compaction step stopped
+     * and once some record is found, it stops after given number of pages. Records which were not found
+     * are moved by following steps.
+     *
+     * @param physIds sorted physical rowids
+     * @param logicalIds found logical recids are stored here, zero if record was not found
+     * @param maxPages number of scanned pages after which scan stops if some record was found
+     * @return number of found records
+     */
+    private int findLogicalIds(long[] physIds, long[] logicalIds, int maxPages) throws IOException {
+        final long first = _pageman.getFirst(Magic.TRANSLATION_PAGE);
+        if (first == 0)
+            return 0;
+        long pageid = compactorCursor;
+        if (pageid == 0 || pageid >= _pageman.getLast(Magic.FREE_PAGE)
+                || _file.read(pageid).pageHeaderGetMagic() != Magic.PAGE_MAGIC + Magic.TRANSLATION_PAGE)
+            pageid = first;
+        final long startPage = pageid;
+        int found = 0;
+        int pages = 0;
+        do {
+            final PageIo io = _file.read(pageid);
+            for (int i = 0; i < _logicMgr.elemsPerPage; i++) {
+                final int pos = Magic.PAGE_HEADER_SIZE + i * Magic.PhysicalRowId_SIZE;
+                final long physLoc = io.pageHeaderGetLocation(pos);
+                //preallocated records have negative location
+                if (physLoc <= 0)
+                    continue;
+                final int index = Arrays.binarySearch(physIds, physLoc);
+                if (index >= 0) {
+                    logicalIds[index] = ((-pageid) << _file.pageSizeShift) + (long) pos;
+                    found++;
+                }
+            }
+            pages++;
+            pageid = _pageman.getNext(pageid);
+            if (pageid == 0)
+                pageid = first;
+        } while (pageid != startPage && found < physIds.length && (found == 0 || pages < maxPages));
+        compactorCursor = pageid;
+        return found;
+    }
+
+    /**
+     * Single step of background compaction. It must not commit changes made by other threads,
+     * so step is skipped while transaction has uncommitted changes.
+     * <p/>
+     * Exception thrown from step would cancel scheduled task, so it is caught and rethrown
+     * by next {@link #commit()} or {@link #compact(int)}.
+     * Changes made by failed step are rolled back and step is retried after next commit.
+     */
+    private void compactInBackground(int maxRecords) {
+        try {
+            lock.writeLock().lock();
+            if (isClosed() || hasUncommittedChanges() || compactorIdleCommitCount == commitCount)
+                return;
+            if (compactRecords(maxRecords) == 0)
+                compactorIdleCommitCount = commitCount;
+        } catch (Throwable e) {
+            compactorIdleCommitCount = commitCount;
+            if (!isClosed() && !transactionsDisabled) {
+                try {
+                    _physMgr.rollback();
+                    _logicMgr.rollback();
+                    _pageman.rollback();
+                } catch (Throwable e2) {
+                    //store may be inconsistent now, so failed rollback is reported instead
+                    e = e2;
+                }
+            }
+            compactorFailure.set(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Throws error of failed background compaction step, if there is one. Each error is thrown only once.
+     */
+    private void checkCompactorFailure() {
+        final Throwable failure = compactorFailure.getAndSet(null);
+        if (failure != null)
+            throw new IOError(failure);
+    }
+
+    /**
+     * @return true if current transaction contains changes which were not committed yet
+     */
+    boolean hasUncommittedChanges() {
+        return _file.getDirtyPageCount() > 0;
+    }
+
+    public Future<Void> commitAsync() {
+        try {
+            lock.writeLock().lock();
+            try {
+                commitInProgress = true;
+                checkNotClosed();
+                checkCanWrite();
+                /** flush free phys rows into pages*/
+                _physMgr.commit();
+                _logicMgr.commit();
+
+                /**commit pages, log is written in background */
+                commitCount++;
+                return _pageman.commitAsync();
+
+            } catch (IOException e) {
+                throw new IOError(e);
+            }finally {
+                commitInProgress= false;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public void rollback() {
+        lockForRollback();
+        try {
+            if (transactionsDisabled)
+                throw new IllegalAccessError("Transactions are disabled, can not rollback");
+
+            try {
+                checkNotClosed();
+                _physMgr.rollback();
+                _logicMgr.rollback();
+                _pageman.rollback();
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
+    public DB snapshot() {
+        try {
+            lock.writeLock().lock();
+            checkNotClosed();
+            try {
+                return new DBSnapshot(_file.snapshot(), _file.pageSizeShift);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-    public synchronized void rollback() {
-        if (transactionsDisabled)
-            throw new IllegalAccessError("Transactions are disabled, can not rollback");
+    /**
+     * Returns page content in the form it is stored on disk
+     */
+    private byte[] encryptPage(long pageId, ByteBuffer data) {
+        if (cipher != null)
+            return cipher.encryptToBuffer(pageId, data);
+        if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.limit())
+            return data.array();
+        byte[] b = new byte[data.limit()];
+        data.rewind();
+        data.get(b, 0, b.length);
+        return b;
+    }
 
+    public void copyToArchive(String archiveFile) {
         try {
+            lock.writeLock().lock();
             checkNotClosed();
-            _physMgr.rollback();
-            _logicMgr.rollback();
-            _pageman.rollback();
+
+            //archive needs pages sorted, list of free pages is not copied
+            LongHashMap<Long> ids = new LongHashMap<Long>();
+            for (short type : new short[]{Magic.TRANSLATION_PAGE, Magic.FREELOGIDS_PAGE, Magic.USED_PAGE,
+                    Magic.FREEPHYSIDS_PAGE, Magic.FREEPHYSIDS_ROOT_PAGE}) {
+                for (long pageid = _pageman.getFirst(type); pageid != 0; pageid = _pageman.getNext(pageid))
+                    ids.put(pageid, pageid);
+            }
+            long[] pageIds = new long[ids.size()];
+            int c = 0;
+            for (Iterator<Long> i = ids.valuesIterator(); i.hasNext(); )
+                pageIds[c++] = i.next();
+            Arrays.sort(pageIds);
+
+            StorageArchive.Writer w = new StorageArchive.Writer(archiveFile, _file.pageSizeShift);
+            boolean headerWritten = false;
+            for (long pageid : pageIds) {
+                if (!headerWritten && pageid > 0) {
+                    w.add(0, encryptPage(0, _pageman.getHeaderBufData()));
+                    headerWritten = true;
+                }
+                PageIo page = _file.get(pageid);
+                w.add(pageid, encryptPage(pageid, page.getData()));
+                _file.release(page);
+            }
+            if (!headerWritten)
+                w.add(0, encryptPage(0, _pageman.getHeaderBufData()));
+            w.close();
         } catch (IOException e) {
             throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
         }
-
     }
 
     public void copyToZip(String zipFile) {
@@ -478,7 +1249,7 @@ class DBStore
             {
                 String file = zip2 +  0;
                 z.putNextEntry(new ZipEntry(file));
-                z.write(Utils.encrypt(cipherIn, _pageman.getHeaderBufData()));
+                z.write(encryptPage(0, _pageman.getHeaderBufData()));
                 z.closeEntry();
             }
 
@@ -490,7 +1261,7 @@ class DBStore
                 PageIo page = _file.get(pageid);
                 String file = zip2 +  pageid;
                 z.putNextEntry(new ZipEntry(file));
-                z.write(Utils.encrypt(cipherIn, page.getData()));
+                z.write(encryptPage(pageid, page.getData()));
                 z.closeEntry();
                 _file.release(page);
             }
@@ -501,7 +1272,7 @@ class DBStore
                 PageIo page = _file.get(pageid);
                 String file = zip2 + pageid;
                 z.putNextEntry(new ZipEntry(file));
-                z.write(Utils.encrypt(cipherIn, page.getData()));
+                z.write(encryptPage(pageid, page.getData()));
                 z.closeEntry();
                 _file.release(page);
             }
@@ -513,7 +1284,7 @@ class DBStore
                 PageIo page = _file.get(pageid);
                 String file = zip2 + pageid;
                 z.putNextEntry(new ZipEntry(file));
-                z.write(Utils.encrypt(cipherIn, page.getData()));
+                z.write(encryptPage(pageid, page.getData()));
                 z.closeEntry();
                 _file.release(page);
             }
@@ -524,7 +1295,7 @@ class DBStore
                 PageIo page = _file.get(pageid);
                 String file = zip2 + pageid;
                 z.putNextEntry(new ZipEntry(file));
-                z.write(Utils.encrypt(cipherIn, page.getData()));
+                z.write(encryptPage(pageid, page.getData()));
                 z.closeEntry();
                 _file.release(page);
             }
@@ -535,7 +1306,7 @@ class DBStore
                 PageIo page = _file.get(pageid);
                 String file = zip2 + pageid;
                 z.putNextEntry(new ZipEntry(file));
-                z.write(Utils.encrypt(cipherIn, page.getData()));
+                z.write(encryptPage(pageid, page.getData()));
                 z.closeEntry();
                 _file.release(page);
             }
@@ -550,7 +1321,7 @@ class DBStore
 
 
 
-    public synchronized void clearCache() {
+    public void clearCache() {
         //no cache
     }
 
@@ -570,270 +1341,352 @@ class DBStore
 
     }
 
-    public synchronized String calculateStatistics() {
-        checkNotClosed();
-
+    public String calculateStatistics() {
         try {
+            lock.writeLock().lock();
+            checkNotClosed();
 
-            final StringBuilder b = new StringBuilder();
+            try {
+
+                final StringBuilder b = new StringBuilder();
+
+                //count pages
+                {
+
+                    b.append("PAGES:\n");
+                    long total = 0;
+                    long pages = statisticsCountPages(Magic.USED_PAGE);
+                    total += pages;
+                    b.append("  " + pages + " used pages with size " + Utils.formatSpaceUsage(pages * _file.pageSize) + "\n");
+                    pages = statisticsCountPages(Magic.TRANSLATION_PAGE);
+                    total += pages;
+                    b.append("  " + pages + " record translation pages with size " + Utils.formatSpaceUsage(pages * _file.pageSize) + "\n");
+                    pages = statisticsCountPages(Magic.FREE_PAGE);
+                    total += pages;
+                    b.append("  " + pages + " free (unused) pages with size " + Utils.formatSpaceUsage(pages * _file.pageSize) + "\n");
+                    pages = statisticsCountPages(Magic.FREEPHYSIDS_PAGE);
+                    total += pages;
+                    b.append("  " + pages + " free (phys) pages with size " + Utils.formatSpaceUsage(pages * _file.pageSize) + "\n");
+                    pages = statisticsCountPages(Magic.FREELOGIDS_PAGE);
+                    total += pages;
+                    b.append("  " + pages + " free (logical) pages with size " + Utils.formatSpaceUsage(pages * _file.pageSize) + "\n");
+                    b.append("  Total number of pages is " + total + " with size " + Utils.formatSpaceUsage(total * _file.pageSize) + "\n");
 
-            //count pages
-            {
+                }
+                {
+                    b.append("RECORDS:\n");
+
+                    long recordCount = 0;
+                    long freeRecordCount = 0;
+                    long maximalRecordSize = 0;
+                    long maximalAvailSizeDiff = 0;
+                    long totalRecordSize = 0;
+                    long totalAvailDiff = 0;
+
+                    //count records
+                    for (long pageid = _pageman.getFirst(Magic.TRANSLATION_PAGE);
+                         pageid != 0;
+                         pageid = _pageman.getNext(pageid)
+                            ) {
+                        PageIo io = _file.get(pageid);
+
+                        for (int i = 0; i < _logicMgr.elemsPerPage; i += 1) {
+                            final int pos = Magic.PAGE_HEADER_SIZE + i * Magic.PhysicalRowId_SIZE;
+                            final long physLoc = io.pageHeaderGetLocation(pos);
+
+                            if (physLoc == 0) {
+                                freeRecordCount++;
+                                continue;
+                            }
+
+                            if(physLoc == PREALOCATE_PHYS_RECID){
+                                continue;
+                            }
+
+                            recordCount++;
+
+                            //get size
+                            PageIo page = _file.get(physLoc>>> _file.pageSizeShift);
+                            final int physOffset =(int) (physLoc & _file.offsetMask);
+                            int availSize = RecordHeader.getAvailableSize(page, physOffset);
+                            int currentSize = RecordHeader.getCurrentSize(page, physOffset);
+                            _file.release(page);
+
+                            maximalAvailSizeDiff = Math.max(maximalAvailSizeDiff, availSize - currentSize);
+                            maximalRecordSize = Math.max(maximalRecordSize, currentSize);
+                            totalAvailDiff += availSize - currentSize;
+                            totalRecordSize += currentSize;
 
-                b.append("PAGES:\n");
-                long total = 0;
-                long pages = statisticsCountPages(Magic.USED_PAGE);
-                total += pages;
-                b.append("  " + pages + " used pages with size " + Utils.formatSpaceUsage(pages * Storage.PAGE_SIZE) + "\n");
-                pages = statisticsCountPages(Magic.TRANSLATION_PAGE);
-                total += pages;
-                b.append("  " + pages + " record translation pages with size " + Utils.formatSpaceUsage(pages * Storage.PAGE_SIZE) + "\n");
-                pages = statisticsCountPages(Magic.FREE_PAGE);
-                total += pages;
-                b.append("  " + pages + " free (unused) pages with size " + Utils.formatSpaceUsage(pages * Storage.PAGE_SIZE) + "\n");
-                pages = statisticsCountPages(Magic.FREEPHYSIDS_PAGE);
-                total += pages;
-                b.append("  " + pages + " free (phys) pages with size " + Utils.formatSpaceUsage(pages * Storage.PAGE_SIZE) + "\n");
-                pages = statisticsCountPages(Magic.FREELOGIDS_PAGE);
-                total += pages;
-                b.append("  " + pages + " free (logical) pages with size " + Utils.formatSpaceUsage(pages * Storage.PAGE_SIZE) + "\n");
-                b.append("  Total number of pages is " + total + " with size " + Utils.formatSpaceUsage(total * Storage.PAGE_SIZE) + "\n");
+                        }
+                        _file.release(io);
+                    }
+
+                    b.append("  Contains " + recordCount + " records and " + freeRecordCount + " free slots.\n");
+                    b.append("  Total space occupied by data is " + Utils.formatSpaceUsage(totalRecordSize) + "\n");
+                    b.append("  Average data size in record is " + Utils.formatSpaceUsage(Math.round(1D * totalRecordSize / recordCount)) + "\n");
+                    b.append("  Maximal data size in record is " + Utils.formatSpaceUsage(maximalRecordSize) + "\n");
+                    b.append("  Space wasted in record fragmentation is " + Utils.formatSpaceUsage(totalAvailDiff) + "\n");
+                    b.append("  Maximal space wasted in single record fragmentation is " + Utils.formatSpaceUsage(maximalAvailSizeDiff) + "\n");
+                }
+                final PageCache cache = _file.getPageCache();
+                if (cache != null) {
+                    b.append("PAGE CACHE:\n");
+                    b.append("  Contains " + cache.size() + " of " + cache.getCapacity() + " pages with size " + Utils.formatSpaceUsage(cache.size() * (long) _file.pageSize) + "\n");
+                    b.append("  " + cache.getHits() + " hits, " + cache.getMisses() + " misses, " + cache.getEvictions() + " evictions\n");
+                    b.append("  Hit rate is " + Math.round(cache.getHitRate() * 100) + "%\n");
+                }
 
+                return b.toString();
+            } catch (IOException e) {
+                throw new IOError(e);
             }
-            {
-                b.append("RECORDS:\n");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void defrag(boolean sortCollections) {
+        try {
+            lock.writeLock().lock();
+            try {
+                checkNotClosed();
+                checkCanWrite();
+                commitTransaction();
+                final String filename2 = _filename + "_defrag" + System.currentTimeMillis();
+                final String filename1 = _filename;
+                //new store has segments in the same directories
+                final SegmentLayout layout = SegmentLayout.load(filename1);
+                layout.save(filename2);
+                DBStore db2 = new DBStore(filename2, false, true, cipher, false,false,false, _file.pageSizeShift,
+                        _file.storage instanceof StorageCompressed);
+
+                //recreate logical file with original page layout
+                {
+                    //find minimal logical pageid (logical pageids are negative)
+                    LongHashMap<String> logicalPages = new LongHashMap<String>();
+                    long minpageid = 0;
+                    for (long pageid = _pageman.getFirst(Magic.TRANSLATION_PAGE);
+                         pageid != 0;
+                         pageid = _pageman.getNext(pageid)
+                            ) {
+                        minpageid = Math.min(minpageid, pageid);
+                        logicalPages.put(pageid, Utils.EMPTY_STRING);
+                    }
+
+                    //fill second db with logical pages
+                    long pageCounter = 0;
+                    for (
+                            long pageid = db2._pageman.allocate(Magic.TRANSLATION_PAGE);
+                            pageid >= minpageid;
+                            pageid = db2._pageman.allocate(Magic.TRANSLATION_PAGE)
+                            ) {
+                        pageCounter++;
+                        if (pageCounter % 1000 == 0)
+                            db2.commit();
+                    }
+
+                    logicalPages = null;
+                }
+
+
+                //reinsert collections so physical records are located near each other
+                //iterate over named object recids, it is sorted with TreeSet
+                if(sortCollections){
+                    long nameRecid = getRoot(NAME_DIRECTORY_ROOT);
+                    Collection<Long> recids = new TreeSet<Long>();
+                    if(nameRecid!=0){
+                        HTree<String,Long> m = fetch(nameRecid);
+                        recids.addAll(m.values());
+                    }
+
+                    //headers are copied here, subtrees are read in parallel by worker threads,
+                    //but their records are written by this thread, collection by collection
+                    final Serializer serializer = defaultSerializer();
+                    final ExecutorService executor = Executors.newFixedThreadPool(
+                            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "JDBM defrag");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                    //workers can not take read lock while it is held by this thread
+                    defragSerializer = serializer;
+                    try {
+                        for (Long namedRecid : recids) {
+                            Object obj = fetch(namedRecid);
+                            List<DefragSink.Task> tasks = null;
+                            if (obj instanceof LinkedList) {
+                                tasks = LinkedList2.defrag(namedRecid, this, db2, serializer);
+                            } else if (obj instanceof HTree) {
+                                tasks = HTree.defrag(namedRecid, this, db2, serializer);
+                            } else if (obj instanceof BTree) {
+                                tasks = BTree.defrag(namedRecid, this, db2, serializer);
+                            }
+                            if (tasks != null)
+                                defragTasks(tasks, executor, db2);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new IOError(e);
+                    } catch (ExecutionException e) {
+                        throw new IOError(e.getCause());
+                    } finally {
+                        defragSerializer = null;
+                        executor.shutdownNow();
+                    }
+                }
 
-                long recordCount = 0;
-                long freeRecordCount = 0;
-                long maximalRecordSize = 0;
-                long maximalAvailSizeDiff = 0;
-                long totalRecordSize = 0;
-                long totalAvailDiff = 0;
 
-                //count records
                 for (long pageid = _pageman.getFirst(Magic.TRANSLATION_PAGE);
                      pageid != 0;
                      pageid = _pageman.getNext(pageid)
                         ) {
                     PageIo io = _file.get(pageid);
 
-                    for (int i = 0; i < _logicMgr.ELEMS_PER_PAGE; i += 1) {
+                    for (int i = 0; i < _logicMgr.elemsPerPage; i += 1) {
                         final int pos = Magic.PAGE_HEADER_SIZE + i * Magic.PhysicalRowId_SIZE;
-                        final long physLoc = io.pageHeaderGetLocation((short) pos);
 
-                        if (physLoc == 0) {
-                            freeRecordCount++;
-                            continue;
-                        }
+                        //write to new file
+                        final long logicalRowId =  ((-pageid) << _file.pageSizeShift) + (long) pos;
 
-                        if(physLoc == PREALOCATE_PHYS_RECID){
+                        //read from logical location in second db,
+                        //check if record was already inserted as part of collections
+                        if (db2._pageman.getLast(Magic.TRANSLATION_PAGE) <= pageid &&
+                                db2._logicMgr.fetch(logicalRowId) != 0) {
+                            //yes, this record already exists in second db
                             continue;
                         }
 
-                        recordCount++;
+                        //get physical location in this db
+                        final long physRowId =  io.pageHeaderGetLocation(pos);
 
-                        //get size
-                        PageIo page = _file.get(physLoc>>> Storage.PAGE_SIZE_SHIFT);
-                        final short physOffset =(short) (physLoc & Storage.OFFSET_MASK);
-                        int availSize = RecordHeader.getAvailableSize(page, physOffset);
-                        int currentSize = RecordHeader.getCurrentSize(page, physOffset);
-                        _file.release(page);
+                        if (physRowId == 0)
+                            continue;
 
-                        maximalAvailSizeDiff = Math.max(maximalAvailSizeDiff, availSize - currentSize);
-                        maximalRecordSize = Math.max(maximalRecordSize, currentSize);
-                        totalAvailDiff += availSize - currentSize;
-                        totalRecordSize += currentSize;
 
-                    }
-                    _file.release(io);
-                }
+                        if (physRowId == PREALOCATE_PHYS_RECID){
+                            db2._logicMgr.forceInsert(logicalRowId, physRowId);
+                            continue;
+                        }
 
-                b.append("  Contains " + recordCount + " records and " + freeRecordCount + " free slots.\n");
-                b.append("  Total space occupied by data is " + Utils.formatSpaceUsage(totalRecordSize) + "\n");
-                b.append("  Average data size in record is " + Utils.formatSpaceUsage(Math.round(1D * totalRecordSize / recordCount)) + "\n");
-                b.append("  Maximal data size in record is " + Utils.formatSpaceUsage(maximalRecordSize) + "\n");
-                b.append("  Space wasted in record fragmentation is " + Utils.formatSpaceUsage(totalAvailDiff) + "\n");
-                b.append("  Maximal space wasted in single record fragmentation is " + Utils.formatSpaceUsage(maximalAvailSizeDiff) + "\n");
-            }
 
-            return b.toString();
-        } catch (IOException e) {
-            throw new IOError(e);
-        }
-    }
 
-    public synchronized void defrag(boolean sortCollections) {
+                        //read from physical location at this db
+                        DataInputOutput b = new DataInputOutput();
+                        _physMgr.fetch(b, physRowId);
+                        byte[] bb = b.toByteArray();
 
-        try {
-            checkNotClosed();
-            checkCanWrite();
-            commit();
-            final String filename2 = _filename + "_defrag" + System.currentTimeMillis();
-            final String filename1 = _filename;
-            DBStore db2 = new DBStore(filename2, false, true, cipherIn, cipherOut, false,false,false);
+                        //force insert into other file, without decompressing logical id to external form
+                        long physLoc = db2._physMgr.insert(bb, 0, bb.length);
+                        db2._logicMgr.forceInsert(logicalRowId, physLoc);
 
-            //recreate logical file with original page layout
-            {
-                //find minimal logical pageid (logical pageids are negative)
-                LongHashMap<String> logicalPages = new LongHashMap<String>();
-                long minpageid = 0;
-                for (long pageid = _pageman.getFirst(Magic.TRANSLATION_PAGE);
-                     pageid != 0;
-                     pageid = _pageman.getNext(pageid)
-                        ) {
-                    minpageid = Math.min(minpageid, pageid);
-                    logicalPages.put(pageid, Utils.EMPTY_STRING);
+                    }
+                    _file.release(io);
+                    db2.commit();
                 }
-
-                //fill second db with logical pages
-                long pageCounter = 0;
-                for (
-                        long pageid = db2._pageman.allocate(Magic.TRANSLATION_PAGE);
-                        pageid >= minpageid;
-                        pageid = db2._pageman.allocate(Magic.TRANSLATION_PAGE)
-                        ) {
-                    pageCounter++;
-                    if (pageCounter % 1000 == 0)
-                        db2.commit();
+                for(byte b = 0;b<Magic.FILE_HEADER_NROOTS;b++){
+                    db2.setRoot(b, getRoot(b));
                 }
 
-                logicalPages = null;
-            }
-
-
-            //reinsert collections so physical records are located near each other
-            //iterate over named object recids, it is sorted with TreeSet
-            if(sortCollections){
-                long nameRecid = getRoot(NAME_DIRECTORY_ROOT);
-                Collection<Long> recids = new TreeSet<Long>();
-                if(nameRecid!=0){
-                    HTree<String,Long> m = fetch(nameRecid);
-                    recids.addAll(m.values());
-                }
-
-                for (Long namedRecid : recids) {
-                    Object obj = fetch(namedRecid);
-                    if (obj instanceof LinkedList) {
-                        LinkedList2.defrag(namedRecid, this, db2);
-                    } else if (obj instanceof HTree) {
-                        HTree.defrag(namedRecid, this, db2);
-                    } else if (obj instanceof BTree) {
-                        BTree.defrag(namedRecid, this, db2);
+                db2.close();
+                _pageman.close();
+                _file.close();
+
+
+                List<File> filesToDelete = new ArrayList<File>();
+                //now rename old files
+                String[] exts = {StorageDiskMapped.IDR, StorageDiskMapped.DBR};
+                for (String ext : exts) {
+                    String f1 = filename1 + ext;
+                    String f2 = filename2 + "_OLD" + ext;
+                    long sign = ext.equals(StorageDiskMapped.DBR) ? 1 : -1;
+
+                    //first rename transaction log
+                    File f1t = new File(f1 + StorageDisk.transaction_log_file_extension);
+                    File f2t = new File(f2 + StorageDisk.transaction_log_file_extension);
+                    f1t.renameTo(f2t);
+                    filesToDelete.add(f2t);
+
+                    //rename data files, iterate until file exist
+                    for (int i = 0; ; i++) {
+                        File f1d = new File(layout.segmentFile(filename1, sign, i));
+                        if (!f1d.exists()) break;
+                        File f2d = new File(layout.segmentFile(filename2 + "_OLD", sign, i));
+                        f1d.renameTo(f2d);
+                        filesToDelete.add(f2d);
                     }
                 }
-            }
 
-
-            for (long pageid = _pageman.getFirst(Magic.TRANSLATION_PAGE);
-                 pageid != 0;
-                 pageid = _pageman.getNext(pageid)
-                    ) {
-                PageIo io = _file.get(pageid);
-
-                for (int i = 0; i < _logicMgr.ELEMS_PER_PAGE; i += 1) {
-                    final int pos = Magic.PAGE_HEADER_SIZE + i * Magic.PhysicalRowId_SIZE;
-                    if (pos > Short.MAX_VALUE)
-                        throw new Error();
-
-                    //write to new file
-                    final long logicalRowId =  ((-pageid) << Storage.PAGE_SIZE_SHIFT) + (long) pos;
-
-                    //read from logical location in second db,
-                    //check if record was already inserted as part of collections
-                    if (db2._pageman.getLast(Magic.TRANSLATION_PAGE) <= pageid &&
-                            db2._logicMgr.fetch(logicalRowId) != 0) {
-                        //yes, this record already exists in second db
-                        continue;
+                //rename new files
+                for (String ext : exts) {
+                    String f1 = filename2 + ext;
+                    String f2 = filename1 + ext;
+                    long sign = ext.equals(StorageDiskMapped.DBR) ? 1 : -1;
+
+                    //first rename transaction log
+                    File f1t = new File(f1 + StorageDisk.transaction_log_file_extension);
+                    File f2t = new File(f2 + StorageDisk.transaction_log_file_extension);
+                    f1t.renameTo(f2t);
+
+                    //rename data files, iterate until file exist
+                    for (int i = 0; ; i++) {
+                        File f1d = new File(layout.segmentFile(filename2, sign, i));
+                        if (!f1d.exists()) break;
+                        File f2d = new File(layout.segmentFile(filename1, sign, i));
+                        f1d.renameTo(f2d);
                     }
-
-                    //get physical location in this db
-                    final long physRowId =  io.pageHeaderGetLocation((short) pos);
-
-                    if (physRowId == 0)
-                        continue;
-
-
-                    if (physRowId == PREALOCATE_PHYS_RECID){
-                        db2._logicMgr.forceInsert(logicalRowId, physRowId);
-                        continue;
-                    }
-
-
-
-                    //read from physical location at this db
-                    DataInputOutput b = new DataInputOutput();
-                    _physMgr.fetch(b, physRowId);
-                    byte[] bb = b.toByteArray();
-
-                    //force insert into other file, without decompressing logical id to external form
-                    long physLoc = db2._physMgr.insert(bb, 0, bb.length);
-                    db2._logicMgr.forceInsert(logicalRowId, physLoc);
-
                 }
-                _file.release(io);
-                db2.commit();
-            }
-            for(byte b = 0;b<Magic.FILE_HEADER_NROOTS;b++){
-                db2.setRoot(b, getRoot(b));
-            }
-
-            db2.close();
-            _pageman.close();
-            _file.close();
-
-
-            List<File> filesToDelete = new ArrayList<File>();
-            //now rename old files
-            String[] exts = {StorageDiskMapped.IDR, StorageDiskMapped.DBR};
-            for (String ext : exts) {
-                String f1 = filename1 + ext;
-                String f2 = filename2 + "_OLD" + ext;
-
-                //first rename transaction log
-                File f1t = new File(f1 + StorageDisk.transaction_log_file_extension);
-                File f2t = new File(f2 + StorageDisk.transaction_log_file_extension);
-                f1t.renameTo(f2t);
-                filesToDelete.add(f2t);
-
-                //rename data files, iterate until file exist
-                for (int i = 0; ; i++) {
-                    File f1d = new File(f1 + "." + i);
-                    if (!f1d.exists()) break;
-                    File f2d = new File(f2 + "." + i);
-                    f1d.renameTo(f2d);
-                    filesToDelete.add(f2d);
+                filesToDelete.add(new File(filename2 + SegmentLayout.LAYOUT_FILE_EXTENSION));
+
+                //page translation map of compressed store
+                File m1 = new File(filename1 + StorageCompressed.MAP_FILE_EXTENSION);
+                if (m1.exists()) {
+                    File m2 = new File(filename2 + "_OLD" + StorageCompressed.MAP_FILE_EXTENSION);
+                    m1.renameTo(m2);
+                    filesToDelete.add(m2);
+                    new File(filename2 + StorageCompressed.MAP_FILE_EXTENSION).renameTo(m1);
                 }
-            }
-
-            //rename new files
-            for (String ext : exts) {
-                String f1 = filename2 + ext;
-                String f2 = filename1 + ext;
-
-                //first rename transaction log
-                File f1t = new File(f1 + StorageDisk.transaction_log_file_extension);
-                File f2t = new File(f2 + StorageDisk.transaction_log_file_extension);
-                f1t.renameTo(f2t);
 
-                //rename data files, iterate until file exist
-                for (int i = 0; ; i++) {
-                    File f1d = new File(f1 + "." + i);
-                    if (!f1d.exists()) break;
-                    File f2d = new File(f2 + "." + i);
-                    f1d.renameTo(f2d);
+                for (File d : filesToDelete) {
+                    d.delete();
                 }
-            }
-
-            for (File d : filesToDelete) {
-                d.delete();
-            }
 
 
-            reopen();
-        } catch (IOException e) {
-            throw new IOError(e);
+                reopen();
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
+    /**
+     * Runs defrag tasks of single collection in parallel. Records are inserted into new store by calling thread
+     * in the same order as tasks were created, so collection is not interleaved with other collections.
+     */
+    private static void defragTasks(List<DefragSink.Task> tasks, ExecutorService executor, DBStore db2)
+            throws IOException, InterruptedException, ExecutionException {
+        final List<DefragSink> sinks = new ArrayList<DefragSink>();
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (final DefragSink.Task task : tasks) {
+            final DefragSink sink = new DefragSink();
+            sinks.add(sink);
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        task.copy(sink);
+                    } finally {
+                        sink.finish();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (int i = 0; i < sinks.size(); i++) {
+            sinks.get(i).writeTo(db2);
+            futures.get(i).get();
+        }
     }
 
     /**
@@ -844,18 +1697,32 @@ class DBStore
      * @throws IOException
      */
     void forceInsert(long logicalRowId, byte[] data) throws IOException {
-        logicalRowId = decompressRecid(logicalRowId);
+        try {
+            lock.writeLock().lock();
+            logicalRowId = decompressRecid(logicalRowId, _file.pageSizeShift);
 
-        if (needsAutoCommit()) {
-            commit();
-        }
+            if (needsAutoCommit()) {
+                commitTransaction();
+            }
 
-        long physLoc = _physMgr.insert(data, 0, data.length);
-        _logicMgr.forceInsert(logicalRowId, physLoc);
+            long physLoc = _physMgr.insert(data, 0, data.length);
+            _logicMgr.forceInsert(logicalRowId, physLoc);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
 
+    /**
+     * Returns physical location of record.
+     * Is used for unit tests
+     */
+    long fetchPhysicalLocation(long recid) throws IOException {
+        return _logicMgr.fetch(decompressRecid(recid, _file.pageSizeShift));
+    }
+
+
     /**
      * Returns number of records stored in database.
      * Is used for unit tests
@@ -866,13 +1733,11 @@ class DBStore
         long page = _pageman.getFirst(Magic.TRANSLATION_PAGE);
         while (page != 0) {
             PageIo io = _file.get(page);
-            for (int i = 0; i < _logicMgr.ELEMS_PER_PAGE; i += 1) {
+            for (int i = 0; i < _logicMgr.elemsPerPage; i += 1) {
                 int pos = Magic.PAGE_HEADER_SIZE + i * Magic.PhysicalRowId_SIZE;
-                if (pos > Short.MAX_VALUE)
-                    throw new Error();
 
                 //get physical location
-                long physRowId = io.pageHeaderGetLocation((short) pos);
+                long physRowId = io.pageHeaderGetLocation(pos);
 
                 if (physRowId != 0)
                     counter += 1;
@@ -884,40 +1749,43 @@ class DBStore
     }
 
 
-    private  static int COMPRESS_RECID_PAGE_SHIFT = Integer.MIN_VALUE;
+    /**
+     * Shift of page number in compressed recid, indexed by page size shift.
+     */
+    private static final int[] COMPRESS_RECID_PAGE_SHIFT = new int[Storage.MAX_PAGE_SIZE_SHIFT + 1];
     static{
-        int shift = 1;
-        while((1<<shift) <LogicalRowIdManager.ELEMS_PER_PAGE )
-        shift++;
-        COMPRESS_RECID_PAGE_SHIFT = shift;
+        for (int pageSizeShift = Storage.MIN_PAGE_SIZE_SHIFT; pageSizeShift <= Storage.MAX_PAGE_SIZE_SHIFT; pageSizeShift++) {
+            final int elemsPerPage = ((1 << pageSizeShift) - Magic.PAGE_HEADER_SIZE) / Magic.PhysicalRowId_SIZE;
+            int shift = 1;
+            while((1<<shift) <elemsPerPage )
+            shift++;
+            COMPRESS_RECID_PAGE_SHIFT[pageSizeShift] = shift;
+        }
     }
 
 
-    private final static long COMPRESS_RECID_OFFSET_MASK =  0xFFFFFFFFFFFFFFFFL >>> (64- COMPRESS_RECID_PAGE_SHIFT);
-
-
     /**
      * Compress recid from physical form (block - offset) to (block - slot).
      * This way resulting number is smaller and can be easier packed with LongPacker
      */
-    static long compressRecid(final long recid) {
-        final long page = recid>>> Storage.PAGE_SIZE_SHIFT;
-        short offset =  (short) (recid & Storage.OFFSET_MASK);
+    static long compressRecid(final long recid, final int pageSizeShift) {
+        final long page = recid>>> pageSizeShift;
+        int offset =  (int) (recid & ((1L << pageSizeShift) - 1));
 
-        offset = (short) (offset - Magic.PAGE_HEADER_SIZE);
+        offset = offset - Magic.PAGE_HEADER_SIZE;
         if (offset % Magic.PhysicalRowId_SIZE != 0)
             throw new InternalError("recid not dividable "+Magic.PhysicalRowId_SIZE);
         long slot = offset / Magic.PhysicalRowId_SIZE;
 
-        return (page << COMPRESS_RECID_PAGE_SHIFT) + slot;
+        return (page << COMPRESS_RECID_PAGE_SHIFT[pageSizeShift]) + slot;
 
     }
 
-    static long decompressRecid(final long recid) {
-
-        final long page = recid >>> COMPRESS_RECID_PAGE_SHIFT;
-        final short offset = (short) ((recid & COMPRESS_RECID_OFFSET_MASK) * Magic.PhysicalRowId_SIZE + Magic.PAGE_HEADER_SIZE);
-        return  (page << Storage.PAGE_SIZE_SHIFT) + (long) offset;
+    static long decompressRecid(final long recid, final int pageSizeShift) {
+        final int compressShift = COMPRESS_RECID_PAGE_SHIFT[pageSizeShift];
+        final long page = recid >>> compressShift;
+        final int offset = (int) ((recid & ((1L << compressShift) - 1)) * Magic.PhysicalRowId_SIZE + Magic.PAGE_HEADER_SIZE);
+        return  (page << pageSizeShift) + (long) offset;
     }
 
 
@@ -237,8 +237,14 @@ class DataInputOutput implements DataInput, DataOutput, ObjectInput, ObjectOutpu
     /** helper method to write data directly from PageIo*/
     public void writeFromByteBuffer(ByteBuffer b, int offset, int length) {
         ensureAvail(length);
-        b.position(offset);
-        b.get(buf,pos,length);
+        //buffer may be shared by concurrent readers, so its position must not be modified
+        if (b.hasArray()) {
+            System.arraycopy(b.array(), b.arrayOffset() + offset, buf, pos, length);
+        } else {
+            ByteBuffer b2 = b.duplicate();
+            b2.position(offset);
+            b2.get(buf, pos, length);
+        }
         pos+=length;
     }
 
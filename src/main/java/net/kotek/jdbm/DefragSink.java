@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Raw records copied by single defrag task.
+ * <p/>
+ * Worker thread only reads original store and puts records here. Defrag thread takes them
+ * and inserts them into new store in the same order as tasks were created, so records
+ * of each collection stay next to each other and new store is written by single thread.
+ * Queue is bounded, so worker which is ahead of defrag thread waits.
+ */
+final class DefragSink {
+
+    /**
+     * Part of collection copied by defrag worker thread.
+     */
+    interface Task {
+        void copy(DefragSink out) throws Exception;
+    }
+
+    static final int CAPACITY = 1024;
+
+    private static final class Record {
+        final long recid;
+        final byte[] data;
+
+        Record(long recid, byte[] data) {
+            this.recid = recid;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Marks end of records, put by worker when task finishes
+     */
+    private static final Record END = new Record(0, null);
+
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(CAPACITY);
+
+
+    /**
+     * Adds record which will be inserted at forced recid, see {@link DBStore#forceInsert(long, byte[])}
+     */
+    void forceInsert(long recid, byte[] data) throws IOException {
+        try {
+            queue.put(new Record(recid, data));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("defrag was interrupted");
+        }
+    }
+
+
+    /**
+     * Called by worker when task finishes, even if it failed.
+     */
+    void finish() throws InterruptedException {
+        queue.put(END);
+    }
+
+
+    /**
+     * Inserts records into given store until task finishes.
+     */
+    void writeTo(DBStore db) throws IOException, InterruptedException {
+        for (Record r = queue.take(); r != END; r = queue.take())
+            db.forceInsert(r.recid, r.data);
+    }
+}
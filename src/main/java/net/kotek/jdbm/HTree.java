@@ -458,22 +458,30 @@ class HTree<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
     }
 
 
-    static void defrag(Long recid, DBStore r1, DBStore r2) throws IOException {
+    /**
+     * Copyes tree from one db to other, while keeping logical recids unchanged.
+     * Tree header and root directory are copied by calling thread, subtrees under root directory
+     * are returned as tasks, which may run in parallel.
+     *
+     * @param r2 new store, header is inserted directly, tasks pass records to their sinks
+     * @param serializer default serializer of r1
+     * @return tasks which copy subtrees
+     */
+    static List<DefragSink.Task> defrag(Long recid, DBStore r1, DBStore r2, Serializer serializer) throws IOException {
         //TODO should modCount be increased after defrag, revert or commit?
         try {
             byte[] data = r1.fetchRaw(recid);
             r2.forceInsert(recid, data);
             DataInput in = new DataInputStream(new ByteArrayInputStream(data));
-            HTree t = (HTree) r1.defaultSerializer().deserialize(in);
+            HTree t = (HTree) serializer.deserialize(in);
             t.db = r1;
             t.loadValues = false;
 
             HTreeDirectory d = t.getRoot();
-            if (d != null) {
-                r2.forceInsert(t.rootRecid, r1.fetchRaw(t.rootRecid));
-                d.defrag(r1, r2);
-            }
-
+            if (d == null)
+                return Collections.emptyList();
+            r2.forceInsert(t.rootRecid, r1.fetchRaw(t.rootRecid));
+            return d.defragTasks(r1);
         } catch (ClassNotFoundException e) {
             throw new IOError(e);
         }
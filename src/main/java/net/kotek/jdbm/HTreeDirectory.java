@@ -412,19 +412,45 @@ final class HTreeDirectory<K, V> {
 
     }
 
-    public void defrag(DBStore r1, DBStore r2) throws IOException, ClassNotFoundException {
+    public void defrag(DBStore r1, DefragSink r2) throws IOException, ClassNotFoundException {
         for (long[] sub: _children) {
             if(sub==null) continue;
             for (long child : sub) {
                 if (child == 0) continue;
-                byte[] data = r1.fetchRaw(child);
-                r2.forceInsert(child, data);
-                Object t = tree.SERIALIZER.deserialize(new DataInputOutput(data));
-                if (t instanceof HTreeDirectory) {
-                    ((HTreeDirectory) t).defrag(r1, r2);
-                }
+                defragChild(child, r1, r2);
+            }
+        }
+    }
+
+    /**
+     * Returns task for each child, which copies child and its subtree.
+     */
+    List<DefragSink.Task> defragTasks(final DBStore r1) {
+        final List<DefragSink.Task> tasks = new ArrayList<DefragSink.Task>();
+        for (long[] sub: _children) {
+            if(sub==null) continue;
+            for (final long child : sub) {
+                if (child == 0) continue;
+                tasks.add(new DefragSink.Task() {
+                    public void copy(DefragSink out) throws Exception {
+                        defragChild(child, r1, out);
+                    }
+                });
             }
         }
+        return tasks;
+    }
+
+    /**
+     * Copies child node and its subtree. It does not modify this directory, so children may be copied in parallel.
+     */
+    void defragChild(long child, DBStore r1, DefragSink r2) throws IOException, ClassNotFoundException {
+        byte[] data = r1.fetchRaw(child);
+        r2.forceInsert(child, data);
+        Object t = tree.SERIALIZER.deserialize(new DataInputOutput(data));
+        if (t instanceof HTreeDirectory) {
+            ((HTreeDirectory) t).defrag(r1, r2);
+        }
     }
 
     void deleteAllChildren() throws IOException {
@@ -442,35 +442,46 @@ class LinkedList2<E> extends AbstractSequentialList<E> {
     }
 
     /**
-     * Copyes collection from one db to other, while keeping logical recids unchanged
+     * Copyes collection from one db to other, while keeping logical recids unchanged.
+     * List header is copied by calling thread, nodes are linked one after other,
+     * so they are copied by single returned task.
+     *
+     * @param r2 new store, header is inserted directly, tasks pass records to their sinks
+     * @param serializer default serializer of r1
+     * @return task which copies list nodes
      */
-    static void defrag(long recid, DBStore r1, DBStore r2) throws IOException {
+    static List<DefragSink.Task> defrag(long recid, final DBStore r1, final DBStore r2, Serializer serializer) throws IOException {
         try {
             //move linked list itself
             byte[] data = r1.fetchRaw(recid);
             r2.forceInsert(recid, data);
             DataInputOutput in = new DataInputOutput();
             in.reset(data);
-            LinkedList2 l = (LinkedList2) r1.defaultSerializer().deserialize(in);
+            final LinkedList2 l = (LinkedList2) serializer.deserialize(in);
             l.loadValues = false;
             //move linkedlist root
             if(l.rootRecid == 0) //empty list, done
-                return;
+                return Collections.emptyList();
 
             data = r1.fetchRaw(l.rootRecid);
             r2.forceInsert(l.rootRecid, data);
             in.reset(data);
-            Root r = ROOT_SERIALIZER.deserialize(in);
-            //move all other nodes in linked list
-            long current = r.first;
-            while (current != 0) {
-                data = r1.fetchRaw(current);
-                in.reset(data);
-                r2.forceInsert(current, data);
-
-                Entry e = (Entry) l.entrySerializer.deserialize(in);
-                current = e.next;
-            }
+            final Root r = ROOT_SERIALIZER.deserialize(in);
+            return Collections.<DefragSink.Task>singletonList(new DefragSink.Task() {
+                public void copy(DefragSink out) throws Exception {
+                    //move all other nodes in linked list
+                    DataInputOutput in = new DataInputOutput();
+                    long current = r.first;
+                    while (current != 0) {
+                        byte[] data = r1.fetchRaw(current);
+                        in.reset(data);
+                        out.forceInsert(current, data);
+
+                        Entry e = (Entry) l.entrySerializer.deserialize(in);
+                        current = e.next;
+                    }
+                }
+            });
         } catch (ClassNotFoundException e) {
             throw new IOError(e);
         }
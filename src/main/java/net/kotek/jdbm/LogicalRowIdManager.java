@@ -26,7 +26,8 @@ final class LogicalRowIdManager {
     // our record file and associated page manager
     private final PageFile file;
     private final PageManager pageman;
-    static final short ELEMS_PER_PAGE = (short) ((Storage.PAGE_SIZE - Magic.PAGE_HEADER_SIZE) / Magic.PhysicalRowId_SIZE);
+    /** number of translations per page */
+    final int elemsPerPage;
 
     private long[] freeRecordsInTransRowid = new long[4];
     private int freeRecordsInTransSize = 0;
@@ -36,7 +37,7 @@ final class LogicalRowIdManager {
     static final int OFFSET_FREE_COUNT = Magic.PAGE_HEADER_SIZE;
     static final int FREE_HEADER_SIZE = Magic.PAGE_HEADER_SIZE + Magic.SZ_SHORT;
     /** maximal number of free logical per page */
-    static final int FREE_RECORDS_PER_PAGE = (Storage.PAGE_SIZE -FREE_HEADER_SIZE)/6;
+    final int freeRecordsPerPage;
 
 
     /**
@@ -45,6 +46,8 @@ final class LogicalRowIdManager {
     LogicalRowIdManager(PageFile file, PageManager pageman) throws IOException {
         this.file = file;
         this.pageman = pageman;
+        this.elemsPerPage = (file.pageSize - Magic.PAGE_HEADER_SIZE) / Magic.PhysicalRowId_SIZE;
+        this.freeRecordsPerPage = (file.pageSize -FREE_HEADER_SIZE)/6;
     }
 
     /**
@@ -60,9 +63,9 @@ final class LogicalRowIdManager {
             // no. This means that we bootstrap things by allocating
             // a new translation page and freeing all the rowids on it.
             long firstPage = pageman.allocate(Magic.TRANSLATION_PAGE);
-            short curOffset = Magic.PAGE_HEADER_SIZE;
-            for (int i = 0; i < ELEMS_PER_PAGE; i++) {
-                putFreeSlot(((-firstPage) << Storage.PAGE_SIZE_SHIFT) + (long) curOffset);
+            int curOffset = Magic.PAGE_HEADER_SIZE;
+            for (int i = 0; i < elemsPerPage; i++) {
+                putFreeSlot(((-firstPage) << file.pageSizeShift) + (long) curOffset);
 
                 curOffset += Magic.PhysicalRowId_SIZE;
             }
@@ -97,9 +100,9 @@ final class LogicalRowIdManager {
      */
     void delete(final long logicalrowid) throws IOException {
         //zero out old location, is needed for defragmentation
-        final long pageId = -(logicalrowid>>> Storage.PAGE_SIZE_SHIFT);
+        final long pageId = -(logicalrowid>>> file.pageSizeShift);
         final PageIo xlatPage = file.get(pageId);
-        xlatPage.pageHeaderSetLocation((short) (logicalrowid & Storage.OFFSET_MASK), 0);
+        xlatPage.pageHeaderSetLocation((int) (logicalrowid & file.offsetMask), 0);
         file.release(pageId, true);
         putFreeSlot(logicalrowid);
     }
@@ -112,9 +115,9 @@ final class LogicalRowIdManager {
      */
     void update(final long logicalrowid, final long physloc) throws IOException {
 
-        final long pageId =  -(logicalrowid>>> Storage.PAGE_SIZE_SHIFT);
+        final long pageId =  -(logicalrowid>>> file.pageSizeShift);
         final PageIo xlatPage = file.get(pageId);
-        xlatPage.pageHeaderSetLocation((short) (logicalrowid & Storage.OFFSET_MASK), physloc);
+        xlatPage.pageHeaderSetLocation((int) (logicalrowid & file.offsetMask), physloc);
         file.release(pageId, true);
     }
 
@@ -125,19 +128,35 @@ final class LogicalRowIdManager {
      * @return The physical rowid, 0 if does not exist
      */
     long fetch(long logicalrowid) throws IOException {
-        final long pageId = -(logicalrowid>>> Storage.PAGE_SIZE_SHIFT);
+        final long pageId = -(logicalrowid>>> file.pageSizeShift);
         final long last = pageman.getLast(Magic.TRANSLATION_PAGE);
         if (last - 1 > pageId)
             return 0;
 
-        final short offset = (short) (logicalrowid & Storage.OFFSET_MASK);
-
-        final PageIo xlatPage = file.get(pageId);
-        final long ret =  xlatPage.pageHeaderGetLocation(offset);
+        final int offset = (int) (logicalrowid & file.offsetMask);
 
+        return file.read(pageId).pageHeaderGetLocation(offset);
+    }
 
-        file.release(pageId, false);
-        return ret;
+    /**
+     * Returns mappings for several logical rowids. Rowids should be sorted,
+     * translation page is then read only once for all rowids it contains.
+     *
+     * @return physical rowids, 0 if logical rowid does not exist
+     */
+    long[] fetchAll(final long[] logicalrowids) throws IOException {
+        final long[] retval = new long[logicalrowids.length];
+        final long last = pageman.getLast(Magic.TRANSLATION_PAGE);
+        PageIo page = null;
+        for (int i = 0; i < logicalrowids.length; i++) {
+            final long pageId = -(logicalrowids[i] >>> file.pageSizeShift);
+            if (last - 1 > pageId)
+                continue;
+            if (page == null || page.getPageId() != pageId)
+                page = file.read(pageId);
+            retval[i] = page.pageHeaderGetLocation((int) (logicalrowids[i] & file.offsetMask));
+        }
+        return retval;
     }
 
     void commit() throws IOException {
@@ -152,12 +171,12 @@ final class LogicalRowIdManager {
         //write all uncommited free records
         for(int rowPos = 0;rowPos<freeRecordsInTransSize;rowPos++){
             short count = freeRecPage.readShort(OFFSET_FREE_COUNT);
-            if(count == FREE_RECORDS_PER_PAGE){
+            if(count == freeRecordsPerPage){
                 //allocate new free recid page
                 file.release(freeRecPage);
                 freeRecPageId = pageman.allocate(Magic.FREELOGIDS_PAGE);
                 freeRecPage = file.get(freeRecPageId);
-                freeRecPage.writeShort(FREE_RECORDS_PER_PAGE, (short)0);
+                freeRecPage.writeShort(OFFSET_FREE_COUNT, (short)0);
                 count = 0;
             }
             final int offset =  (count ) *6 + FREE_HEADER_SIZE;
@@ -172,6 +191,24 @@ final class LogicalRowIdManager {
         clearFreeRecidsInTransaction();
     }
 
+    /**
+     * Moves all free logical rowids from pages into current transaction and releases their pages.
+     * Rowids are written into newly allocated pages on commit, so free list does not block shrinking
+     * file if its pages are at end of file.
+     */
+    void detachFreeList() throws IOException {
+        long pageId = pageman.getFirst(Magic.FREELOGIDS_PAGE);
+        while (pageId != 0) {
+            final PageIo page = file.read(pageId);
+            final short count = page.readShort(OFFSET_FREE_COUNT);
+            for (int i = 0; i < count; i++)
+                putFreeSlot(page.readSixByteLong(i * 6 + FREE_HEADER_SIZE));
+            final long next = pageman.getNext(pageId);
+            pageman.free(Magic.FREELOGIDS_PAGE, pageId);
+            pageId = next;
+        }
+    }
+
     private void clearFreeRecidsInTransaction() {
         if(freeRecordsInTransRowid.length>128)
             freeRecordsInTransRowid = new long[4];
@@ -48,7 +48,7 @@ interface Magic {
     /**
      * Magic for transaction file
      */
-    short LOGFILE_HEADER = 0x1360;
+    short LOGFILE_HEADER = 0x1362;
 
     /**
      * Size of an externalized byte
@@ -83,6 +83,11 @@ interface Magic {
      */
     int FILE_HEADER_NROOTS = 16;
 
+    /**
+     * Page size shift, single byte after roots. Zero means default page size.
+     */
+    int FILE_HEADER_O_PAGE_SIZE_SHIFT = FILE_HEADER_O_ROOTS + FILE_HEADER_NROOTS * Magic.SZ_LONG;
+
 
     short PAGE_HEADER_O_MAGIC = 0; // short magic
     short PAGE_HEADER_O_NEXT = Magic.SZ_SHORT;
@@ -95,7 +100,6 @@ interface Magic {
     
     short DATA_PAGE_O_FIRST = PAGE_HEADER_SIZE; // short firstrowid
     short DATA_PAGE_O_DATA = (short) (DATA_PAGE_O_FIRST + Magic.SZ_SHORT);
-    short DATA_PER_PAGE = (short) (Storage.PAGE_SIZE - DATA_PAGE_O_DATA);
 
 
 
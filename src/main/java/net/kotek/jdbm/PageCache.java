@@ -0,0 +1,132 @@
+package net.kotek.jdbm;
+
+/**
+ * Bounded cache of clean pages which sits between {@link PageFile} and {@link Storage}.
+ * It saves syscalls, decompression and decryption on hot pages, for storage
+ * which does not keep pages in memory itself (RandomAccessFile, zip, compressed storage).
+ * <p/>
+ * Pages are evicted with CLOCK algorithm. Page inserted into cache is not marked as referenced,
+ * so pages read only once (sequential scan, defrag) are evicted before pages hit repeatedly.
+ * <p/>
+ * Cache holds page content exactly as it is in storage, so page must be removed from cache
+ * before it is modified. Methods are synchronized, cache is shared by concurrent readers.
+ */
+final class PageCache {
+
+    private static final class Entry {
+        final long pageId;
+        final byte[] data;
+        final int slot;
+        boolean referenced;
+
+        Entry(long pageId, byte[] data, int slot) {
+            this.pageId = pageId;
+            this.data = data;
+            this.slot = slot;
+        }
+    }
+
+    private final LongHashMap<Entry> entries = new LongHashMap<Entry>();
+    /** clock, null means free slot */
+    private final Entry[] slots;
+    private int hand = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param budget   maximal size of cached pages in bytes
+     * @param pageSize size of single page
+     */
+    PageCache(long budget, int pageSize) {
+        if (budget < pageSize)
+            throw new IllegalArgumentException("Cache must hold at least one page: " + budget);
+        slots = new Entry[(int) Math.min(Integer.MAX_VALUE - 8, budget / pageSize)];
+    }
+
+    /**
+     * @return cached page content, it must not be modified. Null if page is not in cache
+     */
+    synchronized byte[] get(long pageId) {
+        Entry e = entries.get(pageId);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        e.referenced = true;
+        return e.data;
+    }
+
+    /**
+     * Adds page into cache, page with lowest priority is evicted if cache is full.
+     * Array must not be modified after it was added.
+     */
+    synchronized void put(long pageId, byte[] data) {
+        Entry old = entries.remove(pageId);
+        if (old != null)
+            slots[old.slot] = null;
+
+        //advance hand until free slot or unreferenced page is found, clearing reference bits on the way
+        Entry victim;
+        while ((victim = slots[hand]) != null && victim.referenced) {
+            victim.referenced = false;
+            hand = (hand + 1) % slots.length;
+        }
+        if (victim != null) {
+            entries.remove(victim.pageId);
+            evictions++;
+        }
+        Entry e = new Entry(pageId, data, hand);
+        slots[hand] = e;
+        entries.put(pageId, e);
+        hand = (hand + 1) % slots.length;
+    }
+
+    /**
+     * Removes page from cache, called before page is modified.
+     */
+    synchronized void remove(long pageId) {
+        Entry e = entries.remove(pageId);
+        if (e != null)
+            slots[e.slot] = null;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = null;
+    }
+
+    /**
+     * @return maximal number of pages in cache
+     */
+    int getCapacity() {
+        return slots.length;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return ratio of hits to all lookups, zero if there was no lookup yet
+     */
+    synchronized double getHitRate() {
+        final long total = hits + misses;
+        return total == 0 ? 0D : 1D * hits / total;
+    }
+}
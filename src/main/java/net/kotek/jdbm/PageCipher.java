@@ -0,0 +1,198 @@
+package net.kotek.jdbm;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOError;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+
+/**
+ * Encrypts pages with AES in XTS mode, page number is used as tweak.
+ * Each page and each 16 byte block within page can be decrypted independently,
+ * encryption does not change page size.
+ * <p/>
+ * Pages are encrypted into arrays given by caller or into buffer reused by current thread,
+ * so there is no allocation per page. Every thread uses its own ciphers, so concurrent
+ * reads do not block each other.
+ * <p/>
+ * Files created by older versions use AES/CBC with fixed IV. Such file is recognized
+ * when header is read and it is then accessed in this legacy mode.
+ */
+final class PageCipher {
+
+    private static final int BLOCK_SIZE = 16;
+
+    private final SecretKey dataKey;
+    private final SecretKey tweakKey;
+
+    /** ciphers used by older versions, shared by all threads */
+    private final Cipher legacyIn;
+    private final Cipher legacyOut;
+
+    private volatile boolean legacy = false;
+
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+        protected Worker initialValue() {
+            try {
+                return new Worker();
+            } catch (GeneralSecurityException e) {
+                throw new IOError(e);
+            }
+        }
+    };
+
+    /** ciphers and buffers used by single thread */
+    private final class Worker {
+        final Cipher encrypt = Cipher.getInstance("AES/ECB/NoPadding");
+        final Cipher decrypt = Cipher.getInstance("AES/ECB/NoPadding");
+        final Cipher tweak = Cipher.getInstance("AES/ECB/NoPadding");
+        final byte[] tweaks = new byte[1 << Storage.MAX_PAGE_SIZE_SHIFT];
+        /** encrypted page, it has size of last encrypted page */
+        byte[] buf = new byte[0];
+
+        Worker() throws GeneralSecurityException {
+            encrypt.init(Cipher.ENCRYPT_MODE, dataKey);
+            decrypt.init(Cipher.DECRYPT_MODE, dataKey);
+            tweak.init(Cipher.ENCRYPT_MODE, tweakKey);
+        }
+    }
+
+    private PageCipher(SecretKey dataKey, SecretKey tweakKey, Cipher legacyIn, Cipher legacyOut) {
+        this.dataKey = dataKey;
+        this.tweakKey = tweakKey;
+        this.legacyIn = legacyIn;
+        this.legacyOut = legacyOut;
+    }
+
+    /**
+     * Derives keys from password.
+     */
+    static PageCipher create(String password, boolean useAES256Bit) throws GeneralSecurityException {
+        final int keyBits = useAES256Bit ? 256 : 128;
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+
+        //legacy ciphers, this code comes from stack owerflow
+        //http://stackoverflow.com/questions/992019/java-256bit-aes-encryption/992413#992413
+        byte[] salt = new byte[]{3, -34, 123, 53, 78, 121, -12, -1, 45, -12, -48, 89, 11, 100, 99, 8};
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 1024, keyBits);
+        SecretKey secret = new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+        String transform = "AES/CBC/NoPadding";
+        IvParameterSpec params = new IvParameterSpec(salt);
+        Cipher legacyIn = Cipher.getInstance(transform);
+        legacyIn.init(Cipher.ENCRYPT_MODE, secret, params);
+        Cipher legacyOut = Cipher.getInstance(transform);
+        legacyOut.init(Cipher.DECRYPT_MODE, secret, params);
+
+        //XTS uses two keys, derived with different salt
+        byte[] xtsSalt = new byte[]{-7, 23, 44, -112, 5, 87, -66, 12, 90, 31, -2, 77, 18, -49, 103, 64};
+        spec = new PBEKeySpec(password.toCharArray(), xtsSalt, 1024, keyBits * 2);
+        byte[] keys = factory.generateSecret(spec).getEncoded();
+        SecretKey dataKey = new SecretKeySpec(keys, 0, keyBits / 8, "AES");
+        SecretKey tweakKey = new SecretKeySpec(keys, keyBits / 8, keyBits / 8, "AES");
+
+        PageCipher ret = new PageCipher(dataKey, tweakKey, legacyIn, legacyOut);
+
+        //sanity check
+        byte[] data = new byte[Storage.PAGE_SIZE];
+        byte[] data2 = new byte[Storage.PAGE_SIZE];
+        ret.encrypt(1, data, data.length, data2);
+        ret.decrypt(1, data2, data2.length, data2);
+        if (!Arrays.equals(data, data2))
+            throw new Error("Encryption provided by JRE does not work");
+        return ret;
+    }
+
+    /**
+     * Switches to mode used by older versions.
+     */
+    void setLegacy() {
+        legacy = true;
+    }
+
+    /**
+     * Encrypts page. Source and destination may be the same array.
+     *
+     * @param pageId page number used as tweak
+     * @param len    number of bytes from start of page, multiple of 16
+     */
+    void encrypt(long pageId, byte[] src, int len, byte[] dst) {
+        crypt(true, pageId, src, len, dst);
+    }
+
+    /**
+     * Decrypts page. Source and destination may be the same array.
+     *
+     * @param pageId page number used as tweak
+     * @param len    number of bytes from start of page, multiple of 16
+     */
+    void decrypt(long pageId, byte[] src, int len, byte[] dst) {
+        crypt(false, pageId, src, len, dst);
+    }
+
+    /**
+     * Encrypts page into array reused by current thread.
+     * Returned array is valid only until next call from the same thread.
+     */
+    byte[] encryptToBuffer(long pageId, ByteBuffer page) {
+        final int len = page.limit();
+        final Worker w = workers.get();
+        if (w.buf.length != len)
+            w.buf = new byte[len];
+        final byte[] src;
+        if (page.hasArray() && page.arrayOffset() == 0) {
+            src = page.array();
+        } else {
+            src = w.buf;
+            ByteBuffer d = page.duplicate();
+            d.position(0);
+            d.get(w.buf, 0, len);
+        }
+        encrypt(pageId, src, len, w.buf);
+        return w.buf;
+    }
+
+    private void crypt(boolean encrypt, long pageId, byte[] src, int len, byte[] dst) {
+        try {
+            if (legacy) {
+                final Cipher c = encrypt ? legacyIn : legacyOut;
+                synchronized (c) {
+                    c.doFinal(src, 0, len, dst, 0);
+                }
+                return;
+            }
+
+            final Worker w = workers.get();
+            final byte[] t = w.tweaks;
+            //first tweak is encrypted page number
+            for (int i = 0; i < 8; i++)
+                t[i] = (byte) (pageId >>> (8 * i));
+            Arrays.fill(t, 8, BLOCK_SIZE, (byte) 0);
+            w.tweak.doFinal(t, 0, BLOCK_SIZE, t, 0);
+            //following tweaks are multiplied by primitive element in GF(2^128)
+            for (int off = BLOCK_SIZE; off < len; off += BLOCK_SIZE) {
+                int carry = 0;
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    final int b = t[off - BLOCK_SIZE + i] & 0xFF;
+                    t[off + i] = (byte) ((b << 1) | carry);
+                    carry = b >>> 7;
+                }
+                if (carry != 0)
+                    t[off] ^= (byte) 0x87;
+            }
+
+            for (int i = 0; i < len; i++)
+                dst[i] = (byte) (src[i] ^ t[i]);
+            (encrypt ? w.encrypt : w.decrypt).doFinal(dst, 0, len, dst, 0);
+            for (int i = 0; i < len; i++)
+                dst[i] ^= t[i];
+        } catch (GeneralSecurityException e) {
+            throw new IOError(e);
+        }
+    }
+}
@@ -17,12 +17,14 @@
 
 package net.kotek.jdbm;
 
-import javax.crypto.Cipher;
+import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 
 /**
  * This class represents a random access file as a set of fixed size
@@ -58,18 +60,31 @@ final class PageFile {
     private final LongHashMap<PageIo> inTxn = new LongHashMap<PageIo>();
 
 
+    /**
+     * Open snapshots. Committed content of page is copied into them before page is modified.
+     */
+    private final CopyOnWriteArrayList<PageSnapshot> snapshots = new CopyOnWriteArrayList<PageSnapshot>();
+
     // transactions disabled?
     final boolean transactionsDisabled;
 
     /**
-     * A array of clean data to wipe clean pages.
+     * A array of clean data to wipe clean pages. It is large enough for biggest page size.
      */
-    static final byte[] CLEAN_DATA = new byte[Storage.PAGE_SIZE];
+    static final byte[] CLEAN_DATA = new byte[1 << Storage.MAX_PAGE_SIZE_SHIFT];
 
 
     final Storage storage;
-    private Cipher cipherOut;
-    private Cipher cipherIn;
+    private final PageCipher cipher;
+
+    /** clean pages read from storage, null if cache is disabled */
+    private volatile PageCache pageCache;
+
+    /** page size of this file, it is chosen when file is created and stored in file header */
+    final int pageSize;
+    final int pageSizeShift;
+    /** use 'val & offsetMask' to get offset within the page */
+    final long offsetMask;
 
 
     /**
@@ -81,32 +96,109 @@ final class PageFile {
      * @throws IOException whenever the creation of the underlying
      *                     RandomAccessFile throws it.
      */
-    PageFile(String fileName, boolean readonly, boolean transactionsDisabled, Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile, boolean lockingDisabled) throws IOException {
-        this.cipherIn = cipherIn;
-        this.cipherOut = cipherOut;
+    PageFile(String fileName, boolean readonly, boolean transactionsDisabled, PageCipher cipher, boolean useRandomAccessFile, boolean lockingDisabled, int pageSizeShift, boolean compress) throws IOException {
+        this.cipher = cipher;
         this.transactionsDisabled = transactionsDisabled;
-        if(fileName == null){
-            this.storage = new StorageMemory(transactionsDisabled);
-        }else if(DBMaker.isZipFileLocation(fileName)!=null)
-                this.storage = new StorageZip(DBMaker.isZipFileLocation(fileName));
-//        }else if (fileName.contains("!/"))
-//            this.storage = new StorageZip(fileName);
-        else if(useRandomAccessFile)
-            this.storage = new StorageDisk(fileName,readonly,lockingDisabled);
-        else
-            this.storage = new StorageDiskMapped(fileName,readonly,transactionsDisabled,lockingDisabled);
+        if (pageSizeShift < Storage.MIN_PAGE_SIZE_SHIFT || pageSizeShift > Storage.MAX_PAGE_SIZE_SHIFT)
+            throw new IllegalArgumentException("Unsupported page size: " + (1L << pageSizeShift));
+
+        //header is read with smallest page size, existing file may use different page size than requested
+        Storage storage = openStorage(fileName, readonly, transactionsDisabled, useRandomAccessFile, lockingDisabled, Storage.MIN_PAGE_SIZE_SHIFT, compress);
+        final int storedShift = readPageSizeShift(storage, cipher);
+        if (storedShift != 0)
+            pageSizeShift = storedShift;
+        if (pageSizeShift != storage.getPageSizeShift()) {
+            storage.forceClose();
+            storage = openStorage(fileName, readonly, transactionsDisabled, useRandomAccessFile, lockingDisabled, pageSizeShift, compress);
+        }
+        this.storage = storage;
+        this.pageSizeShift = pageSizeShift;
+        this.pageSize = 1 << pageSizeShift;
+        this.offsetMask = 0xFFFFFFFFFFFFFFFFL >>> (64 - pageSizeShift);
 
         if (this.storage.isReadonly() && !readonly)
             throw new IllegalArgumentException("This type of storage is readonly, you should call readonly() on DBMaker");
         if (!readonly && !transactionsDisabled) {
-            txnMgr = new PageTransactionManager(this, storage, cipherIn, cipherOut);
+            txnMgr = new PageTransactionManager(this, storage, cipher);
         } else {
             txnMgr = null;
         }
     }
 
+    PageFile(String fileName, boolean readonly, boolean transactionsDisabled, PageCipher cipher, boolean useRandomAccessFile, boolean lockingDisabled) throws IOException {
+        this(fileName, readonly, transactionsDisabled, cipher, useRandomAccessFile, lockingDisabled, Storage.PAGE_SIZE_SHIFT, false);
+    }
+
     public PageFile(String filename) throws IOException {
-        this(filename, false, false, null, null,false,false);
+        this(filename, false, false, null,false,false);
+    }
+
+    private static Storage openStorage(String fileName, boolean readonly, boolean transactionsDisabled, boolean useRandomAccessFile,
+                                       boolean lockingDisabled, int pageSizeShift, boolean compress) throws IOException {
+        if(fileName == null)
+            return new StorageMemory(transactionsDisabled, pageSizeShift);
+        else if(DBMaker.isDirectMemoryLocation(fileName))
+            return new StorageMemoryDirect(transactionsDisabled, pageSizeShift);
+        else if(DBMaker.isArchiveLocation(fileName)!=null)
+            return new StorageArchive(DBMaker.isArchiveLocation(fileName), pageSizeShift);
+        else if(DBMaker.isZipFileLocation(fileName)!=null) {
+            //archive may be also opened as zip
+            final String zip = DBMaker.isZipFileLocation(fileName);
+            if (StorageArchive.isArchive(zip))
+                return new StorageArchive(zip, pageSizeShift);
+            return new StorageZip(zip, pageSizeShift);
+        }
+//        else if (fileName.contains("!/"))
+//            return new StorageZip(fileName);
+
+        //existing store is always opened in format it was created with
+        final boolean compressed = StorageCompressed.exists(fileName)
+                || (compress && !new File(StorageDiskMapped.makeFileName(fileName, 0, 0)).exists());
+        Storage storage;
+        if(useRandomAccessFile)
+            storage = new StorageDisk(fileName,readonly,lockingDisabled, pageSizeShift);
+        else
+            storage = new StorageDiskMapped(fileName,readonly,transactionsDisabled,lockingDisabled, pageSizeShift);
+        if(compressed)
+            storage = new StorageCompressed(storage, fileName, readonly);
+        return storage;
+    }
+
+    /**
+     * Reads page size from file header. Header fits into smallest page, so storage can use any page size.
+     * Encrypted header can be decrypted partially, as long as it is whole number of cipher blocks.
+     * Encryption mode used by older versions is detected here.
+     *
+     * @return page size shift stored in header, or zero for new file
+     */
+    private static int readPageSizeShift(Storage storage, PageCipher cipher) throws IOException {
+        ByteBuffer b = storage.read(0).duplicate();
+        byte[] bb = new byte[1 << Storage.MIN_PAGE_SIZE_SHIFT];
+        b.position(0);
+        b.get(bb);
+        if (Utils.allZeros(bb))
+            return 0;
+        if (cipher != null) {
+            byte[] plain = new byte[bb.length];
+            cipher.decrypt(0, bb, bb.length, plain);
+            if (new PageIo(0, plain).readShort(Magic.FILE_HEADER_O_MAGIC) != Magic.FILE_HEADER) {
+                //file was created by older version which used CBC mode
+                cipher.setLegacy();
+                cipher.decrypt(0, bb, bb.length, plain);
+            }
+            bb = plain;
+        }
+        final int shift = new PageIo(0, bb).fileHeaderGetPageSizeShift();
+        if (shift < Storage.MIN_PAGE_SIZE_SHIFT || shift > Storage.MAX_PAGE_SIZE_SHIFT)
+            throw new IOException("Unsupported page size in file header: " + shift);
+        return shift;
+    }
+
+    /**
+     * Returns read-only empty page
+     */
+    static ByteBuffer cleanPage(int pageSize) {
+        return ByteBuffer.wrap(CLEAN_DATA, 0, pageSize).slice().asReadOnlyBuffer();
     }
 
 
@@ -141,36 +233,182 @@ final class PageFile {
             throw new Error("double get for page " + pageId);
         }
 
-        //read node from file
-        if (cipherOut == null) {
+        node = load(pageId, false);
+        inUse.put(pageId, node);
+        return node;
+    }
+
+    /**
+     * Gets a page for reading only. Page is not registered in any list and must not be
+     * modified or released. This method does not modify PageFile structures, so it can be called
+     * concurrently from multiple threads, as long as no other thread is calling <code>get</code>,
+     * <code>release</code> or <code>commit</code> at the same time.
+     *
+     * @param pageId The record number to retrieve.
+     */
+    PageIo read(long pageId) throws IOException {
+        PageIo node = inUse.get(pageId);
+        if (node != null)
+            return node;
+        node = dirty.get(pageId);
+        if (node != null)
+            return node;
+        node = inTxn.get(pageId);
+        if (node != null)
+            return node;
+        return load(pageId, true);
+    }
+
+    /**
+     * Reads page from storage and decrypts it if needed.
+     *
+     * @param readOnly if true, returned page may share content with page cache
+     */
+    private PageIo load(long pageId, boolean readOnly) throws IOException {
+        final PageCache cache = pageCache;
+        if (cache != null)
+            return loadCached(cache, pageId, readOnly);
+
+        PageIo node;
+        if (cipher == null) {
             node = new PageIo(pageId,storage.read(pageId));
         } else {
             //decrypt if needed
-            ByteBuffer b = storage.read(pageId);
-            byte[] bb;
-            if(b.hasArray()){
-                bb = b.array();
-            }else{
-                bb = new byte[Storage.PAGE_SIZE];
-                b.position(0);
-                b.get(bb, 0, Storage.PAGE_SIZE);
-            }
-            if (!Utils.allZeros(bb)) try {
-                bb = cipherOut.doFinal(bb);
+            byte[] bb = decrypt(pageId, storage.read(pageId));
+            if (bb != null) {
                 node = new PageIo(pageId, ByteBuffer.wrap(bb));
-                } catch (Exception e) {
-                throw new IOError(e);
             }else {
-                node = new PageIo(pageId, ByteBuffer.wrap(PageFile.CLEAN_DATA).asReadOnlyBuffer());
+                node = new PageIo(pageId, cleanPage(pageSize));
             }
         }
+        node.setClean();
+        node.setOwner(this);
+        return node;
+    }
 
-
-        inUse.put(pageId, node);
+    private PageIo loadCached(PageCache cache, long pageId, boolean readOnly) throws IOException {
+        byte[] data = cache.get(pageId);
+        if (data == null) {
+            //cached copy is never given to modifiable page
+            data = readCommitted(pageId);
+            cache.put(pageId, data);
+            if (!readOnly)
+                data = data.clone();
+        } else if (!readOnly) {
+            data = data.clone();
+        }
+        PageIo node = new PageIo(pageId, ByteBuffer.wrap(data));
         node.setClean();
+        node.setOwner(this);
         return node;
     }
 
+    /**
+     * Enables cache of clean pages, it is useful for storage which does not keep pages in memory.
+     *
+     * @param bytes cache size in bytes, zero disables cache
+     */
+    void setPageCacheSize(long bytes) {
+        pageCache = bytes == 0 ? null : new PageCache(bytes, pageSize);
+    }
+
+    /**
+     * @return page cache or null if it is disabled
+     */
+    PageCache getPageCache() {
+        return pageCache;
+    }
+
+    /**
+     * Removes page from cache before it is modified or written.
+     */
+    private void uncache(long pageId) {
+        final PageCache cache = pageCache;
+        if (cache != null)
+            cache.remove(pageId);
+    }
+
+    /**
+     * Decrypts page read from storage into new array, storage buffer is not modified.
+     *
+     * @return decrypted page or null if page is empty
+     */
+    private byte[] decrypt(long pageId, ByteBuffer b) {
+        byte[] bb = new byte[pageSize];
+        b = b.duplicate();
+        b.position(0);
+        b.get(bb, 0, pageSize);
+        if (Utils.allZeros(bb))
+            return null;
+        cipher.decrypt(pageId, bb, pageSize, bb);
+        return bb;
+    }
+
+    /**
+     * Creates snapshot of last committed state. Pages modified after this call are copied into snapshot
+     * before modification, other pages are read from storage.
+     */
+    PageSnapshot snapshot() throws IOException {
+        if (transactionsDisabled)
+            throw new IllegalAccessError("Transactions are disabled, can not create snapshot");
+        if (txnMgr != null) {
+            // bring data file into last committed state, without writing modified pages
+            txnMgr.synchronizeLogFromDisk();
+        }
+
+        PageSnapshot snapshot = new PageSnapshot(this);
+        // modified pages already lost committed content, so it is read from storage
+        for (Iterator<PageIo> i = dirty.valuesIterator(); i.hasNext(); ) {
+            long pageId = i.next().getPageId();
+            snapshot.preserve(pageId, readCommitted(pageId));
+        }
+        for (Iterator<PageIo> i = inUse.valuesIterator(); i.hasNext(); ) {
+            PageIo page = i.next();
+            if (page.isDirty())
+                snapshot.preserve(page.getPageId(), readCommitted(page.getPageId()));
+        }
+        snapshots.add(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Called by clean page before it is modified.
+     */
+    void beforeModification(PageIo page) {
+        if (snapshots.isEmpty())
+            return;
+        byte[] data = page.getByteArray();
+        if (page.getData().hasArray())
+            data = data.clone();
+        for (PageSnapshot snapshot : snapshots)
+            snapshot.preserve(page.getPageId(), data);
+    }
+
+    /**
+     * Reads copy of page content from storage, used by snapshots.
+     */
+    byte[] readCommitted(long pageId) throws IOException {
+        ByteBuffer b = storage.read(pageId);
+        if (cipher != null) {
+            byte[] bb = decrypt(pageId, b);
+            return bb != null ? bb : new byte[pageSize];
+        }
+        byte[] ret = new byte[pageSize];
+        b = b.duplicate();
+        b.position(0);
+        b.get(ret, 0, pageSize);
+        return ret;
+    }
+
+    void removeSnapshot(PageSnapshot snapshot) {
+        snapshots.remove(snapshot);
+    }
+
+    private void closeSnapshots() {
+        for (PageSnapshot snapshot : snapshots)
+            snapshot.close();
+    }
+
 
     /**
      * Releases a page.
@@ -185,6 +423,7 @@ final class PageFile {
             page.setDirty();
 
         if (page.isDirty()) {
+            uncache(pageId);
             dirty.put(pageId, page);
         } else if (!transactionsDisabled && page.isInTransaction()) {
             inTxn.put(pageId, page);
@@ -201,6 +440,7 @@ final class PageFile {
         inUse.remove(key);
         if (page.isDirty()) {
             // System.out.println( "Dirty: " + key + page );
+            uncache(key);
             dirty.put(key, page);
         } else if (!transactionsDisabled && page.isInTransaction()) {
             inTxn.put(key, page);
@@ -222,6 +462,24 @@ final class PageFile {
      * to disk.
      */
     void commit() throws IOException {
+        commit(false);
+    }
+
+    /**
+     * Commits the current transaction, log is written in background thread.
+     *
+     * @return future which completes when transaction is durable
+     */
+    Future<Void> commitAsync() throws IOException {
+        if (transactionsDisabled) {
+            //there is no log to write in background
+            commit(false);
+            return Utils.completedFuture();
+        }
+        return commit(true);
+    }
+
+    private Future<Void> commit(boolean async) throws IOException {
         // debugging...
         if (!inUse.isEmpty() && inUse.size() > 1) {
             showList(inUse.valuesIterator());
@@ -233,7 +491,7 @@ final class PageFile {
 
         if (dirty.size() == 0) {
             // if no dirty pages, skip commit process
-            return;
+            return Utils.completedFuture();
         }
 
         if (!transactionsDisabled) {
@@ -254,8 +512,8 @@ final class PageFile {
 
             // System.out.println("node " + node + " map size now " + dirty.size());
             if (transactionsDisabled) {
-                if(cipherIn !=null)                    
-                   storage.write(node.getPageId(), ByteBuffer.wrap(Utils.encrypt(cipherIn, node.getData())));
+                if(cipher !=null)
+                   storage.write(node.getPageId(), ByteBuffer.wrap(cipher.encryptToBuffer(node.getPageId(), node.getData())));
                 else
                    storage.write(node.getPageId(),node.getData());
                 node.setClean();
@@ -266,8 +524,11 @@ final class PageFile {
         }
         dirty.clear();
         if (!transactionsDisabled) {
+            if (async)
+                return txnMgr.commitAsync();
             txnMgr.commit();
         }
+        return Utils.completedFuture();
     }
 
 
@@ -302,7 +563,8 @@ final class PageFile {
             commit();
         }
 
-        if(!transactionsDisabled){
+        //readonly file has no transaction manager
+        if(txnMgr != null){
             txnMgr.shutdown();
         }
 
@@ -323,7 +585,9 @@ final class PageFile {
             throw new Error("inUse pages  at close time");
         }
 
-        storage.sync();
+        closeSnapshots();
+        if (!storage.isReadonly())
+            storage.sync();
         storage.forceClose();
     }
 
@@ -333,7 +597,8 @@ final class PageFile {
      * Used for testing purposed only.
      */
     void forceClose() throws IOException {
-        if(!transactionsDisabled){
+        closeSnapshots();
+        if(txnMgr != null){
             txnMgr.forceClose();
         }
         storage.forceClose();
@@ -355,10 +620,11 @@ final class PageFile {
      * synchronization code.
      */
     void synch(PageIo node) throws IOException {
+        uncache(node.getPageId());
         ByteBuffer data = node.getData();
         if (data != null) {
-            if(cipherIn!=null)
-                storage.write(node.getPageId(), ByteBuffer.wrap(Utils.encrypt(cipherIn, data)));
+            if(cipher!=null)
+                storage.write(node.getPageId(), ByteBuffer.wrap(cipher.encryptToBuffer(node.getPageId(), data)));
             else
                 storage.write(node.getPageId(),  data);
         }
@@ -373,6 +639,25 @@ final class PageFile {
         inTxn.remove(node.getPageId());
     }
 
+    /**
+     * Removes data pages at and after given page from storage. Committed transactions are first
+     * written into storage, so no logged page is written after the cut.
+     * Removed pages must be free, current transaction must be committed.
+     *
+     * @param pageCount number of data pages which are kept
+     */
+    void truncate(long pageCount) throws IOException {
+        if (!dirty.isEmpty())
+            throw new IllegalStateException("Uncommitted pages");
+        if (txnMgr != null)
+            txnMgr.synchronizeLog();
+        final PageCache cache = pageCache;
+        if (cache != null)
+            cache.clear();
+        storage.truncate(pageCount);
+        storage.sync();
+    }
+
     /**
      * Synchronizes the file.
      */
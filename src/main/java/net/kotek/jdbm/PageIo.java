@@ -17,8 +17,6 @@
 
 package net.kotek.jdbm;
 
-import javax.crypto.Cipher;
-import java.io.*;
 import java.nio.ByteBuffer;
 import static net.kotek.jdbm.Magic.*;
 
@@ -45,6 +43,22 @@ final class PageIo {
 
     private int transactionCount = 0;
 
+    /** maximal number of modified ranges tracked, closest ranges are merged if there are more */
+    private static final int MAX_DIRTY_RANGES = 8;
+
+    /**
+     * Modified byte ranges since page was last clean, stored as sorted start/end pairs.
+     * Transaction log writes only these ranges instead of full page.
+     */
+    private int[] dirtyRanges;
+    private int dirtyRangeCount = 0;
+
+    /** page was marked dirty without known range, so it must be logged whole */
+    private boolean fullyDirty = false;
+
+    /** notified before clean page is modified, so open snapshots can keep its committed content */
+    private PageFile owner;
+
     /**
      * Default constructor for serialization
      */
@@ -71,14 +85,18 @@ final class PageIo {
      */
     void ensureHeapBuffer(){
         if(data.isDirect()){
-            final byte[] bb = new byte[Storage.PAGE_SIZE];
-            data.get(bb,0,Storage.PAGE_SIZE);
+            final byte[] bb = new byte[data.limit()];
+            data.get(bb,0,bb.length);
             data = ByteBuffer.wrap(bb);
             if(data.isReadOnly()) throw new InternalError();
         }
 
     }
 
+    void setOwner(PageFile owner) {
+        this.owner = owner;
+    }
+
     /**
      * Returns the underlying array
      */
@@ -97,12 +115,32 @@ final class PageIo {
      * Sets the dirty flag
      */
     void setDirty() {
+        fullyDirty = true;
+        markDirty();
+    }
+
+    /**
+     * Sets the dirty flag and remembers modified range
+     */
+    private void setDirty(int pos, int len) {
+        if (!dirty) {
+            fullyDirty = false;
+            dirtyRangeCount = 0;
+        }
+        markDirty();
+        if (!fullyDirty)
+            addDirtyRange(pos, pos + len);
+    }
+
+    private void markDirty() {
+        if (!dirty && owner != null)
+            owner.beforeModification(this);
         dirty = true;
-        
+
         if(data.isReadOnly()){
             // make copy if needed, so we can write into buffer
-            byte[] buf = new byte[Storage.PAGE_SIZE];
-            data.get(buf,0,Storage.PAGE_SIZE);
+            byte[] buf = new byte[data.limit()];
+            data.get(buf,0,buf.length);
             data = ByteBuffer.wrap(buf);
         }
     }
@@ -112,6 +150,65 @@ final class PageIo {
      */
     void setClean() {
         dirty = false;
+        fullyDirty = false;
+        dirtyRangeCount = 0;
+    }
+
+    /**
+     * Adds range into sorted list of modified ranges, overlapping and touching ranges are merged.
+     */
+    private void addDirtyRange(int start, int end) {
+        if (dirtyRanges == null)
+            dirtyRanges = new int[MAX_DIRTY_RANGES * 2 + 2];
+
+        //find first range which ends at or after start
+        int i = 0;
+        while (i < dirtyRangeCount && dirtyRanges[i * 2 + 1] < start)
+            i++;
+        //merge all ranges which touch new range
+        int j = i;
+        while (j < dirtyRangeCount && dirtyRanges[j * 2] <= end) {
+            start = Math.min(start, dirtyRanges[j * 2]);
+            end = Math.max(end, dirtyRanges[j * 2 + 1]);
+            j++;
+        }
+        if (j != i + 1) {
+            //shift following ranges to make room for single merged range
+            System.arraycopy(dirtyRanges, j * 2, dirtyRanges, i * 2 + 2, (dirtyRangeCount - j) * 2);
+            dirtyRangeCount += i + 1 - j;
+        }
+        dirtyRanges[i * 2] = start;
+        dirtyRanges[i * 2 + 1] = end;
+
+        if (dirtyRangeCount > MAX_DIRTY_RANGES) {
+            //too many ranges, merge two ranges with smallest gap between them
+            int min = 0;
+            for (int k = 1; k < dirtyRangeCount - 1; k++) {
+                if (dirtyRanges[k * 2 + 2] - dirtyRanges[k * 2 + 1] < dirtyRanges[min * 2 + 2] - dirtyRanges[min * 2 + 1])
+                    min = k;
+            }
+            dirtyRanges[min * 2 + 1] = dirtyRanges[min * 2 + 3];
+            System.arraycopy(dirtyRanges, min * 2 + 4, dirtyRanges, min * 2 + 2, (dirtyRangeCount - min - 2) * 2);
+            dirtyRangeCount--;
+        }
+    }
+
+    /**
+     * Returns byte ranges modified since page was clean, as start/end pairs.
+     * Returns null if the whole page should be logged, because modified range is not known,
+     * or because ranges cover large part of the page.
+     */
+    int[] getDirtyRanges() {
+        if (fullyDirty)
+            return null;
+        int size = 0;
+        for (int i = 0; i < dirtyRangeCount; i++)
+            size += dirtyRanges[i * 2 + 1] - dirtyRanges[i * 2];
+        if (size > data.limit() / 2)
+            return null;
+        int[] ret = new int[dirtyRangeCount * 2];
+        System.arraycopy(dirtyRanges, 0, ret, 0, ret.length);
+        return ret;
     }
 
     /**
@@ -161,7 +258,7 @@ final class PageIo {
      * Writes a byte to the indicated position
      */
     public void writeByte(int pos, byte value) {
-        setDirty();
+        setDirty(pos, 1);
         data.put(pos,value);
     }
 
@@ -176,7 +273,7 @@ final class PageIo {
      * Writes a short to the indicated position
      */
     public void writeShort(int pos, short value) {
-        setDirty();
+        setDirty(pos, 2);
         data.putShort(pos,value);
     }
 
@@ -191,7 +288,7 @@ final class PageIo {
      * Writes an int to the indicated position
      */
     public void writeInt(int pos, int value) {
-        setDirty();
+        setDirty(pos, 4);
         data.putInt(pos,value);
     }
 
@@ -206,7 +303,7 @@ final class PageIo {
      * Writes a long to the indicated position
      */
     public void writeLong(int pos, long value) {
-        setDirty();
+        setDirty(pos, 8);
         data.putLong(pos,value);
     }
 
@@ -242,7 +339,7 @@ final class PageIo {
             negativeBit = 0x80;
         }
 
-        setDirty();
+        setDirty(pos, 6);
         data.put(pos + 0,(byte) ((0x7f & (value >> 40)) | negativeBit));
         data.put(pos + 1, (byte) (0xff & (value >> 32)));
         data.put(pos + 2, (byte) (0xff & (value >> 24)));
@@ -261,37 +358,19 @@ final class PageIo {
                 + dirty +")";
     }
 
-    public void readExternal(DataInputStream in, Cipher cipherOut) throws IOException {
-        pageId = in.readLong();
-        byte[] data2 = new byte[Storage.PAGE_SIZE];
-        in.readFully(data2);
-        if (cipherOut == null || Utils.allZeros(data2))
-            data = ByteBuffer.wrap(data2);
-        else try {
-            data = ByteBuffer.wrap(cipherOut.doFinal(data2));
-        } catch (Exception e) {
-            throw new IOError(e);
-        }
-    }
-
-
-    public void writeExternal(DataOutput out, Cipher cipherIn) throws IOException {
-        out.writeLong(pageId);
-        out.write(Utils.encrypt(cipherIn, data.array()));
-    }
-
-
     public byte[] getByteArray() {
         if ( data.hasArray())
             return data.array();
-        byte[] d= new byte[Storage.PAGE_SIZE];
-        data.rewind();
-        data.get(d,0,Storage.PAGE_SIZE);
+        byte[] d= new byte[data.limit()];
+        //do not move position of shared buffer, copy on write reads from it
+        ByteBuffer b = data.duplicate();
+        b.rewind();
+        b.get(d,0,d.length);
         return d;
     }
 
     public void writeByteArray(byte[] buf, int srcOffset, int offset, int length) {
-        setDirty();
+        setDirty(offset, length);
         data.rewind();
         data.position(offset);
         data.put(buf,srcOffset,length);
@@ -361,6 +440,19 @@ final class PageIo {
      *
 
      */
+    /**
+     * Returns page size shift stored in file header.
+     * Files created before page size was configurable have zero here and use default page size.
+     */
+    int fileHeaderGetPageSizeShift() {
+        final int shift = readByte(FILE_HEADER_O_PAGE_SIZE_SHIFT);
+        return shift == 0 ? Storage.PAGE_SIZE_SHIFT : shift;
+    }
+
+    void fileHeaderSetPageSizeShift(final int shift) {
+        writeByte(FILE_HEADER_O_PAGE_SIZE_SHIFT, (byte) shift);
+    }
+
     long fileHeaderGetRoot(final int root) {
         final short offset = (short) (FILE_HEADER_O_ROOTS + (root * Magic.SZ_LONG));
         return readLong(offset);
@@ -420,26 +512,29 @@ final class PageIo {
         writeShort(PAGE_HEADER_O_MAGIC, (short) (Magic.PAGE_MAGIC + type));
     }
 
-    long pageHeaderGetLocation(final short pos){
+    long pageHeaderGetLocation(final int pos){
         return readSixByteLong(pos + PhysicalRowId_O_LOCATION);
     }
 
 
-    void pageHeaderSetLocation(short pos, long value) {
+    void pageHeaderSetLocation(int pos, long value) {
        writeSixByteLong(pos + PhysicalRowId_O_LOCATION, value);
     }
 
 
 
-    short dataPageGetFirst() {
-        return readShort(DATA_PAGE_O_FIRST);
+    /**
+     * Returns offset of first record on data page. It is stored as unsigned short, so it fits into 64 KB page.
+     */
+    int dataPageGetFirst() {
+        return readShort(DATA_PAGE_O_FIRST) & 0xFFFF;
     }
 
-    void dataPageSetFirst(short value) {
+    void dataPageSetFirst(int value) {
         pageHeaderParanoiaMagicOk();
         if (value > 0 && value < DATA_PAGE_O_DATA)
             throw new Error("DataPage.setFirst: offset " + value + " too small");
-        writeShort(DATA_PAGE_O_FIRST, value);
+        writeShort(DATA_PAGE_O_FIRST, (short) value);
     }
 
 
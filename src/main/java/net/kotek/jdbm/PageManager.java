@@ -19,6 +19,7 @@ package net.kotek.jdbm;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
 
 /**
  * This class manages the linked lists of pages that make up a file.
@@ -39,7 +40,10 @@ final class PageManager {
         // file. Note that we hold on to the file header node.
         headerBuf = file.get(0);
         headerBuf.ensureHeapBuffer();
-        headerBuf.fileHeaderCheckHead(headerBuf.readShort(0) == 0);
+        final boolean isNew = headerBuf.readShort(0) == 0;
+        headerBuf.fileHeaderCheckHead(isNew);
+        if (isNew)
+            headerBuf.fileHeaderSetPageSizeShift(file.pageSizeShift);
     }
 
     /**
@@ -89,7 +93,7 @@ final class PageManager {
         long oldLast = headerBuf.fileHeaderGetLastOf(type);
 
         // Clean data.
-        pageHdr.writeByteArray(PageFile.CLEAN_DATA, 0, 0, Storage.PAGE_SIZE);
+        pageHdr.writeByteArray(PageFile.CLEAN_DATA, 0, 0, file.pageSize);
 
         pageHdr.pageHeaderSetType(type);
         pageHdr.pageHeaderSetPrev(oldLast);
@@ -156,15 +160,68 @@ final class PageManager {
     }
 
 
+    /**
+     * Counts free pages at end of file.
+     *
+     * @param limit counting stops once this number is reached
+     */
+    long getTrailingFreePages(long limit) throws IOException {
+        final long end = headerBuf.fileHeaderGetLastOf(Magic.FREE_PAGE);
+        long count = 0;
+        for (long page = end - 1; page > 0 && count < limit; page--) {
+            if (file.read(page).pageHeaderGetMagic() != Magic.PAGE_MAGIC + Magic.FREE_PAGE)
+                break;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes free pages at end of file from free list and moves end of file before them,
+     * so they can be cut off from storage. Other free pages keep their order.
+     *
+     * @return number of removed pages
+     */
+    long removeTrailingFreePages() throws IOException {
+        final long end = headerBuf.fileHeaderGetLastOf(Magic.FREE_PAGE);
+        final long removed = getTrailingFreePages(Long.MAX_VALUE);
+        if (removed == 0)
+            return 0;
+        final long newEnd = end - removed;
+
+        long lastKept = 0;
+        long page = headerBuf.fileHeaderGetFirstOf(Magic.FREE_PAGE);
+        while (page != 0) {
+            final long next = getNext(page);
+            if (page < newEnd) {
+                if (lastKept == 0)
+                    headerBuf.fileHeaderSetFirstOf(Magic.FREE_PAGE, page);
+                else if (getNext(lastKept) != page)
+                    setNext(lastKept, page);
+                lastKept = page;
+            }
+            page = next;
+        }
+        if (lastKept == 0)
+            headerBuf.fileHeaderSetFirstOf(Magic.FREE_PAGE, 0);
+        else if (getNext(lastKept) != 0)
+            setNext(lastKept, 0);
+
+        headerBuf.fileHeaderSetLastOf(Magic.FREE_PAGE, newEnd);
+        return removed;
+    }
+
+    private void setNext(long page, long next) throws IOException {
+        PageIo pageHdr = file.get(page);
+        pageHdr.pageHeaderSetNext(next);
+        file.release(page, true);
+    }
+
     /**
      * Returns the page following the indicated page
      */
     long getNext(long page) throws IOException {
-        try {
-            return file.get(page).pageHeaderGetNext();
-        } finally {
-            file.release(page, false);
-        }
+        return file.read(page).pageHeaderGetNext();
     }
 
     /**
@@ -206,7 +263,30 @@ final class PageManager {
         // and obtain it again
         headerBuf = file.get(0);
         headerBuf.ensureHeapBuffer();
-        headerBuf.fileHeaderCheckHead(headerBuf.readShort(0) == 0);
+        final boolean isNew = headerBuf.readShort(0) == 0;
+        headerBuf.fileHeaderCheckHead(isNew);
+        if (isNew)
+            headerBuf.fileHeaderSetPageSizeShift(file.pageSizeShift);
+    }
+
+    /**
+     * Same as {@link #commit()}, but transaction log is written in background.
+     *
+     * @return future which completes when transaction is durable
+     */
+    Future<Void> commitAsync() throws IOException {
+        // write the header out
+        file.release(headerBuf);
+        Future<Void> ret = file.commitAsync();
+
+        // and obtain it again
+        headerBuf = file.get(0);
+        headerBuf.ensureHeapBuffer();
+        final boolean isNew = headerBuf.readShort(0) == 0;
+        headerBuf.fileHeaderCheckHead(isNew);
+        if (isNew)
+            headerBuf.fileHeaderSetPageSizeShift(file.pageSizeShift);
+        return ret;
     }
 
     /**
@@ -220,7 +300,10 @@ final class PageManager {
         // and obtain it again
         headerBuf = file.get(0);
         headerBuf.ensureHeapBuffer();
-        headerBuf.fileHeaderCheckHead(headerBuf.readShort(0) == 0);
+        final boolean isNew = headerBuf.readShort(0) == 0;
+        headerBuf.fileHeaderCheckHead(isNew);
+        if (isNew)
+            headerBuf.fileHeaderSetPageSizeShift(file.pageSizeShift);
     }
 
     /**
@@ -0,0 +1,57 @@
+package net.kotek.jdbm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Committed state of {@link PageFile} at the time snapshot was created.
+ * <p/>
+ * PageFile copies committed content of page into snapshot before page is modified,
+ * other pages are read directly from storage. Snapshot reads do not touch PageFile
+ * structures, so they can run in other threads while writer is modifying pages.
+ */
+final class PageSnapshot {
+
+    private final PageFile owner;
+
+    /** committed content of pages modified after snapshot was created */
+    private LongHashMap<byte[]> pages = new LongHashMap<byte[]>();
+
+    PageSnapshot(PageFile owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Remembers page content, if this page was not preserved yet.
+     */
+    synchronized void preserve(long pageId, byte[] data) {
+        if (pages != null && pages.get(pageId) == null)
+            pages.put(pageId, data);
+    }
+
+    /**
+     * Returns page content as it was when snapshot was created. Returned page must not be modified.
+     * <p/>
+     * Lookup and storage read are done under lock, so page can not be preserved and overwritten in meantime.
+     */
+    synchronized PageIo get(long pageId) throws IOException {
+        if (pages == null)
+            throw new IllegalStateException("snapshot was closed");
+        byte[] data = pages.get(pageId);
+        if (data == null)
+            data = owner.readCommitted(pageId);
+        return new PageIo(pageId, ByteBuffer.wrap(data).asReadOnlyBuffer());
+    }
+
+    synchronized boolean isClosed() {
+        return pages == null;
+    }
+
+    /**
+     * Releases preserved pages, PageFile stops copying pages into this snapshot.
+     */
+    synchronized void close() {
+        pages = null;
+        owner.removeSnapshot(this);
+    }
+}
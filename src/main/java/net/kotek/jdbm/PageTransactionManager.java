@@ -17,14 +17,20 @@
 
 package net.kotek.jdbm;
 
-import javax.crypto.Cipher;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOError;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.*;
 
 /**
  * This class manages the transaction log that belongs to every
@@ -36,6 +42,9 @@ import java.util.TreeSet;
 // should start with lg9 instead of lg0!
 
 final class PageTransactionManager {
+
+    /** range count which marks full page in log */
+    private static final short FULL_PAGE = -1;
     private PageFile owner;
 
     // streams for transaction log.
@@ -52,8 +61,48 @@ final class PageTransactionManager {
     private int curTxn = -1;
 
     private Storage storage;
-    private Cipher cipherIn;
-    private Cipher cipherOut;
+    private PageCipher cipher;
+
+    /**
+     * Background thread which appends asynchronously committed transactions into log.
+     * It is created lazily with first async commit.
+     */
+    private ExecutorService asyncWriter;
+
+    /**
+     * Log write which is not finished yet. Log is not touched by other operations until it finishes.
+     */
+    private Future<Void> asyncPending;
+
+    /**
+     * Log size in bytes after which log is sealed and handed to background checkpointer.
+     * Zero means that log is applied to data file by committing thread.
+     */
+    private long checkpointThreshold = 0;
+
+    /** number of bytes written into current log, used only with checkpointer */
+    private long logSize;
+
+    /**
+     * Pages written into current log since it was opened. Each entry holds one transaction count,
+     * so page stays in memory until log is applied to data file.
+     */
+    private ArrayList<PageIo> logPages = new ArrayList<PageIo>();
+
+    /**
+     * Newest logged content of pages in current log (encrypted if encryption is enabled).
+     * Checkpointer writes this content, because PageIo may already contain changes from next transaction.
+     */
+    private TreeMap<Long, byte[]> logImages = new TreeMap<Long, byte[]>();
+
+    /** Background thread which applies sealed log to data file. Created lazily.*/
+    private ExecutorService checkpointer;
+
+    /** Checkpoint which is not finished yet.*/
+    private Future<Void> checkpointPending;
+
+    /** Pages from sealed log, released after checkpoint finishes */
+    private ArrayList<PageIo> checkpointPages;
 
     /**
      * Instantiates a transaction manager instance. If recovery
@@ -61,14 +110,12 @@ final class PageTransactionManager {
      *
      * @param owner     the PageFile instance that owns this transaction mgr.
      * @param storage
-     * @param cipherIn
-     * @param cipherOut
+     * @param cipher    encrypts logged pages, may be null
      */
-    PageTransactionManager(PageFile owner, Storage storage, Cipher cipherIn, Cipher cipherOut) throws IOException {
+    PageTransactionManager(PageFile owner, Storage storage, PageCipher cipher) throws IOException {
         this.owner = owner;
         this.storage = storage;
-        this.cipherIn = cipherIn;
-        this.cipherOut = cipherOut;
+        this.cipher = cipher;
         recover();
         open();
     }
@@ -83,7 +130,101 @@ final class PageTransactionManager {
      */
     public void synchronizeLog()
             throws IOException {
-        synchronizeLogFromMemory();
+        if (checkpointThreshold > 0)
+            checkpointNow();
+        else
+            synchronizeLogFromMemory();
+    }
+
+    /**
+     * Enables background checkpointer. Committed transactions are appended into log until its size
+     * reaches threshold. Log is then sealed and applied to data file by background thread,
+     * while new transactions are written into fresh log.
+     *
+     * @param threshold log size in bytes, zero disables checkpointer
+     */
+    void setCheckpointThreshold(long threshold) throws IOException {
+        if (threshold < 0)
+            throw new IllegalArgumentException();
+        synchronizeLog();
+        checkpointThreshold = threshold;
+    }
+
+    /**
+     * Waits for running checkpoint and applies current log to data file on this thread.
+     */
+    private void checkpointNow() throws IOException {
+        close();
+        if (checkpointPending != null)
+            finishCheckpoint();
+        writeImages(logImages);
+        owner.sync();
+        discardPages(logPages);
+        logPages = new ArrayList<PageIo>();
+        logImages = new TreeMap<Long, byte[]>();
+        logSize = 0;
+        txn = null;
+        open();
+    }
+
+    /**
+     * Seals current log and starts applying it to data file in background.
+     */
+    private void startCheckpoint() throws IOException {
+        close();
+        storage.sealTransactionLog();
+        final TreeMap<Long, byte[]> images = logImages;
+        checkpointPages = logPages;
+        logImages = new TreeMap<Long, byte[]>();
+        logPages = new ArrayList<PageIo>();
+        logSize = 0;
+        open();
+
+        if (checkpointer == null) {
+            checkpointer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "JDBM checkpointer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        checkpointPending = checkpointer.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                writeImages(images);
+                storage.sync();
+                storage.deleteSealedTransactionLog();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits until running checkpoint finishes and releases pages it applied.
+     * Pages stay in memory if checkpoint failed.
+     */
+    private void finishCheckpoint() throws IOException {
+        try {
+            checkpointPending.get();
+        } catch (InterruptedException e) {
+            throw new IOError(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Checkpoint failed", e.getCause());
+        } finally {
+            checkpointPending = null;
+        }
+        discardPages(checkpointPages);
+        checkpointPages = null;
+    }
+
+    /**
+     * Writes logged page images into data file, ordered by page id.
+     */
+    private void writeImages(TreeMap<Long, byte[]> images) throws IOException {
+        for (Map.Entry<Long, byte[]> e : images.entrySet()) {
+            storage.write(e.getKey(), ByteBuffer.wrap(e.getValue()));
+        }
     }
 
 
@@ -132,19 +273,44 @@ final class PageTransactionManager {
 
         oos = storage.openTransactionLog();
         oos.writeShort(Magic.LOGFILE_HEADER);
+        oos.writeByte(owner.pageSizeShift);
         oos.flush();
         curTxn = -1;
     }
 
     /**
-     * Startup recovery on all files
+     * Startup recovery on all files. Sealed log is older, so it is replayed first.
      */
     private void recover() throws IOException {
-
+        DataInputStream sealed = storage.readSealedTransactionLog();
         DataInputStream ois = storage.readTransactionLog();
 
         // if transaction log is empty, or does not exist
-        if (ois == null) return;
+        if (sealed == null && ois == null) return;
+
+        if (sealed != null)
+            replay(sealed);
+        if (ois != null)
+            replay(ois);
+        owner.sync();
+        storage.deleteSealedTransactionLog();
+        storage.deleteTransactionLog();
+    }
+
+    /**
+     * Writes all transactions from log into data file and closes log.
+     */
+    private void replay(DataInputStream ois) throws IOException {
+        final int pageSizeShift;
+        try {
+            pageSizeShift = ois.readByte();
+        } catch (EOFException e) {
+            // log contains only header, there is nothing to replay
+            ois.close();
+            return;
+        }
+        if (pageSizeShift != owner.pageSizeShift)
+            throw new IOException("Transaction log was written with different page size");
 
         while (true) {
             ArrayList<PageIo> pages = null;
@@ -152,9 +318,7 @@ final class PageTransactionManager {
                 int size = LongPacker.unpackInt(ois);
                 pages = new ArrayList<PageIo>(size);
                 for (int i = 0; i < size; i++) {
-                    PageIo b = new PageIo();
-                    b.readExternal(ois, cipherOut);
-                    pages.add(b);
+                    pages.add(readPage(ois));
                 }
             } catch (IOException e) {
                 // corrupted logfile, ignore rest of transactions
@@ -163,9 +327,65 @@ final class PageTransactionManager {
             synchronizePages(pages, false);
 
         }
-        owner.sync();
         ois.close();
-        storage.deleteTransactionLog();
+    }
+
+    /**
+     * Reads single page from log. Logged ranges are applied on page content from data file,
+     * which already contains all previous transactions from log.
+     */
+    private PageIo readPage(DataInputStream in) throws IOException {
+        long pageId = in.readLong();
+        int rangeCount = in.readShort();
+        byte[] data = new byte[owner.pageSize];
+        if (rangeCount == FULL_PAGE) {
+            in.readFully(data);
+            if (cipher != null && !Utils.allZeros(data))
+                cipher.decrypt(pageId, data, data.length, data);
+            return new PageIo(pageId, data);
+        }
+
+        ByteBuffer b = storage.read(pageId).duplicate();
+        b.position(0);
+        b.get(data, 0, owner.pageSize);
+        for (int i = 0; i < rangeCount; i++) {
+            int start = in.readUnsignedShort();
+            int len = in.readUnsignedShort();
+            in.readFully(data, start, len);
+        }
+        return new PageIo(pageId, data);
+    }
+
+    /**
+     * Writes single page into log. If modified ranges are known, only those are written.
+     *
+     * @param ranges modified ranges as start/end pairs, or null to write full page
+     */
+    private static void writePage(DataOutput out, long pageId, int[] ranges, byte[] data) throws IOException {
+        out.writeLong(pageId);
+        if (ranges == null) {
+            out.writeShort(FULL_PAGE);
+            out.write(data);
+            return;
+        }
+        out.writeShort(ranges.length / 2);
+        for (int i = 0; i < ranges.length; i += 2) {
+            out.writeShort(ranges[i]);
+            out.writeShort(ranges[i + 1] - ranges[i]);
+            out.write(data, ranges[i], ranges[i + 1] - ranges[i]);
+        }
+    }
+
+    /**
+     * Returns number of bytes page takes in log.
+     */
+    private int pageLogSize(int[] ranges) {
+        if (ranges == null)
+            return 10 + owner.pageSize;
+        int size = 10;
+        for (int i = 0; i < ranges.length; i += 2)
+            size += 4 + ranges[i + 1] - ranges[i];
+        return size;
     }
 
     /**
@@ -216,10 +436,20 @@ final class PageTransactionManager {
      * clean out slots.
      */
     void start() throws IOException {
-        curTxn++;
-        if (curTxn == 1) {
-            synchronizeLogFromMemory();
-            curTxn = 0;
+        awaitAsyncCommit();
+        if (checkpointThreshold > 0) {
+            // finished checkpoint releases pages, if checkpointer is too slow, wait for it
+            if (checkpointPending != null &&
+                    (checkpointPending.isDone() || logSize > 2 * checkpointThreshold))
+                finishCheckpoint();
+            if (checkpointPending == null && logSize >= checkpointThreshold)
+                startCheckpoint();
+        } else {
+            curTxn++;
+            if (curTxn == 1) {
+                synchronizeLogFromMemory();
+                curTxn = 0;
+            }
         }
         txn = new ArrayList();
     }
@@ -236,12 +466,25 @@ final class PageTransactionManager {
      * Commits the transaction to the log file.
      */
     void commit() throws IOException {
-        LongPacker.packInt(oos, txn.size());
-        for (PageIo page : txn) {
-            page.writeExternal(oos, cipherIn);
+        if (checkpointThreshold > 0) {
+            long[] pageIds = pageIds();
+            int[][] ranges = dirtyRanges();
+            byte[][] pageData = capturePages();
+            logged(pageIds, ranges, pageData);
+            writeTransaction(pageIds, ranges, pageData);
+            setClean(txn);
+            return;
         }
 
-
+        //log is not kept in memory, so pages are written directly, encrypted pages reuse single buffer
+        long[] pageIds = pageIds();
+        int[][] ranges = dirtyRanges();
+        LongPacker.packInt(oos, pageIds.length);
+        for (int i = 0; i < pageIds.length; i++) {
+            PageIo page = txn.get(i);
+            byte[] data = cipher != null ? cipher.encryptToBuffer(pageIds[i], page.getData()) : page.getByteArray();
+            writePage(oos, pageIds[i], ranges[i], data);
+        }
         sync();
 
         // set clean flag to indicate pages have been written to log
@@ -252,6 +495,117 @@ final class PageTransactionManager {
 //        oos = new DataOutputStream(new BufferedOutputStream(fos));
     }
 
+    /**
+     * Commits the transaction to the log file in background thread.
+     * Page content is copied first, so pages can be modified by next transaction
+     * while log is being written. Next operation on log waits until this write finishes.
+     *
+     * @return future which completes when transaction is durable
+     */
+    Future<Void> commitAsync() throws IOException {
+        final long[] pageIds = pageIds();
+        final int[][] ranges = dirtyRanges();
+        final byte[][] pageData = capturePages();
+        if (checkpointThreshold > 0)
+            logged(pageIds, ranges, pageData);
+
+        // pages were captured, so they are clean from now on
+        setClean(txn);
+
+        if (asyncWriter == null) {
+            asyncWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "JDBM async commit writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        asyncPending = asyncWriter.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                writeTransaction(pageIds, ranges, pageData);
+                return null;
+            }
+        });
+        return asyncPending;
+    }
+
+    private long[] pageIds() {
+        long[] pageIds = new long[txn.size()];
+        for (int i = 0; i < pageIds.length; i++)
+            pageIds[i] = txn.get(i).getPageId();
+        return pageIds;
+    }
+
+    /**
+     * Returns modified ranges of pages in current transaction. Encrypted pages are always logged whole,
+     * since cipher works on full page.
+     */
+    private int[][] dirtyRanges() {
+        int[][] ranges = new int[txn.size()][];
+        if (cipher == null) {
+            for (int i = 0; i < ranges.length; i++)
+                ranges[i] = txn.get(i).getDirtyRanges();
+        }
+        return ranges;
+    }
+
+    /**
+     * Copies content of pages in current transaction, in the form they are written into log.
+     */
+    private byte[][] capturePages() throws IOException {
+        byte[][] pageData = new byte[txn.size()][];
+        for (int i = 0; i < pageData.length; i++) {
+            PageIo page = txn.get(i);
+            if (cipher != null) {
+                pageData[i] = new byte[owner.pageSize];
+                cipher.encrypt(page.getPageId(), page.getByteArray(), owner.pageSize, pageData[i]);
+            } else
+                pageData[i] = page.getByteArray().clone();
+        }
+        return pageData;
+    }
+
+    /**
+     * Appends transaction into log and syncs it.
+     */
+    private void writeTransaction(long[] pageIds, int[][] ranges, byte[][] pageData) throws IOException {
+        LongPacker.packInt(oos, pageIds.length);
+        for (int i = 0; i < pageIds.length; i++) {
+            writePage(oos, pageIds[i], ranges[i], pageData[i]);
+        }
+        sync();
+    }
+
+    /**
+     * Remembers committed transaction, so checkpointer can apply it later.
+     */
+    private void logged(long[] pageIds, int[][] ranges, byte[][] pageData) {
+        logPages.addAll(txn);
+        for (int i = 0; i < pageIds.length; i++) {
+            logImages.put(pageIds[i], pageData[i]);
+            logSize += pageLogSize(ranges[i]);
+        }
+    }
+
+    /**
+     * Waits until pending asynchronous commit is written into log.
+     */
+    private void awaitAsyncCommit() throws IOException {
+        if (asyncPending == null)
+            return;
+        try {
+            asyncPending.get();
+        } catch (InterruptedException e) {
+            throw new IOError(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Asynchronous commit failed", e.getCause());
+        } finally {
+            asyncPending = null;
+        }
+    }
+
     /**
      * Flushes and syncs
      */
@@ -264,14 +618,19 @@ final class PageTransactionManager {
      * logs.
      */
     void shutdown() throws IOException {
-        synchronizeLogFromMemory();
+        synchronizeLog();
         close();
+        if (asyncWriter != null)
+            asyncWriter.shutdown();
+        if (checkpointer != null)
+            checkpointer.shutdown();
     }
 
     /**
      * Closes open files.
      */
     private void close() throws IOException {
+        awaitAsyncCommit();
         sync();
         oos.close();
         oos = null;
@@ -282,6 +641,18 @@ final class PageTransactionManager {
      * Used for testing purposes only.
      */
     void forceClose() throws IOException {
+        awaitAsyncCommit();
+        if (asyncWriter != null)
+            asyncWriter.shutdown();
+        if (checkpointer != null) {
+            //let running checkpoint finish, storage is closed after this
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new IOError(e);
+            }
+        }
         oos.close();
         oos = null;
     }
@@ -294,6 +665,16 @@ final class PageTransactionManager {
     void synchronizeLogFromDisk() throws IOException {
         close();
 
+        if (checkpointPending != null)
+            finishCheckpoint();
+        if (checkpointThreshold > 0) {
+            // current transaction pages are already in logPages
+            discardPages(logPages);
+            logPages = new ArrayList<PageIo>();
+            logImages = new TreeMap<Long, byte[]>();
+            logSize = 0;
+            txn = null;
+        }
 
         if (txn != null){
             discardPages(txn);
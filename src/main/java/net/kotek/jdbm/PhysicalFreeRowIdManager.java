@@ -26,7 +26,7 @@ import java.util.Arrays;
 final class PhysicalFreeRowIdManager {
 
     /** maximal record size which can be hold. If record crosses multiple pages, it is trimmed before added to free list */
-    static final int MAX_REC_SIZE = Storage.PAGE_SIZE *2;
+    final int maxRecSize;
 
     /** where data on root page starts, there are no extra data in page header */
     static final int ROOT_HEADER_SIZE = Magic.PAGE_HEADER_SIZE;
@@ -37,25 +37,25 @@ final class PhysicalFreeRowIdManager {
     /**  number of recids on slot page */
     static final int OFFSET_SLOT_PAGE_REC_COUNT = Magic.PAGE_HEADER_SIZE;
 
-    static final int SLOT_PAGE_REC_NUM = (Storage.PAGE_SIZE - SLOT_PAGE_HEADER_SIZE)/6;
-
     /** pointer to next slo page in slot page header */
     static final int OFFSET_SLOT_PAGE_NEXT = Magic.PAGE_HEADER_SIZE + Magic.SZ_SHORT;
 
     /** number of size slots held in root page */
-    static final int MAX_RECIDS_PER_PAGE = (Storage.PAGE_SIZE -ROOT_HEADER_SIZE-6) / 6; //6 is size of page pointer
+    final int maxRecidsPerPage;
 
     /** free records are grouped into slots by record size. Here is max diff in record size per group */
-    static final int ROOT_SLOT_SIZE = 1+MAX_REC_SIZE/ MAX_RECIDS_PER_PAGE;
+    final int rootSlotSize;
 
 
     protected final PageFile file;
 
     protected final PageManager pageman;
 
-    /** list of free phys slots in current transaction. First two bytes are size, last 6 bytes are recid*/
+    /** list of free phys slots in current transaction. First two bytes are size slot, last 6 bytes are recid*/
     private long[] inTrans = new long[8];
     private int inTransSize = 0;
+    /** true if records in current transaction are sorted by size slot, so record for relocation can be found fast */
+    private boolean inTransSorted = false;
 
     /**
      * Creates a new instance using the indicated record file and page manager.
@@ -63,13 +63,16 @@ final class PhysicalFreeRowIdManager {
     PhysicalFreeRowIdManager(PageFile file, PageManager pageman) throws IOException {
         this.file = file;
         this.pageman = pageman;
+        this.maxRecSize = file.pageSize * 2;
+        this.maxRecidsPerPage = (file.pageSize -ROOT_HEADER_SIZE-6) / 6; //6 is size of page pointer
+        this.rootSlotSize = 1+maxRecSize/ maxRecidsPerPage;
     }
 
     long getFreeRecord(final int size) throws IOException {
-        if(size >= MAX_REC_SIZE) return 0;
+        if(size >= maxRecSize) return 0;
 
         final PageIo root = getRootPage();
-        final int  rootPageOffset = sizeToRootOffset(size+ ROOT_SLOT_SIZE);
+        final int  rootPageOffset = sizeToRootOffset(size+ rootSlotSize);
         final long slotPageId = root.readSixByteLong(rootPageOffset);
 
         if(slotPageId==0){
@@ -109,8 +112,8 @@ final class PhysicalFreeRowIdManager {
         return recid;
     }
 
-    static final  int sizeToRootOffset(int size) {
-        return ROOT_HEADER_SIZE + 6 * (size/ROOT_SLOT_SIZE);
+    final  int sizeToRootOffset(int size) {
+        return ROOT_HEADER_SIZE + 6 * (size/rootSlotSize);
     }
 
 
@@ -122,10 +125,197 @@ final class PhysicalFreeRowIdManager {
         if(inTransSize==inTrans.length){
             inTrans = Arrays.copyOf(inTrans, inTrans.length * 2);
         }
-        inTrans[inTransSize] = rowid + (((long)size)<<48);
+        //size may not fit into two bytes with large pages, so its slot is stored instead
+        final long value = rowid + (((long)(size/rootSlotSize))<<48);
+        if (inTransSorted && inTransSize > 0 && value < inTrans[inTransSize - 1]) {
+            //keep records sorted while they are taken by takeFreeRecord
+            int pos = Arrays.binarySearch(inTrans, 0, inTransSize, value);
+            if (pos < 0)
+                pos = -pos - 1;
+            System.arraycopy(inTrans, pos, inTrans, pos + 1, inTransSize - pos);
+            inTrans[pos] = value;
+        } else {
+            inTrans[inTransSize] = value;
+        }
         inTransSize++;
     }
 
+    /**
+     * Takes free record which was not committed yet and can hold record of given length.
+     * It is used to move records towards start of file, so only record which ends before given page is returned.
+     * Smallest suitable record is taken, space left in larger record is put back on free list if possible.
+     *
+     * @param length length of moved record
+     * @param limitPage returned record must not occupy this page or any following page
+     * @return recid, or 0 if no suitable record exists
+     */
+    long takeFreeRecord(final int length, final long limitPage) throws IOException {
+        final int size = RecordHeader.roundAvailableSize(length);
+        if (size >= maxRecSize)
+            return 0;
+        if (!inTransSorted) {
+            Arrays.sort(inTrans, 0, inTransSize);
+            inTransSorted = true;
+        }
+        //records in this slot may be smaller, their size is checked
+        final long minSlot = size / rootSlotSize;
+        int pos = Arrays.binarySearch(inTrans, 0, inTransSize, minSlot << 48);
+        if (pos < 0)
+            pos = -pos - 1;
+        for (; pos < inTransSize; pos++) {
+            final long recid = inTrans[pos] & 0x0000FFFFFFFFFFFFL;
+            if (recid == 0 || recid >>> file.pageSizeShift >= limitPage)
+                continue;
+            final long pageId = recid >>> file.pageSizeShift;
+            final int offset = (int) (recid & file.offsetMask);
+            final PageIo page = file.get(pageId);
+            final int availSize = RecordHeader.getAvailableSize(page, offset);
+            final int next = offset + RecordHeader.SIZE + size;
+            final int rest = availSize - size - RecordHeader.SIZE;
+            final boolean split = next <= file.pageSize - RecordHeader.SIZE && rest >= 16
+                    && RecordHeader.roundAvailableSize(rest) == rest;
+            if (availSize < size
+                    //free record spans at most two pages
+                    || offset + RecordHeader.SIZE + availSize > file.pageSize && pageman.getNext(pageId) >= limitPage
+                    //difference between available and current size is limited, see RecordHeader.setCurrentSize
+                    || !split && availSize - length > RecordHeader.MAX_SIZE_SPACE) {
+                file.release(page);
+                continue;
+            }
+
+            //taken record is only zeroed, so array stays sorted
+            inTrans[pos] &= 0xFFFF000000000000L;
+            if (split) {
+                RecordHeader.setAvailableSize(page, offset, size);
+                RecordHeader.setCurrentSize(page, next, 0);
+                RecordHeader.setAvailableSize(page, next, rest);
+                file.release(pageId, true);
+                putFreeRecord((pageId << file.pageSizeShift) + next, rest);
+            } else {
+                file.release(page);
+            }
+            return recid;
+        }
+        return 0;
+    }
+
+    /**
+     * Merges free records which follow each other on the same page into single record, so larger records
+     * can be moved into them. Only records which were not committed yet are merged.
+     */
+    void mergeFreeRecords() throws IOException {
+        final long[] recids = new long[inTransSize];
+        int count = 0;
+        for (int i = 0; i < inTransSize; i++) {
+            final long recid = inTrans[i] & 0x0000FFFFFFFFFFFFL;
+            if (recid != 0)
+                recids[count++] = recid;
+        }
+        Arrays.sort(recids, 0, count);
+
+        clearFreeInTrans();
+        for (int i = 0; i < count; ) {
+            final long recid = recids[i];
+            final long pageId = recid >>> file.pageSizeShift;
+            final int offset = (int) (recid & file.offsetMask);
+            final PageIo page = file.get(pageId);
+            int size = RecordHeader.getAvailableSize(page, offset);
+            int next = i + 1;
+            for (; next < count; next++) {
+                final int nextOffset = offset + RecordHeader.SIZE + size;
+                if (nextOffset > file.pageSize - RecordHeader.SIZE
+                        || recids[next] != (pageId << file.pageSizeShift) + nextOffset)
+                    break;
+                final int merged = size + RecordHeader.SIZE + RecordHeader.getAvailableSize(page, nextOffset);
+                //large size is stored with lower precision
+                if (RecordHeader.roundAvailableSize(merged) != merged)
+                    break;
+                size = merged;
+            }
+            if (next > i + 1) {
+                RecordHeader.setAvailableSize(page, offset, size);
+                file.release(pageId, true);
+            } else {
+                file.release(page);
+            }
+            putFreeRecord(recid, size);
+            i = next;
+        }
+    }
+
+    /**
+     * Moves free records which start before given page from slot pages into current transaction,
+     * so they can be taken by {@link #takeFreeRecord(int, long)}. Only limited number of slot pages is read
+     * and other free records stay on their pages. Record can be moved into larger free record,
+     * so demand which is not satisfied in its slot is carried to following slots.
+     *
+     * @param limitPage only records on pages before this page are taken
+     * @param demand number of records requested in each size slot
+     * @param maxPages maximal number of slot pages read
+     * @return number of taken records
+     */
+    int takeFreeRecords(final long limitPage, final int[] demand, final int maxPages) throws IOException {
+        final long rootPageId = pageman.getFirst(Magic.FREEPHYSIDS_ROOT_PAGE);
+        if (rootPageId == 0)
+            return 0;
+        final PageIo root = file.get(rootPageId);
+        int taken = 0;
+        int pages = 0;
+        int pending = 0;
+        for (int slot = 0; slot < maxRecidsPerPage && pages < maxPages; slot++) {
+            if (slot < demand.length)
+                pending += demand[slot];
+            final int rootPageOffset = ROOT_HEADER_SIZE + 6 * slot;
+            long prevSlotPageId = 0;
+            long slotPageId = pending == 0 ? 0 : root.readSixByteLong(rootPageOffset);
+            while (slotPageId != 0 && pending > 0 && pages < maxPages) {
+                pages++;
+                final PageIo slotPage = file.get(slotPageId);
+                final long nextSlotPageId = slotPage.readSixByteLong(OFFSET_SLOT_PAGE_NEXT);
+                final short recidCount = slotPage.readShort(OFFSET_SLOT_PAGE_REC_COUNT);
+                short kept = 0;
+                for (int i = 0; i < recidCount; i++) {
+                    final long recid = slotPage.readSixByteLong(i * 6 + SLOT_PAGE_HEADER_SIZE);
+                    if (pending > 0 && recid >>> file.pageSizeShift < limitPage) {
+                        if (inTransSize == inTrans.length)
+                            inTrans = Arrays.copyOf(inTrans, inTrans.length * 2);
+                        inTrans[inTransSize++] = recid + (((long) slot) << 48);
+                        inTransSorted = false;
+                        taken++;
+                        pending--;
+                    } else {
+                        slotPage.writeSixByteLong(kept * 6 + SLOT_PAGE_HEADER_SIZE, recid);
+                        kept++;
+                    }
+                }
+                if (kept == recidCount) {
+                    file.release(slotPage);
+                    prevSlotPageId = slotPageId;
+                } else if (kept > 0) {
+                    for (int i = kept; i < recidCount; i++)
+                        slotPage.writeSixByteLong(i * 6 + SLOT_PAGE_HEADER_SIZE, 0);
+                    slotPage.writeShort(OFFSET_SLOT_PAGE_REC_COUNT, kept);
+                    file.release(slotPage);
+                    prevSlotPageId = slotPageId;
+                } else {
+                    //unlink empty page, getFreeRecord expects only non empty pages
+                    file.release(slotPage);
+                    if (prevSlotPageId == 0) {
+                        root.writeSixByteLong(rootPageOffset, nextSlotPageId);
+                    } else {
+                        final PageIo prev = file.get(prevSlotPageId);
+                        prev.writeSixByteLong(OFFSET_SLOT_PAGE_NEXT, nextSlotPageId);
+                        file.release(prev);
+                    }
+                    pageman.free(Magic.FREEPHYSIDS_PAGE, slotPageId);
+                }
+                slotPageId = nextSlotPageId;
+            }
+        }
+        file.release(root);
+        return taken;
+    }
+
 
     public void commit() throws IOException {
 
@@ -139,10 +329,12 @@ final class PhysicalFreeRowIdManager {
         final PageIo root = getRootPage();
         PageIo slotPage = null;
         for(int rowIdPos = 0; rowIdPos<inTransSize; rowIdPos++){
-                final int size = (int) (inTrans[rowIdPos] >>>48);
+                final int slot = (int) (inTrans[rowIdPos] >>>48);
 
                 final long rowid = inTrans[rowIdPos] & 0x0000FFFFFFFFFFFFL;
-                final int rootPageOffset = sizeToRootOffset(size);
+                if (rowid == 0)
+                    continue; //was taken by takeFreeRecord
+                final int rootPageOffset = ROOT_HEADER_SIZE + 6 * slot;
 
                 long slotPageId  = root.readSixByteLong(rootPageOffset);
                 if(slotPageId == 0){
@@ -160,7 +352,7 @@ final class PhysicalFreeRowIdManager {
                     throw new InternalError();
 
                 short recidCount = slotPage.readShort(OFFSET_SLOT_PAGE_REC_COUNT);
-                if(recidCount== MAX_RECIDS_PER_PAGE){
+                if(recidCount== maxRecidsPerPage){
                     file.release(slotPage);
                     //allocate new slot page and update links
                     final long newSlotPageId = pageman.allocate(Magic.FREEPHYSIDS_PAGE);
@@ -188,6 +380,54 @@ final class PhysicalFreeRowIdManager {
     }
 
 
+    /**
+     * Moves all free records from slot pages into current transaction and releases slot pages and root page.
+     * Records are written into newly allocated pages on commit, so free lists do not block shrinking
+     * file if their pages are at end of file.
+     */
+    void detach() throws IOException {
+        final long rootPageId = pageman.getFirst(Magic.FREEPHYSIDS_ROOT_PAGE);
+        if (rootPageId == 0)
+            return;
+        final PageIo root = file.read(rootPageId);
+        for (int slot = 0; slot < maxRecidsPerPage; slot++) {
+            long slotPageId = root.readSixByteLong(ROOT_HEADER_SIZE + 6 * slot);
+            while (slotPageId != 0) {
+                final PageIo slotPage = file.read(slotPageId);
+                final long nextSlotPageId = slotPage.readSixByteLong(OFFSET_SLOT_PAGE_NEXT);
+                final short recidCount = slotPage.readShort(OFFSET_SLOT_PAGE_REC_COUNT);
+                for (int i = 0; i < recidCount; i++) {
+                    if (inTransSize == inTrans.length)
+                        inTrans = Arrays.copyOf(inTrans, inTrans.length * 2);
+                    inTrans[inTransSize++] = slotPage.readSixByteLong(i * 6 + SLOT_PAGE_HEADER_SIZE) + (((long) slot) << 48);
+                    inTransSorted = false;
+                }
+                pageman.free(Magic.FREEPHYSIDS_PAGE, slotPageId);
+                slotPageId = nextSlotPageId;
+            }
+        }
+        pageman.free(Magic.FREEPHYSIDS_ROOT_PAGE, rootPageId);
+    }
+
+    /**
+     * Removes free records which were not committed yet.
+     *
+     * @param fromPage records on this page and on following pages are removed
+     * @param recids other removed records, sorted
+     * @param recidCount number of records in array
+     */
+    void removeFreeRecords(long fromPage, long[] recids, int recidCount) {
+        int kept = 0;
+        for (int i = 0; i < inTransSize; i++) {
+            final long recid = inTrans[i] & 0x0000FFFFFFFFFFFFL;
+            if (recid == 0 || recid >>> file.pageSizeShift >= fromPage || Arrays.binarySearch(recids, 0, recidCount, recid) >= 0)
+                continue;
+            inTrans[kept++] = inTrans[i];
+        }
+        inTransSize = kept;
+    }
+
+
     public void rollback() {
         clearFreeInTrans();
     }
@@ -196,6 +436,7 @@ final class PhysicalFreeRowIdManager {
         if(inTrans.length>128)
             inTrans = new long[8];
         inTransSize = 0;
+        inTransSorted = false;
     }
 
     /** return free phys row page. If not found create it */
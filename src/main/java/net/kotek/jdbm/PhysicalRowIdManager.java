@@ -17,8 +17,7 @@
 package net.kotek.jdbm;
 
 import java.io.IOException;
-
-import static net.kotek.jdbm.Storage.*;
+import java.util.Arrays;
 
 /**
  * This class manages physical row ids, and their data.
@@ -29,10 +28,11 @@ final class PhysicalRowIdManager {
     final private PageFile file;
     final private PageManager pageman;
     final PhysicalFreeRowIdManager freeman;
-    static final private short DATA_PER_PAGE = (short) (PAGE_SIZE - Magic.DATA_PAGE_O_DATA);
+    final private int pageSize;
+    final private int dataPerPage;
     //caches offset after last allocation. So we dont have to iterate throw page every allocation
     private long cachedLastAllocatedRecordPage = Long.MIN_VALUE;
-    private short cachedLastAllocatedRecordOffset = Short.MIN_VALUE;
+    private int cachedLastAllocatedRecordOffset = Integer.MIN_VALUE;
 
     /**
      * Creates a new rowid manager using the indicated record file. and page manager.
@@ -41,6 +41,8 @@ final class PhysicalRowIdManager {
         this.file = file;
         this.pageman = pageManager;
         this.freeman = new PhysicalFreeRowIdManager(file, pageManager);
+        this.pageSize = file.pageSize;
+        this.dataPerPage = pageSize - Magic.DATA_PAGE_O_DATA;
 
     }
 
@@ -59,13 +61,27 @@ final class PhysicalRowIdManager {
         return retval;
     }
 
+    /**
+     * Inserts record after last record in store. Free list is not searched,
+     * so records inserted by batch are placed next to each other.
+     *
+     * @return physical rowid of new record
+     */
+    long insertAtEnd(final byte[] data, final int start, final int length) throws IOException {
+        if (length < 1)
+            throw new IllegalArgumentException("Length is <1");
+        final long retval = allocNew(RecordHeader.roundAvailableSize(length), pageman.getLast(Magic.USED_PAGE));
+        write(retval, data, start, length);
+        return retval;
+    }
+
     /**
      * Updates an existing record. Returns the possibly changed physical rowid.
      */
     long update(long rowid, final byte[] data, final int start, final int length) throws IOException {
         // fetch the record header
-        PageIo page = file.get(rowid>>> Storage.PAGE_SIZE_SHIFT);
-        short head =  (short) (rowid & Storage.OFFSET_MASK);
+        PageIo page = file.get(rowid>>> file.pageSizeShift);
+        int head =  (int) (rowid & file.offsetMask);
         int availSize = RecordHeader.getAvailableSize(page, head);
         if (length > availSize ||
                 //difference between free and available space can be only 254.
@@ -87,25 +103,34 @@ final class PhysicalRowIdManager {
 
 
     void fetch(final DataInputOutput out, final long rowid) throws IOException {
+        fetch(out, rowid, null);
+    }
+
+    /**
+     * Fetches record, given page is used if record starts on it, so it is not read again.
+     *
+     * @param lastPage page returned by previous fetch, may be null
+     * @return page on which record ends
+     */
+    PageIo fetch(final DataInputOutput out, final long rowid, final PageIo lastPage) throws IOException {
         // fetch the record header
-        long current = rowid >>> Storage.PAGE_SIZE_SHIFT;
-        PageIo page = file.get(current);
-        final short head =  (short) (rowid & Storage.OFFSET_MASK);
+        long current = rowid >>> file.pageSizeShift;
+        PageIo page = lastPage != null && lastPage.getPageId() == current ? lastPage : file.read(current);
+        final int head =  (int) (rowid & file.offsetMask);
 
         // allocate a return buffer
         // byte[] retval = new byte[ head.getCurrentSize() ];
         final int size = RecordHeader.getCurrentSize(page, head);
         if (size == 0) {
-            file.release(current, false);
-            return;
+            return page;
         }
 
         // copy bytes in
         int leftToRead = size;
-        short dataOffset = (short) ( head + RecordHeader.SIZE);
+        int dataOffset = head + RecordHeader.SIZE;
         while (leftToRead > 0) {
             // copy current page's data to return buffer
-            int toCopy = PAGE_SIZE - dataOffset;
+            int toCopy = pageSize - dataOffset;
             if (leftToRead < toCopy) {
                 toCopy = leftToRead;
             }
@@ -115,17 +140,16 @@ final class PhysicalRowIdManager {
             // Go to the next page
             leftToRead -= toCopy;
             // out.flush();
-            file.release(page);
 
             if (leftToRead > 0) {
                 current = pageman.getNext(current);
-                page = file.get(current);
+                page = file.read(current);
                 dataOffset = Magic.DATA_PAGE_O_DATA;
             }
 
         }
 
-        // return retval;
+        return page;
     }
 
     /**
@@ -148,7 +172,7 @@ final class PhysicalRowIdManager {
         PageIo curPage;
         if (start == 0 ||
                 //last page was completely filled?
-                cachedLastAllocatedRecordPage == start && cachedLastAllocatedRecordOffset == PAGE_SIZE
+                cachedLastAllocatedRecordPage == start && cachedLastAllocatedRecordOffset == pageSize
                 ) {
             // we need to create a new page.
             start = pageman.allocate(Magic.USED_PAGE);
@@ -165,21 +189,21 @@ final class PhysicalRowIdManager {
 
         // follow the rowids on this page to get to the last one. We don't
         // fall off, because this is the last page, remember?
-        short pos = curPage.dataPageGetFirst();
+        int pos = curPage.dataPageGetFirst();
         if (pos == 0) {
             // page is exactly filled by the last page of a record
             file.release(curPage);
             return allocNew(size, 0);
         }
 
-        short hdr = pos;
+        int hdr = pos;
 
         if (cachedLastAllocatedRecordPage != curPage.getPageId() ) {
             //position was not cached, have to find it again
             int availSize = RecordHeader.getAvailableSize(curPage, hdr);
-            while (availSize != 0 && pos < PAGE_SIZE) {
+            while (availSize != 0 && pos < pageSize) {
                 pos += availSize + RecordHeader.SIZE;
-                if (pos == PAGE_SIZE) {
+                if (pos == pageSize) {
                     // Again, a filled page.
                     file.release(curPage);
                     return allocNew(size, 0);
@@ -199,7 +223,7 @@ final class PhysicalRowIdManager {
             file.release(curPage);
         }
         
-        if(hdr>Storage.PAGE_SIZE - 16){
+        if(hdr>pageSize - 16){
             file.release(curPage);
             //there is not enought space on current page, so force new page
             return allocNew(size,0);
@@ -207,15 +231,15 @@ final class PhysicalRowIdManager {
 
         // we have the position, now tack on extra pages until we've got
         // enough space.
-        long retval =(start << Storage.PAGE_SIZE_SHIFT) + (long) pos;
-        int freeHere = PAGE_SIZE - pos - RecordHeader.SIZE;
+        long retval =(start << file.pageSizeShift) + (long) pos;
+        int freeHere = pageSize - pos - RecordHeader.SIZE;
         if (freeHere < size) {
             // check whether the last page would have only a small bit left.
             // if yes, increase the allocation. A small bit is a record
             // header plus 16 bytes.
-            int lastSize = (size - freeHere) % DATA_PER_PAGE;
-            if (size <DATA_PER_PAGE && (DATA_PER_PAGE - lastSize) < (RecordHeader.SIZE + 16)) {
-                size += (DATA_PER_PAGE - lastSize);
+            int lastSize = (size - freeHere) % dataPerPage;
+            if (size <dataPerPage && (dataPerPage - lastSize) < (RecordHeader.SIZE + 16)) {
+                size += (dataPerPage - lastSize);
                 size = RecordHeader.roundAvailableSize(size);
             }
 
@@ -225,20 +249,20 @@ final class PhysicalRowIdManager {
 
             int neededLeft = size - freeHere;
             // Refactor these two pages!
-            while (neededLeft >= DATA_PER_PAGE) {
+            while (neededLeft >= dataPerPage) {
                 start = pageman.allocate(Magic.USED_PAGE);
                 curPage = file.get(start);
-                curPage.dataPageSetFirst((short) 0); // no rowids, just data
+                curPage.dataPageSetFirst(0); // no rowids, just data
                 file.release(start, true);
-                neededLeft -= DATA_PER_PAGE;
+                neededLeft -= dataPerPage;
             }
             if (neededLeft > 0) {
                 // done with whole chunks, allocate last fragment.
                 start = pageman.allocate(Magic.USED_PAGE);
                 curPage = file.get(start);
-                curPage.dataPageSetFirst((short) (Magic.DATA_PAGE_O_DATA + neededLeft));
+                curPage.dataPageSetFirst(Magic.DATA_PAGE_O_DATA + neededLeft);
                 file.release(start, true);
-                cachedLastAllocatedRecordOffset = (short) (Magic.DATA_PAGE_O_DATA + neededLeft);
+                cachedLastAllocatedRecordOffset = Magic.DATA_PAGE_O_DATA + neededLeft;
                 cachedLastAllocatedRecordPage = curPage.getPageId();
 
             }
@@ -251,7 +275,7 @@ final class PhysicalRowIdManager {
             }
             RecordHeader.setAvailableSize(curPage, hdr, size);
             file.release(start, true);
-            cachedLastAllocatedRecordOffset = (short) (hdr + RecordHeader.SIZE + size);
+            cachedLastAllocatedRecordOffset = hdr + RecordHeader.SIZE + size;
             cachedLastAllocatedRecordPage = curPage.getPageId();
 
         }
@@ -261,18 +285,18 @@ final class PhysicalRowIdManager {
 
     void free(final long id) throws IOException {
         // get the rowid, and write a zero current size into it.
-        final long curPageId = id >>> Storage.PAGE_SIZE_SHIFT;
+        final long curPageId = id >>> file.pageSizeShift;
         final PageIo curPage = file.get(curPageId);
-        final short offset =  (short) (id & Storage.OFFSET_MASK);
+        final int offset =  (int) (id & file.offsetMask);
         RecordHeader.setCurrentSize(curPage, offset, 0);
         int size = RecordHeader.getAvailableSize(curPage, offset);
 
         //trim size if spreads across multiple pages
-        if(offset + RecordHeader.SIZE + size >PAGE_SIZE + (PAGE_SIZE-Magic.DATA_PAGE_O_DATA)){
+        if(offset + RecordHeader.SIZE + size >pageSize + (pageSize-Magic.DATA_PAGE_O_DATA)){
             int numOfPagesToSkip = (size -
-                    (Storage.PAGE_SIZE-(offset - RecordHeader.SIZE))  //minus data remaining on this page
-                    )/(PAGE_SIZE-Magic.DATA_PAGE_O_DATA);
-            size = size - numOfPagesToSkip * (PAGE_SIZE-Magic.DATA_PAGE_O_DATA);
+                    (pageSize-(offset - RecordHeader.SIZE))  //minus data remaining on this page
+                    )/(pageSize-Magic.DATA_PAGE_O_DATA);
+            size = size - numOfPagesToSkip * (pageSize-Magic.DATA_PAGE_O_DATA);
             RecordHeader.setAvailableSize(curPage, offset,size);
             
             //get next page 
@@ -305,9 +329,9 @@ final class PhysicalRowIdManager {
      * Writes out data to a rowid. Assumes that any resizing has been done.
      */
     private void write(final long rowid, final  byte[] data,final  int start, final  int length) throws IOException {
-        long current =  rowid >>> Storage.PAGE_SIZE_SHIFT;
+        long current =  rowid >>> file.pageSizeShift;
         PageIo page = file.get(current);
-        final short hdr =  (short) (rowid & Storage.OFFSET_MASK);
+        final int hdr =  (int) (rowid & file.offsetMask);
         RecordHeader.setCurrentSize(page, hdr, length);
         if (length == 0) {
             file.release(current, true);
@@ -317,10 +341,10 @@ final class PhysicalRowIdManager {
         // copy bytes in
         int offsetInBuffer = start;
         int leftToWrite = length;
-        short dataOffset = (short) (hdr + RecordHeader.SIZE);
+        int dataOffset = hdr + RecordHeader.SIZE;
         while (leftToWrite > 0) {
             // copy current page's data to return buffer
-            int toCopy = PAGE_SIZE - dataOffset;
+            int toCopy = pageSize - dataOffset;
 
             if (leftToWrite < toCopy) {
                 toCopy = leftToWrite;
@@ -341,9 +365,323 @@ final class PhysicalRowIdManager {
         }
     }
 
+    /**
+     * Checks if page can be cut off from end of file: it is free page, or data page which holds only
+     * free records. Data page which starts with end of record from previous page is checked later.
+     */
+    private boolean isReleasable(PageIo page) {
+        final int magic = page.pageHeaderGetMagic();
+        if (magic == Magic.PAGE_MAGIC + Magic.FREE_PAGE)
+            return true;
+        if (magic != Magic.PAGE_MAGIC + Magic.USED_PAGE)
+            return false;
+        int pos = page.dataPageGetFirst();
+        if (pos == 0)
+            return false; //middle part of record which spans several pages
+        while (pos <= pageSize - RecordHeader.SIZE) {
+            final int availSize = RecordHeader.getAvailableSize(page, pos);
+            if (availSize == 0)
+                break; //rest of page was not allocated yet
+            if (RecordHeader.getCurrentSize(page, pos) != 0)
+                return false;
+            pos += RecordHeader.SIZE + availSize;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if page belongs to free list, free lists are moved to new pages when file is shrinked
+     */
+    private static boolean isFreeListPage(PageIo page) {
+        final int magic = page.pageHeaderGetMagic();
+        return magic == Magic.PAGE_MAGIC + Magic.FREEPHYSIDS_PAGE
+                || magic == Magic.PAGE_MAGIC + Magic.FREEPHYSIDS_ROOT_PAGE
+                || magic == Magic.PAGE_MAGIC + Magic.FREELOGIDS_PAGE;
+    }
+
+    /**
+     * Counts pages at end of file which are free or hold only free records.
+     * Pages of free lists can be moved, so they are skipped, but not counted.
+     *
+     * @param limit counting stops once this number is reached
+     */
+    long getTrailingFreePages(long limit) throws IOException {
+        final long end = pageman.getLast(Magic.FREE_PAGE);
+        long count = 0;
+        for (long pageId = end - 1; pageId > 0 && count < limit; pageId--) {
+            final PageIo page = file.read(pageId);
+            if (isReleasable(page))
+                count++;
+            else if (!isFreeListPage(page))
+                break;
+        }
+        return count;
+    }
+
+    /**
+     * Counts pages at end of file which are free or hold only free records.
+     */
+    private long getReleasablePages() throws IOException {
+        final long end = pageman.getLast(Magic.FREE_PAGE);
+        long count = 0;
+        for (long pageId = end - 1; pageId > 0 && isReleasable(file.read(pageId)); pageId--)
+            count++;
+        return count;
+    }
+
+    /**
+     * Returns offset of last record on data page if it continues on next page.
+     *
+     * @return record offset, or -1 if no record continues on next page
+     */
+    private int crossingRecord(PageIo page) {
+        int pos = page.dataPageGetFirst();
+        while (pos <= pageSize - RecordHeader.SIZE) {
+            final int availSize = RecordHeader.getAvailableSize(page, pos);
+            if (availSize == 0)
+                return -1;
+            if (pos + RecordHeader.SIZE + availSize > pageSize)
+                return pos;
+            pos += RecordHeader.SIZE + availSize;
+        }
+        return -1;
+    }
+
+    /**
+     * Frees data pages at end of file which hold only free records, so they can be cut off by page manager.
+     * Free list is moved into current transaction first, so its pages are freed as well and
+     * it is written into new pages on commit. Records on released pages are removed from free list.
+     * Free record which starts on page before them and continues into them is trimmed to end on its first page.
+     * Physical location of live records is not changed, released area ends at last page with live record.
+     * Transaction must be committed before this is called.
+     *
+     * @return number of released data pages
+     */
+    long releaseTrailingPages() throws IOException {
+        freeman.detach();
+        final long end = pageman.getLast(Magic.FREE_PAGE);
+        long first = end - getReleasablePages();
+        if (first == end)
+            return 0;
+
+        //find free records which continue into released pages
+        long[] trimmed = new long[8];
+        int trimmedCount = 0;
+        for (long pageId = first; pageId < end; pageId++) {
+            final PageIo page = file.read(pageId);
+            if (page.pageHeaderGetMagic() != Magic.PAGE_MAGIC + Magic.USED_PAGE
+                    || page.dataPageGetFirst() == Magic.DATA_PAGE_O_DATA)
+                continue;
+            final long prevId = page.pageHeaderGetPrev();
+            if (prevId == 0 || prevId >= first)
+                continue;
+            final PageIo prev = file.read(prevId);
+            final int pos = prev.dataPageGetFirst() == 0 ? 0 : crossingRecord(prev);
+            if (pos == -1)
+                continue; //page starts with remains of record from page released earlier
+            if (pos == 0 || RecordHeader.getCurrentSize(prev, pos) != 0) {
+                //live record continues into this page, so it must stay
+                first = pageId + 1;
+                trimmedCount = 0;
+                continue;
+            }
+            if (trimmedCount == trimmed.length)
+                trimmed = Arrays.copyOf(trimmed, trimmed.length * 2);
+            trimmed[trimmedCount++] = (prevId << file.pageSizeShift) + pos;
+        }
+        if (first == end)
+            return 0;
+
+        Arrays.sort(trimmed, 0, trimmedCount);
+        freeman.removeFreeRecords(first, trimmed, trimmedCount);
+        for (int i = 0; i < trimmedCount; i++) {
+            freeman.putFreeRecord(trimmed[i], trimRecord(trimmed[i]));
+        }
+
+        long released = 0;
+        for (long pageId = first; pageId < end; pageId++) {
+            if (file.read(pageId).pageHeaderGetMagic() == Magic.PAGE_MAGIC + Magic.USED_PAGE) {
+                pageman.free(Magic.USED_PAGE, pageId);
+                released++;
+            }
+        }
+        cachedLastAllocatedRecordPage = Long.MIN_VALUE;
+        cachedLastAllocatedRecordOffset = Integer.MIN_VALUE;
+        return released;
+    }
+
+    /**
+     * Shrinks free record, so it ends on page where it starts.
+     *
+     * @return new available size
+     */
+    private int trimRecord(long rowid) throws IOException {
+        final long pageId = rowid >>> file.pageSizeShift;
+        final int pos = (int) (rowid & file.offsetMask);
+        final PageIo page = file.get(pageId);
+        int size = pageSize - pos - RecordHeader.SIZE;
+        if (RecordHeader.roundAvailableSize(size) != size) {
+            //large size is stored with lower precision, so round it down
+            size = RecordHeader.roundAvailableSize(size) - RecordHeader.MAX_SIZE_SPACE;
+            //space left after record must fit at least small record, see allocNew
+            if (pageSize - pos - RecordHeader.SIZE - size < 16 + RecordHeader.SIZE)
+                size -= RecordHeader.MAX_SIZE_SPACE;
+        }
+        RecordHeader.setAvailableSize(page, pos, size);
+        final int next = pos + RecordHeader.SIZE + size;
+        if (next < pageSize) {
+            //mark end of allocated space
+            RecordHeader.setCurrentSize(page, next, 0);
+            RecordHeader.setAvailableSize(page, next, 0);
+        }
+        file.release(pageId, true);
+        return size;
+    }
+
+    /**
+     * Moves limited number of free records before given page into current transaction,
+     * so given records can be moved into them by {@link #relocate(long, long, DataInputOutput)}.
+     * Two free records are taken for each moved record, as some may be too small. Neighbouring free records are merged.
+     *
+     * @param limitPage only records on pages before this page are taken
+     * @param rowids records which will be moved
+     * @param maxPages maximal number of free list pages read
+     * @return number of taken records
+     */
+    int takeFreeRecords(long limitPage, long[] rowids, int maxPages) throws IOException {
+        final int[] demand = new int[freeman.maxRecidsPerPage];
+        for (long rowid : rowids) {
+            final PageIo page = file.read(rowid >>> file.pageSizeShift);
+            final int size = RecordHeader.roundAvailableSize(RecordHeader.getCurrentSize(page, (int) (rowid & file.offsetMask)));
+            if (size < freeman.maxRecSize)
+                demand[size / freeman.rootSlotSize] += 2;
+        }
+        final int taken = freeman.takeFreeRecords(limitPage, demand, maxPages);
+        if (taken > 0)
+            freeman.mergeFreeRecords();
+        return taken;
+    }
+
+    /**
+     * Finds first page of area at end of file, whose records should be moved by single compaction step.
+     * Pages are walked backwards from end of file until they hold given number of live records.
+     *
+     * @param maxRecords maximal number of live records in area, area has at least one page
+     * @return first page of area
+     */
+    long getCompactionStart(int maxRecords) throws IOException {
+        final long end = pageman.getLast(Magic.FREE_PAGE);
+        long start = end;
+        int count = 0;
+        for (long pageId = end - 1; pageId > 0; pageId--) {
+            final PageIo page = file.read(pageId);
+            if (page.pageHeaderGetMagic() == Magic.PAGE_MAGIC + Magic.USED_PAGE) {
+                int pageCount = 0;
+                for (int pos = page.dataPageGetFirst(); pos != 0 && pos <= pageSize - RecordHeader.SIZE; ) {
+                    final int availSize = RecordHeader.getAvailableSize(page, pos);
+                    if (availSize == 0)
+                        break;
+                    if (RecordHeader.getCurrentSize(page, pos) != 0)
+                        pageCount++;
+                    pos += RecordHeader.SIZE + availSize;
+                }
+                if (count > 0 && count + pageCount > maxRecords)
+                    break;
+                count += pageCount;
+            } else if (page.pageHeaderGetMagic() != Magic.PAGE_MAGIC + Magic.FREE_PAGE && !isFreeListPage(page)) {
+                break;
+            }
+            start = pageId;
+        }
+        return start;
+    }
+
+    /**
+     * Returns live records which occupy some part of area between given page and end of file.
+     * It includes records which start before area and continue into it.
+     *
+     * @return sorted physical rowids
+     */
+    long[] getRecordsToMove(long start) throws IOException {
+        final long end = pageman.getLast(Magic.FREE_PAGE);
+        long[] ret = new long[16];
+        int count = 0;
+        for (long pageId = start; pageId < end; pageId++) {
+            final PageIo page = file.read(pageId);
+            if (page.pageHeaderGetMagic() != Magic.PAGE_MAGIC + Magic.USED_PAGE)
+                continue;
+            int pos = page.dataPageGetFirst();
+            if (pos != Magic.DATA_PAGE_O_DATA) {
+                final long recid = getContinuedRecord(page);
+                if (recid != 0) {
+                    if (count == ret.length)
+                        ret = Arrays.copyOf(ret, ret.length * 2);
+                    ret[count++] = recid;
+                }
+            }
+            while (pos != 0 && pos <= pageSize - RecordHeader.SIZE) {
+                final int availSize = RecordHeader.getAvailableSize(page, pos);
+                if (availSize == 0)
+                    break;
+                if (RecordHeader.getCurrentSize(page, pos) != 0) {
+                    if (count == ret.length)
+                        ret = Arrays.copyOf(ret, ret.length * 2);
+                    ret[count++] = (pageId << file.pageSizeShift) + pos;
+                }
+                pos += RecordHeader.SIZE + availSize;
+            }
+        }
+        //record which spans several pages may be found more times
+        Arrays.sort(ret, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || ret[unique - 1] != ret[i])
+                ret[unique++] = ret[i];
+        }
+        return Arrays.copyOf(ret, unique);
+    }
+
+    /**
+     * Finds record which starts on previous pages and continues into given page.
+     *
+     * @return physical rowid of record, or 0 if record is free or page does not continue any record
+     */
+    private long getContinuedRecord(PageIo page) throws IOException {
+        for (long pageId = page.pageHeaderGetPrev(); pageId != 0; ) {
+            final PageIo prev = file.read(pageId);
+            if (prev.dataPageGetFirst() != 0) {
+                final int pos = crossingRecord(prev);
+                if (pos == -1 || RecordHeader.getCurrentSize(prev, pos) == 0)
+                    return 0;
+                return (pageId << file.pageSizeShift) + pos;
+            }
+            //middle part of record, its start is on some previous page
+            pageId = prev.pageHeaderGetPrev();
+        }
+        return 0;
+    }
+
+    /**
+     * Moves record into free record which ends before given page. Old location of record is freed.
+     * Free records must be taken first, see {@link #takeFreeRecords(long, long[], int)}.
+     *
+     * @param buf buffer used to copy record
+     * @return new physical rowid, or 0 if there is no suitable free record and record was not moved
+     */
+    long relocate(final long rowid, final long limitPage, final DataInputOutput buf) throws IOException {
+        buf.reset();
+        fetch(buf, rowid);
+        final long newRowid = freeman.takeFreeRecord(buf.getPos(), limitPage);
+        if (newRowid == 0)
+            return 0;
+        write(newRowid, buf.getBuf(), 0, buf.getPos());
+        free(rowid);
+        return newRowid;
+    }
+
     void rollback() throws IOException {
         cachedLastAllocatedRecordPage = Long.MIN_VALUE;
-        cachedLastAllocatedRecordOffset = Short.MIN_VALUE;
+        cachedLastAllocatedRecordOffset = Integer.MIN_VALUE;
         freeman.rollback();
     }
 
@@ -44,7 +44,7 @@ final class RecordHeader {
     /**
      * Returns the current size
      */
-    static int getCurrentSize(final PageIo page, final short pos) {
+    static int getCurrentSize(final PageIo page, final int pos) {
         int s = page.readByte(pos + O_CURRENTSIZE) & 0xFF;
         if (s == MAX_SIZE_SPACE + 1)
             return 0;
@@ -54,7 +54,7 @@ final class RecordHeader {
     /**
      * Sets the current size
      */
-    static void setCurrentSize(final PageIo page, final short pos, int value) {
+    static void setCurrentSize(final PageIo page, final int pos, int value) {
         if (value == 0) {
             page.writeByte(pos + O_CURRENTSIZE, (byte) (MAX_SIZE_SPACE + 1));
             return;
@@ -68,14 +68,14 @@ final class RecordHeader {
     /**
      * Returns the available size
      */
-    static int getAvailableSize(final PageIo page, final short pos) {
+    static int getAvailableSize(final PageIo page, final int pos) {
         return deconvertAvailSize(page.readShort(pos + O_AVAILABLESIZE));
     }
 
     /**
      * Sets the available size
      */
-    static void setAvailableSize(final PageIo page, final short pos, int value) {
+    static void setAvailableSize(final PageIo page, final int pos, int value) {
         if (value != roundAvailableSize(value))
             throw new IllegalArgumentException("value is not rounded");
         int oldCurrSize = getCurrentSize(page, pos);
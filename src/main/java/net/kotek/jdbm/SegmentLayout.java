@@ -0,0 +1,150 @@
+package net.kotek.jdbm;
+
+import java.io.*;
+
+/**
+ * Decides in which directory each 1 GB segment of data and translation file is placed.
+ * <p/>
+ * By default all segments are next to main file. Store can be created with list of directories,
+ * data segments are then placed into them round-robin, so large store is spread over several
+ * drives. Translation segments can be placed into separate directory. First data segment always
+ * stays next to main file, it is locked and it is used to detect existing store.
+ * <p/>
+ * Layout is chosen when store is created and saved into layout file ('.s' extension),
+ * existing store is always opened with its saved layout.
+ */
+final class SegmentLayout {
+
+    static final String LAYOUT_FILE_EXTENSION = ".s";
+
+    private static final int VERSION = 1;
+
+    private final String fileName;
+    /** directories for data segments, empty if segments are next to main file */
+    private final String[] dataDirs;
+    /** directory for translation segments, null if they are next to main file */
+    private final String translationDir;
+
+    private SegmentLayout(String fileName, String[] dataDirs, String translationDir) {
+        this.fileName = fileName;
+        this.dataDirs = dataDirs;
+        this.translationDir = translationDir;
+    }
+
+    /**
+     * Creates layout file for new store. Existing store keeps layout it was created with,
+     * so nothing happens if store already exists.
+     *
+     * @param dataDirs       directories for data segments, may be empty
+     * @param translationDir directory for translation segments, may be null
+     */
+    static void create(String fileName, String[] dataDirs, String translationDir) throws IOException {
+        if (new File(fileName + LAYOUT_FILE_EXTENSION).exists()
+                || new File(StorageDiskMapped.makeFileName(fileName, 0, 0)).exists())
+            return;
+        for (String dir : dataDirs)
+            checkDir(dir);
+        if (translationDir != null)
+            checkDir(translationDir);
+        new SegmentLayout(fileName, dataDirs, translationDir).save(fileName);
+    }
+
+    private static void checkDir(String dir) throws IOException {
+        if (!new File(dir).isDirectory())
+            throw new IOException("Directory does not exist: " + dir);
+    }
+
+    /**
+     * Reads layout of store, returns default layout if store has no layout file.
+     */
+    static SegmentLayout load(String fileName) throws IOException {
+        File f = new File(fileName + LAYOUT_FILE_EXTENSION);
+        if (!f.exists())
+            return new SegmentLayout(fileName, new String[0], null);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != VERSION)
+                throw new IOException("Unsupported layout file: " + f);
+            String translationDir = in.readBoolean() ? in.readUTF() : null;
+            String[] dataDirs = new String[in.readInt()];
+            for (int i = 0; i < dataDirs.length; i++)
+                dataDirs[i] = in.readUTF();
+            return new SegmentLayout(fileName, dataDirs, translationDir);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes this layout for other store, used when store is copied by defragmentation.
+     */
+    void save(String fileName2) throws IOException {
+        if (!isCustom())
+            return;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(fileName2 + LAYOUT_FILE_EXTENSION)));
+        try {
+            out.writeInt(VERSION);
+            out.writeBoolean(translationDir != null);
+            if (translationDir != null)
+                out.writeUTF(translationDir);
+            out.writeInt(dataDirs.length);
+            for (String dir : dataDirs)
+                out.writeUTF(dir);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return true if some segments are not placed next to main file
+     */
+    boolean isCustom() {
+        return dataDirs.length > 0 || translationDir != null;
+    }
+
+    /**
+     * @return number of directories segments are spread over, including directory of main file
+     */
+    int getDirectoryCount() {
+        return dataDirs.length + (translationDir != null ? 1 : 0) + 1;
+    }
+
+    /**
+     * Returns name of segment file which contains given page
+     */
+    String segmentFile(long pageNumber, int fileNumber) {
+        return segmentFile(fileName, pageNumber, fileNumber);
+    }
+
+    /**
+     * Returns name of segment file, as it would be placed for other store with the same layout.
+     */
+    String segmentFile(String fileName, long pageNumber, int fileNumber) {
+        final String dir;
+        if (pageNumber < 0)
+            dir = translationDir;
+        else if (fileNumber > 0 && dataDirs.length > 0)
+            dir = dataDirs[(fileNumber - 1) % dataDirs.length];
+        else
+            dir = null;
+        if (dir == null)
+            return StorageDiskMapped.makeFileName(fileName, pageNumber, fileNumber);
+        return StorageDiskMapped.makeFileName(new File(dir, new File(fileName).getName()).getPath(), pageNumber, fileNumber);
+    }
+
+    /**
+     * Deletes all segment files and layout file.
+     */
+    void deleteFiles() {
+        for (int sign = 1; sign >= -1; sign -= 2) {
+            for (int i = 0; true; i++) {
+                File f = new File(segmentFile(sign, i));
+                boolean exists = f.exists();
+                if (exists && !f.delete()) f.deleteOnExit();
+                if (!exists) break;
+            }
+        }
+        new File(fileName + LAYOUT_FILE_EXTENSION).delete();
+    }
+}
@@ -9,18 +9,18 @@ import java.nio.ByteBuffer;
 interface Storage {
 
     /**
-     * Bite shift used to calculate page size.
-     * If you want to modify page size, do it here.
+     * Bite shift used to calculate default page size.
+     * Page size is chosen when database is created and it is stored in file header,
+     * this value is used for new databases if no other size is given.
      *
-     *  1<<9 = 512
-     *  1<<10 = 1024
-     *  1<<11 = 2048
      *  1<<12 = 4096
+     *  1<<14 = 16384
+     *  1<<16 = 65536
      */
     int PAGE_SIZE_SHIFT = 12;
     
     /**
-     * the lenght of single page.
+     * the lenght of single page with default page size.
      * <p>
      *!!! DO NOT MODIFY THI DIRECTLY !!!
 
@@ -29,10 +29,21 @@ interface Storage {
 
 
     /**
-     * use 'val & OFFSET_MASK' to quickly get offset within the page;
+     * use 'val & OFFSET_MASK' to quickly get offset within the page with default page size;
      */
     long OFFSET_MASK = 0xFFFFFFFFFFFFFFFFL >>> (64-Storage.PAGE_SIZE_SHIFT);
 
+    /** smallest supported page size shift, 4 KB pages */
+    int MIN_PAGE_SIZE_SHIFT = 12;
+
+    /** largest supported page size shift, 64 KB pages. Offset within page must fit into unsigned short */
+    int MAX_PAGE_SIZE_SHIFT = 16;
+
+
+    /**
+     * @return bite shift of page size used by this storage
+     */
+    int getPageSizeShift();
 
     void write(long pageNumber, ByteBuffer data) throws IOException;
 
@@ -50,5 +61,23 @@ interface Storage {
 
     DataOutputStream openTransactionLog() throws IOException;
 
+    /**
+     * Renames closed transaction log, so it can be applied to data file in background
+     * while new log is written. There can be only one sealed log.
+     */
+    void sealTransactionLog() throws IOException;
+
+    DataInputStream readSealedTransactionLog();
+
+    void deleteSealedTransactionLog();
+
     void deleteAllFiles() throws IOException;
+
+    /**
+     * Removes data pages at and after given page number, so disk space is returned to file system.
+     * Translation pages are not affected. Removed pages are read as empty pages.
+     *
+     * @param pageCount number of data pages which are kept
+     */
+    void truncate(long pageCount) throws IOException;
 }
@@ -0,0 +1,328 @@
+package net.kotek.jdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only storage which reads data from archive file created by {@link DB#copyToArchive(String)}.
+ * <p/>
+ * Pages are sorted by page number and grouped into blocks of consecutive pages, each block is compressed.
+ * Archive ends with index of page numbers and block offsets, which is held in memory.
+ * Page is located by binary search and its block is read by single positional read.
+ * Recently decompressed blocks are cached, so neighbouring pages do not cause another read and inflate.
+ * <p/>
+ * File format:
+ * <pre>
+ *   header:  int magic, byte version, byte page size shift, int pages per block, int page count
+ *   blocks:  compressed pages
+ *   index:   long page number for each page, long offset and int length for each block
+ *   trailer: long index offset
+ * </pre>
+ */
+class StorageArchive implements Storage {
+
+    static final int MAGIC = 0x4A444241;
+    static final byte VERSION = 1;
+
+    private static final int HEADER_SIZE = 14;
+
+    /** uncompressed size of block */
+    static final int BLOCK_SIZE = 1 << Storage.MAX_PAGE_SIZE_SHIFT;
+
+    /** number of decompressed blocks kept in memory */
+    static final int CACHED_BLOCKS = 32;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    /** page size requested by PageFile, it can be smaller when file header is read */
+    private final int pageSizeShift;
+    private final int pageSize;
+    /** page size archive was written with */
+    private final int archivePageSize;
+    private final int pagesPerBlock;
+
+    /** sorted page numbers */
+    private final long[] pageIds;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+
+    private final Map<Integer, byte[]> blockCache = new LinkedHashMap<Integer, byte[]>(CACHED_BLOCKS, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    StorageArchive(String fileName, int pageSizeShift) throws IOException {
+        raf = new RandomAccessFile(fileName, "r");
+        channel = raf.getChannel();
+        try {
+            if (raf.readInt() != MAGIC)
+                throw new IOException("Not a JDBM archive: " + fileName);
+            if (raf.readByte() != VERSION)
+                throw new IOException("Unsupported archive version: " + fileName);
+            final int archiveShift = raf.readByte();
+            if (pageSizeShift > archiveShift)
+                throw new IOException("Archive has smaller page size than requested: " + (1 << archiveShift));
+            this.archivePageSize = 1 << archiveShift;
+            this.pageSizeShift = pageSizeShift;
+            this.pageSize = 1 << pageSizeShift;
+            this.pagesPerBlock = raf.readInt();
+            final int pageCount = raf.readInt();
+            final int blockCount = (pageCount + pagesPerBlock - 1) / pagesPerBlock;
+
+            raf.seek(raf.length() - 8);
+            final long indexOffset = raf.readLong();
+            ByteBuffer index = readFully(indexOffset, pageCount * 8 + blockCount * 12);
+            pageIds = new long[pageCount];
+            for (int i = 0; i < pageCount; i++)
+                pageIds[i] = index.getLong();
+            blockOffsets = new long[blockCount];
+            blockLengths = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                blockOffsets[i] = index.getLong();
+                blockLengths[i] = index.getInt();
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if file starts with archive header
+     */
+    static boolean isArchive(String fileName) throws IOException {
+        File f = new File(fileName);
+        if (!f.exists() || f.length() < HEADER_SIZE)
+            return false;
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            return in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getPageSizeShift() {
+        return pageSizeShift;
+    }
+
+    public void write(long pageNumber, ByteBuffer data) throws IOException {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public ByteBuffer read(long pageNumber) throws IOException {
+        final int pos = Arrays.binarySearch(pageIds, pageNumber);
+        if (pos < 0)
+            return PageFile.cleanPage(pageSize);
+
+        final byte[] block = block(pos / pagesPerBlock);
+        final int offset = (pos % pagesPerBlock) * archivePageSize;
+        //block is shared, so returned page must not be modified
+        return ByteBuffer.wrap(block, offset, pageSize).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns decompressed block, from cache or from file.
+     */
+    private byte[] block(int blockNum) throws IOException {
+        synchronized (blockCache) {
+            byte[] block = blockCache.get(blockNum);
+            if (block != null)
+                return block;
+        }
+
+        //read and decompress outside of lock, so concurrent readers of other blocks do not wait
+        final ByteBuffer compressed = readFully(blockOffsets[blockNum], blockLengths[blockNum]);
+
+        final int pages = Math.min(pagesPerBlock, pageIds.length - blockNum * pagesPerBlock);
+        final byte[] block = new byte[pages * archivePageSize];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            int len = 0;
+            while (len < block.length && !inflater.finished()) {
+                len += inflater.inflate(block, len, block.length - len);
+                if (inflater.needsInput())
+                    break;
+            }
+            if (len != block.length)
+                throw new IOException("Corrupted archive block " + blockNum);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted archive block " + blockNum, e);
+        } finally {
+            inflater.end();
+        }
+
+        synchronized (blockCache) {
+            blockCache.put(blockNum, block);
+        }
+        return block;
+    }
+
+    /**
+     * Reads part of file with positional reads, file pointer is not used, so it is safe for concurrent readers.
+     */
+    private ByteBuffer readFully(long offset, int len) throws IOException {
+        final ByteBuffer b = ByteBuffer.allocate(len);
+        while (b.remaining() > 0) {
+            int read = channel.read(b, offset);
+            if (read < 0)
+                throw new EOFException("Archive is truncated");
+            offset += read;
+        }
+        b.flip();
+        return b;
+    }
+
+    public void forceClose() throws IOException {
+        synchronized (blockCache) {
+            blockCache.clear();
+        }
+        raf.close();
+    }
+
+    public DataInputStream readTransactionLog() {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public void deleteTransactionLog() {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public void sync() throws IOException {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public DataOutputStream openTransactionLog() throws IOException {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public void sealTransactionLog() throws IOException {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public DataInputStream readSealedTransactionLog() {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public void deleteSealedTransactionLog() {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public void deleteAllFiles() throws IOException {
+    }
+
+    public void truncate(long pageCount) throws IOException {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public boolean isReadonly() {
+        return true;
+    }
+
+    /**
+     * Writes archive. Pages must be added in ascending order of page numbers.
+     */
+    static final class Writer {
+
+        private final String fileName;
+        private final DataOutputStream out;
+        private final int pageSize;
+        private final int pagesPerBlock;
+        private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+        /** written bytes, used to compute offsets */
+        private long offset;
+        private long[] pageIds = new long[1024];
+        private int pageCount = 0;
+        /** offset and length of each block */
+        private long[] blocks = new long[256];
+        private int blockCount = 0;
+
+        private final byte[] block;
+        private final byte[] compressBuf;
+        private int pagesInBlock = 0;
+        private long lastPageId = Long.MIN_VALUE;
+
+        Writer(String fileName, int pageSizeShift) throws IOException {
+            this.fileName = fileName;
+            this.pageSize = 1 << pageSizeShift;
+            this.pagesPerBlock = Math.max(1, BLOCK_SIZE / pageSize);
+            this.block = new byte[pagesPerBlock * pageSize];
+            this.compressBuf = new byte[block.length];
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(pageSizeShift);
+            out.writeInt(pagesPerBlock);
+            //page count is not known yet, it is written into header when archive is closed
+            out.writeInt(0);
+            offset = HEADER_SIZE;
+        }
+
+        void add(long pageId, byte[] data) throws IOException {
+            if (pageId <= lastPageId && pageCount > 0)
+                throw new IllegalArgumentException("Pages must be added in ascending order: " + pageId);
+            lastPageId = pageId;
+            if (pageCount == pageIds.length)
+                pageIds = Arrays.copyOf(pageIds, pageIds.length * 2);
+            pageIds[pageCount++] = pageId;
+            System.arraycopy(data, 0, block, pagesInBlock * pageSize, pageSize);
+            pagesInBlock++;
+            if (pagesInBlock == pagesPerBlock)
+                flushBlock();
+        }
+
+        private void flushBlock() throws IOException {
+            if (pagesInBlock == 0)
+                return;
+            deflater.reset();
+            deflater.setInput(block, 0, pagesInBlock * pageSize);
+            deflater.finish();
+            int len = 0;
+            while (!deflater.finished()) {
+                int n = deflater.deflate(compressBuf);
+                out.write(compressBuf, 0, n);
+                len += n;
+            }
+            if (blockCount * 2 == blocks.length)
+                blocks = Arrays.copyOf(blocks, blocks.length * 2);
+            blocks[blockCount * 2] = offset;
+            blocks[blockCount * 2 + 1] = len;
+            blockCount++;
+            offset += len;
+            pagesInBlock = 0;
+        }
+
+        void close() throws IOException {
+            flushBlock();
+            deflater.end();
+            final long indexOffset = offset;
+            for (int i = 0; i < pageCount; i++)
+                out.writeLong(pageIds[i]);
+            for (int i = 0; i < blockCount; i++) {
+                out.writeLong(blocks[i * 2]);
+                out.writeInt((int) blocks[i * 2 + 1]);
+            }
+            out.writeLong(indexOffset);
+            out.close();
+
+            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+            try {
+                raf.seek(HEADER_SIZE - 4);
+                raf.writeInt(pageCount);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package net.kotek.jdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Storage decorator which compresses pages before they are written into underlying storage.
+ * <p/>
+ * Compressed pages are packed into variable size slots. Slot is made of 512 byte units,
+ * so half empty page takes only about half of space on disk. Slot never crosses boundary
+ * of underlying page, so page is read by single read from underlying storage.
+ * <p/>
+ * Location of each page is kept in translation map. Map is held in memory and changes are appended
+ * into map file ('.c' extension) on each sync, after data were synced. Slots are never overwritten
+ * while they are referenced by map stored on disk, so map file and data always match after crash.
+ * Map file is rewritten once it grows over twice the number of pages.
+ */
+class StorageCompressed implements Storage {
+
+    static final String MAP_FILE_EXTENSION = ".c";
+
+    /** bite shift of slot unit size */
+    static final int UNIT_SHIFT = 9;
+    /** size of slot unit, 512 bytes, so units are aligned with disk sectors */
+    static final int UNIT_SIZE = 1 << UNIT_SHIFT;
+
+    /** marks end of batch of map entries written by single sync, value contains number of entries in batch */
+    private static final long COMMIT_MARKER = Long.MIN_VALUE;
+
+    /** location is packed into long: slot address in units, flag and stored length in bytes */
+    private static final int LOCATION_ADDR_SHIFT = 18;
+    private static final long LOCATION_COMPRESSED = 1L << 17;
+    private static final long LOCATION_LENGTH_MASK = LOCATION_COMPRESSED - 1;
+
+    private final Storage storage;
+    private final String fileName;
+    private final boolean readonly;
+    private final int pageSize;
+    private final int unitsPerPage;
+
+    /** page number and its location, value is pair of page number and location */
+    private LongHashMap<long[]> locations = new LongHashMap<long[]>();
+    /** locations modified since last sync, they are not in map file yet */
+    private LongHashMap<long[]> dirtyLocations = new LongHashMap<long[]>();
+
+    /** free slots, index is number of units, value is slot address */
+    private final ArrayList<Long>[] freeSlots;
+    /** slots released since last sync, they are still referenced from map file. Address and units are packed */
+    private ArrayList<Long> pendingFree = new ArrayList<Long>();
+    /** first unit after last allocated slot */
+    private long tail = 0;
+
+    private DataOutputStream mapOut;
+    private FileOutputStream mapFileOut;
+    /** number of entries in map file */
+    private long mapFileEntries = 0;
+    /** pages were removed, map file has no entry for removal, so it must be rewritten on next sync */
+    private boolean truncated = false;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final byte[] pageBuf;
+    private final byte[] compressBuf;
+
+    /** last page of underlying storage, neighbouring slots are often written together */
+    private long lastPageNumber = -1;
+    private ByteBuffer lastPage;
+
+    @SuppressWarnings("unchecked")
+    StorageCompressed(Storage storage, String fileName, boolean readonly) throws IOException {
+        this.storage = storage;
+        this.fileName = fileName;
+        this.readonly = readonly;
+        this.pageSize = 1 << storage.getPageSizeShift();
+        this.unitsPerPage = pageSize >>> UNIT_SHIFT;
+        this.pageBuf = new byte[pageSize];
+        this.compressBuf = new byte[pageSize];
+        this.freeSlots = new ArrayList[unitsPerPage + 1];
+        for (int i = 0; i < freeSlots.length; i++)
+            freeSlots[i] = new ArrayList<Long>();
+
+        readMapFile();
+        rebuildFreeSlots();
+        if (!readonly && !exists(fileName)) {
+            //create empty map, so store is recognized as compressed when it is opened next time
+            new FileOutputStream(fileName + MAP_FILE_EXTENSION).close();
+        }
+    }
+
+    /**
+     * @return true if store with given name was created with compression
+     */
+    static boolean exists(String fileName) {
+        return new File(fileName + MAP_FILE_EXTENSION).exists();
+    }
+
+    private void readMapFile() throws IOException {
+        File f = new File(fileName + MAP_FILE_EXTENSION);
+        if (!f.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            ArrayList<long[]> batch = new ArrayList<long[]>();
+            while (true) {
+                long pageNumber = in.readLong();
+                long location = in.readLong();
+                if (pageNumber != COMMIT_MARKER) {
+                    batch.add(new long[]{pageNumber, location});
+                    continue;
+                }
+                if (location != batch.size())
+                    break; //corrupted batch
+                for (long[] e : batch)
+                    locations.put(e[0], e);
+                mapFileEntries += batch.size();
+                batch.clear();
+            }
+        } catch (EOFException e) {
+            //end of file, last batch may be incomplete if sync was interrupted
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Finds free space between used slots.
+     */
+    private void rebuildFreeSlots() {
+        long[] used = new long[locations.size()];
+        int i = 0;
+        for (Iterator<long[]> iter = locations.valuesIterator(); iter.hasNext(); ) {
+            long location = iter.next()[1];
+            used[i++] = (location >>> LOCATION_ADDR_SHIFT) << 8 | units(location);
+        }
+        Arrays.sort(used);
+        long pos = 0;
+        for (long u : used) {
+            final long addr = u >>> 8;
+            addFree(pos, addr);
+            pos = Math.max(pos, addr + (u & 0xFF));
+        }
+        tail = pos;
+    }
+
+    /**
+     * Adds free space between two unit addresses, it is split on page boundaries.
+     */
+    private void addFree(long from, long to) {
+        while (from < to) {
+            long end = Math.min(to, (from / unitsPerPage + 1) * unitsPerPage);
+            freeSlots[(int) (end - from)].add(from);
+            from = end;
+        }
+    }
+
+    private static int units(long location) {
+        return (int) (((location & LOCATION_LENGTH_MASK) + UNIT_SIZE - 1) >>> UNIT_SHIFT);
+    }
+
+    private long allocate(int units) {
+        ArrayList<Long> free = freeSlots[units];
+        if (!free.isEmpty())
+            return free.remove(free.size() - 1);
+        //split larger free slot
+        for (int i = units + 1; i <= unitsPerPage; i++) {
+            free = freeSlots[i];
+            if (!free.isEmpty()) {
+                long addr = free.remove(free.size() - 1);
+                freeSlots[i - units].add(addr + units);
+                return addr;
+            }
+        }
+        //append at end, slot must fit into single page
+        final long inPage = tail % unitsPerPage;
+        if (inPage + units > unitsPerPage) {
+            addFree(tail, tail + unitsPerPage - inPage);
+            tail += unitsPerPage - inPage;
+        }
+        long ret = tail;
+        tail += units;
+        return ret;
+    }
+
+    public int getPageSizeShift() {
+        return storage.getPageSizeShift();
+    }
+
+    public synchronized void write(long pageNumber, ByteBuffer data) throws IOException {
+        if (data.capacity() != pageSize) throw new IllegalArgumentException();
+        ByteBuffer d = data.duplicate();
+        d.position(0);
+        d.get(pageBuf);
+
+        deflater.reset();
+        deflater.setInput(pageBuf, 0, pageSize);
+        deflater.finish();
+        int length = deflater.deflate(compressBuf, 0, pageSize);
+        final boolean compressed = deflater.finished()
+                && ((length + UNIT_SIZE - 1) >>> UNIT_SHIFT) < unitsPerPage;
+        final byte[] src = compressed ? compressBuf : pageBuf;
+        if (!compressed)
+            length = pageSize;
+        final int units = (length + UNIT_SIZE - 1) >>> UNIT_SHIFT;
+
+        //release old slot
+        long[] old = locations.get(pageNumber);
+        long addr = -1;
+        if (old != null) {
+            final long oldLocation = old[1];
+            final long oldAddr = oldLocation >>> LOCATION_ADDR_SHIFT;
+            final int oldUnits = units(oldLocation);
+            if (dirtyLocations.get(pageNumber) == null) {
+                //still referenced from map file
+                pendingFree.add(oldAddr << 8 | oldUnits);
+            } else if (oldUnits == units) {
+                //slot was allocated after last sync, so it can be overwritten
+                addr = oldAddr;
+            } else {
+                freeSlots[oldUnits].add(oldAddr);
+            }
+        }
+        if (addr == -1)
+            addr = allocate(units);
+
+        //copy into page of underlying storage
+        final long storagePage = addr / unitsPerPage;
+        final int offset = (int) (addr % unitsPerPage) << UNIT_SHIFT;
+        ByteBuffer page = readStoragePage(storagePage);
+        page.position(offset);
+        page.put(src, 0, length);
+        storage.write(storagePage, page);
+
+        final long location = addr << LOCATION_ADDR_SHIFT | (compressed ? LOCATION_COMPRESSED : 0) | length;
+        final long[] entry = new long[]{pageNumber, location};
+        locations.put(pageNumber, entry);
+        dirtyLocations.put(pageNumber, entry);
+    }
+
+    /**
+     * Returns writable copy of page from underlying storage.
+     */
+    private ByteBuffer readStoragePage(long storagePage) throws IOException {
+        if (storagePage != lastPageNumber) {
+            ByteBuffer b = ByteBuffer.allocate(pageSize);
+            ByteBuffer d = storage.read(storagePage).duplicate();
+            //mapped buffer may have larger capacity than page
+            d.limit(pageSize);
+            d.position(0);
+            b.put(d);
+            lastPage = b;
+            lastPageNumber = storagePage;
+        }
+        lastPage.clear();
+        return lastPage;
+    }
+
+    public synchronized ByteBuffer read(long pageNumber) throws IOException {
+        long[] entry = locations.get(pageNumber);
+        if (entry == null) {
+            //out of bounds, so just return empty data
+            return PageFile.cleanPage(pageSize);
+        }
+        final long location = entry[1];
+        final int length = (int) (location & LOCATION_LENGTH_MASK);
+        //header may be read with smaller page size, before real page size is known
+        final byte[] buf = length <= compressBuf.length ? compressBuf : new byte[length];
+        long pos = (location >>> LOCATION_ADDR_SHIFT) << UNIT_SHIFT;
+
+        //slot may cross page boundary if store was written with different page size
+        int copied = 0;
+        while (copied < length) {
+            final long storagePage = pos / pageSize;
+            final int offset = (int) (pos % pageSize);
+            final int len = Math.min(length - copied, pageSize - offset);
+            ByteBuffer page = readStoragePage(storagePage);
+            page.position(offset);
+            page.get(buf, copied, len);
+            copied += len;
+            pos += len;
+        }
+
+        ByteBuffer ret = ByteBuffer.allocate(pageSize);
+        if ((location & LOCATION_COMPRESSED) != 0) {
+            inflater.reset();
+            inflater.setInput(buf, 0, length);
+            try {
+                inflater.inflate(ret.array());
+            } catch (DataFormatException e) {
+                throw new IOException("Could not decompress page " + pageNumber, e);
+            }
+        } else {
+            System.arraycopy(buf, 0, ret.array(), 0, Math.min(length, pageSize));
+        }
+        return ret;
+    }
+
+    public synchronized void sync() throws IOException {
+        storage.sync();
+        if (readonly || (dirtyLocations.isEmpty() && !truncated))
+            return;
+
+        //data are on disk, now write map
+        if (truncated || mapFileEntries > 2 * locations.size() + 1024) {
+            rewriteMapFile();
+        } else {
+            if (mapOut == null) {
+                mapFileOut = new FileOutputStream(fileName + MAP_FILE_EXTENSION, true);
+                mapOut = new DataOutputStream(new BufferedOutputStream(mapFileOut));
+            }
+            writeEntries(mapOut, dirtyLocations);
+            mapOut.flush();
+            mapFileOut.getFD().sync();
+            mapFileEntries += dirtyLocations.size();
+        }
+        dirtyLocations.clear();
+
+        //slots are not referenced from map file anymore
+        for (long u : pendingFree)
+            freeSlots[(int) (u & 0xFF)].add(u >>> 8);
+        pendingFree.clear();
+
+        if (truncated) {
+            //free slots at end of underlying storage can be cut off
+            for (ArrayList<Long> free : freeSlots)
+                free.clear();
+            rebuildFreeSlots();
+            lastPageNumber = -1;
+            storage.truncate((tail + unitsPerPage - 1) / unitsPerPage);
+            storage.sync();
+            truncated = false;
+        }
+    }
+
+    /**
+     * Drops locations of removed pages. Their slots are released once map file is rewritten on next sync,
+     * underlying storage is then shortened if slots at its end are free.
+     */
+    public synchronized void truncate(long pageCount) throws IOException {
+        ArrayList<long[]> removed = new ArrayList<long[]>();
+        for (Iterator<long[]> iter = locations.valuesIterator(); iter.hasNext(); ) {
+            long[] e = iter.next();
+            if (e[0] >= pageCount)
+                removed.add(e);
+        }
+        for (long[] e : removed) {
+            locations.remove(e[0]);
+            final long addr = e[1] >>> LOCATION_ADDR_SHIFT;
+            if (dirtyLocations.remove(e[0]) != null)
+                freeSlots[units(e[1])].add(addr);
+            else
+                pendingFree.add(addr << 8 | units(e[1]));
+        }
+        truncated = true;
+    }
+
+    private static void writeEntries(DataOutputStream out, LongHashMap<long[]> entries) throws IOException {
+        for (Iterator<long[]> iter = entries.valuesIterator(); iter.hasNext(); ) {
+            long[] e = iter.next();
+            out.writeLong(e[0]);
+            out.writeLong(e[1]);
+        }
+        out.writeLong(COMMIT_MARKER);
+        out.writeLong(entries.size());
+    }
+
+    /**
+     * Writes all locations into new map file, which replaces old one.
+     */
+    private void rewriteMapFile() throws IOException {
+        closeMapFile();
+        File f = new File(fileName + MAP_FILE_EXTENSION);
+        File tmp = new File(fileName + MAP_FILE_EXTENSION + "_tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        writeEntries(out, locations);
+        out.flush();
+        fileOut.getFD().sync();
+        out.close();
+        if (!tmp.renameTo(f)) {
+            //rename does not replace existing file on some platforms
+            f.delete();
+            if (!tmp.renameTo(f))
+                throw new IOException("Could not rename map file: " + tmp);
+        }
+        mapFileEntries = locations.size();
+    }
+
+    private void closeMapFile() throws IOException {
+        if (mapOut != null)
+            mapOut.close();
+        mapOut = null;
+        mapFileOut = null;
+    }
+
+    public synchronized void forceClose() throws IOException {
+        closeMapFile();
+        storage.forceClose();
+        deflater.end();
+        inflater.end();
+        locations = null;
+        dirtyLocations = null;
+        lastPage = null;
+    }
+
+    public boolean isReadonly() {
+        return storage.isReadonly();
+    }
+
+    public DataInputStream readTransactionLog() {
+        return storage.readTransactionLog();
+    }
+
+    public void deleteTransactionLog() {
+        storage.deleteTransactionLog();
+    }
+
+    public DataOutputStream openTransactionLog() throws IOException {
+        return storage.openTransactionLog();
+    }
+
+    public void sealTransactionLog() throws IOException {
+        storage.sealTransactionLog();
+    }
+
+    public DataInputStream readSealedTransactionLog() {
+        return storage.readSealedTransactionLog();
+    }
+
+    public void deleteSealedTransactionLog() {
+        storage.deleteSealedTransactionLog();
+    }
+
+    public void deleteAllFiles() throws IOException {
+        storage.deleteAllFiles();
+        new File(fileName + MAP_FILE_EXTENSION).delete();
+    }
+
+}
@@ -2,9 +2,13 @@ package net.kotek.jdbm;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 import static net.kotek.jdbm.StorageDiskMapped.*;
 
 /**
@@ -18,15 +22,38 @@ class StorageDisk implements Storage {
     private ArrayList<RandomAccessFile> rafsTranslation = new ArrayList<RandomAccessFile>();
 
     private String fileName;
+    private final SegmentLayout layout;
 
     private long lastPageNumber = Long.MIN_VALUE;
     private boolean readonly;
     private boolean lockingDisabled;
 
-    public StorageDisk(String fileName,boolean readonly, boolean lockingDisabled) throws IOException {
+    private final int pageSizeShift;
+    private final int pageSize;
+    /** maximal number of pages in single file, each file has 1 GB */
+    private final long pagesPerFile;
+
+    /** number of sequential reads after which read-ahead starts */
+    static final int READ_AHEAD_TRIGGER = 2;
+
+    /** number of pages read ahead once sequential access is detected, zero disables read-ahead */
+    private int readAhead = 0;
+    /** threads which read pages ahead, several reads are issued to disk at once */
+    private ExecutorService readAheadExecutor;
+    /** pages which are being read or were read ahead, but were not requested yet */
+    private Map<Long, Future<ByteBuffer>> readAheadPages;
+
+    private long lastReadPageNumber = Long.MIN_VALUE;
+    private int sequentialReads = 0;
+
+    public StorageDisk(String fileName,boolean readonly, boolean lockingDisabled, int pageSizeShift) throws IOException {
         this.fileName = fileName;
+        this.layout = SegmentLayout.load(fileName);
         this.readonly = readonly;
         this.lockingDisabled = lockingDisabled;
+        this.pageSizeShift = pageSizeShift;
+        this.pageSize = 1 << pageSizeShift;
+        this.pagesPerFile = FILE_SIZE >>> pageSizeShift;
         //make sure first file can be opened
         //lock it
         try {
@@ -42,7 +69,7 @@ class StorageDisk implements Storage {
 
     RandomAccessFile getRaf(long pageNumber) throws IOException {
 
-        int fileNumber = (int) (Math.abs(pageNumber)/PAGES_PER_FILE );
+        int fileNumber = (int) (Math.abs(pageNumber)/pagesPerFile );
 
         List<RandomAccessFile> c = pageNumber>=0 ? rafs : rafsTranslation;
 
@@ -53,7 +80,7 @@ class StorageDisk implements Storage {
 
         RandomAccessFile ret = c.get(fileNumber);
         if (ret == null) {
-            String name = StorageDiskMapped.makeFileName(fileName, pageNumber, fileNumber);
+            String name = layout.segmentFile(pageNumber, fileNumber);
             ret = new RandomAccessFile(name, readonly?"r":"rw");
             c.set(fileNumber, ret);
         }
@@ -62,46 +89,164 @@ class StorageDisk implements Storage {
     }
 
 
+    /**
+     * Writes page. Storage lock is held only to find segment file, write itself locks only this file,
+     * so writes to different segments run in parallel and do not block reads.
+     */
     public void write(long pageNumber, ByteBuffer data) throws IOException {
-        if (data.capacity() != PAGE_SIZE) throw new IllegalArgumentException();
-        
-        long offset = pageNumber * PAGE_SIZE;
+        if (data.capacity() != pageSize) throw new IllegalArgumentException();
 
-        RandomAccessFile file = getRaf(pageNumber);
+        final RandomAccessFile file;
+        synchronized (this) {
+            if (readAheadPages != null) {
+                //page read ahead may contain old data
+                readAheadPages.remove(pageNumber);
+            }
+            file = getRaf(pageNumber);
+            lastPageNumber = pageNumber;
+        }
 
-//        if (lastPageNumber + 1 != pageNumber)      //TODO cache position again, so seek is not necessary
-            file.seek(Math.abs(offset % (PAGES_PER_FILE* PAGE_SIZE)));
+        long offset = pageNumber * pageSize;
 
-        file.write(data.array());
-        lastPageNumber = pageNumber;
+        synchronized (file) {
+            file.seek(Math.abs(offset % FILE_SIZE));
+            file.write(data.array());
+        }
     }
 
 
+    /**
+     * Reads page. Storage lock is held only to find segment file, read itself locks only this file,
+     * so reads from different segments (possibly on different drives) run in parallel.
+     */
     public ByteBuffer read(long pageNumber) throws IOException {
-        
-        long offset = pageNumber * PAGE_SIZE;
-        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
-        
-        RandomAccessFile file = getRaf(pageNumber);
-//        if (lastPageNumber + 1 != pageNumber) //TODO cache position again, so seek is not necessary
-            file.seek(Math.abs(offset % (PAGES_PER_FILE* PAGE_SIZE)));
-        int remaining = buffer.limit();
-        int pos = 0;
-        while (remaining > 0) {
-            int read = file.read(buffer.array(), pos, remaining);
-            if (read == -1) {
-                System.arraycopy(PageFile.CLEAN_DATA, 0, buffer.array(), pos, remaining);
-                break;
+        Future<ByteBuffer> f = null;
+        final RandomAccessFile file;
+        synchronized (this) {
+            if (readAhead > 0) {
+                f = readAheadPages.remove(pageNumber);
+                scheduleReadAhead(pageNumber);
+            }
+            file = getRaf(pageNumber);
+        }
+
+        if (f != null) {
+            try {
+                return f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                //read failed in background, so read it again in this thread
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+        //RandomAccessFile is used instead of positional read on channel,
+        //channel would be closed if reading thread is interrupted
+        synchronized (file) {
+            file.seek(Math.abs(pageNumber * pageSize % FILE_SIZE));
+            int remaining = buffer.limit();
+            int pos = 0;
+            while (remaining > 0) {
+                int read = file.read(buffer.array(), pos, remaining);
+                if (read == -1)
+                    break; //rest of page beyond end of file is zero
+                remaining -= read;
+                pos += read;
             }
-            remaining -= read;
-            pos += read;
         }
-        lastPageNumber = pageNumber;
         return buffer;
     }
 
 
+    /**
+     * Detects sequential reads and submits following pages to be read in background.
+     * Translation pages have negative numbers, so they are read in opposite direction.
+     */
+    private void scheduleReadAhead(long pageNumber) throws IOException {
+        final long step = pageNumber >= 0 ? 1 : -1;
+        if (pageNumber == lastReadPageNumber + step)
+            sequentialReads++;
+        else
+            sequentialReads = 0;
+        lastReadPageNumber = pageNumber;
+        if (sequentialReads < READ_AHEAD_TRIGGER)
+            return;
+
+        //read ahead only within current file
+        final RandomAccessFile raf = getRaf(pageNumber);
+        final long fileSize = raf.length();
+        for (int i = 1; i <= readAhead; i++) {
+            final long page = pageNumber + i * step;
+            if (Math.abs(page) / pagesPerFile != Math.abs(pageNumber) / pagesPerFile)
+                break;
+            final long offsetInFile = Math.abs(page * pageSize % FILE_SIZE);
+            if (offsetInFile >= fileSize)
+                break;
+            if (readAheadPages.containsKey(page))
+                continue;
+            readAheadPages.put(page, readAheadExecutor.submit(new Callable<ByteBuffer>() {
+                public ByteBuffer call() throws Exception {
+                    return readPositional(raf.getChannel(), offsetInFile);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Reads page in background thread. It uses positional read, so it does not interfere
+     * with file position used by other reads and writes.
+     */
+    private ByteBuffer readPositional(FileChannel channel, long offsetInFile) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offsetInFile + buffer.position()) == -1)
+                break; //rest of page beyond end of file is zero
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Enables read-ahead. Once several pages are read sequentially, following pages are read
+     * by background threads in parallel, so cold scans do not wait for each page separately.
+     *
+     * @param pages number of pages read ahead, zero disables read-ahead
+     */
+    synchronized void setReadAhead(final int pages) {
+        if (pages < 0) throw new IllegalArgumentException("negative read-ahead");
+        this.readAhead = pages;
+        if (pages == 0) {
+            if (readAheadExecutor != null)
+                readAheadExecutor.shutdown();
+            readAheadExecutor = null;
+            readAheadPages = null;
+            return;
+        }
+        if (readAheadExecutor == null) {
+            readAheadExecutor = Executors.newFixedThreadPool(Math.min(pages, 4), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "JDBM read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        //pages which were read ahead, but never requested are dropped
+        readAheadPages = new LinkedHashMap<Long, Future<ByteBuffer>>() {
+            protected boolean removeEldestEntry(Map.Entry<Long, Future<ByteBuffer>> eldest) {
+                return size() > pages * 2;
+            }
+        };
+    }
+
+    public int getPageSizeShift() {
+        return pageSizeShift;
+    }
+
+
     static final String transaction_log_file_extension = ".t";
+    static final String sealed_transaction_log_file_extension = ".ts";
 
 
     public DataOutputStream openTransactionLog() throws IOException {
@@ -121,14 +266,15 @@ class StorageDisk implements Storage {
 
     public void deleteAllFiles() {
         deleteTransactionLog();
-        StorageDiskMapped.deleteFiles(fileName);
+        deleteSealedTransactionLog();
+        layout.deleteFiles();
     }
 
 
     /**
      * Synchronizes the file.
      */
-    public void sync() throws IOException {
+    public synchronized void sync() throws IOException {
         for (RandomAccessFile file : rafs)
             if (file != null)
                 file.getFD().sync();
@@ -137,7 +283,47 @@ class StorageDisk implements Storage {
                 file.getFD().sync();
     }
 
-    public void forceClose() throws IOException {
+    /**
+     * Shortens data segment which contains the cut, following segments are deleted.
+     */
+    public synchronized void truncate(long pageCount) throws IOException {
+        if (readAheadPages != null)
+            readAheadPages.clear();
+        for (int i = 0; true; i++) {
+            final long keep = Math.min(pagesPerFile, Math.max(0, pageCount - i * pagesPerFile)) * pageSize;
+            if (keep == FILE_SIZE)
+                continue;
+            final File f = new File(layout.segmentFile(1, i));
+            RandomAccessFile raf = i < rafs.size() ? rafs.get(i) : null;
+            if (raf == null && !f.exists())
+                break;
+            if (keep == 0 && i > 0) {
+                if (raf != null) {
+                    synchronized (raf) {
+                        raf.close();
+                    }
+                    rafs.set(i, null);
+                }
+                if (!f.delete()) f.deleteOnExit();
+            } else {
+                if (raf == null)
+                    raf = getRaf(i * pagesPerFile);
+                synchronized (raf) {
+                    if (raf.length() > keep)
+                        raf.setLength(keep);
+                }
+            }
+        }
+    }
+
+    public synchronized void forceClose() throws IOException {
+        if (readAheadExecutor != null) {
+            //running reads are not interrupted, interrupt would close file channel
+            readAheadExecutor.shutdown();
+            readAheadExecutor = null;
+            readAheadPages = null;
+            readAhead = 0;
+        }
         for (RandomAccessFile f : rafs) {
             if (f != null)
                 f.close();
@@ -152,8 +338,26 @@ class StorageDisk implements Storage {
 
 
     public DataInputStream readTransactionLog() {
+        return readLog(new File(fileName + transaction_log_file_extension));
+    }
+
+    public void deleteTransactionLog() {
+        deleteLog(new File(fileName + transaction_log_file_extension));
+    }
+
+    public void sealTransactionLog() throws IOException {
+        sealLog(fileName);
+    }
 
-        File logFile = new File(fileName + transaction_log_file_extension);
+    public DataInputStream readSealedTransactionLog() {
+        return readLog(new File(fileName + sealed_transaction_log_file_extension));
+    }
+
+    public void deleteSealedTransactionLog() {
+        deleteLog(new File(fileName + sealed_transaction_log_file_extension));
+    }
+
+    static DataInputStream readLog(File logFile) {
         if (!logFile.exists())
             return null;
         if (logFile.length() == 0) {
@@ -180,12 +384,20 @@ class StorageDisk implements Storage {
         return ois;
     }
 
-    public void deleteTransactionLog() {
-        File logFile = new File(fileName + transaction_log_file_extension);
+    static void deleteLog(File logFile) {
         if (logFile.exists())
             logFile.delete();
     }
 
+    static void sealLog(String fileName) throws IOException {
+        File sealed = new File(fileName + sealed_transaction_log_file_extension);
+        if (sealed.exists())
+            throw new IOException("Sealed transaction log was not applied yet: " + sealed);
+        File log = new File(fileName + transaction_log_file_extension);
+        if (!log.renameTo(sealed))
+            throw new IOException("Could not seal transaction log: " + log);
+    }
+
     public boolean isReadonly() {
         return false;
     }
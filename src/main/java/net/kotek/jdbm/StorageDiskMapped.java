@@ -10,6 +10,7 @@ import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
 import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * Disk storage which uses mapped buffers
@@ -23,28 +24,51 @@ class StorageDiskMapped implements Storage {
 
 
     /**
-     * Maximal number of pages in single file.
-     * Calculated so that each file will have 1 GB
+     * Size of single file, 1 GB.
+     * Maximal number of pages in single file is calculated from page size.
      */
-    final static long PAGES_PER_FILE = (1024*1024*1024)>>>Storage.PAGE_SIZE_SHIFT;
+    final static long FILE_SIZE = 1024*1024*1024;
 
+    /**
+     * Size of region mapped by single buffer, 64 MB.
+     * File is mapped region by region, so growing file does not remap pages which are already mapped.
+     * Region is mapped again only if it was mapped partially and file grows over its former end.
+     */
+    final static int REGION_SIZE = 1<<26;
 
 
     private ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
     private ArrayList<FileChannel> channelsTranslation = new ArrayList<FileChannel>();
-    private IdentityHashMap<FileChannel, MappedByteBuffer> buffers = new IdentityHashMap<FileChannel, MappedByteBuffer>();
+    private IdentityHashMap<FileChannel, MappedByteBuffer[]> buffers = new IdentityHashMap<FileChannel, MappedByteBuffer[]>();
+
+    /**
+     * File is extended in chunks of this size, zero means chunk size is derived from file size.
+     */
+    private long preallocationChunkSize = 0;
 
     private String fileName;
+    private final SegmentLayout layout;
+    /** flushes segments in parallel, used only if segments are spread over several directories */
+    private ExecutorService syncExecutor;
     private boolean transactionsDisabled;
     private boolean readonly;
     private boolean lockingDisabled;
 
+    private final int pageSizeShift;
+    private final int pageSize;
+    /** maximal number of pages in single file */
+    private final long pagesPerFile;
 
-    public StorageDiskMapped(String fileName, boolean readonly, boolean transactionsDisabled, boolean lockingDisabled) throws IOException {
+
+    public StorageDiskMapped(String fileName, boolean readonly, boolean transactionsDisabled, boolean lockingDisabled, int pageSizeShift) throws IOException {
         this.fileName = fileName;
+        this.layout = SegmentLayout.load(fileName);
         this.transactionsDisabled = transactionsDisabled;
         this.readonly = readonly;
         this.lockingDisabled = lockingDisabled;
+        this.pageSizeShift = pageSizeShift;
+        this.pageSize = 1 << pageSizeShift;
+        this.pagesPerFile = FILE_SIZE >>> pageSizeShift;
         //make sure first file can be opened
         //lock it
         try {
@@ -59,7 +83,7 @@ class StorageDiskMapped implements Storage {
     }
 
     private FileChannel getChannel(long pageNumber) throws IOException {
-        int fileNumber = (int) (Math.abs(pageNumber)/PAGES_PER_FILE );
+        int fileNumber = (int) (Math.abs(pageNumber)/pagesPerFile );
 
         List<FileChannel> c = pageNumber>=0 ? channels : channelsTranslation;
 
@@ -70,20 +94,88 @@ class StorageDiskMapped implements Storage {
 
         FileChannel ret = c.get(fileNumber);
         if (ret == null) {
-            String name = makeFileName(fileName, pageNumber, fileNumber);
+            String name = layout.segmentFile(pageNumber, fileNumber);
             ret = new RandomAccessFile(name, "rw").getChannel();
             c.set(fileNumber, ret);
-            buffers.put(ret, ret.map(FileChannel.MapMode.READ_WRITE, 0, ret.size()));
+            buffers.put(ret, new MappedByteBuffer[(int) (FILE_SIZE / REGION_SIZE)]);
         }
         return ret;
     }
 
+    /**
+     * Returns mapped region which contains given offset.
+     *
+     * @param grow if true file is extended when offset is behind its end, otherwise null is returned
+     */
+    private MappedByteBuffer getRegion(FileChannel f, long offsetInFile, boolean grow) throws IOException {
+        final MappedByteBuffer[] regions = buffers.get(f);
+        final int regionNum = (int) (offsetInFile / REGION_SIZE);
+        MappedByteBuffer b = regions[regionNum];
+        if (b != null && b.limit() > offsetInFile % REGION_SIZE)
+            return b;
+
+        long fileSize = f.size();
+        if (fileSize <= offsetInFile) {
+            if (!grow) return null;
+            fileSize = preallocate(f, offsetInFile);
+        }
+
+        //old buffer is not unmapped, slices returned by read() may still be in use
+        //by other thread (checkpointer writes while pages are read). It is released by GC.
+        final long regionStart = (long) regionNum * REGION_SIZE;
+        b = f.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.min(REGION_SIZE, fileSize - regionStart));
+        regions[regionNum] = b;
+        return b;
+    }
+
+    /**
+     * Extends file so it contains page at given offset.
+     *
+     * @return new file size
+     */
+    private long preallocate(FileChannel f, long offsetInFile) throws IOException {
+        long newFileSize;
+        if (preallocationChunkSize > 0) {
+            //round up to whole chunks
+            newFileSize = (offsetInFile + pageSize + preallocationChunkSize - 1) / preallocationChunkSize * preallocationChunkSize;
+        } else {
+            //extending file for each newly added page would be slow,
+            //so allocate new size in chunks
+            long increment = Math.min(pageSize * 1024, offsetInFile / 10);
+            increment -= increment % pageSize;
+            newFileSize = offsetInFile + pageSize + increment;
+        }
+        newFileSize = Math.min(FILE_SIZE, newFileSize);
+
+        //expand file size
+        f.position(newFileSize - 1);
+        f.write(ByteBuffer.allocate(1));
+        return newFileSize;
+    }
+
+    /**
+     * Sets size of chunk in which files are extended. Larger chunks mean less file extensions
+     * and mapping calls during bulk load.
+     *
+     * @param chunkSize chunk size in bytes, must be multiple of largest page size. Zero means chunk size is derived from file size
+     */
+    synchronized void setPreallocationChunkSize(long chunkSize) {
+        if (chunkSize < 0 || chunkSize % (1 << MAX_PAGE_SIZE_SHIFT) != 0)
+            throw new IllegalArgumentException("Chunk size must be multiple of 64KB: " + chunkSize);
+        this.preallocationChunkSize = chunkSize;
+    }
+
     static String makeFileName(String fileName, long pageNumber, int fileNumber) {
         return fileName + (pageNumber>=0 ? DBR : IDR) + "." + fileNumber;
     }
 
 
-    public void write(long pageNumber, ByteBuffer data) throws IOException {
+    public int getPageSizeShift() {
+        return pageSizeShift;
+    }
+
+
+    public synchronized void write(long pageNumber, ByteBuffer data) throws IOException {
         if(transactionsDisabled && data.isDirect()){
             //if transactions are disabled and this buffer is direct,
             //changes written into buffer are directly reflected in file.
@@ -92,60 +184,38 @@ class StorageDiskMapped implements Storage {
         }
         
         FileChannel f = getChannel(pageNumber);
-        int offsetInFile = (int) ((Math.abs(pageNumber) % PAGES_PER_FILE)* PAGE_SIZE);
-        MappedByteBuffer b = buffers.get(f);
-        if( b.limit()<=offsetInFile){
-
-            //remapping buffer for each newly added page would be slow,
-            //so allocate new size in chunks
-            int increment = Math.min(PAGE_SIZE * 1024,offsetInFile/10);
-            increment  -= increment% PAGE_SIZE;
-
-            long newFileSize = offsetInFile+ PAGE_SIZE + increment;
-            newFileSize = Math.min(PAGES_PER_FILE * PAGE_SIZE, newFileSize);
-
-            //expand file size
-            f.position(newFileSize - 1);
-            f.write(ByteBuffer.allocate(1));
-            //unmap old buffer
-            unmapBuffer(b);
-            //remap buffer
-            b = f.map(FileChannel.MapMode.READ_WRITE, 0,newFileSize);
-            buffers.put(f, b);
-        }
+        long offsetInFile = (Math.abs(pageNumber) % pagesPerFile)* pageSize;
+        MappedByteBuffer b = getRegion(f, offsetInFile, true);
 
         //write into buffer
-        b.position(offsetInFile);
+        b.position((int) (offsetInFile % REGION_SIZE));
         data.rewind();
         b.put(data);
     }
 
-    private void unmapBuffer(MappedByteBuffer b) {
-        if(b!=null){
-            Cleaner cleaner = ((sun.nio.ch.DirectBuffer) b).cleaner();
-            if(cleaner!=null)
-                cleaner.clean();
+    private void unmapBuffers(MappedByteBuffer[] regions) {
+        for(MappedByteBuffer b:regions){
+            if(b!=null){
+                Cleaner cleaner = ((sun.nio.ch.DirectBuffer) b).cleaner();
+                if(cleaner!=null)
+                    cleaner.clean();
+            }
         }
     }
 
-    public ByteBuffer read(long pageNumber) throws IOException {
+    public synchronized ByteBuffer read(long pageNumber) throws IOException {
         FileChannel f = getChannel(pageNumber);
-        int offsetInFile = (int) ((Math.abs(pageNumber) % PAGES_PER_FILE)* PAGE_SIZE);
-        MappedByteBuffer b = buffers.get(f);
-        
-        if(b == null){ //not mapped yet
-            b = f.map(FileChannel.MapMode.READ_WRITE, 0, f.size());
+        long offsetInFile = (Math.abs(pageNumber) % pagesPerFile)* pageSize;
+        MappedByteBuffer b = getRegion(f, offsetInFile, false);
+
+        if(b == null){
+            //file is smaller, return empty data
+            return PageFile.cleanPage(pageSize);
         }
-        
-        //check buffers size
-        if(b.limit()<=offsetInFile){
-                //file is smaller, return empty data
-                return ByteBuffer.wrap(PageFile.CLEAN_DATA).asReadOnlyBuffer();
-            }
 
-        b.position(offsetInFile);
+        b.position((int) (offsetInFile % REGION_SIZE));
         ByteBuffer ret = b.slice();
-        ret.limit(PAGE_SIZE);
+        ret.limit(pageSize);
         if(!transactionsDisabled||readonly){
             // changes written into buffer will be directly written into file
             // so we need to protect buffer from modifications
@@ -154,16 +224,60 @@ class StorageDiskMapped implements Storage {
         return ret;
     }
 
-    public void forceClose() throws IOException {
+    /**
+     * Shortens data segment which contains the cut, following segments are deleted.
+     * <p/>
+     * Regions past the new end are not unmapped, slices returned by read() may still be in use,
+     * they are released by GC. On some platforms mapped file can not be shortened,
+     * file then keeps its size, but removed pages are never read from it.
+     */
+    public synchronized void truncate(long pageCount) throws IOException {
+        for (int i = 0; true; i++) {
+            final long keep = Math.min(pagesPerFile, Math.max(0, pageCount - i * pagesPerFile)) * pageSize;
+            if (keep == FILE_SIZE)
+                continue;
+            final File f = new File(layout.segmentFile(1, i));
+            FileChannel channel = i < channels.size() ? channels.get(i) : null;
+            if (channel == null && !f.exists())
+                break;
+            if (keep == 0 && i > 0) {
+                if (channel != null) {
+                    channel.close();
+                    buffers.remove(channel);
+                    channels.set(i, null);
+                }
+                if (!f.delete()) f.deleteOnExit();
+                continue;
+            }
+            if (channel == null)
+                channel = getChannel(i * pagesPerFile);
+            //region which reaches past new end must be mapped again
+            final MappedByteBuffer[] regions = buffers.get(channel);
+            for (int r = 0; r < regions.length; r++) {
+                if ((long) r * REGION_SIZE + REGION_SIZE > keep)
+                    regions[r] = null;
+            }
+            try {
+                if (channel.size() > keep)
+                    channel.truncate(keep);
+            } catch (IOException e) {
+                //mapped file can not be shortened on this platform
+            }
+        }
+    }
+
+    public synchronized void forceClose() throws IOException {
+        if (syncExecutor != null)
+            syncExecutor.shutdown();
         for(FileChannel f: channels){
             if(f==null) continue;
             f.close();
-            unmapBuffer(buffers.get(f));
+            unmapBuffers(buffers.get(f));
         }
         for(FileChannel f: channelsTranslation){
             if(f==null) continue;
             f.close();
-            unmapBuffer(buffers.get(f));
+            unmapBuffers(buffers.get(f));
         }
 
         channels = null;
@@ -171,9 +285,51 @@ class StorageDiskMapped implements Storage {
         buffers = null;
     }
 
-    public void sync() throws IOException {
-        for(MappedByteBuffer b: buffers.values()){
-            b.force();
+    public synchronized void sync() throws IOException {
+        if (layout.getDirectoryCount() > 1 && buffers.size() > 1) {
+            syncParallel();
+            return;
+        }
+        for(MappedByteBuffer[] regions: buffers.values()){
+            force(regions);
+        }
+    }
+
+    private static void force(MappedByteBuffer[] regions) {
+        for(MappedByteBuffer b:regions){
+            if(b!=null)
+                b.force();
+        }
+    }
+
+    /**
+     * Segments are spread over several drives, so they are flushed in parallel.
+     */
+    private void syncParallel() throws IOException {
+        if (syncExecutor == null) {
+            syncExecutor = Executors.newFixedThreadPool(layout.getDirectoryCount(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "JDBM segment sync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (final MappedByteBuffer[] regions : buffers.values()) {
+            tasks.add(syncExecutor.submit(new Runnable() {
+                public void run() {
+                    force(regions);
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : tasks)
+                f.get();
+        } catch (InterruptedException e) {
+            throw new IOError(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not sync segment", e.getCause());
         }
     }
 
@@ -195,60 +351,29 @@ class StorageDiskMapped implements Storage {
 
     public void deleteAllFiles() throws IOException {
         deleteTransactionLog();
-        deleteFiles(fileName);
-    }
-
-    static void deleteFiles(String fileName) {
-        for(int i = 0; true; i++){
-            String name = makeFileName(fileName,+1, i);
-            File f =new File(name);
-            boolean exists = f.exists();
-            if(exists && !f.delete()) f.deleteOnExit();
-            if(!exists) break;
-        }
-        for(int i = 0; true; i++){
-            String name = makeFileName(fileName,-1, i);
-            File f =new File(name);
-            boolean exists = f.exists();
-            if(exists && !f.delete()) f.deleteOnExit();
-            if(!exists) break;
-        }
+        deleteSealedTransactionLog();
+        layout.deleteFiles();
     }
 
 
     public DataInputStream readTransactionLog() {
+        return StorageDisk.readLog(new File(fileName + StorageDisk.transaction_log_file_extension));
+    }
 
-        File logFile = new File(fileName + StorageDisk.transaction_log_file_extension);
-        if (!logFile.exists())
-            return null;
-        if (logFile.length() == 0) {
-            logFile.delete();
-            return null;
-        }
+    public void deleteTransactionLog() {
+        StorageDisk.deleteLog(new File(fileName + StorageDisk.transaction_log_file_extension));
+    }
 
-        DataInputStream ois = null;
-        try {
-            ois = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
-        } catch (FileNotFoundException e) {
-            //file should exists, we check for its presents just a miliseconds yearlier, anyway move on
-            return null;
-        }
+    public void sealTransactionLog() throws IOException {
+        StorageDisk.sealLog(fileName);
+    }
 
-        try {
-            if (ois.readShort() != Magic.LOGFILE_HEADER)
-                throw new Error("Bad magic on log file");
-        } catch (IOException e) {
-            // corrupted/empty logfile
-            logFile.delete();
-            return null;
-        }
-        return ois;
+    public DataInputStream readSealedTransactionLog() {
+        return StorageDisk.readLog(new File(fileName + StorageDisk.sealed_transaction_log_file_extension));
     }
 
-    public void deleteTransactionLog() {
-        File logFile = new File(fileName + StorageDisk.transaction_log_file_extension);
-        if (logFile.exists())
-            logFile.delete();
+    public void deleteSealedTransactionLog() {
+        StorageDisk.deleteLog(new File(fileName + StorageDisk.sealed_transaction_log_file_extension));
     }
 
     public boolean isReadonly() {
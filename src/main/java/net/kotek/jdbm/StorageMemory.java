@@ -10,19 +10,29 @@ import java.nio.ByteBuffer;
 class StorageMemory implements Storage {
 
     private LongHashMap<byte[]> pages = new LongHashMap<byte[]>();
+    /** highest data page which was written, map has no key iterator, so it is used by truncate */
+    private long lastDataPage = -1;
     private boolean transactionsDisabled;
+    private final int pageSizeShift;
+    private final int pageSize;
 
-    StorageMemory(boolean transactionsDisabled){
+    StorageMemory(boolean transactionsDisabled, int pageSizeShift){
         this.transactionsDisabled = transactionsDisabled;
+        this.pageSizeShift = pageSizeShift;
+        this.pageSize = 1 << pageSizeShift;
+    }
+
+    public int getPageSizeShift() {
+        return pageSizeShift;
     }
 
 
-    public ByteBuffer read(long pageNumber) throws IOException {
+    public synchronized ByteBuffer read(long pageNumber) throws IOException {
 
         byte[] data = pages.get(pageNumber);
         if (data == null) {
             //out of bounds, so just return empty data
-            return ByteBuffer.wrap(PageFile.CLEAN_DATA).asReadOnlyBuffer();
+            return PageFile.cleanPage(pageSize);
         }else{
             ByteBuffer b = ByteBuffer.wrap(data);
             if(!transactionsDisabled)
@@ -34,8 +44,8 @@ class StorageMemory implements Storage {
 
     }
 
-    public void write(long pageNumber, ByteBuffer data) throws IOException {
-        if (data.capacity() != PAGE_SIZE) throw new IllegalArgumentException();
+    public synchronized void write(long pageNumber, ByteBuffer data) throws IOException {
+        if (data.capacity() != pageSize) throw new IllegalArgumentException();
 
         byte[] b = pages.get(pageNumber);
 
@@ -46,18 +56,25 @@ class StorageMemory implements Storage {
 
         
         if(b == null)
-            b = new byte[PAGE_SIZE];
+            b = new byte[pageSize];
         
         data.position(0);
-        data.get(b,0, PAGE_SIZE);
+        data.get(b,0, pageSize);
         pages.put(pageNumber,b);
+        lastDataPage = Math.max(lastDataPage, pageNumber);
+    }
+
+    public synchronized void truncate(long pageCount) throws IOException {
+        for (long page = pageCount; page <= lastDataPage; page++)
+            pages.remove(page);
+        lastDataPage = Math.min(lastDataPage, pageCount - 1);
     }
 
     public void sync() throws IOException {
     }
 
 
-    public void forceClose() throws IOException {
+    public synchronized void forceClose() throws IOException {
         pages = null;
     }
 
@@ -87,6 +104,33 @@ class StorageMemory implements Storage {
         return new DataOutputStream(transLog);
     }
 
+    private ByteArrayOutputStream sealedLog;
+
+    public void sealTransactionLog() throws IOException {
+        if (sealedLog != null)
+            throw new IOException("Sealed transaction log was not applied yet");
+        sealedLog = transLog;
+        transLog = null;
+    }
+
+    public DataInputStream readSealedTransactionLog() {
+        if (sealedLog == null)
+            return null;
+        DataInputStream ret = new DataInputStream(
+                new ByteArrayInputStream(sealedLog.toByteArray()));
+        //read stream header
+        try {
+            ret.readShort();
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        return ret;
+    }
+
+    public void deleteSealedTransactionLog() {
+        sealedLog = null;
+    }
+
     public void deleteAllFiles() throws IOException {
     }
 
@@ -0,0 +1,124 @@
+package net.kotek.jdbm;
+
+import sun.misc.Cleaner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage which keeps all data in memory outside of Java heap.
+ * Pages are allocated in large direct ByteBuffers (slabs) indexed by page number,
+ * so even huge store does not increase GC pauses.
+ * Data are lost after storage is closed.
+ * <p/>
+ * Transaction log is handled the same way as in {@link StorageMemory}.
+ */
+class StorageMemoryDirect extends StorageMemory {
+
+    /** size of single slab, 16 MB */
+    static final int SLAB_SIZE = 1 << 24;
+
+    /** slabs for data pages, index is page number divided by pages per slab */
+    private ByteBuffer[] slabs = new ByteBuffer[16];
+    /** slabs for translation pages, which have negative page numbers */
+    private ByteBuffer[] slabsTranslation = new ByteBuffer[16];
+
+    private final boolean transactionsDisabled;
+    private final int pageSizeShift;
+    private final int pageSize;
+    private final int slabShift;
+
+    StorageMemoryDirect(boolean transactionsDisabled, int pageSizeShift) {
+        super(transactionsDisabled, pageSizeShift);
+        this.transactionsDisabled = transactionsDisabled;
+        this.pageSizeShift = pageSizeShift;
+        this.pageSize = 1 << pageSizeShift;
+        this.slabShift = Integer.numberOfTrailingZeros(SLAB_SIZE) - pageSizeShift;
+    }
+
+    public synchronized ByteBuffer read(long pageNumber) throws IOException {
+        final long abs = Math.abs(pageNumber);
+        final int slabNum = (int) (abs >>> slabShift);
+        final ByteBuffer[] s = pageNumber >= 0 ? slabs : slabsTranslation;
+        if (slabNum >= s.length || s[slabNum] == null) {
+            //out of bounds, so just return empty data
+            return PageFile.cleanPage(pageSize);
+        }
+
+        ByteBuffer ret = slice(s[slabNum], abs);
+        if (!transactionsDisabled) {
+            //changes written into buffer would go directly into storage,
+            //so protect it from modification
+            ret = ret.asReadOnlyBuffer();
+        }
+        return ret;
+    }
+
+    public synchronized void write(long pageNumber, ByteBuffer data) throws IOException {
+        if (data.capacity() != pageSize) throw new IllegalArgumentException();
+
+        if (transactionsDisabled && data.isDirect()) {
+            //if transactions are disabled, read() returns writable slice of slab,
+            //so changes are already there
+            return;
+        }
+
+        final long abs = Math.abs(pageNumber);
+        final int slabNum = (int) (abs >>> slabShift);
+        ByteBuffer[] s = pageNumber >= 0 ? slabs : slabsTranslation;
+        if (slabNum >= s.length) {
+            //grow index
+            ByteBuffer[] s2 = new ByteBuffer[Math.max(slabNum + 1, s.length * 2)];
+            System.arraycopy(s, 0, s2, 0, s.length);
+            s = s2;
+            if (pageNumber >= 0) slabs = s;
+            else slabsTranslation = s;
+        }
+        if (s[slabNum] == null)
+            s[slabNum] = ByteBuffer.allocateDirect(SLAB_SIZE);
+
+        ByteBuffer b = slice(s[slabNum], abs);
+        data.rewind();
+        b.put(data);
+    }
+
+    /** returns page from slab, shared slab position is not modified */
+    private ByteBuffer slice(ByteBuffer slab, long pageNumber) {
+        final int offset = (int) (pageNumber & ((1L << slabShift) - 1)) << pageSizeShift;
+        ByteBuffer b = slab.duplicate();
+        b.limit(offset + pageSize);
+        b.position(offset);
+        return b.slice();
+    }
+
+    /**
+     * Releases whole slabs after given page. Slab which contains last kept page stays allocated.
+     */
+    public synchronized void truncate(long pageCount) throws IOException {
+        final int firstFreeSlab = (int) ((pageCount + (1L << slabShift) - 1) >>> slabShift);
+        for (int i = firstFreeSlab; i < slabs.length; i++) {
+            if (slabs[i] == null) continue;
+            free(new ByteBuffer[]{slabs[i]});
+            slabs[i] = null;
+        }
+    }
+
+    public synchronized void forceClose() throws IOException {
+        super.forceClose();
+        free(slabs);
+        free(slabsTranslation);
+        slabs = null;
+        slabsTranslation = null;
+    }
+
+    /** releases direct memory without waiting for GC */
+    private static void free(ByteBuffer[] s) {
+        for (ByteBuffer b : s) {
+            if (b == null) continue;
+            Cleaner cleaner = ((sun.nio.ch.DirectBuffer) b).cleaner();
+            if (cleaner != null)
+                cleaner.clean();
+        }
+    }
+
+}
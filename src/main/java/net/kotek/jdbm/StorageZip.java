@@ -17,11 +17,19 @@ class StorageZip implements Storage {
     private String zip;
     private String zip2;
     private ZipFile z;
+    private final int pageSizeShift;
+    private final int pageSize;
 
-    StorageZip(String zipFile) throws IOException {
+    StorageZip(String zipFile, int pageSizeShift) throws IOException {
         zip = zipFile;
         z = new ZipFile(zip);
         zip2 = "db";
+        this.pageSizeShift = pageSizeShift;
+        this.pageSize = 1 << pageSizeShift;
+    }
+
+    public int getPageSizeShift() {
+        return pageSizeShift;
     }
 
     public void write(long pageNumber, ByteBuffer data) throws IOException {
@@ -29,11 +37,11 @@ class StorageZip implements Storage {
     }
 
     public ByteBuffer read(long pageNumber) throws IOException {
-        ByteBuffer data = ByteBuffer.allocate(PAGE_SIZE);
+        ByteBuffer data = ByteBuffer.allocate(pageSize);
 
         ZipEntry e = z.getEntry(zip2 + pageNumber);
         if(e == null)
-            return ByteBuffer.wrap(PageFile.CLEAN_DATA).asReadOnlyBuffer();
+            return PageFile.cleanPage(pageSize);
 
         InputStream i = z.getInputStream(e);
         new DataInputStream(i).readFully(data.array());
@@ -62,9 +70,25 @@ class StorageZip implements Storage {
         throw new UnsupportedOperationException("readonly");
     }
 
+    public void sealTransactionLog() throws IOException {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public DataInputStream readSealedTransactionLog() {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public void deleteSealedTransactionLog() {
+        throw new UnsupportedOperationException("readonly");
+    }
+
     public void deleteAllFiles() throws IOException {
     }
 
+    public void truncate(long pageCount) throws IOException {
+        throw new UnsupportedOperationException("readonly");
+    }
+
     public boolean isReadonly() {
         return true;
     }
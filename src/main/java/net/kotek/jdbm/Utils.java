@@ -1,12 +1,13 @@
 package net.kotek.jdbm;
 
-import javax.crypto.Cipher;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOError;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Comparator;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Various utilities used in JDBM
@@ -19,29 +20,6 @@ class Utils {
     static final String EMPTY_STRING = "";
 
 
-
-    public static byte[] encrypt(Cipher cipherIn, ByteBuffer b) {
-        if(cipherIn==null && b.hasArray())
-            return b.array();
-        byte[] bb = new byte[Storage.PAGE_SIZE];
-        b.rewind();
-        b.get(bb,0,Storage.PAGE_SIZE);
-        return encrypt(cipherIn,bb);
-    }
-    
-    public static byte[] encrypt(Cipher cipherIn, byte[] b) {
-        if (cipherIn == null)
-            return b;
-
-        try {
-            return cipherIn.doFinal(b);
-        } catch (Exception e) {
-            throw new IOError(e);
-        }
-
-    }
-
-
     /**
      * Compares comparables. Default comparator for most of java types
      */
@@ -92,6 +70,21 @@ class Utils {
     }
     
     
+    private static final Runnable NOOP = new Runnable() {
+        public void run() {
+        }
+    };
+
+    /**
+     * @return future which is already done
+     */
+    static Future<Void> completedFuture() {
+        FutureTask<Void> ret = new FutureTask<Void>(NOOP, null);
+        ret.run();
+        return ret;
+    }
+
+
     static final Serializer<Object> NULL_SERIALIZER = new Serializer<Object>() {
         public void serialize(DataOutput out, Object obj) throws IOException {
             out.writeByte(11);
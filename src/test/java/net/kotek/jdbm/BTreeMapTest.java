@@ -329,4 +329,68 @@ public class BTreeMapTest
 
 
 
+    public void testDescendingMap() {
+        ConcurrentNavigableMap<Integer, String> map = makeEmptyMap();
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        for (int i = 0; i < 1000; i += 3) {
+            map.put(i, "aa" + i);
+            expected.put(i, "aa" + i);
+        }
+
+        assertDescending(expected.descendingMap(), map.descendingMap());
+        assertEquals(new ArrayList<Integer>(expected.descendingKeySet()), new ArrayList<Integer>(map.descendingKeySet()));
+        assertEquals(new ArrayList<Integer>(expected.keySet()), new ArrayList<Integer>(map.descendingMap().descendingMap().keySet()));
+        for (boolean fromInclusive : new boolean[]{true, false}) {
+            for (boolean toInclusive : new boolean[]{true, false}) {
+                assertDescending(expected.descendingMap().subMap(600, fromInclusive, 300, toInclusive),
+                        map.descendingMap().subMap(600, fromInclusive, 300, toInclusive));
+                assertDescending(expected.subMap(300, fromInclusive, 600, toInclusive).descendingMap(),
+                        map.subMap(300, fromInclusive, 600, toInclusive).descendingMap());
+                assertDescending(expected.descendingMap().tailMap(500, fromInclusive).headMap(200, toInclusive),
+                        map.descendingMap().tailMap(500, fromInclusive).headMap(200, toInclusive));
+            }
+            assertDescending(expected.headMap(501, fromInclusive).descendingMap(), map.headMap(501, fromInclusive).descendingMap());
+            assertDescending(expected.tailMap(501, fromInclusive).descendingMap(), map.tailMap(501, fromInclusive).descendingMap());
+        }
+
+        // last 10 entries before key
+        Iterator<Integer> iter = map.headMap(500).descendingMap().keySet().iterator();
+        for (int i = 498; i > 468; i -= 3) {
+            assertEquals(Integer.valueOf(i), iter.next());
+        }
+
+        // remove every second entry using descending iterator
+        Iterator<Entry<Integer, String>> iter2 = map.descendingMap().entrySet().iterator();
+        Iterator<Entry<Integer, String>> expectedIter = expected.descendingMap().entrySet().iterator();
+        boolean remove = false;
+        while (expectedIter.hasNext()) {
+            assertEquals(expectedIter.next(), iter2.next());
+            if (remove) {
+                iter2.remove();
+                expectedIter.remove();
+            }
+            remove = !remove;
+        }
+        assertFalse(iter2.hasNext());
+        assertEquals(expected, map);
+    }
+
+    private void assertDescending(NavigableMap<Integer, String> expected, NavigableMap<Integer, String> map) {
+        assertEquals(new ArrayList<Entry<Integer, String>>(expected.entrySet()), new ArrayList<Entry<Integer, String>>(map.entrySet()));
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.firstKey(), map.firstKey());
+        assertEquals(expected.lastKey(), map.lastKey());
+        assertEquals(expected.firstEntry(), map.firstEntry());
+        assertEquals(expected.lastEntry(), map.lastEntry());
+        for (int key : new int[]{299, 300, 301, 450, 451, 599, 600, 601}) {
+            if (!expected.isEmpty() && map.comparator().compare(key, expected.firstKey()) > 0
+                    && map.comparator().compare(key, expected.lastKey()) < 0) {
+                assertEquals(expected.lowerKey(key), map.lowerKey(key));
+                assertEquals(expected.floorKey(key), map.floorKey(key));
+                assertEquals(expected.ceilingKey(key), map.ceilingKey(key));
+                assertEquals(expected.higherKey(key), map.higherKey(key));
+            }
+        }
+    }
+
 }
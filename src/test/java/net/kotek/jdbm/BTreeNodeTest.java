@@ -50,12 +50,13 @@ public class BTreeNodeTest extends TestCaseWithTestFile {
         BTree.BTreeTuple tuple = new BTree.BTreeTuple();
 
         // test insertion
-        node.insert(1, test2, test2, false);
-        node.insert(1, test3, test3, false);
-        node.insert(1, test1, test1, false);
+        BTree.Latches held = tree.new Latches(true);
+        node.insert(1, test2, test2, false, held);
+        node.insert(1, test3, test3, false, held);
+        node.insert(1, test1, test1, false, held);
 
         // test binary search
-        browser = node.find(1, test2,true);
+        browser = node.find(1, test2,true, tree.new Latches(false));
         if (browser.getNext(tuple) == false) {
             throw new IllegalStateException("Browser didn't have 'test2'");
         }
@@ -806,6 +806,283 @@ public class BTreeTest
         build.close();
     }
 
+    public void testBulkLoad() throws IOException {
+        for (int size : new int[]{0, 1, BTree.DEFAULT_SIZE - 1, BTree.DEFAULT_SIZE, BTree.DEFAULT_SIZE + 1,
+                BTree.DEFAULT_SIZE * BTree.DEFAULT_SIZE + 1, 100000}) {
+            String file = newTestFile();
+            DB db = DBMaker.openFile(file).make();
+            TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+            for (int i = 0; i < size; i++) {
+                //some values are stored as lazy records
+                expected.put(i * 2, i % 100 == 0 ? "large value which does not fit into node " + i : "v" + i);
+            }
+            Map<Integer, String> map = db.createTreeMap("test", null, null, null, expected.entrySet().iterator());
+            assertEquals(expected, map);
+            assertEquals(new ArrayList<Integer>(expected.keySet()), new ArrayList<Integer>(map.keySet()));
+
+            //nodes must be balanced, so remove and insert works
+            for (int i = 0; i < size; i += 3) {
+                assertEquals(expected.remove(i * 2), map.remove(i * 2));
+                expected.put(i * 2 + 1, "n" + i);
+                map.put(i * 2 + 1, "n" + i);
+            }
+            assertEquals(expected, map);
+            db.commit();
+            db.close();
+
+            db = DBMaker.openFile(file).make();
+            assertEquals(expected, db.getTreeMap("test"));
+            db.close();
+        }
+    }
+
+    public void testBulkLoadNotSorted() throws IOException {
+        for (DBAbstract db : new DBAbstract[]{newDBCache(), newDBNoCache()}) {
+            SortedMap<Integer, String> sorted = new TreeMap<Integer, String>();
+            for (int i = 1; i < 1000; i++)
+                sorted.put(i, "" + i);
+            db.createTreeMap("other", null, null, null, sorted.entrySet().iterator());
+            db.commit();
+            final long count = db instanceof DBStore ? ((DBStore) db).countRecords() : 0;
+
+            //nodes are written before unsorted key is found
+            Map<Integer, String> unsorted = new LinkedHashMap<Integer, String>(sorted);
+            unsorted.put(0, "0");
+            try {
+                db.createTreeMap("test", null, null, null, unsorted.entrySet().iterator());
+                fail();
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+            db.commit();
+            //nodes and tree header were deleted
+            if (db instanceof DBStore)
+                assertEquals(count, ((DBStore) db).countRecords());
+            assertNull(db.getTreeMap("test"));
+
+            //name can be used again
+            Map<Integer, String> m = db.createTreeMap("test", null, null, null, sorted.entrySet().iterator());
+            assertEquals(sorted, m);
+            db.close();
+        }
+    }
+
+    public void testNodeSize() throws IOException {
+        for (int nodeSize : new int[]{BTree.MIN_SIZE, 128, BTree.MAX_SIZE}) {
+            String file = newTestFile();
+            DB db = DBMaker.openFile(file).make();
+            Map<Long, String> map = db.createTreeMap("test", null, null, null, nodeSize);
+            TreeMap<Long, String> expected = new TreeMap<Long, String>();
+            Random r = new Random(nodeSize);
+            for (int i = 0; i < 20000; i++) {
+                long key = r.nextInt(10000);
+                if (r.nextInt(3) == 0) {
+                    assertEquals(expected.remove(key), map.remove(key));
+                } else {
+                    assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i));
+                }
+            }
+            assertEquals(expected, map);
+            db.commit();
+            db.close();
+
+            db = DBMaker.openFile(file).make();
+            map = db.getTreeMap("test");
+            assertEquals(nodeSize, ((BTreeMap) map).tree.nodeSize);
+            assertEquals(expected, map);
+            db.close();
+        }
+    }
+
+    public void testNodeSizeBulkLoad() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).make();
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        for (int i = 0; i < 100000; i++) {
+            expected.put(i, "v" + i);
+        }
+        Map<Integer, String> map = db.createTreeMap("test", null, null, null, BTree.MAX_SIZE, expected.entrySet().iterator());
+        assertEquals(BTree.MAX_SIZE, ((BTreeMap) map).tree.nodeSize);
+        assertEquals(expected, map);
+        for (int i = 0; i < 100000; i += 2) {
+            assertEquals(expected.remove(i), map.remove(i));
+        }
+        assertEquals(expected, map);
+        db.commit();
+        db.close();
+
+        db = DBMaker.openFile(file).make();
+        map = db.getTreeMap("test");
+        assertEquals(BTree.MAX_SIZE, ((BTreeMap) map).tree.nodeSize);
+        assertEquals(expected, map);
+        db.close();
+    }
+
+    public void testNodeSizeIllegal() throws IOException {
+        DB db = newDBCache();
+        for (int nodeSize : new int[]{BTree.MIN_SIZE - 2, 33, BTree.MAX_SIZE + 2}) {
+            try {
+                db.createTreeMap("test" + nodeSize, null, null, null, nodeSize);
+                fail();
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+        db.close();
+    }
+
+    public void testConcurrentWriters() throws Exception {
+        DBAbstract db = newDBCache();
+        final BTree<Integer, String> tree = BTree.createInstance(db, null, null, null, true, BTree.MIN_SIZE);
+        final int threads = 8;
+        final int count = 5000;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[] pool = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            pool[t] = new Thread() {
+                public void run() {
+                    try {
+                        // keys of all threads are interleaved, so they share leaf nodes
+                        for (int i = 0; i < count; i++) {
+                            tree.insert(i * threads + thread, "v" + i, false);
+                            assertEquals("v" + i, tree.get(i * threads + thread));
+                        }
+                        for (int i = 0; i < count; i += 2) {
+                            assertEquals("v" + i, tree.remove(i * threads + thread));
+                            assertNull(tree.get(i * threads + thread));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            pool[t].start();
+        }
+        for (Thread t : pool)
+            t.join();
+        assertEquals(Collections.emptyList(), errors);
+
+        assertEquals(threads * count / 2, tree._entries);
+        BTree.BTreeTupleBrowser<Integer, String> browser = tree.browse();
+        BTree.BTreeTuple<Integer, String> tuple = new BTree.BTreeTuple<Integer, String>();
+        int expected = 0;
+        while (browser.getNext(tuple)) {
+            int i = expected / threads;
+            if (i % 2 == 0) {
+                expected += threads;
+                i++;
+            }
+            assertEquals(Integer.valueOf(expected), tuple.key);
+            assertEquals("v" + i, tuple.value);
+            expected++;
+        }
+        assertEquals(threads * count, expected);
+        db.close();
+    }
+
+    public void testConcurrentSplitAndMerge() throws Exception {
+        DBAbstract db = newDBCache();
+        final BTree<Integer, String> tree = BTree.createInstance(db, null, null, null, true, BTree.MIN_SIZE);
+        final int threads = 8;
+        final int count = 20000;
+        final int window = 500;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[] pool = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            pool[t] = new Thread() {
+                public void run() {
+                    try {
+                        // keys of all threads are interleaved and window slides over many parent nodes,
+                        // so neighbour leafs under different parents are split and merged at the same time
+                        Random r = new Random(thread);
+                        for (int i = 0; i < count; i++) {
+                            tree.insert(i * threads + thread, "v" + i, false);
+                            if (i >= window) {
+                                int removed = i - window;
+                                tree.remove(removed * threads + thread);
+                                int inside = i - r.nextInt(window);
+                                tree.remove(inside * threads + thread);
+                                tree.insert(inside * threads + thread, "v" + inside, false);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            pool[t].setDaemon(true);
+            pool[t].start();
+        }
+        for (Thread t : pool) {
+            t.join(60000);
+            assertFalse("writers deadlocked", t.isAlive());
+        }
+        assertEquals(Collections.emptyList(), errors);
+
+        tree.checkStructure();
+        assertEquals(threads * window, tree._entries);
+        BTree.BTreeTupleBrowser<Integer, String> browser = tree.browse();
+        BTree.BTreeTuple<Integer, String> tuple = new BTree.BTreeTuple<Integer, String>();
+        int expected = (count - window) * threads;
+        while (browser.getNext(tuple)) {
+            assertEquals(Integer.valueOf(expected), tuple.key);
+            assertEquals("v" + expected / threads, tuple.value);
+            expected++;
+        }
+        assertEquals(threads * count, expected);
+        db.close();
+    }
+
+    public void testDeleteRebalance() throws IOException {
+        DBAbstract db = (DBAbstract) DBMaker.openFile(newTestFile()).disableCache().make();
+        BTree<Long, String> tree = BTree.createInstance(db, null, null, null, true, BTree.MIN_SIZE);
+        final int window = 5000;
+
+        // sliding window, old keys are removed as new keys are added
+        Random r = new Random(0);
+        for (long i = 0; i < 50000; i++) {
+            tree.insert(i, "v" + i, false);
+            if (i >= window) {
+                tree.remove(i - window);
+                // also remove some keys inside window
+                tree.remove(i - r.nextInt(window));
+            }
+            if (i % 10000 == 0)
+                tree.checkStructure();
+        }
+        tree.checkStructure();
+
+        List<Long> nodes = new ArrayList<Long>();
+        tree.dumpChildNodeRecIDs(nodes);
+        // every node is at least half full
+        long maxLeafs = tree._entries / (BTree.MIN_SIZE / 2);
+        assertTrue("too many nodes " + nodes.size(), nodes.size() <= 2 * maxLeafs);
+
+        // remove almost everything, tree should shrink back to single leaf
+        BTree.BTreeTupleBrowser<Long, String> browser = tree.browse();
+        BTree.BTreeTuple<Long, String> tuple = new BTree.BTreeTuple<Long, String>();
+        List<Long> keys = new ArrayList<Long>();
+        while (browser.getNext(tuple))
+            keys.add(tuple.key);
+        for (int i = 3; i < keys.size(); i++) {
+            assertEquals("v" + keys.get(i), tree.remove(keys.get(i)));
+            if (i % 100 == 0)
+                tree.checkStructure();
+        }
+        tree.checkStructure();
+        assertEquals(3, tree._entries);
+        nodes.clear();
+        tree.dumpChildNodeRecIDs(nodes);
+        assertEquals(Arrays.asList(tree.getRoot()._recid), nodes);
+        for (int i = 0; i < 3; i++)
+            assertEquals("v" + keys.get(i), tree.get(keys.get(i)));
+        db.close();
+    }
+
 }
 
 
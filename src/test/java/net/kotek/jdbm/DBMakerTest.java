@@ -32,6 +32,40 @@ public class DBMakerTest extends TestCaseWithTestFile {
 
     }
 
+    public void testMemoryDirect() throws IOException {
+        for(boolean disableTransactions:new boolean[]{false,true}){
+            DBMaker m = DBMaker.openMemoryDirect()
+                    .setPageSize(16*1024)
+                    .disableCache();
+            if(disableTransactions) m.disableTransactions();
+            DBStore db = (DBStore) m.make();
+
+            long recid = db.insert("aaa");
+            db.commit();
+            if(!disableTransactions){
+                db.update(recid,"bbb");
+                db.rollback();
+            }
+            assertEquals("aaa",db.fetch(recid));
+
+            //enough records to allocate many pages
+            Set l = db.createHashSet("test");
+            for(int i = 0;i<100000;i++){
+                l.add("aa"+i);
+            }
+            byte[] large = new byte[100000];
+            for(int i = 0;i<large.length;i++) large[i] = (byte) i;
+            long largeRecid = db.insert(large);
+            db.commit();
+            db.clearCache();
+            for(int i = 0;i<100000;i++){
+                assertTrue(l.contains("aa"+i));
+            }
+            assertTrue(java.util.Arrays.equals(large, (byte[]) db.fetch(largeRecid)));
+            db.close();
+        }
+    }
+
     public void testDisk() throws IOException {
         DBStore db = (DBStore)DBMaker.openFile(newTestFile())
                 .disableCache()
@@ -71,6 +105,76 @@ public class DBMakerTest extends TestCaseWithTestFile {
        
     }
 
+    public void testPageSize() throws IOException {
+        for(int pageSize:new int[]{4096, 16*1024, 64*1024}){
+            for(boolean raf:new boolean[]{false,true}){
+                String file = newTestFile();
+                DBMaker m = DBMaker.openFile(file).setPageSize(pageSize);
+                if(raf) m.useRandomAccessFile();
+                DBStore db = (DBStore) m.make();
+                assertEquals(pageSize, db.getPageSize());
+                byte[] large = new byte[100000];
+                for(int i = 0;i<large.length;i++) large[i] = (byte) i;
+                long largeRecid = db.insert(large);
+                Set l = db.createHashSet("test");
+                for(int i = 0;i<10000;i++){
+                    l.add("aa"+i);
+                }
+                db.commit();
+                db.close();
+
+                //page size is read from file header, not from maker
+                m = DBMaker.openFile(file);
+                if(raf) m.useRandomAccessFile();
+                db = (DBStore) m.make();
+                assertEquals(pageSize, db.getPageSize());
+                assertTrue(java.util.Arrays.equals(large, (byte[]) db.fetch(largeRecid)));
+                l = db.getHashSet("test");
+                for(int i = 0;i<10000;i++){
+                    assertTrue(l.contains("aa"+i));
+                }
+                db.close();
+            }
+        }
+    }
+
+    public void testPageSizeEncrypt(){
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file)
+                .setPageSize(32*1024)
+                .enableEncryption("password",false)
+                .make();
+        Set l = db.createHashSet("test");
+        for(int i = 0;i<10000;i++){
+            l.add("aa"+i);
+        }
+        db.commit();
+        db.close();
+        db = DBMaker.openFile(file)
+                .enableEncryption("password",false)
+                .make();
+        l = db.getHashSet("test");
+        for(int i = 0;i<10000;i++){
+            assertTrue(l.contains("aa"+i));
+        }
+        db.close();
+    }
+
+    public void testPageSizeInvalid(){
+        try{
+            DBMaker.openMemory().setPageSize(3000);
+            fail();
+        }catch(IllegalArgumentException e){
+            //expected
+        }
+        try{
+            DBMaker.openMemory().setPageSize(128*1024);
+            fail();
+        }catch(IllegalArgumentException e){
+            //expected
+        }
+    }
+
 
 
 
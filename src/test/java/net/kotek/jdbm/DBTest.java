@@ -18,6 +18,7 @@ package net.kotek.jdbm;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -394,12 +395,15 @@ public class DBTest extends TestCaseWithTestFile {
 
 
     public void testCompressRecid(){
-        for(long l = Magic.PAGE_HEADER_SIZE;l<Storage.PAGE_SIZE;l+=6){
-            assertEquals(l, DBStore.decompressRecid(DBStore.compressRecid(l)));
-        }
-
-        for(long l = Magic.PAGE_HEADER_SIZE+Storage.PAGE_SIZE *5;l<Storage.PAGE_SIZE *6;l+=6){
-            assertEquals(l,DBStore.decompressRecid(DBStore.compressRecid(l)));
+        for(int shift = Storage.MIN_PAGE_SIZE_SHIFT;shift<=Storage.MAX_PAGE_SIZE_SHIFT;shift++){
+            final int pageSize = 1<<shift;
+            for(long l = Magic.PAGE_HEADER_SIZE;l<pageSize;l+=6){
+                assertEquals(l, DBStore.decompressRecid(DBStore.compressRecid(l, shift), shift));
+            }
+
+            for(long l = Magic.PAGE_HEADER_SIZE+pageSize *5;l<pageSize *6;l+=6){
+                assertEquals(l,DBStore.decompressRecid(DBStore.compressRecid(l, shift), shift));
+            }
         }
 
     }
@@ -453,5 +457,199 @@ public class DBTest extends TestCaseWithTestFile {
     }
 
 
-}
+    public void testCommitAsync() throws Exception {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).make();
+        Map<Integer,String> map = db.createHashMap("test");
+        for(int i = 0;i<1000;i++)
+            map.put(i,"aa"+i);
+        Future<Void> f = db.commitAsync();
+
+        //modify next transaction while previous is being written
+        for(int i = 1000;i<2000;i++)
+            map.put(i,"aa"+i);
+        f.get();
+        db.commitAsync();
+        map.put(-1,"rollback");
+        db.rollback();
+        db.close();
+
+        db = DBMaker.openFile(file).make();
+        map = db.getHashMap("test");
+        assertEquals(2000, map.size());
+        for(int i = 0;i<2000;i++)
+            assertEquals("aa"+i, map.get(i));
+        db.close();
+    }
+
+    public void testSnapshot() throws Exception {
+        DB db = newDBCache();
+        Map<Integer,String> map = db.createTreeMap("test");
+        for(int i = 0;i<1000;i++)
+            map.put(i,"aa"+i);
+        db.commit();
+
+        //uncommitted change is not visible in snapshot
+        map.put(-1, "uncommitted");
+        DB snapshot = db.snapshot();
+        Map<Integer,String> snapMap = snapshot.getTreeMap("test");
+        assertEquals(1000, snapMap.size());
+        assertNull(snapMap.get(-1));
+
+        //changes committed after snapshot are not visible either
+        for(int i = 0;i<1000;i++)
+            map.put(i,"bb"+i);
+        db.commit();
+        for(int i = 0;i<1000;i++)
+            assertEquals("aa"+i, snapMap.get(i));
+
+        DB snapshot2 = db.snapshot();
+        assertEquals("bb1", snapshot2.getTreeMap("test").get(1));
+        assertEquals("uncommitted", snapshot2.getTreeMap("test").get(-1));
+        try{
+            snapMap.put(1,"a");
+            fail();
+        }catch(UnsupportedOperationException e){
+            //expected
+        }
+
+        snapshot.close();
+        assertTrue(snapshot.isClosed());
+        db.close();
+        assertTrue(snapshot2.isClosed());
+    }
+
+    public void testSnapshotDoesNotWaitForWriter() throws Exception {
+        final DB db = newDBCache();
+        Map<Integer,String> map = db.createHashMap("test");
+        for(int i = 0;i<100;i++)
+            map.put(i,"aa"+i);
+        db.commit();
+        DB snapshot = db.snapshot();
+        Map<Integer,String> snapMap = snapshot.getHashMap("test");
+
+        //writer holds DB lock while snapshot is read
+        ((DBStore)db).lock.writeLock().lock();
+        try{
+            map.put(1,"bb");
+            for(int i = 0;i<100;i++)
+                assertEquals("aa"+i, snapMap.get(i));
+        }finally {
+            ((DBStore)db).lock.writeLock().unlock();
+        }
+        snapshot.close();
+        db.close();
+    }
+
+    public void testConcurrentFetch() throws Exception {
+        final DBAbstract db = (DBAbstract) newDBNoCache();
+        final long[] recids = new long[1000];
+        for(int i = 0;i<recids.length;i++)
+            recids[i] = db.insert("aa"+i);
+        db.commit();
+
+        //fetch from other threads while this thread holds shared lock
+        final AtomicInteger errors = new AtomicInteger(0);
+        Thread[] threads = new Thread[4];
+        ((DBStore)db).lock.readLock().lock();
+        try{
+            for(int t = 0;t<threads.length;t++){
+                threads[t] = new Thread(){
+                    public void run() {
+                        try{
+                            for(int j = 0;j<10;j++)
+                                for(int i = 0;i<recids.length;i++)
+                                    if(!("aa"+i).equals(db.fetch(recids[i])))
+                                        errors.incrementAndGet();
+                        }catch(Throwable e){
+                            e.printStackTrace();
+                            errors.incrementAndGet();
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for(Thread t:threads){
+                t.join(10000);
+                assertFalse("fetch is blocked", t.isAlive());
+            }
+        }finally {
+            ((DBStore)db).lock.readLock().unlock();
+        }
+        assertEquals(0, errors.get());
+        db.close();
+    }
 
+    public void testInsertBatch() throws IOException {
+        String file = newTestFile();
+        DBStore db = new DBStore(file, false, false, false);
+        //free space is not used by batch
+        for (int i = 0; i < 100; i++)
+            db.delete(db.insert("junk" + i));
+        db.commit();
+
+        List<String> objs = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            //some records span over several pages
+            objs.add(i % 1000 == 0 ? new String(new char[10000]) + i : "aa" + i);
+        }
+        long[] recids = db.insertBatch(objs, db.defaultSerializer());
+        assertEquals(objs.size(), recids.length);
+        for (int i = 0; i < recids.length; i++)
+            assertEquals(objs.get(i), db.fetch(recids[i]));
+        db.commit();
+        db.close();
+
+        DBAbstract db2 = (DBAbstract) DBMaker.openFile(file).make();
+        for (int i = 0; i < recids.length; i++)
+            assertEquals(objs.get(i), db2.fetch(recids[i]));
+        assertEquals(0, db2.insertBatch(new ArrayList<String>(), db2.defaultSerializer()).length);
+        db2.close();
+    }
+
+    public void testInsertBatchAutoCommit() throws IOException {
+        String file = newTestFile();
+        DBStore db = new DBStore(file, false, true, false);
+        List<byte[]> objs = new ArrayList<byte[]>();
+        //batch dirties more pages than limit for auto commit
+        for (int i = 0; i < 3000; i++)
+            objs.add(new byte[10000]);
+        long[] recids = db.insertBatch(objs, db.defaultSerializer());
+        assertTrue(db.commitCount > 0);
+        db.close();
+
+        db = new DBStore(file, false, true, false);
+        for (long recid : recids)
+            assertEquals(10000, ((byte[]) db.fetch(recid)).length);
+        db.close();
+    }
+
+    public void testFetchAll() throws IOException {
+        for (DBAbstract db : new DBAbstract[]{newDBNoCache(), newDBCache()}) {
+            long[] recids = new long[5000];
+            for (int i = 0; i < recids.length; i++)
+                recids[i] = db.insert(i % 500 == 0 ? new String(new char[10000]) + i : "aa" + i);
+            db.commit();
+            db.delete(recids[10]);
+            //modified record is not committed yet
+            db.update(recids[20], "bb");
+
+            //shuffle and repeat some recids
+            Random r = new Random(1);
+            long[] recids2 = new long[recids.length + 100];
+            for (int i = 0; i < recids2.length; i++)
+                recids2[i] = recids[r.nextInt(recids.length)];
+            recids2[0] = recids[10];
+            recids2[1] = recids[20];
+
+            List<Object> objs = db.fetchAll(recids2, db.defaultSerializer());
+            assertEquals(recids2.length, objs.size());
+            for (int i = 0; i < recids2.length; i++)
+                assertEquals(db.fetch(recids2[i]), objs.get(i));
+            assertNull(objs.get(0));
+            assertEquals("bb", objs.get(1));
+            assertTrue(db.fetchAll(new long[0], db.defaultSerializer()).isEmpty());
+            db.close();
+        }
+    }
+}
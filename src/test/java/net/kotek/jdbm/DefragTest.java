@@ -85,4 +85,74 @@ public class DefragTest extends TestCaseWithTestFile {
 
         r.close();
     }
+
+    public void testDefragSeveralCollections() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).make();
+        Map<Integer, String> tree = db.createTreeMap("tree");
+        Map<Integer, String> hash = db.createHashMap("hash");
+        List<String> list = db.createLinkedList("list");
+        for (int i = 0; i < 100000; i++) {
+            tree.put(i, "t" + i);
+            if (i % 10 == 0) {
+                hash.put(i, "h" + i);
+                list.add("l" + i);
+            }
+        }
+        db.createTreeMap("empty");
+        db.commit();
+
+        db.defrag(true);
+        assertEquals(100000, tree.size());
+        db.close();
+
+        db = DBMaker.openFile(file).make();
+        tree = db.getTreeMap("tree");
+        hash = db.getHashMap("hash");
+        list = db.getLinkedList("list");
+        assertEquals(100000, tree.size());
+        assertEquals(10000, hash.size());
+        assertEquals(10000, list.size());
+        for (int i = 0; i < 100000; i++) {
+            assertEquals("t" + i, tree.get(i));
+            if (i % 10 == 0) {
+                assertEquals("h" + i, hash.get(i));
+                assertEquals("l" + i, list.get(i / 10));
+            }
+        }
+        assertTrue(db.getTreeMap("empty").isEmpty());
+        db.close();
+    }
+
+    private void collectNodes(DBStore db, BTreeNode serializer, long recid, List<Long> locations) throws IOException {
+        locations.add(db.fetchPhysicalLocation(recid));
+        BTreeNode node = (BTreeNode) db.fetch(recid, serializer);
+        if (!node._isLeaf)
+            for (int i = node._first; i < node._children.length; i++)
+                collectNodes(db, serializer, node._children[i], locations);
+    }
+
+    public void testDefragKeepsCollectionsTogether() throws IOException {
+        String file = newTestFile();
+        DBStore db = new DBStore(file, false, false, false);
+        Map<Integer, String> a = db.createTreeMap("a");
+        Map<Integer, String> b = db.createTreeMap("b");
+        //nodes of both trees are interleaved in original store
+        for (int i = 0; i < 20000; i++) {
+            a.put(i, "a" + i);
+            b.put(i, "b" + i);
+        }
+        db.commit();
+        db.defrag(true);
+
+        List<Long> locA = new ArrayList<Long>();
+        List<Long> locB = new ArrayList<Long>();
+        BTreeNode rootA = ((BTreeMap) db.getTreeMap("a")).tree.getRoot();
+        BTreeNode rootB = ((BTreeMap) db.getTreeMap("b")).tree.getRoot();
+        collectNodes(db, rootA, rootA._recid, locA);
+        collectNodes(db, rootB, rootB._recid, locB);
+        assertTrue(Collections.max(locA) < Collections.min(locB) || Collections.max(locB) < Collections.min(locA));
+        assertEquals(20000, db.getTreeMap("a").size());
+        db.close();
+    }
 }
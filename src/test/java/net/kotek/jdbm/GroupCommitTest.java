@@ -0,0 +1,153 @@
+package net.kotek.jdbm;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class GroupCommitTest extends TestCaseWithTestFile {
+
+    public void testConcurrentCommits() throws Exception {
+        final String file = newTestFile();
+        final DB db = DBMaker.openFile(file).enableGroupCommit(5).make();
+        final Map<Integer, String> m = db.createHashMap("test");
+        db.commit();
+
+        final int threadsNum = 8;
+        final int perThread = 50;
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[threadsNum];
+        for (int i = 0; i < threadsNum; i++) {
+            final int threadId = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            m.put(threadId * perThread + j, "val" + j);
+                            db.commit();
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (error.get() != null)
+            throw new Exception(error.get());
+
+        db.close();
+
+        DB db2 = DBMaker.openFile(file).make();
+        Map<Integer, String> m2 = db2.getHashMap("test");
+        assertEquals(threadsNum * perThread, m2.size());
+        for (int i = 0; i < threadsNum; i++)
+            for (int j = 0; j < perThread; j++)
+                assertEquals("val" + j, m2.get(i * perThread + j));
+        db2.close();
+    }
+
+    public void testSingleCommit() throws IOException {
+        DBStore db = (DBStore) DBMaker.openMemory().disableCache().enableGroupCommit(1).make();
+        long recid = db.insert("aaa");
+        db.commit();
+        db.update(recid, "bbb");
+        db.rollback();
+        assertEquals("aaa", db.fetch(recid));
+        db.close();
+    }
+
+    public void testCommitsAreCoalesced() throws Exception {
+        final DBStore db = (DBStore) DBMaker.openFile(newTestFile()).disableCache().enableGroupCommit(20).make();
+        final long recid = db.insert("init");
+        db.commit();
+        final long commitsBefore = db.commitCount;
+
+        final int threadsNum = 8;
+        final int perThread = 10;
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[threadsNum];
+        for (int i = 0; i < threadsNum; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            db.update(recid, "val" + j);
+                            db.commit();
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (error.get() != null)
+            throw new Exception(error.get());
+
+        long commits = db.commitCount - commitsBefore;
+        assertTrue("commits were not coalesced: " + commits, commits <= threadsNum * perThread / 2);
+        db.close();
+    }
+
+    public void testRollbackWaitsForBatch() throws Exception {
+        checkRollbackWaitsForBatch(false);
+    }
+
+    public void testRollbackWaitsForBatchCached() throws Exception {
+        checkRollbackWaitsForBatch(true);
+    }
+
+    private void checkRollbackWaitsForBatch(boolean cache) throws Exception {
+        final String file = newTestFile();
+        DBMaker maker = DBMaker.openFile(file).enableGroupCommit(500);
+        if (!cache) maker.disableCache();
+        final DBAbstract db = (DBAbstract) maker.make();
+        final long recid = db.insert("aaa");
+        db.commit();
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread committer = new Thread() {
+            public void run() {
+                try {
+                    db.update(recid, "bbb");
+                    db.commit();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        committer.setDaemon(true);
+        committer.start();
+        //committer is now waiting for others to join its batch
+        Thread.sleep(100);
+        Thread rollback = new Thread() {
+            public void run() {
+                try {
+                    db.rollback();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        rollback.setDaemon(true);
+        rollback.start();
+        rollback.join(10000);
+        assertFalse("rollback deadlocked with group commit", rollback.isAlive());
+        committer.join();
+        if (error.get() != null)
+            throw new Exception(error.get());
+
+        //commit call returned, so its changes must survive rollback
+        assertEquals("bbb", db.fetch(recid));
+        db.close();
+
+        DBAbstract db2 = (DBAbstract) DBMaker.openFile(file).disableCache().make();
+        assertEquals("bbb", db2.fetch(recid));
+        db2.close();
+    }
+
+}
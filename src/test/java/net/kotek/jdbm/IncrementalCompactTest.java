@@ -0,0 +1,235 @@
+package net.kotek.jdbm;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+
+public class IncrementalCompactTest extends TestCaseWithTestFile {
+
+    static final int RECORDS = 600;
+
+    private long dataSize(String file) {
+        long size = 0;
+        for (int i = 0; new File(StorageDiskMapped.makeFileName(file, 1, i)).exists(); i++)
+            size += new File(StorageDiskMapped.makeFileName(file, 1, i)).length();
+        return size;
+    }
+
+    private byte[] record(int i) {
+        byte[] b = new byte[(i % 40) * 20 + 1];
+        Arrays.fill(b, (byte) i);
+        return b;
+    }
+
+    /**
+     * Inserts records and deletes first half of them, so free space is at start of file and live records at its end.
+     * Cache is disabled in tests, it would write records in different order.
+     */
+    private List<Long> insertAndDeleteHead(DBAbstract db) throws IOException {
+        List<Long> recids = new ArrayList<Long>();
+        for (int i = 0; i < RECORDS; i++)
+            recids.add(db.insert(record(i)));
+        db.commit();
+        for (int i = 0; i < RECORDS / 2; i++)
+            db.delete(recids.get(i));
+        db.commit();
+        return recids;
+    }
+
+    private void check(DBAbstract db, List<Long> recids) throws IOException {
+        for (int i = RECORDS / 2; i < RECORDS; i++)
+            assertTrue(Arrays.equals(record(i), (byte[]) db.fetch(recids.get(i))));
+    }
+
+    public void testCompact() throws IOException {
+        for (boolean raf : new boolean[]{false, true}) {
+            String file = newTestFile();
+            DBMaker maker = DBMaker.openFile(file).disableCache();
+            if (raf) maker.useRandomAccessFile();
+            DBAbstract db = (DBAbstract) maker.make();
+            List<Long> recids = insertAndDeleteHead(db);
+            //nothing is released without moving records
+            assertEquals(0, db.shrink());
+            //transaction log is applied to data file on close
+            db.close();
+            final long before = dataSize(file);
+            db = (DBAbstract) maker.make();
+
+            int moved = 0;
+            for (int n = db.compact(20); n > 0; n = db.compact(20)) {
+                assertTrue(n <= 20 + 2);
+                moved += n;
+                check(db, recids);
+            }
+            assertTrue(moved > 0);
+            assertTrue(dataSize(file) < before);
+            check(db, recids);
+            db.close();
+
+            db = (DBAbstract) DBMaker.openFile(file).disableCache().make();
+            check(db, recids);
+            //moved records can be updated and deleted
+            for (int i = RECORDS / 2; i < RECORDS; i += 2)
+                db.update(recids.get(i), record(i + 1));
+            for (int i = RECORDS / 2 + 1; i < RECORDS; i += 2)
+                db.delete(recids.get(i));
+            db.commit();
+            for (int i = RECORDS / 2; i < RECORDS; i += 2)
+                assertTrue(Arrays.equals(record(i + 1), (byte[]) db.fetch(recids.get(i))));
+            db.close();
+        }
+    }
+
+    public void testNothingToMove() throws IOException {
+        DBAbstract db = (DBAbstract) DBMaker.openFile(newTestFile()).disableCache().make();
+        List<Long> recids = new ArrayList<Long>();
+        for (int i = 0; i < RECORDS; i++)
+            recids.add(db.insert(record(i)));
+        assertEquals(0, db.compact(100));
+        //uncommitted data were committed
+        db.rollback();
+        for (int i = 0; i < RECORDS; i++)
+            assertTrue(Arrays.equals(record(i), (byte[]) db.fetch(recids.get(i))));
+        db.close();
+    }
+
+    public void testSmallStepsOverManyTranslationPages() throws IOException {
+        String file = newTestFile();
+        DBAbstract db = (DBAbstract) DBMaker.openFile(file).disableCache().make();
+        List<Long> recids = new ArrayList<Long>();
+        for (int i = 0; i < 20000; i++)
+            recids.add(db.insert(i));
+        db.commit();
+        for (int i = 0; i < 10000; i++)
+            db.delete(recids.get(i));
+        db.commit();
+        db.close();
+        final long before = dataSize(file);
+
+        db = (DBAbstract) DBMaker.openFile(file).disableCache().make();
+        int moved = 0;
+        for (int n = db.compact(5); n > 0; n = db.compact(5)) {
+            moved += n;
+        }
+        assertTrue(moved > 0);
+        assertTrue(dataSize(file) < before);
+        for (int i = 10000; i < 20000; i++)
+            assertEquals(Integer.valueOf(i), db.fetch(recids.get(i)));
+        db.close();
+    }
+
+    public void testCompactCollection() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).make();
+        Map<Integer, String> old = db.createHashMap("old");
+        for (int i = 0; i < 10000; i++)
+            old.put(i, "aa" + i);
+        Map<Integer, String> m = db.createTreeMap("test");
+        for (int i = 0; i < 10000; i++)
+            m.put(i, "aa" + i);
+        db.commit();
+        db.deleteCollection("old");
+        db.commit();
+        db.close();
+        final long before = dataSize(file);
+
+        db = DBMaker.openFile(file).make();
+        m = db.getTreeMap("test");
+        while (db.compact(100) > 0) ;
+        assertTrue(dataSize(file) < before);
+        for (int i = 0; i < 10000; i++)
+            assertEquals("aa" + i, m.get(i));
+        db.close();
+
+        db = DBMaker.openFile(file).make();
+        m = db.getTreeMap("test");
+        assertEquals(10000, m.size());
+        for (int i = 0; i < 10000; i++)
+            assertEquals("aa" + i, m.get(i));
+        db.close();
+    }
+
+    public void testBackgroundCompaction() throws Exception {
+        String file = newTestFile();
+        DBAbstract db = (DBAbstract) DBMaker.openFile(file).disableCache().make();
+        List<Long> recids = insertAndDeleteHead(db);
+        db.close();
+        final long before = dataSize(file);
+
+        db = (DBAbstract) DBMaker.openFile(file).disableCache().enableBackgroundCompaction(10, 1).make();
+        for (int i = 0; i < 1000 && dataSize(file) >= before; i++)
+            Thread.sleep(10);
+        assertTrue(dataSize(file) < before);
+        check(db, recids);
+
+        //background thread does not commit changes made by other threads
+        db.update(recids.get(RECORDS - 1), record(0));
+        Thread.sleep(100);
+        db.rollback();
+        check(db, recids);
+        db.close();
+
+        db = (DBAbstract) DBMaker.openFile(file).disableCache().make();
+        check(db, recids);
+        db.close();
+    }
+
+    public void testBackgroundCompactionFailureIsReported() throws IOException {
+        DBStore db = (DBStore) DBMaker.openFile(newTestFile()).disableCache().make();
+        List<Long> recids = insertAndDeleteHead(db);
+        IOException failure = new IOException("compaction failed");
+        db.compactorFailure.set(failure);
+        try {
+            db.commit();
+            fail();
+        } catch (IOError e) {
+            assertSame(failure, e.getCause());
+        }
+        //error is reported only once
+        db.commit();
+
+        db.compactorFailure.set(failure);
+        try {
+            db.compact(10);
+            fail();
+        } catch (IOError e) {
+            assertSame(failure, e.getCause());
+        }
+        db.compact(10);
+        check(db, recids);
+        db.close();
+    }
+
+    public void testSnapshotIsReadonly() {
+        DB db = DBMaker.openMemory().make();
+        try {
+            db.snapshot().compact(10);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        db.close();
+    }
+
+    public void testInvalidArguments() {
+        try {
+            DBMaker.openMemory().enableBackgroundCompaction(0, 10);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        DB db = DBMaker.openMemory().make();
+        try {
+            db.compact(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        db.close();
+    }
+}
@@ -0,0 +1,130 @@
+package net.kotek.jdbm;
+
+import java.io.IOException;
+import java.util.Map;
+
+
+public class PageCacheTest extends TestCaseWithTestFile {
+
+    private byte[] page(int value) {
+        return new byte[]{(byte) value};
+    }
+
+    public void testGetPut() {
+        PageCache c = new PageCache(4 * Storage.PAGE_SIZE, Storage.PAGE_SIZE);
+        assertEquals(4, c.getCapacity());
+        assertNull(c.get(1));
+        c.put(1, page(1));
+        c.put(-1, page(2));
+        assertEquals(1, c.get(1)[0]);
+        assertEquals(2, c.get(-1)[0]);
+        c.put(1, page(3));
+        assertEquals(3, c.get(1)[0]);
+        assertEquals(2, c.size());
+        c.remove(1);
+        assertNull(c.get(1));
+        assertEquals(1, c.size());
+
+        assertEquals(3, c.getHits());
+        assertEquals(2, c.getMisses());
+        assertEquals(0.6D, c.getHitRate(), 0.0001);
+    }
+
+    public void testClockEviction() {
+        PageCache c = new PageCache(4 * Storage.PAGE_SIZE, Storage.PAGE_SIZE);
+        for (int i = 0; i < 4; i++)
+            c.put(i, page(i));
+        //hot pages
+        c.get(0);
+        c.get(2);
+        //unreferenced pages are evicted first
+        c.put(10, page(10));
+        c.put(11, page(11));
+        assertEquals(4, c.size());
+        assertEquals(2, c.getEvictions());
+        assertNotNull(c.get(0));
+        assertNotNull(c.get(2));
+        assertNull(c.get(1));
+        assertNull(c.get(3));
+
+        //scan of new pages does not evict hot pages, while they are referenced
+        c.put(12, page(12));
+        assertNotNull(c.get(0));
+        assertNotNull(c.get(2));
+        assertNotNull(c.get(12));
+    }
+
+    public void testRemovedSlotIsReused() {
+        PageCache c = new PageCache(2 * Storage.PAGE_SIZE, Storage.PAGE_SIZE);
+        c.put(1, page(1));
+        c.put(2, page(2));
+        c.get(1);
+        c.get(2);
+        c.remove(1);
+        c.put(3, page(3));
+        assertEquals(0, c.getEvictions());
+        assertNotNull(c.get(2));
+        assertNotNull(c.get(3));
+    }
+
+    public void testDB() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).useRandomAccessFile().setPageCacheSize(256 * 1024).make();
+        Map<Integer, String> m = db.createTreeMap("test");
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, "aa" + i);
+        }
+        db.commit();
+        db.clearCache();
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("aa" + i, m.get(i));
+        }
+
+        //cached pages are updated
+        for (int i = 0; i < 10000; i += 2) {
+            m.put(i, "bb" + i);
+        }
+        db.commit();
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, "cc" + i);
+        }
+        db.rollback();
+        db.clearCache();
+        for (int i = 0; i < 10000; i++) {
+            assertEquals((i % 2 == 0 ? "bb" : "aa") + i, m.get(i));
+        }
+        assertTrue(db.calculateStatistics().contains("PAGE CACHE"));
+        db.close();
+
+        db = DBMaker.openFile(file).make();
+        m = db.getTreeMap("test");
+        assertEquals("bb9998", m.get(9998));
+        assertEquals("aa9999", m.get(9999));
+        db.close();
+    }
+
+    public void testDBEncrypted() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).useRandomAccessFile().enableEncryption("password", false)
+                .setPageCacheSize(1024 * 1024).make();
+        Map<Integer, String> m = db.createHashMap("test");
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, "aa" + i);
+        }
+        db.commit();
+        db.clearCache();
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("aa" + i, m.get(i));
+        }
+        db.close();
+    }
+
+    public void testInvalidSize() {
+        try {
+            DBMaker.openFile(newTestFile()).setPageCacheSize(1000);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+}
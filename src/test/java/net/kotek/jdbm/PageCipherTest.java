@@ -0,0 +1,128 @@
+package net.kotek.jdbm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class PageCipherTest extends TestCaseWithTestFile {
+
+    private byte[] page(int seed, int size) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    public void testRoundTrip() throws Exception {
+        PageCipher c = PageCipher.create("password", false);
+        for (int shift = Storage.MIN_PAGE_SIZE_SHIFT; shift <= Storage.MAX_PAGE_SIZE_SHIFT; shift++) {
+            for (long pageId : new long[]{0, 1, 1000, -1, -1000, Long.MAX_VALUE}) {
+                byte[] plain = page((int) pageId, 1 << shift);
+                byte[] enc = new byte[plain.length];
+                c.encrypt(pageId, plain, plain.length, enc);
+                assertFalse(Arrays.equals(plain, enc));
+                c.decrypt(pageId, enc, enc.length, enc);
+                assertTrue(Arrays.equals(plain, enc));
+            }
+        }
+    }
+
+    public void testPageNumberIsTweak() throws Exception {
+        PageCipher c = PageCipher.create("password", false);
+        byte[] plain = new byte[Storage.PAGE_SIZE];
+        byte[] enc1 = new byte[plain.length];
+        byte[] enc2 = new byte[plain.length];
+        c.encrypt(1, plain, plain.length, enc1);
+        c.encrypt(2, plain, plain.length, enc2);
+        assertFalse(Arrays.equals(enc1, enc2));
+        //blocks with the same content are encrypted differently within page
+        assertFalse(Arrays.equals(Arrays.copyOfRange(enc1, 0, 16), Arrays.copyOfRange(enc1, 16, 32)));
+
+        //page decrypted with wrong page number is garbage
+        c.decrypt(2, enc1, enc1.length, enc1);
+        assertFalse(Arrays.equals(plain, enc1));
+    }
+
+    public void testPartialDecrypt() throws Exception {
+        PageCipher c = PageCipher.create("password", true);
+        byte[] plain = page(1, Storage.PAGE_SIZE);
+        byte[] enc = new byte[plain.length];
+        c.encrypt(5, plain, plain.length, enc);
+        byte[] prefix = new byte[1024];
+        c.decrypt(5, enc, prefix.length, prefix);
+        assertTrue(Arrays.equals(Arrays.copyOf(plain, prefix.length), prefix));
+    }
+
+    public void testEncryptToBuffer() throws Exception {
+        PageCipher c = PageCipher.create("password", false);
+        byte[] plain = page(1, Storage.PAGE_SIZE);
+        byte[] expected = new byte[plain.length];
+        c.encrypt(7, plain, plain.length, expected);
+
+        assertTrue(Arrays.equals(expected, c.encryptToBuffer(7, ByteBuffer.wrap(plain))));
+        ByteBuffer direct = ByteBuffer.allocateDirect(plain.length);
+        direct.put(plain);
+        byte[] enc = c.encryptToBuffer(7, direct);
+        assertTrue(Arrays.equals(expected, enc));
+        //buffer is reused
+        assertSame(enc, c.encryptToBuffer(8, direct));
+        //and has size of page
+        assertEquals(4096, c.encryptToBuffer(8, ByteBuffer.allocate(4096)).length);
+    }
+
+    public void testConcurrentThreads() throws Exception {
+        final PageCipher c = PageCipher.create("password", false);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 1000; i++) {
+                            byte[] plain = page(seed * 1000 + i, Storage.PAGE_SIZE);
+                            byte[] enc = c.encryptToBuffer(i, ByteBuffer.wrap(plain)).clone();
+                            c.decrypt(i, enc, enc.length, enc);
+                            if (!Arrays.equals(plain, enc))
+                                throw new AssertionError("page " + i);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+    }
+
+    public void testDB() throws IOException {
+        for (boolean disableTransactions : new boolean[]{false, true}) {
+            String file = newTestFile();
+            DBMaker maker = DBMaker.openFile(file).enableEncryption("password", false);
+            if (disableTransactions)
+                maker.disableTransactions();
+            DB db = maker.make();
+            Map<Integer, String> m = db.createTreeMap("test");
+            for (int i = 0; i < 10000; i++) {
+                m.put(i, "aa" + i);
+            }
+            db.commit();
+            db.close();
+
+            db = DBMaker.openFile(file).enableEncryption("password", false).make();
+            m = db.getTreeMap("test");
+            assertEquals(10000, m.size());
+            for (int i = 0; i < 10000; i++) {
+                assertEquals("aa" + i, m.get(i));
+            }
+            db.close();
+        }
+    }
+}
@@ -94,6 +94,36 @@ public class PageIoTest extends TestCase {
     }
 
 
+    public void testDirtyRanges() {
+        PageIo t = new PageIo(0, new byte[Storage.PAGE_SIZE]);
+        t.writeLong(100, 1);
+        t.writeShort(108, (short) 1);
+        t.writeByte(10, (byte) 1);
+        assertTrue(java.util.Arrays.equals(new int[]{10, 11, 100, 110}, t.getDirtyRanges()));
+
+        //overlapping range is merged
+        t.writeLong(6, 1);
+        assertTrue(java.util.Arrays.equals(new int[]{6, 14, 100, 110}, t.getDirtyRanges()));
+
+        //too many ranges, closest ones are merged
+        for (int i = 0; i < 20; i++)
+            t.writeByte(1000 + i * 100, (byte) 1);
+        int[] ranges = t.getDirtyRanges();
+        assertEquals(16, ranges.length);
+        assertEquals(6, ranges[0]);
+        assertEquals(2901, ranges[15]);
+
+        t.setClean();
+        assertEquals(0, t.getDirtyRanges().length);
+
+        //page marked dirty without range is logged whole
+        t.setDirty();
+        assertNull(t.getDirtyRanges());
+        t.setClean();
+        t.writeByteArray(new byte[Storage.PAGE_SIZE], 0, 0, Storage.PAGE_SIZE);
+        assertNull(t.getDirtyRanges());
+    }
+
     public void testPageHeaderSetWriteRead() throws Exception {
         PageIo data = new PageIo(0, new byte[Storage.PAGE_SIZE]);
         data.writeShort(0, Magic.PAGE_MAGIC);
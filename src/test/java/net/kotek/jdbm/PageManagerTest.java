@@ -60,4 +60,41 @@ public class PageManagerTest extends TestCaseWithTestFile {
         f.close();
     }
 
+    /**
+     * Test that free pages at end of file are removed from free list.
+     */
+    public void testRemoveTrailingFreePages() throws Exception {
+        String file = newTestFile();
+        PageFile f = new PageFile(file);
+        PageManager pm = new PageManager(f);
+        for (int i = 0; i < 100; i++) {
+            pm.allocate(Magic.USED_PAGE);
+        }
+        //pages 90-100 are at end of file, 10 and 20 are in middle
+        pm.free(Magic.USED_PAGE, 95);
+        pm.free(Magic.USED_PAGE, 10);
+        for (long i = 90; i <= 100; i++) {
+            if (i != 95)
+                pm.free(Magic.USED_PAGE, i);
+        }
+        pm.free(Magic.USED_PAGE, 20);
+        assertEquals(5, pm.getTrailingFreePages(5));
+        assertEquals(11, pm.getTrailingFreePages(Long.MAX_VALUE));
+
+        assertEquals(11, pm.removeTrailingFreePages());
+        assertEquals(0, pm.removeTrailingFreePages());
+        assertEquals(90, pm.getLast(Magic.FREE_PAGE));
+        pm.commit();
+        pm.close();
+        f.close();
+
+        f = new PageFile(file);
+        pm = new PageManager(f);
+        assertEquals(20, pm.allocate(Magic.USED_PAGE));
+        assertEquals(10, pm.allocate(Magic.USED_PAGE));
+        assertEquals(90, pm.allocate(Magic.USED_PAGE));
+        pm.close();
+        f.close();
+    }
+
 }
@@ -100,6 +100,88 @@ public class PageTransactionManagerTest extends TestCaseWithTestFile {
         file2.forceClose();
     }
 
+    /**
+     * Many transactions with small checkpoint threshold, so several logs are sealed and applied
+     * in background. Crash is simulated and content must be recovered from data file and logs.
+     */
+    public void testBackgroundCheckpoint() throws Exception {
+        PageFile file1 = new PageFile(file);
+        file1.txnMgr.setCheckpointThreshold(Storage.PAGE_SIZE * 8);
+
+        for (int i = 0; i < 200; i++) {
+            PageIo node = file1.get(i % 20);
+            node.writeLong(0, i);
+            node.setDirty();
+            file1.release(node);
+            file1.commit();
+        }
+        file1.forceClose();
+
+        PageFile file2 = new PageFile(file);
+        for (int i = 0; i < 20; i++) {
+            PageIo node = file2.get(i);
+            assertEquals(180 + i, node.readLong(0));
+            file2.release(node);
+        }
+        file2.close();
+    }
+
+    /**
+     * Only modified ranges are logged, recovery applies them on content of data file
+     */
+    public void testDeltaRecovery() throws Exception {
+        PageFile file1 = new PageFile(file);
+        for (int i = 0; i < 10; i++) {
+            PageIo node = file1.get(i);
+            node.writeLong(0, i);
+            node.writeLong(1000, i);
+            node.setDirty();
+            file1.release(node);
+        }
+        file1.commit();
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 10; j++) {
+                PageIo node = file1.get(j);
+                node.writeLong(8, i);
+                node.writeShort(2000, (short) i);
+                file1.release(node);
+            }
+            file1.commit();
+        }
+        long logSize = new File(file + StorageDisk.transaction_log_file_extension).length();
+        assertTrue(logSize < Storage.PAGE_SIZE);
+        file1.forceClose();
+
+        PageFile file2 = new PageFile(file);
+        for (int i = 0; i < 10; i++) {
+            PageIo node = file2.get(i);
+            assertEquals(i, node.readLong(0));
+            assertEquals(i, node.readLong(1000));
+            assertEquals(2, node.readLong(8));
+            assertEquals(2, node.readShort(2000));
+            file2.release(node);
+        }
+        file2.close();
+    }
+
+    public void testBackgroundCheckpointRollback() throws Exception {
+        DBAbstract db = (DBAbstract) DBMaker.openFile(file).disableCache().enableBackgroundCheckpoint(Storage.PAGE_SIZE * 4).make();
+        long recid = db.insert("start");
+        db.commit();
+        for (int i = 0; i < 100; i++) {
+            db.update(recid, "value" + i);
+            db.commit();
+        }
+        db.update(recid, "rolled back");
+        db.rollback();
+        assertEquals("value99", db.fetch(recid));
+        db.close();
+
+        db = (DBAbstract) DBMaker.openFile(file).make();
+        assertEquals("value99", db.fetch(recid));
+        db.close();
+    }
+
     //  Helpers
 
     void assertDataSizeEquals(String msg, long size) {
@@ -70,9 +70,11 @@ public class PhysicalFreeRowIdManagerTest extends TestCaseWithTestFile {
 
     }
 
-    public void test_size_to_root_offset(){
-        for(int i = 1;i<PhysicalFreeRowIdManager.MAX_REC_SIZE;i++){
-            int offset = PhysicalFreeRowIdManager.sizeToRootOffset(i);
+    public void test_size_to_root_offset() throws IOException {
+        PageFile f = newRecordFile();
+        PhysicalFreeRowIdManager freeMgr = new PhysicalFreeRowIdManager(f, new PageManager(f));
+        for(int i = 1;i<freeMgr.maxRecSize;i++){
+            int offset = freeMgr.sizeToRootOffset(i);
 
             assertTrue(offset<=Storage.PAGE_SIZE);
         }
@@ -87,25 +89,52 @@ public class PhysicalFreeRowIdManagerTest extends TestCaseWithTestFile {
         freeMgr.putFreeRecord(1000,100);
         freeMgr.commit();
 
-        assertEquals(1000,freeMgr.getFreeRecord(100-PhysicalFreeRowIdManager.ROOT_SLOT_SIZE));
-        assertEquals(0,freeMgr.getFreeRecord(100-PhysicalFreeRowIdManager.ROOT_SLOT_SIZE));
+        assertEquals(1000,freeMgr.getFreeRecord(100-freeMgr.rootSlotSize));
+        assertEquals(0,freeMgr.getFreeRecord(100-freeMgr.rootSlotSize));
 
     }
 
 
+    public void test_take_free_records() throws IOException {
+        PageFile f = newRecordFile();
+        PageManager pm = new PageManager(f);
+        PhysicalFreeRowIdManager freeMgr = new PhysicalFreeRowIdManager(f, pm);
+
+        final long[] recids = {(1L << f.pageSizeShift) + 16, (2L << f.pageSizeShift) + 16, (10L << f.pageSizeShift) + 16};
+        for (long recid : recids)
+            freeMgr.putFreeRecord(recid, 100);
+        freeMgr.commit();
+
+        final int[] demand = new int[freeMgr.maxRecidsPerPage];
+        demand[100 / freeMgr.rootSlotSize] = 5;
+        assertEquals(0, freeMgr.takeFreeRecords(5, demand, 0));
+        //record after limit page stays on free list
+        assertEquals(2, freeMgr.takeFreeRecords(5, demand, 10));
+        assertEquals(recids[2], freeMgr.getFreeRecord(100 - freeMgr.rootSlotSize));
+        assertEquals(0, freeMgr.getFreeRecord(100 - freeMgr.rootSlotSize));
+
+        //taken records are written back on commit
+        freeMgr.commit();
+        assertTrue(freeMgr.getFreeRecord(100 - freeMgr.rootSlotSize) != 0);
+        assertTrue(freeMgr.getFreeRecord(100 - freeMgr.rootSlotSize) != 0);
+        assertEquals(0, freeMgr.getFreeRecord(100 - freeMgr.rootSlotSize));
+        pm.close();
+        f.close();
+    }
+
     public void test_all_sizes_deallocation() throws IOException {
         PageFile f = newRecordFile();
         PageManager pm = new PageManager(f);
         PhysicalFreeRowIdManager freeMgr = new PhysicalFreeRowIdManager(f, pm);
 
-        for(int i = 1; i<PhysicalFreeRowIdManager.MAX_REC_SIZE; i++){
+        for(int i = 1; i<freeMgr.maxRecSize; i++){
 
 
             freeMgr.putFreeRecord(1000,i);
             freeMgr.commit();
 
-            assertEquals(1000,freeMgr.getFreeRecord(i-PhysicalFreeRowIdManager.ROOT_SLOT_SIZE));
-            assertEquals(0,freeMgr.getFreeRecord(i-PhysicalFreeRowIdManager.ROOT_SLOT_SIZE));
+            assertEquals(1000,freeMgr.getFreeRecord(i-freeMgr.rootSlotSize));
+            assertEquals(0,freeMgr.getFreeRecord(i-freeMgr.rootSlotSize));
         }
         pm.close();
         f.close();
@@ -0,0 +1,206 @@
+package net.kotek.jdbm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+
+public class SegmentLayoutTest extends TestCaseWithTestFile {
+
+    private File dir1, dir2, dir3;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        dir1 = newDir();
+        dir2 = newDir();
+        dir3 = newDir();
+    }
+
+    public void tearDown() throws Exception {
+        for (File d : new File[]{dir1, dir2, dir3}) {
+            for (File f : d.listFiles())
+                f.delete();
+            d.delete();
+        }
+        super.tearDown();
+    }
+
+    private File newDir() {
+        File d = new File(newTestFile());
+        d.mkdirs();
+        return d;
+    }
+
+    private ByteBuffer page(int value) {
+        ByteBuffer b = ByteBuffer.allocate(Storage.PAGE_SIZE);
+        b.putInt(0, value);
+        return b;
+    }
+
+    private String name(String file, File dir, String ext, int segment) {
+        return new File(dir, new File(file).getName()).getPath() + ext + "." + segment;
+    }
+
+    public void testDefaultLayout() throws IOException {
+        String file = newTestFile();
+        SegmentLayout.create(file, new String[0], null);
+        assertFalse(new File(file + SegmentLayout.LAYOUT_FILE_EXTENSION).exists());
+        SegmentLayout l = SegmentLayout.load(file);
+        assertFalse(l.isCustom());
+        assertEquals(StorageDiskMapped.makeFileName(file, 1, 3), l.segmentFile(1, 3));
+        assertEquals(StorageDiskMapped.makeFileName(file, -1, 3), l.segmentFile(-1, 3));
+    }
+
+    public void testRoundRobin() throws IOException {
+        String file = newTestFile();
+        SegmentLayout.create(file, new String[]{dir1.getPath(), dir2.getPath()}, dir3.getPath());
+        SegmentLayout l = SegmentLayout.load(file);
+        assertTrue(l.isCustom());
+        assertEquals(4, l.getDirectoryCount());
+        assertEquals(StorageDiskMapped.makeFileName(file, 1, 0), l.segmentFile(1, 0));
+        assertEquals(name(file, dir1, StorageDiskMapped.DBR, 1), l.segmentFile(1, 1));
+        assertEquals(name(file, dir2, StorageDiskMapped.DBR, 2), l.segmentFile(1, 2));
+        assertEquals(name(file, dir1, StorageDiskMapped.DBR, 3), l.segmentFile(1, 3));
+        assertEquals(name(file, dir3, StorageDiskMapped.IDR, 0), l.segmentFile(-1, 0));
+        assertEquals(name(file, dir3, StorageDiskMapped.IDR, 1), l.segmentFile(-1, 1));
+
+        //existing layout is not overwritten
+        SegmentLayout.create(file, new String[]{dir3.getPath()}, null);
+        assertEquals(name(file, dir1, StorageDiskMapped.DBR, 1), SegmentLayout.load(file).segmentFile(1, 1));
+    }
+
+    public void testMissingDirectory() {
+        try {
+            SegmentLayout.create(newTestFile(), new String[]{newTestFile()}, null);
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    public void testStorage() throws IOException {
+        for (boolean raf : new boolean[]{false, true}) {
+            String file = newTestFile();
+            SegmentLayout.create(file, new String[]{dir1.getPath(), dir2.getPath()}, dir3.getPath());
+            final long pagesPerFile = StorageDiskMapped.FILE_SIZE / Storage.PAGE_SIZE;
+            final long[] pages = {1, pagesPerFile + 1, 2 * pagesPerFile + 1, -1};
+
+            Storage s = raf ? new StorageDisk(file, false, true, Storage.PAGE_SIZE_SHIFT)
+                    : new StorageDiskMapped(file, false, false, true, Storage.PAGE_SIZE_SHIFT);
+            for (long p : pages)
+                s.write(p, page((int) p));
+            s.sync();
+            s.forceClose();
+
+            assertTrue(new File(StorageDiskMapped.makeFileName(file, 1, 0)).exists());
+            assertTrue(new File(name(file, dir1, StorageDiskMapped.DBR, 1)).exists());
+            assertTrue(new File(name(file, dir2, StorageDiskMapped.DBR, 2)).exists());
+            assertTrue(new File(name(file, dir3, StorageDiskMapped.IDR, 0)).exists());
+            assertFalse(new File(StorageDiskMapped.makeFileName(file, -1, 0)).exists());
+
+            s = raf ? new StorageDisk(file, false, true, Storage.PAGE_SIZE_SHIFT)
+                    : new StorageDiskMapped(file, false, false, true, Storage.PAGE_SIZE_SHIFT);
+            for (long p : pages)
+                assertEquals(p, s.read(p).getInt(0));
+            s.deleteAllFiles();
+            s.forceClose();
+            assertFalse(new File(name(file, dir1, StorageDiskMapped.DBR, 1)).exists());
+            assertFalse(new File(file + SegmentLayout.LAYOUT_FILE_EXTENSION).exists());
+        }
+    }
+
+    public void testParallelSegmentWrites() throws Exception {
+        String file = newTestFile();
+        SegmentLayout.create(file, new String[]{dir1.getPath(), dir2.getPath()}, null);
+        final long pagesPerFile = StorageDiskMapped.FILE_SIZE / Storage.PAGE_SIZE;
+        final StorageDisk s = new StorageDisk(file, false, true, Storage.PAGE_SIZE_SHIFT);
+        s.write(pagesPerFile + 1, page(1));
+
+        final Throwable[] error = new Throwable[1];
+        Thread blocked = new Thread() {
+            public void run() {
+                try {
+                    s.write(1, page(2));
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        };
+        Thread other = new Thread() {
+            public void run() {
+                try {
+                    s.write(pagesPerFile + 2, page(3));
+                    s.read(pagesPerFile + 1);
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        };
+
+        //first segment is busy, write into it waits
+        RandomAccessFile first = s.getRaf(1);
+        synchronized (first) {
+            blocked.start();
+            while (blocked.getState() != Thread.State.BLOCKED)
+                Thread.sleep(1);
+            //write and read on other segment must not wait for it
+            other.start();
+            other.join(10000);
+            assertFalse("write to other segment is blocked", other.isAlive());
+        }
+        blocked.join();
+        assertNull(error[0]);
+
+        assertEquals(2, s.read(1).getInt(0));
+        assertEquals(3, s.read(pagesPerFile + 2).getInt(0));
+        s.deleteAllFiles();
+        s.forceClose();
+    }
+
+    public void testDB() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).stripeDirectories(dir1.getPath(), dir2.getPath())
+                .setTranslationDirectory(dir3.getPath()).make();
+        Map<Integer, String> m = db.createHashMap("test");
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, "aa" + i);
+        }
+        db.commit();
+        db.close();
+        assertTrue(new File(name(file, dir3, StorageDiskMapped.IDR, 0)).exists());
+
+        //layout is read from file
+        db = DBMaker.openFile(file).make();
+        m = db.getHashMap("test");
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("aa" + i, m.get(i));
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            m.remove(i);
+        }
+        db.commit();
+        db.defrag(true);
+        assertEquals(5000, m.size());
+        assertEquals("aa9999", m.get(9999));
+        db.close();
+        assertTrue(new File(name(file, dir3, StorageDiskMapped.IDR, 0)).exists());
+        assertFalse(new File(StorageDiskMapped.makeFileName(file, -1, 0)).exists());
+
+        db = DBMaker.openFile(file).make();
+        m = db.getHashMap("test");
+        assertEquals(5000, m.size());
+        assertEquals("aa9999", m.get(9999));
+        db.close();
+    }
+
+    public void testMemoryStoreRejected() {
+        try {
+            DBMaker.openMemory().stripeDirectories(dir1.getPath()).make();
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+}
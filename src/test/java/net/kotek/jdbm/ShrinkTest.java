@@ -0,0 +1,152 @@
+package net.kotek.jdbm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class ShrinkTest extends TestCaseWithTestFile {
+
+    static final int RECORDS = 300;
+
+    private long dataSize(String file) {
+        long size = 0;
+        for (int i = 0; new File(StorageDiskMapped.makeFileName(file, 1, i)).exists(); i++)
+            size += new File(StorageDiskMapped.makeFileName(file, 1, i)).length();
+        return size;
+    }
+
+    private byte[] record(int i) {
+        byte[] b = new byte[i * 50 + 1];
+        Arrays.fill(b, (byte) i);
+        return b;
+    }
+
+    /**
+     * Inserts records of growing size and deletes second half, so end of file holds only free records.
+     * Cache is disabled in tests, it would write records in different order.
+     */
+    private List<Long> insertAndDeleteTail(DBAbstract db) throws IOException {
+        List<Long> recids = new ArrayList<Long>();
+        for (int i = 0; i < RECORDS; i++)
+            recids.add(db.insert(record(i)));
+        db.commit();
+        for (int i = RECORDS / 2; i < RECORDS; i++)
+            db.delete(recids.get(i));
+        db.commit();
+        return recids.subList(0, RECORDS / 2);
+    }
+
+    private void check(DBAbstract db, List<Long> recids) throws IOException {
+        for (int i = 0; i < recids.size(); i++)
+            assertTrue(Arrays.equals(record(i), (byte[]) db.fetch(recids.get(i))));
+    }
+
+    public void testShrink() throws IOException {
+        for (boolean raf : new boolean[]{false, true}) {
+            String file = newTestFile();
+            DBMaker maker = DBMaker.openFile(file).disableCache();
+            if (raf) maker.useRandomAccessFile();
+            DBAbstract db = (DBAbstract) maker.disableCache().make();
+            List<Long> recids = insertAndDeleteTail(db);
+
+            assertTrue(db.shrink() > 0);
+            assertEquals(0, db.shrink());
+            check(db, recids);
+            //store can grow again after shrink
+            recids = new ArrayList<Long>(recids);
+            for (int i = recids.size(); i < RECORDS; i++)
+                recids.add(db.insert(record(i)));
+            db.commit();
+            check(db, recids);
+            db.close();
+
+            db = (DBAbstract) DBMaker.openFile(file).disableCache().make();
+            check(db, recids);
+            db.close();
+        }
+    }
+
+    public void testShrinkReleasesDiskSpace() throws IOException {
+        String file = newTestFile();
+        DBAbstract db = (DBAbstract) DBMaker.openFile(file).useRandomAccessFile().disableCache().make();
+        insertAndDeleteTail(db);
+        final long before = dataSize(file);
+        final long released = db.shrink();
+        assertTrue(released > 0);
+        assertEquals(before - released, dataSize(file));
+        db.close();
+    }
+
+    public void testShrinkRepeatedly() throws IOException {
+        DBAbstract db = (DBAbstract) DBMaker.openMemory().disableCache().make();
+        List<Long> recids = insertAndDeleteTail(db);
+        assertTrue(db.shrink() > 0);
+        //small records share pages with free lists, so only large records are deleted
+        for (int size = recids.size() / 2; size > 8; size /= 2) {
+            for (int i = size; i < recids.size(); i++)
+                db.delete(recids.get(i));
+            recids = recids.subList(0, size);
+            assertTrue(db.shrink() > 0);
+            check(db, recids);
+        }
+        db.close();
+    }
+
+    public void testAutoShrink() throws IOException {
+        DBAbstract db = (DBAbstract) DBMaker.openFile(newTestFile()).enableAutoShrink(16 * Storage.PAGE_SIZE).disableCache().make();
+        List<Long> recids = insertAndDeleteTail(db);
+        //already shrinked on commit
+        assertEquals(0, db.shrink());
+        check(db, recids);
+        db.close();
+    }
+
+    public void testOtherStorages() throws IOException {
+        DB[] dbs = new DB[]{
+                DBMaker.openMemory().disableCache().make(),
+                DBMaker.openMemory().disableTransactions().disableCache().make(),
+                DBMaker.openMemoryDirect().disableCache().make(),
+                DBMaker.openFile(newTestFile()).enableCompression().disableCache().make(),
+                DBMaker.openFile(newTestFile()).disableTransactions().disableCache().make(),
+                DBMaker.openFile(newTestFile()).enableEncryption("password", false).setPageCacheSize(1024 * 1024).disableCache().make(),
+                DBMaker.openFile(newTestFile()).enableBackgroundCheckpoint(1024 * 1024).disableCache().make(),
+        };
+        for (DB db0 : dbs) {
+            DBAbstract db = (DBAbstract) db0;
+            List<Long> recids = insertAndDeleteTail(db);
+            assertTrue(db.shrink() > 0);
+            check(db, recids);
+            for (int i = 0; i < RECORDS; i++)
+                db.insert(record(i));
+            db.commit();
+            check(db, recids);
+            db.close();
+        }
+    }
+
+    public void testCompressedReopen() throws IOException {
+        String file = newTestFile();
+        DBAbstract db = (DBAbstract) DBMaker.openFile(file).enableCompression().disableCache().make();
+        List<Long> recids = insertAndDeleteTail(db);
+        assertTrue(db.shrink() > 0);
+        db.close();
+
+        db = (DBAbstract) DBMaker.openFile(file).disableCache().make();
+        check(db, recids);
+        db.close();
+    }
+
+    public void testSnapshotIsReadonly() {
+        DB db = DBMaker.openMemory().disableCache().make();
+        try {
+            db.snapshot().shrink();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        db.close();
+    }
+}
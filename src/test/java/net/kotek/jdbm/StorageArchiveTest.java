@@ -0,0 +1,112 @@
+package net.kotek.jdbm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+
+
+public class StorageArchiveTest extends TestCaseWithTestFile {
+
+    private byte[] page(int pageSize, long value) {
+        ByteBuffer b = ByteBuffer.allocate(pageSize);
+        b.putLong(0, value);
+        b.putLong(pageSize - 8, value);
+        return b.array();
+    }
+
+    public void testWriteRead() throws IOException {
+        String file = newTestFile();
+        final int shift = Storage.PAGE_SIZE_SHIFT;
+        StorageArchive.Writer w = new StorageArchive.Writer(file, shift);
+        for (long i = -100; i < 1000; i += 3) {
+            w.add(i, page(Storage.PAGE_SIZE, i));
+        }
+        w.close();
+        assertTrue(StorageArchive.isArchive(file));
+
+        StorageArchive s = new StorageArchive(file, shift);
+        assertTrue(s.isReadonly());
+        //read in random order, so blocks are evicted and read again
+        for (int j = 0; j < 3; j++) {
+            for (long i = 999; i >= -100; i--) {
+                ByteBuffer b = s.read(i);
+                assertEquals(Storage.PAGE_SIZE, b.limit());
+                long expected = (i + 100) % 3 == 0 ? i : 0;
+                assertEquals(expected, b.getLong(0));
+                assertEquals(expected, b.getLong(Storage.PAGE_SIZE - 8));
+            }
+        }
+        s.forceClose();
+    }
+
+    public void testSmallerPageSizeRequested() throws IOException {
+        String file = newTestFile();
+        StorageArchive.Writer w = new StorageArchive.Writer(file, Storage.MAX_PAGE_SIZE_SHIFT);
+        w.add(0, page(1 << Storage.MAX_PAGE_SIZE_SHIFT, 111));
+        w.add(1, page(1 << Storage.MAX_PAGE_SIZE_SHIFT, 222));
+        w.close();
+
+        //header is read with smallest page size
+        StorageArchive s = new StorageArchive(file, Storage.MIN_PAGE_SIZE_SHIFT);
+        assertEquals(1 << Storage.MIN_PAGE_SIZE_SHIFT, s.read(0).limit());
+        assertEquals(111, s.read(0).getLong(0));
+        assertEquals(222, s.read(1).getLong(0));
+        s.forceClose();
+    }
+
+    public void testNotArchive() throws IOException {
+        assertFalse(StorageArchive.isArchive(newTestFile()));
+    }
+
+    public void testDB() throws IOException {
+        String archive = newTestFile();
+        DB db = DBMaker.openFile(newTestFile()).make();
+        Map<Integer, String> m = db.createTreeMap("tree");
+        Set<Long> h = db.createHashSet("hash");
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, "aa" + i);
+            h.add((long) i);
+        }
+        db.commit();
+        db.copyToArchive(archive);
+        db.close();
+        //archive is compressed
+        assertTrue(new File(archive).length() < 10000 * 20);
+
+        db = DBMaker.openArchive(archive).make();
+        m = db.getTreeMap("tree");
+        h = db.getHashSet("hash");
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("aa" + i, m.get(i));
+            assertTrue(h.contains((long) i));
+        }
+        db.close();
+
+        //archive can be opened as zip
+        db = DBMaker.openZip(archive).readonly().make();
+        assertEquals("aa5000", db.getTreeMap("tree").get(5000));
+        db.close();
+    }
+
+    public void testDBEncryptedLargePages() throws IOException {
+        String archive = newTestFile();
+        DB db = DBMaker.openFile(newTestFile()).enableEncryption("password", false)
+                .setPageSize(64 * 1024).make();
+        Map<Integer, String> m = db.createHashMap("test");
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, "aa" + i);
+        }
+        db.commit();
+        db.copyToArchive(archive);
+        db.close();
+
+        db = DBMaker.openArchive(archive).enableEncryption("password", false).make();
+        m = db.getHashMap("test");
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("aa" + i, m.get(i));
+        }
+        db.close();
+    }
+}
@@ -0,0 +1,172 @@
+package net.kotek.jdbm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+
+public class StorageCompressedTest extends TestCaseWithTestFile {
+
+    /** page where only beginning is filled with data */
+    private ByteBuffer page(int value, int filled){
+        ByteBuffer b = ByteBuffer.allocate(Storage.PAGE_SIZE);
+        Random r = new Random(value);
+        for (int i = 0; i < filled; i++)
+            b.put(i, (byte) r.nextInt());
+        b.putInt(0, value);
+        return b;
+    }
+
+    private StorageCompressed open(String file) throws IOException {
+        return new StorageCompressed(new StorageDisk(file, false, true, Storage.PAGE_SIZE_SHIFT), file, false);
+    }
+
+    public void testReadWrite() throws IOException {
+        String file = newTestFile();
+        StorageCompressed s = open(file);
+        for (int i = -100; i < 1000; i++) {
+            //some pages are not compressible
+            s.write(i, page(i, i % 10 == 0 ? Storage.PAGE_SIZE : i & 0xFFF));
+        }
+        for (int i = -100; i < 1000; i++) {
+            assertEquals(page(i, i % 10 == 0 ? Storage.PAGE_SIZE : i & 0xFFF), s.read(i));
+        }
+        assertEquals(0, s.read(2000).getInt(0));
+        s.sync();
+
+        //overwrite with different sizes
+        for (int i = 0; i < 1000; i += 3) {
+            s.write(i, page(i + 1, 100));
+        }
+        s.sync();
+        s.forceClose();
+
+        s = open(file);
+        for (int i = -100; i < 1000; i++) {
+            ByteBuffer expected = i >= 0 && i % 3 == 0 ? page(i + 1, 100) : page(i, i % 10 == 0 ? Storage.PAGE_SIZE : i & 0xFFF);
+            assertEquals(expected, s.read(i));
+        }
+        s.forceClose();
+    }
+
+    public void testSmallerFile() throws IOException {
+        String file = newTestFile();
+        StorageCompressed s = open(file);
+        for (int i = 0; i < 1000; i++) {
+            s.write(i, page(i, 400));
+        }
+        s.sync();
+        s.forceClose();
+        long size = new File(StorageDiskMapped.makeFileName(file, 1, 0)).length();
+        assertTrue("" + size, size < 1000L * Storage.PAGE_SIZE / 3);
+    }
+
+    public void testUnsyncedChangesLost() throws IOException {
+        String file = newTestFile();
+        StorageCompressed s = open(file);
+        for (int i = 0; i < 100; i++) {
+            s.write(i, page(i, 100));
+        }
+        s.sync();
+        //overwrite and crash before sync, old pages must be intact
+        for (int i = 0; i < 100; i++) {
+            s.write(i, page(i + 1000, 200));
+        }
+        for (int i = 100; i < 200; i++) {
+            s.write(i, page(i, 100));
+        }
+        s.forceClose();
+
+        s = open(file);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(page(i, 100), s.read(i));
+        }
+        assertEquals(0, s.read(150).getInt(0));
+        s.forceClose();
+    }
+
+    public void testMapFileRewrite() throws IOException {
+        String file = newTestFile();
+        StorageCompressed s = open(file);
+        for (int j = 0; j < 50; j++) {
+            for (int i = 0; i < 100; i++) {
+                s.write(i, page(i + j, 100 + j));
+            }
+            s.sync();
+        }
+        s.forceClose();
+        assertTrue(new File(file + StorageCompressed.MAP_FILE_EXTENSION).length() < 50 * 100 * 16);
+
+        s = open(file);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(page(i + 49, 149), s.read(i));
+        }
+        s.forceClose();
+    }
+
+    public void testDB() throws IOException {
+        for (int pageSize : new int[]{4096, 64 * 1024}) {
+            String file = newTestFile();
+            DB db = DBMaker.openFile(file).enableCompression().setPageSize(pageSize).make();
+            Map<Integer, String> m = db.createTreeMap("test");
+            for (int i = 0; i < 10000; i++) {
+                m.put(i, "aa" + i);
+            }
+            db.commit();
+            for (int i = 0; i < 10000; i += 2) {
+                m.remove(i);
+            }
+            db.commit();
+            db.close();
+
+            //compression is detected from files
+            db = DBMaker.openFile(file).make();
+            m = db.getTreeMap("test");
+            assertEquals(5000, m.size());
+            for (int i = 1; i < 10000; i += 2) {
+                assertEquals("aa" + i, m.get(i));
+            }
+            db.defrag(true);
+            assertTrue(StorageCompressed.exists(file));
+            db.close();
+
+            db = DBMaker.openFile(file).make();
+            m = db.getTreeMap("test");
+            assertEquals(5000, m.size());
+            assertEquals("aa9999", m.get(9999));
+            db.close();
+        }
+    }
+
+    public void testDBTransactionsDisabled() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).enableCompression().disableTransactions().make();
+        Map<Integer, String> m = db.createHashMap("test");
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, "aa" + i);
+        }
+        db.close();
+
+        db = DBMaker.openFile(file).make();
+        m = db.getHashMap("test");
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("aa" + i, m.get(i));
+        }
+        db.close();
+    }
+
+    public void testExistingFileNotCompressed() throws IOException {
+        String file = newTestFile();
+        DBAbstract db = (DBAbstract) DBMaker.openFile(file).make();
+        long recid = db.insert("aaa");
+        db.commit();
+        db.close();
+
+        db = (DBAbstract) DBMaker.openFile(file).enableCompression().make();
+        assertEquals("aaa", db.fetch(recid));
+        db.close();
+        assertFalse(StorageCompressed.exists(file));
+    }
+}
@@ -1,13 +1,86 @@
 package net.kotek.jdbm;
 
-import junit.framework.TestCase;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
-public class StorageDiskMappedTest extends TestCase {
-    
+public class StorageDiskMappedTest extends TestCaseWithTestFile {
+
     public void testNumberOfPages(){
 
-        assertTrue(StorageDiskMapped.PAGES_PER_FILE * Storage.PAGE_SIZE <Integer.MAX_VALUE);
-        
+        assertTrue(StorageDiskMapped.FILE_SIZE <Integer.MAX_VALUE);
+
+    }
+
+    private ByteBuffer page(int pageSize, int value){
+        ByteBuffer b = ByteBuffer.allocate(pageSize);
+        b.putInt(0, value);
+        b.putInt(pageSize - 4, value);
+        return b;
+    }
+
+    public void testPreallocationChunk() throws IOException {
+        String file = newTestFile();
+        StorageDiskMapped s = new StorageDiskMapped(file, false, false, true, Storage.PAGE_SIZE_SHIFT);
+        s.setPreallocationChunkSize(1024 * 1024);
+        s.write(1, page(Storage.PAGE_SIZE, 1));
+        assertEquals(1024 * 1024, new File(StorageDiskMapped.makeFileName(file, 1, 0)).length());
+        s.write(300, page(Storage.PAGE_SIZE, 300));
+        assertEquals(2 * 1024 * 1024, new File(StorageDiskMapped.makeFileName(file, 1, 0)).length());
+        assertEquals(1, s.read(1).getInt(0));
+        assertEquals(300, s.read(300).getInt(Storage.PAGE_SIZE - 4));
+        //not written yet
+        assertEquals(0, s.read(301).getInt(0));
+        assertEquals(0, s.read(100000).getInt(0));
+        s.forceClose();
+    }
+
+    public void testRegions() throws IOException {
+        String file = newTestFile();
+        final int pagesPerRegion = StorageDiskMapped.REGION_SIZE / Storage.PAGE_SIZE;
+        final long[] pages = {0, 1, pagesPerRegion - 1, pagesPerRegion, pagesPerRegion + 1, 3 * pagesPerRegion + 5, -1, -pagesPerRegion - 1};
+
+        //default growth maps last region partially, so it is remapped as file grows
+        StorageDiskMapped s = new StorageDiskMapped(file, false, false, true, Storage.PAGE_SIZE_SHIFT);
+        for (long p : pages) {
+            s.write(p, page(Storage.PAGE_SIZE, (int) p));
+        }
+        for (long p : pages) {
+            assertEquals(p, s.read(p).getInt(0));
+            assertEquals(p, s.read(p).getInt(Storage.PAGE_SIZE - 4));
+        }
+        s.sync();
+        s.forceClose();
+
+        //reopen and grow partially mapped regions with chunks
+        s = new StorageDiskMapped(file, false, false, true, Storage.PAGE_SIZE_SHIFT);
+        s.setPreallocationChunkSize(StorageDiskMapped.REGION_SIZE);
+        for (long p : pages) {
+            assertEquals(p, s.read(p).getInt(0));
+        }
+        s.write(3 * pagesPerRegion + 100, page(Storage.PAGE_SIZE, 100));
+        assertEquals(100, s.read(3 * pagesPerRegion + 100).getInt(0));
+        assertEquals(3 * pagesPerRegion + 5, s.read(3 * pagesPerRegion + 5).getInt(0));
+        s.forceClose();
+    }
+
+    public void testDBWithPreallocation() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).setPreallocationChunkSize(16 * 1024 * 1024).make();
+        java.util.Map<Integer, String> m = db.createHashMap("test");
+        for (int i = 0; i < 100000; i++) {
+            m.put(i, "aa" + i);
+        }
+        db.commit();
+        db.close();
+        assertEquals(0, new File(StorageDiskMapped.makeFileName(file, 1, 0)).length() % (16 * 1024 * 1024));
+
+        db = DBMaker.openFile(file).make();
+        m = db.getHashMap("test");
+        for (int i = 0; i < 100000; i++) {
+            assertEquals("aa" + i, m.get(i));
+        }
+        db.close();
     }
 }
@@ -0,0 +1,80 @@
+package net.kotek.jdbm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+
+public class StorageDiskTest extends TestCaseWithTestFile {
+
+    private ByteBuffer page(int value){
+        ByteBuffer b = ByteBuffer.allocate(Storage.PAGE_SIZE);
+        b.putInt(0, value);
+        b.putInt(Storage.PAGE_SIZE - 4, value);
+        return b;
+    }
+
+    public void testReadAhead() throws IOException {
+        String file = newTestFile();
+        StorageDisk s = new StorageDisk(file, false, true, Storage.PAGE_SIZE_SHIFT);
+        for (int i = 1; i < 100; i++) {
+            s.write(i, page(i));
+            s.write(-i, page(-i));
+        }
+        s.setReadAhead(16);
+
+        for (int i = 1; i < 100; i++) {
+            assertEquals(i, s.read(i).getInt(0));
+            assertEquals(i, s.read(i).getInt(Storage.PAGE_SIZE - 4));
+        }
+        //translation pages are read in opposite direction
+        for (int i = 1; i < 100; i++) {
+            assertEquals(-i, s.read(-i).getInt(0));
+        }
+        //beyond end of file
+        assertEquals(0, s.read(1000).getInt(0));
+        s.forceClose();
+    }
+
+    public void testReadAheadInvalidatedByWrite() throws IOException {
+        String file = newTestFile();
+        StorageDisk s = new StorageDisk(file, false, true, Storage.PAGE_SIZE_SHIFT);
+        for (int i = 1; i < 100; i++) {
+            s.write(i, page(i));
+        }
+        s.setReadAhead(16);
+        for (int i = 1; i < 10; i++) {
+            assertEquals(i, s.read(i).getInt(0));
+        }
+        //following pages are now read ahead, overwrite some of them
+        s.write(12, page(1000));
+        for (int i = 10; i < 20; i++) {
+            assertEquals(i == 12 ? 1000 : i, s.read(i).getInt(0));
+        }
+        s.forceClose();
+    }
+
+    public void testDBWithReadAhead() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).useRandomAccessFile().make();
+        Map<Integer, String> m = db.createTreeMap("test");
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, "aa" + i);
+        }
+        db.commit();
+        db.close();
+
+        db = DBMaker.openFile(file).useRandomAccessFile().enableReadAhead(16).make();
+        m = db.getTreeMap("test");
+        int i = 0;
+        for (Map.Entry<Integer, String> e : m.entrySet()) {
+            assertEquals(i, e.getKey().intValue());
+            assertEquals("aa" + i, e.getValue());
+            i++;
+        }
+        assertEquals(10000, i);
+        db.defrag(false);
+        assertEquals("aa100", m.get(100));
+        db.close();
+    }
+}
@@ -0,0 +1,94 @@
+package net.kotek.jdbm.junk;
+
+import net.kotek.jdbm.DB;
+import net.kotek.jdbm.DBMaker;
+import net.kotek.jdbm.Serializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+/**
+ * Measures insert, get and scan throughput of TreeMap with different node sizes.
+ * Use it to find optimal node size for given keys and serializers.
+ */
+public class BTreeNodeSizeBench {
+
+    static final int[] NODE_SIZES = {16, 32, 64, 128, 256};
+
+    /**
+     * Generates key for given index, keys must be distinct
+     */
+    public interface KeyFactory<K> {
+        K makeKey(long index);
+    }
+
+    public static <K, V> void bench(KeyFactory<K> keys, V value,
+                                    Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                    int count) throws IOException {
+        System.out.println("nodeSize\tinsert/s\tget/s\tscan/s\tfile size");
+        for (int nodeSize : NODE_SIZES) {
+            String file = System.getProperty("java.io.tmpdir") + "/nodeSizeBench" + System.nanoTime();
+            DB db = DBMaker.openFile(file)
+                    .disableTransactions()
+                    .make();
+            ConcurrentNavigableMap<K, V> map = db.createTreeMap("bench", null, keySerializer, valueSerializer, nodeSize);
+
+            //insert in random order, same order for all node sizes
+            Random r = new Random(0);
+            long t = System.nanoTime();
+            for (long i = 0; i < count; i++) {
+                map.put(keys.makeKey(r.nextInt(count)), value);
+            }
+            db.commit();
+            double insert = perSec(count, t);
+
+            r = new Random(1);
+            t = System.nanoTime();
+            for (long i = 0; i < count; i++) {
+                map.get(keys.makeKey(r.nextInt(count)));
+            }
+            double get = perSec(count, t);
+
+            t = System.nanoTime();
+            long scanned = 0;
+            for (Map.Entry<K, V> e : map.entrySet()) {
+                scanned++;
+            }
+            double scan = perSec(scanned, t);
+
+            db.close();
+            long size = 0;
+            for (File f : new File(file).getParentFile().listFiles()) {
+                if (f.getName().startsWith(new File(file).getName())) {
+                    size += f.length();
+                    f.delete();
+                }
+            }
+            System.out.println(nodeSize + "\t" + (long) insert + "\t" + (long) get + "\t" + (long) scan + "\t" + size / 1024 + " KB");
+        }
+    }
+
+    static double perSec(long count, long startNanos) {
+        return count * 1e9 / (System.nanoTime() - startNanos);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        System.out.println("Long keys");
+        bench(new KeyFactory<Long>() {
+            public Long makeKey(long index) {
+                return index;
+            }
+        }, "", null, null, count);
+
+        System.out.println("String keys");
+        bench(new KeyFactory<String>() {
+            public String makeKey(long index) {
+                return "key" + index;
+            }
+        }, "", null, null, count);
+    }
+}